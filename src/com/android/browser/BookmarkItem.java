@@ -37,6 +37,7 @@ class BookmarkItem extends HorizontalScrollView {
     protected TextView    mTextView;
     protected TextView    mUrlText;
     protected ImageView   mImageView;
+    protected Bitmap      mFavicon;
     protected String      mUrl;
     protected String      mTitle;
     protected boolean mEnableScrolling = false;
@@ -88,6 +89,7 @@ class BookmarkItem extends HorizontalScrollView {
      *              If it is null, will use the default.
      */
     /* package */ void setFavicon(Bitmap b) {
+        mFavicon = b;
         if (b != null) {
             mImageView.setImageBitmap(b);
         } else {
@@ -95,6 +97,13 @@ class BookmarkItem extends HorizontalScrollView {
         }
     }
 
+    /**
+     * Return the favicon last set, or null if it shows the default.
+     */
+    /* package */ Bitmap getFavicon() {
+        return mFavicon;
+    }
+
     void setFaviconBackground(Drawable d) {
         mImageView.setBackgroundDrawable(d);
     }
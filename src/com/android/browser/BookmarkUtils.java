@@ -18,11 +18,14 @@ package com.android.browser;
 
 import android.app.ActivityManager;
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -40,6 +43,8 @@ import android.os.Message;
 import android.provider.Browser;
 import android.provider.BrowserContract;
 
+import com.android.browser.provider.BrowserProvider2;
+
 public class BookmarkUtils {
     private final static String LOGTAG = "BookmarkUtils";
 
@@ -223,6 +228,25 @@ public class BookmarkUtils {
         return BrowserContract.Bookmarks.CONTENT_URI;
     }
 
+    /**
+     * @return The bookmarks version the provider increments on every
+     *         bookmark edit, or -1 if it can't be read.
+     */
+    /* package */ static long queryBookmarksVersion(ContentResolver cr) {
+        Cursor cursor = null;
+        try {
+            cursor = cr.query(BrowserContract.Settings.CONTENT_URI,
+                    new String[] { BrowserContract.Settings.VALUE },
+                    BrowserContract.Settings.KEY + " = ?",
+                    new String[] { BrowserProvider2.SETTING_BOOKMARKS_VERSION }, null);
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } catch (SQLiteException e) {
+            return -1;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
     /**
      * Show a confirmation dialog to remove a bookmark.
      * @param id Id of the bookmark to remove
@@ -202,6 +202,12 @@ public class BrowserActivity extends Activity {
         mController.onLowMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mController.onTrimMemory(level);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
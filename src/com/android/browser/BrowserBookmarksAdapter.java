@@ -20,6 +20,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.provider.BrowserContract.Bookmarks;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -28,6 +29,7 @@ import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 import android.widget.TextView;
 
+import com.android.browser.util.BitmapDecoder;
 import com.android.browser.util.ThreadedCursorAdapter;
 import com.android.browser.view.BookmarkContainer;
 
@@ -36,6 +38,9 @@ public class BrowserBookmarksAdapter extends
 
     LayoutInflater mInflater;
     Context mContext;
+    BitmapDecoder mDecoder;
+    int mThumbWidth;
+    int mThumbHeight;
 
     /**
      *  Create a new BrowserBookmarksAdapter.
@@ -46,6 +51,11 @@ public class BrowserBookmarksAdapter extends
         super(context, null);
         mInflater = LayoutInflater.from(context);
         mContext = context;
+        mDecoder = BitmapDecoder.getInstance(context);
+        mThumbWidth = context.getResources().getDimensionPixelSize(
+                R.dimen.bookmarkThumbnailWidth);
+        mThumbHeight = context.getResources().getDimensionPixelSize(
+                R.dimen.bookmarkThumbnailHeight);
     }
 
     @Override
@@ -86,6 +96,15 @@ public class BrowserBookmarksAdapter extends
         TextView tv = (TextView) view.findViewById(R.id.label);
 
         tv.setText(item.title);
+        // The view holds its own pin on the thumbnail it shows, as the row
+        // object may be reloaded with another one before the view is bound
+        Bitmap shown = getBitmap(thumb.getDrawable());
+        Bitmap thumbnail = item.thumbnail != null && item.has_thumbnail && !item.is_folder
+                ? item.thumbnail.getBitmap() : null;
+        if (shown != thumbnail) {
+            mDecoder.acquire(thumbnail);
+            mDecoder.release(shown);
+        }
         if (item.is_folder) {
             // folder
             thumb.setImageResource(R.drawable.thumb_bookmark_widget_folder_holo);
@@ -102,26 +121,43 @@ public class BrowserBookmarksAdapter extends
         }
     }
 
+    private static Bitmap getBitmap(Drawable d) {
+        return d instanceof BitmapDrawable ? ((BitmapDrawable) d).getBitmap() : null;
+    }
+
     @Override
     public BrowserBookmarksAdapterItem getRowObject(Cursor c,
             BrowserBookmarksAdapterItem item) {
         if (item == null) {
             item = new BrowserBookmarksAdapterItem();
         }
-        Bitmap thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
-        thumbnail = BrowserBookmarksPage.getBitmap(c,
-                BookmarksLoader.COLUMN_INDEX_THUMBNAIL, thumbnail);
-        item.has_thumbnail = thumbnail != null;
-        if (thumbnail != null
-                && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
-            item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
-        }
         item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
         item.title = getTitle(c);
         item.url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
+        Bitmap previous = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
+        Bitmap thumbnail = item.is_folder ? null : mDecoder.decode(item.url,
+                BitmapDecoder.TYPE_THUMBNAIL,
+                c.getBlob(BookmarksLoader.COLUMN_INDEX_THUMBNAIL),
+                mThumbWidth, mThumbHeight);
+        // The row object holds a pin until it gets another thumbnail
+        mDecoder.release(previous);
+        item.has_thumbnail = thumbnail != null;
+        if (thumbnail == null) {
+            item.thumbnail = null;
+        } else if (thumbnail != previous) {
+            item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
+        }
         return item;
     }
 
+    @Override
+    protected void releaseRowObject(BrowserBookmarksAdapterItem item) {
+        if (item.thumbnail != null) {
+            mDecoder.release(item.thumbnail.getBitmap());
+            item.thumbnail = null;
+        }
+    }
+
     @Override
     public BrowserBookmarksAdapterItem getLoadingObject() {
         BrowserBookmarksAdapterItem item = new BrowserBookmarksAdapterItem();
@@ -33,7 +33,8 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.DataSetObserver;
-import android.graphics.BitmapFactory;
+import android.database.DatabaseUtils;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -61,6 +62,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.util.BitmapDecoder;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -71,6 +75,8 @@ public class BrowserHistoryPage extends Fragment
     static final int LOADER_HISTORY = 1;
     static final int LOADER_MOST_VISITED = 2;
 
+    static final String HISTORY_WHERE = Combined.VISITS + " > 0";
+
     CombinedBookmarksCallbacks mCallback;
     HistoryAdapter mAdapter;
     HistoryChildWrapper mChildWrapper;
@@ -116,10 +122,13 @@ public class BrowserHistoryPage extends Fragment
 
         switch (id) {
             case LOADER_HISTORY: {
-                String sort = Combined.DATE_LAST_VISITED + " DESC";
-                String where = Combined.VISITS + " > 0";
-                CursorLoader loader = new CursorLoader(getActivity(), combinedBuilder.build(),
-                        HistoryQuery.PROJECTION, where, null, sort);
+                // Only the count of items per day, the adapter pages them in
+                Uri uri = combinedBuilder
+                        .appendQueryParameter(BrowserProvider2.PARAM_DATE_BINS,
+                                mAdapter.getBinBoundaries())
+                        .build();
+                CursorLoader loader = new CursorLoader(getActivity(), uri,
+                        null, HISTORY_WHERE, null, null);
                 return loader;
             }
 
@@ -127,9 +136,9 @@ public class BrowserHistoryPage extends Fragment
                 Uri uri = combinedBuilder
                         .appendQueryParameter(BrowserContract.PARAM_LIMIT, mMostVisitsLimit)
                         .build();
-                String where = Combined.VISITS + " > 0";
                 CursorLoader loader = new CursorLoader(getActivity(), uri,
-                        HistoryQuery.PROJECTION, where, null, Combined.VISITS + " DESC");
+                        HistoryQuery.PROJECTION, HISTORY_WHERE, null,
+                        Combined.VISITS + " DESC");
                 return loader;
             }
 
@@ -187,6 +196,15 @@ public class BrowserHistoryPage extends Fragment
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        switch (loader.getId()) {
+            case LOADER_HISTORY:
+                // Also closes the pages of history items
+                mAdapter.changeCursor(null);
+                break;
+            case LOADER_MOST_VISITED:
+                mAdapter.changeMostVisitedCursor(null);
+                break;
+        }
     }
 
     @Override
@@ -280,6 +298,11 @@ public class BrowserHistoryPage extends Fragment
         super.onDestroy();
         getLoaderManager().destroyLoader(LOADER_HISTORY);
         getLoaderManager().destroyLoader(LOADER_MOST_VISITED);
+        if (mAdapter != null) {
+            // Closes the pages, and drops the page loads still running
+            mAdapter.changeCursor(null);
+            mAdapter.changeMostVisitedCursor(null);
+        }
     }
 
     @Override
@@ -290,7 +313,8 @@ public class BrowserHistoryPage extends Fragment
 
     void promptToClearHistory() {
         final ContentResolver resolver = getActivity().getContentResolver();
-        final ClearHistoryTask clear = new ClearHistoryTask(resolver);
+        final ClearHistoryTask clear = new ClearHistoryTask(resolver,
+                VisitedHistory.getInstance(getActivity()));
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
                 .setMessage(R.string.pref_privacy_clear_history_dlg)
                 .setIconAttribute(android.R.attr.alertDialogIcon)
@@ -318,14 +342,18 @@ public class BrowserHistoryPage extends Fragment
 
     static class ClearHistoryTask extends Thread {
         ContentResolver mResolver;
+        VisitedHistory mVisitedHistory;
 
-        public ClearHistoryTask(ContentResolver resolver) {
+        public ClearHistoryTask(ContentResolver resolver, VisitedHistory visitedHistory) {
             mResolver = resolver;
+            mVisitedHistory = visitedHistory;
         }
 
         @Override
         public void run() {
             Browser.clearHistory(mResolver);
+            mVisitedHistory.onCleared();
+            NavigationPredictor.getInstance().onHistoryCleared();
         }
     }
 
@@ -420,6 +448,7 @@ public class BrowserHistoryPage extends Fragment
                 return true;
             case R.id.delete_context_menu_id:
                 Browser.deleteFromHistory(activity.getContentResolver(), url);
+                VisitedHistory.getInstance(activity).onDeleted(url);
                 return true;
             case R.id.homepage_context_menu_id:
                 BrowserSettings.getInstance().setHomePage(url);
@@ -522,10 +551,15 @@ public class BrowserHistoryPage extends Fragment
 
         private Cursor mMostVisited, mHistoryCursor;
         Drawable mFaviconBackground;
+        BitmapDecoder mDecoder;
+        int mFaviconSize;
 
         HistoryAdapter(Context context) {
-            super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
+            super(context, Combined.DATE_LAST_VISITED);
             mFaviconBackground = BookmarkUtils.createListFaviconBackground(context);
+            mDecoder = BitmapDecoder.getInstance(context);
+            mFaviconSize = context.getResources().getDimensionPixelSize(
+                    R.dimen.list_favicon_size);
         }
 
         @Override
@@ -549,6 +583,16 @@ public class BrowserHistoryPage extends Fragment
             notifyDataSetChanged();
         }
 
+        @Override
+        Cursor queryBin(String selection, String[] selectionArgs, int offset, int limit) {
+            Uri uri = Combined.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BrowserContract.PARAM_LIMIT, offset + "," + limit)
+                    .build();
+            return getContext().getContentResolver().query(uri, HistoryQuery.PROJECTION,
+                    DatabaseUtils.concatenateWhere(HISTORY_WHERE, selection), selectionArgs,
+                    Combined.DATE_LAST_VISITED + " DESC");
+        }
+
         @Override
         public long getChildId(int groupPosition, int childPosition) {
             if (moveCursorToChildPosition(groupPosition, childPosition)) {
@@ -592,7 +636,7 @@ public class BrowserHistoryPage extends Fragment
             if (groupPosition >= super.getGroupCount()) {
                 return mMostVisited;
             }
-            return mHistoryCursor;
+            return getChildCursor();
         }
 
         @Override
@@ -645,8 +689,14 @@ public class BrowserHistoryPage extends Fragment
                 item = (HistoryItem) convertView;
             }
 
-            // Bail early if the Cursor is closed.
+            // Bail early if the Cursor is closed, or the item is still
+            // being loaded.
             if (!moveCursorToChildPosition(groupPosition, childPosition)) {
+                item.setName("");
+                item.setUrl("");
+                mDecoder.release(item.getFavicon());
+                item.setFavicon(null);
+                item.setIsBookmark(false);
                 return item;
             }
 
@@ -654,13 +704,10 @@ public class BrowserHistoryPage extends Fragment
             item.setName(cursor.getString(HistoryQuery.INDEX_TITE));
             String url = cursor.getString(HistoryQuery.INDEX_URL);
             item.setUrl(url);
-            byte[] data = cursor.getBlob(HistoryQuery.INDEX_FAVICON);
-            if (data != null) {
-                item.setFavicon(BitmapFactory.decodeByteArray(data, 0,
-                        data.length));
-            } else {
-                item.setFavicon(null);
-            }
+            Bitmap favicon = mDecoder.decode(url, BitmapDecoder.TYPE_FAVICON,
+                    cursor.getBlob(HistoryQuery.INDEX_FAVICON), mFaviconSize, mFaviconSize);
+            mDecoder.release(item.getFavicon());
+            item.setFavicon(favicon);
             item.setIsBookmark(cursor.getInt(HistoryQuery.INDEX_IS_BOOKMARK) == 1);
             return item;
         }
@@ -25,11 +25,17 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.preference.PreferenceManager;
 import android.provider.Browser;
 import android.provider.Settings;
 import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Choreographer;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
 import android.webkit.WebIconDatabase;
@@ -48,9 +54,16 @@ import com.android.browser.search.SearchEngine;
 import com.android.browser.search.SearchEngines;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Class for managing settings
@@ -58,6 +71,64 @@ import java.util.WeakHashMap;
 public class BrowserSettings implements OnSharedPreferenceChangeListener,
         PreferenceKeys {
 
+    private static final String LOGTAG = "BrowserSettings";
+
+    // The WebSettings properties synced from the preferences, see
+    // syncSetting
+    static final int SYNC_GEOLOCATION = 1 << 0;
+    static final int SYNC_JAVASCRIPT = 1 << 1;
+    static final int SYNC_LIGHT_TOUCH = 1 << 2;
+    static final int SYNC_NAV_DUMP = 1 << 3;
+    static final int SYNC_TEXT_ENCODING = 1 << 4;
+    static final int SYNC_DEFAULT_ZOOM = 1 << 5;
+    static final int SYNC_MIN_FONT_SIZE = 1 << 6;
+    static final int SYNC_PLUGIN_STATE = 1 << 7;
+    static final int SYNC_TEXT_ZOOM = 1 << 8;
+    static final int SYNC_LAYOUT_ALGORITHM = 1 << 9;
+    static final int SYNC_POPUP_WINDOWS = 1 << 10;
+    static final int SYNC_LOAD_IMAGES = 1 << 11;
+    static final int SYNC_OVERVIEW_MODE = 1 << 12;
+    static final int SYNC_SAVE_PASSWORD = 1 << 13;
+    static final int SYNC_SAVE_FORM_DATA = 1 << 14;
+    static final int SYNC_WIDE_VIEWPORT = 1 << 15;
+    static final int SYNC_USER_AGENT = 1 << 16;
+    static final int SYNC_WEB_SETTINGS = (1 << 17) - 1;
+    // The settings shared by all tabs, see syncSharedSettings
+    static final int SYNC_COOKIES = 1 << 17;
+    static final int SYNC_JAVASCRIPT_CONSOLE = 1 << 18;
+    static final int SYNC_SHARED = SYNC_COOKIES | SYNC_JAVASCRIPT_CONSOLE;
+    static final int SYNC_ALL = SYNC_WEB_SETTINGS | SYNC_SHARED;
+
+    // What each preference is synced to, keys that aren't here don't
+    // affect any WebSettings
+    private static final HashMap<String, Integer> sSyncFlags = new HashMap<String, Integer>();
+    static {
+        sSyncFlags.put(PREF_ENABLE_GEOLOCATION, SYNC_GEOLOCATION);
+        sSyncFlags.put(PREF_ENABLE_JAVASCRIPT, SYNC_JAVASCRIPT);
+        sSyncFlags.put(PREF_ENABLE_LIGHT_TOUCH, SYNC_LIGHT_TOUCH);
+        sSyncFlags.put(PREF_ENABLE_NAV_DUMP, SYNC_NAV_DUMP);
+        sSyncFlags.put(PREF_DEFAULT_TEXT_ENCODING, SYNC_TEXT_ENCODING);
+        sSyncFlags.put(PREF_DEFAULT_ZOOM, SYNC_DEFAULT_ZOOM);
+        sSyncFlags.put(PREF_MIN_FONT_SIZE, SYNC_MIN_FONT_SIZE);
+        sSyncFlags.put(PREF_PLUGIN_STATE, SYNC_PLUGIN_STATE);
+        sSyncFlags.put(PREF_TEXT_ZOOM, SYNC_TEXT_ZOOM);
+        sSyncFlags.put(PREF_AUTOFIT_PAGES, SYNC_LAYOUT_ALGORITHM);
+        sSyncFlags.put(PREF_NORMAL_LAYOUT, SYNC_LAYOUT_ALGORITHM);
+        sSyncFlags.put(PREF_BLOCK_POPUP_WINDOWS, SYNC_POPUP_WINDOWS);
+        sSyncFlags.put(PREF_LOAD_IMAGES, SYNC_LOAD_IMAGES);
+        sSyncFlags.put(PREF_LOAD_PAGE, SYNC_OVERVIEW_MODE);
+        sSyncFlags.put(PREF_REMEMBER_PASSWORDS, SYNC_SAVE_PASSWORD);
+        sSyncFlags.put(PREF_SAVE_FORMDATA, SYNC_SAVE_FORM_DATA);
+        sSyncFlags.put(PREF_WIDE_VIEWPORT, SYNC_WIDE_VIEWPORT);
+        sSyncFlags.put(PREF_USER_AGENT, SYNC_USER_AGENT);
+        sSyncFlags.put(PREF_ACCEPT_COOKIES, SYNC_COOKIES);
+        sSyncFlags.put(PREF_JAVASCRIPT_CONSOLE, SYNC_JAVASCRIPT_CONSOLE);
+        // All the debug settings fall back to their defaults without it
+        sSyncFlags.put(PREF_DEBUG_MENU, SYNC_LIGHT_TOUCH | SYNC_NAV_DUMP
+                | SYNC_LAYOUT_ALGORITHM | SYNC_WIDE_VIEWPORT | SYNC_USER_AGENT
+                | SYNC_JAVASCRIPT_CONSOLE);
+    }
+
     // TODO: Do something with this UserAgent stuff
     private static final String DESKTOP_USERAGENT = "Mozilla/5.0 (X11; " +
         "Linux x86_64) AppleWebKit/534.24 (KHTML, like Gecko) " +
@@ -108,14 +179,13 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     private SharedPreferences mPrefs;
     private LinkedList<WeakReference<WebSettings>> mManagedSettings;
     private Controller mController;
-    private WebStorageSizeManager mWebStorageSizeManager;
     private WeakHashMap<WebSettings, String> mCustomUserAgents;
-    private static boolean sInitialized = false;
     private boolean mNeedsSharedSync = true;
     private float mFontSizeMult = 1.0f;
 
     // Current state of network-dependent settings
     private boolean mLinkPrefetchAllowed = true;
+    private boolean mPreloadAllowed = false;
 
     // Cached values
     private int mPageCacheCapacity = 1;
@@ -124,7 +194,34 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // Cached settings
     private SearchEngine mSearchEngine;
 
-    private static String sFactoryResetUrl;
+    // Changes not synced yet, applied together on the next frame. Only
+    // touched on the UI thread.
+    private int mPendingSyncFlags;
+    private final LinkedHashSet<String> mPendingSyncKeys = new LinkedHashSet<String>();
+    private boolean mSyncScheduled;
+
+    // Setter calls made to sync preference changes, in total and for the
+    // batches including each key
+    private int mSyncCount;
+    private int mSetterCount;
+    private final HashMap<String, Integer> mSetterCountByKey = new HashMap<String, Integer>();
+
+    // Initialization is staged so that callers only wait for what they
+    // need. Values derived from the device are set in the constructor,
+    // the preference migrations are done first in the background, and the
+    // expensive values are computed in parallel as futures.
+    private static final String STAGE_PREFS = "prefs";
+    private static final String STAGE_STORAGE = "storage";
+    private static final String STAGE_FACTORY_RESET_URL = "factory reset url";
+
+    private final CountDownLatch mPrefsReady = new CountDownLatch(1);
+    private FutureTask<WebStorageSizeManager> mWebStorageSizeManager;
+    private FutureTask<String> mFactoryResetUrl;
+    private Handler mHandler;
+
+    // Callers that had to wait for a stage, guarded by BrowserSettings.class
+    private static int sWaitCount;
+    private static long sWaitMillis;
 
     public static void initialize(final Context context) {
         sInstance = new BrowserSettings(context);
@@ -139,12 +236,58 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mManagedSettings = new LinkedList<WeakReference<WebSettings>>();
         mCustomUserAgents = new WeakHashMap<WebSettings, String>();
+        mHandler = new Handler(Looper.getMainLooper());
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        mFontSizeMult = metrics.scaledDensity / metrics.density;
+        // the cost of one cached page is ~3M (measured using nytimes.com). For
+        // low end devices, we only cache one page. For high end devices, we try
+        // to cache more pages, currently choose 5.
+        if (ActivityManager.staticGetMemoryClass() > 16) {
+            mPageCacheCapacity = 5;
+        }
+        mWebStorageSizeManager = new FutureTask<WebStorageSizeManager>(
+                new Callable<WebStorageSizeManager>() {
+            @Override
+            public WebStorageSizeManager call() {
+                beginTraceSection(STAGE_STORAGE);
+                try {
+                    return new WebStorageSizeManager(mContext,
+                            new WebStorageSizeManager.StatFsDiskInfo(getAppCachePath()),
+                            new WebStorageSizeManager.WebKitAppCacheInfo(getAppCachePath()));
+                } finally {
+                    endTraceSection();
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                mHandler.post(mSyncAppCacheMaxSize);
+            }
+        };
+        mFactoryResetUrl = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                beginTraceSection(STAGE_FACTORY_RESET_URL);
+                try {
+                    String url = mContext.getResources().getString(R.string.homepage_base);
+                    if (url.indexOf("{CID}") != -1) {
+                        url = url.replace("{CID}",
+                                BrowserProvider.getClientId(mContext.getContentResolver()));
+                    }
+                    return url;
+                } finally {
+                    endTraceSection();
+                }
+            }
+        });
         BackgroundHandler.execute(mSetup);
+        BackgroundHandler.execute(mWebStorageSizeManager);
+        BackgroundHandler.execute(mFactoryResetUrl);
     }
 
     public void setController(Controller controller) {
         mController = controller;
-        if (sInitialized) {
+        if (mPrefsReady.getCount() == 0) {
             syncSharedSettings();
         }
     }
@@ -157,7 +300,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         synchronized (mManagedSettings) {
             syncStaticSettings(settings);
-            syncSetting(settings);
+            syncSetting(settings, SYNC_WEB_SETTINGS);
             mManagedSettings.add(new WeakReference<WebSettings>(settings));
         }
     }
@@ -177,20 +320,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         @Override
         public void run() {
-            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-            mFontSizeMult = metrics.scaledDensity / metrics.density;
-            // the cost of one cached page is ~3M (measured using nytimes.com). For
-            // low end devices, we only cache one page. For high end devices, we try
-            // to cache more pages, currently choose 5.
-            if (ActivityManager.staticGetMemoryClass() > 16) {
-                mPageCacheCapacity = 5;
-            }
-            mWebStorageSizeManager = new WebStorageSizeManager(mContext,
-                    new WebStorageSizeManager.StatFsDiskInfo(getAppCachePath()),
-                    new WebStorageSizeManager.WebKitAppCacheInfo(getAppCachePath()));
+            beginTraceSection(STAGE_PREFS);
             // Workaround b/5254577
             mPrefs.registerOnSharedPreferenceChangeListener(BrowserSettings.this);
-            if (Build.VERSION.CODENAME.equals("REL")) {
+            if (isReleaseBuild()) {
                 // This is a release build, always startup with debug disabled
                 setDebugEnabled(false);
             }
@@ -219,59 +352,194 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 }
                 mPrefs.edit().remove(PREF_TEXT_SIZE).apply();
             }
+            endTraceSection();
+            mPrefsReady.countDown();
+        }
+    };
 
-            sFactoryResetUrl = mContext.getResources().getString(R.string.homepage_base);
-            if (sFactoryResetUrl.indexOf("{CID}") != -1) {
-                sFactoryResetUrl = sFactoryResetUrl.replace("{CID}",
-                    BrowserProvider.getClientId(mContext.getContentResolver()));
-            }
+    // Sets the app cache size skipped by syncStaticSettings while the
+    // WebStorageSizeManager wasn't ready
+    private Runnable mSyncAppCacheMaxSize = new Runnable() {
 
-            synchronized (BrowserSettings.class) {
-                sInitialized = true;
-                BrowserSettings.class.notifyAll();
+        @Override
+        public void run() {
+            long maxSize = getWebStorageSizeManager().getAppCacheMaxSize();
+            synchronized (mManagedSettings) {
+                for (WeakReference<WebSettings> ref : mManagedSettings) {
+                    WebSettings settings = ref.get();
+                    if (settings != null) {
+                        settings.setAppCacheMaxSize(maxSize);
+                    }
+                }
             }
         }
     };
 
-    private static void requireInitialization() {
-        synchronized (BrowserSettings.class) {
-            while (!sInitialized) {
+    private static boolean isReleaseBuild() {
+        return Build.VERSION.CODENAME.equals("REL");
+    }
+
+    private static void beginTraceSection(String stage) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection("BrowserSettings " + stage);
+        }
+    }
+
+    private static void endTraceSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /* package */ void awaitPrefs() {
+        if (mPrefsReady.getCount() == 0) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        beginTraceSection("wait for " + STAGE_PREFS);
+        while (mPrefsReady.getCount() != 0) {
+            try {
+                mPrefsReady.await();
+            } catch (InterruptedException e) {
+            }
+        }
+        endTraceSection();
+        traceWait(STAGE_PREFS, start);
+    }
+
+    private static <V> V await(Future<V> future, String stage) {
+        long start = future.isDone() ? -1 : SystemClock.uptimeMillis();
+        if (start >= 0) {
+            beginTraceSection("wait for " + stage);
+        }
+        try {
+            while (true) {
                 try {
-                    BrowserSettings.class.wait();
+                    return future.get();
                 } catch (InterruptedException e) {
                 }
             }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (start >= 0) {
+                endTraceSection();
+                traceWait(stage, start);
+            }
+        }
+    }
+
+    // Logs who blocked on an initialization stage, these waits stall
+    // startup when they happen on the UI thread
+    private static void traceWait(String stage, long start) {
+        long waited = SystemClock.uptimeMillis() - start;
+        String caller = "unknown";
+        for (StackTraceElement e : new Throwable().getStackTrace()) {
+            if (!e.getClassName().startsWith(BrowserSettings.class.getName())) {
+                caller = e.toString();
+                break;
+            }
+        }
+        synchronized (BrowserSettings.class) {
+            sWaitCount++;
+            sWaitMillis += waited;
         }
+        Log.i(LOGTAG, "Waited " + waited + "ms for " + stage + " on "
+                + Thread.currentThread().getName() + " from " + caller);
+    }
+
+    /** Number of times a caller had to wait for initialization */
+    static synchronized int getWaitCount() {
+        return sWaitCount;
+    }
+
+    /** Total time callers waited for initialization */
+    static synchronized long getWaitMillis() {
+        return sWaitMillis;
     }
 
     /**
-     * Syncs all the settings that have a Preference UI
+     * Syncs the settings that have a Preference UI, for the SYNC_* flags
+     * that are set.
+     * @return The number of setters called.
      */
-    private void syncSetting(WebSettings settings) {
-        settings.setGeolocationEnabled(enableGeolocation());
-        settings.setJavaScriptEnabled(enableJavascript());
-        settings.setLightTouchEnabled(enableLightTouch());
-        settings.setNavDump(enableNavDump());
-        settings.setDefaultTextEncodingName(getDefaultTextEncoding());
-        settings.setDefaultZoom(getDefaultZoom());
-        settings.setMinimumFontSize(getMinimumFontSize());
-        settings.setMinimumLogicalFontSize(getMinimumFontSize());
-        settings.setPluginState(getPluginState());
-        settings.setTextZoom(getTextZoom());
-        settings.setLayoutAlgorithm(getLayoutAlgorithm());
-        settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
-        settings.setLoadsImagesAutomatically(loadImages());
-        settings.setLoadWithOverviewMode(loadPageInOverviewMode());
-        settings.setSavePassword(rememberPasswords());
-        settings.setSaveFormData(saveFormdata());
-        settings.setUseWideViewPort(isWideViewport());
-
-        String ua = mCustomUserAgents.get(settings);
-        if (ua != null) {
-            settings.setUserAgentString(ua);
-        } else {
-            settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+    private int syncSetting(WebSettings settings, int flags) {
+        int count = 0;
+        if ((flags & SYNC_GEOLOCATION) != 0) {
+            settings.setGeolocationEnabled(enableGeolocation());
+            count++;
+        }
+        if ((flags & SYNC_JAVASCRIPT) != 0) {
+            settings.setJavaScriptEnabled(enableJavascript());
+            count++;
+        }
+        if ((flags & SYNC_LIGHT_TOUCH) != 0) {
+            settings.setLightTouchEnabled(enableLightTouch());
+            count++;
+        }
+        if ((flags & SYNC_NAV_DUMP) != 0) {
+            settings.setNavDump(enableNavDump());
+            count++;
+        }
+        if ((flags & SYNC_TEXT_ENCODING) != 0) {
+            settings.setDefaultTextEncodingName(getDefaultTextEncoding());
+            count++;
+        }
+        if ((flags & SYNC_DEFAULT_ZOOM) != 0) {
+            settings.setDefaultZoom(getDefaultZoom());
+            count++;
+        }
+        if ((flags & SYNC_MIN_FONT_SIZE) != 0) {
+            settings.setMinimumFontSize(getMinimumFontSize());
+            settings.setMinimumLogicalFontSize(getMinimumFontSize());
+            count += 2;
         }
+        if ((flags & SYNC_PLUGIN_STATE) != 0) {
+            settings.setPluginState(getPluginState());
+            count++;
+        }
+        if ((flags & SYNC_TEXT_ZOOM) != 0) {
+            settings.setTextZoom(getTextZoom());
+            count++;
+        }
+        if ((flags & SYNC_LAYOUT_ALGORITHM) != 0) {
+            settings.setLayoutAlgorithm(getLayoutAlgorithm());
+            count++;
+        }
+        if ((flags & SYNC_POPUP_WINDOWS) != 0) {
+            settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
+            count++;
+        }
+        if ((flags & SYNC_LOAD_IMAGES) != 0) {
+            settings.setLoadsImagesAutomatically(loadImages());
+            count++;
+        }
+        if ((flags & SYNC_OVERVIEW_MODE) != 0) {
+            settings.setLoadWithOverviewMode(loadPageInOverviewMode());
+            count++;
+        }
+        if ((flags & SYNC_SAVE_PASSWORD) != 0) {
+            settings.setSavePassword(rememberPasswords());
+            count++;
+        }
+        if ((flags & SYNC_SAVE_FORM_DATA) != 0) {
+            settings.setSaveFormData(saveFormdata());
+            count++;
+        }
+        if ((flags & SYNC_WIDE_VIEWPORT) != 0) {
+            settings.setUseWideViewPort(isWideViewport());
+            count++;
+        }
+        if ((flags & SYNC_USER_AGENT) != 0) {
+            String ua = mCustomUserAgents.get(settings);
+            if (ua != null) {
+                settings.setUserAgentString(ua);
+            } else {
+                settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+            }
+            count++;
+        }
+        return count;
     }
 
     /**
@@ -298,7 +566,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         settings.setDomStorageEnabled(true);
 
         // HTML5 configuration parametersettings.
-        settings.setAppCacheMaxSize(getWebStorageSizeManager().getAppCacheMaxSize());
+        if (mWebStorageSizeManager.isDone()) {
+            settings.setAppCacheMaxSize(getWebStorageSizeManager().getAppCacheMaxSize());
+        }
+        // else set by mSyncAppCacheMaxSize once it is
         settings.setAppCachePath(getAppCachePath());
         settings.setDatabasePath(mContext.getDir("databases", 0).getPath());
         settings.setGeolocationDatabasePath(mContext.getDir("geolocation", 0).getPath());
@@ -309,17 +580,46 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     private void syncSharedSettings() {
         mNeedsSharedSync = false;
-        CookieManager.getInstance().setAcceptCookie(acceptCookies());
+        syncSharedSettings(SYNC_SHARED);
+    }
+
+    /**
+     * @return The number of setters called.
+     */
+    private int syncSharedSettings(int flags) {
+        int count = 0;
+        if ((flags & SYNC_COOKIES) != 0) {
+            CookieManager.getInstance().setAcceptCookie(acceptCookies());
+            count++;
+        }
         if (mController != null) {
-            for (Tab tab : mController.getTabs()) {
-                tab.setAcceptThirdPartyCookies(acceptCookies());
+            if ((flags & SYNC_COOKIES) != 0) {
+                for (Tab tab : mController.getTabs()) {
+                    tab.setAcceptThirdPartyCookies(acceptCookies());
+                    count++;
+                }
+            }
+            if ((flags & SYNC_JAVASCRIPT_CONSOLE) != 0) {
+                mController.setShouldShowErrorConsole(enableJavascriptConsole());
+                count++;
             }
-            mController.setShouldShowErrorConsole(enableJavascriptConsole());
         }
+        return count;
     }
 
-    private void syncManagedSettings() {
-        syncSharedSettings();
+    /**
+     * Syncs the settings for the SYNC_* flags that are set to every
+     * managed WebSettings.
+     * @return The number of setters called.
+     */
+    private int syncManagedSettings(int flags) {
+        int count = 0;
+        if ((flags & SYNC_SHARED) != 0) {
+            count += syncSharedSettings(flags);
+        }
+        if ((flags & SYNC_WEB_SETTINGS) == 0) {
+            return count;
+        }
         synchronized (mManagedSettings) {
             Iterator<WeakReference<WebSettings>> iter = mManagedSettings.iterator();
             while (iter.hasNext()) {
@@ -329,15 +629,78 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     iter.remove();
                     continue;
                 }
-                syncSetting(settings);
+                count += syncSetting(settings, flags);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The SYNC_* flags of what depends on the preference.
+     */
+    static int getSyncFlags(String key) {
+        Integer flags = sSyncFlags.get(key);
+        return flags != null ? flags : 0;
+    }
+
+    // Preferences are often changed several at a time, so they are synced
+    // together once per frame
+    private void scheduleSync(String key, int flags) {
+        mPendingSyncFlags |= flags;
+        mPendingSyncKeys.add(key);
+        if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mSyncFrameCallback);
+        }
+    }
+
+    private final Choreographer.FrameCallback mSyncFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mSyncScheduled = false;
+            int count = syncManagedSettings(mPendingSyncFlags);
+            mSyncCount++;
+            mSetterCount += count;
+            for (String key : mPendingSyncKeys) {
+                Integer keyCount = mSetterCountByKey.get(key);
+                mSetterCountByKey.put(key, (keyCount != null ? keyCount : 0) + count);
+            }
+            if (Browser.LOGD_ENABLED) {
+                Log.d(LOGTAG, "Synced " + mPendingSyncKeys + " with " + count
+                        + " setter calls");
             }
+            mPendingSyncFlags = 0;
+            mPendingSyncKeys.clear();
         }
+    };
+
+    /** Number of batches of preference changes synced */
+    int getSyncCount() {
+        return mSyncCount;
+    }
+
+    /** Number of setters called to sync preference changes */
+    int getSetterCount() {
+        return mSetterCount;
+    }
+
+    /**
+     * @return The number of setters called by the syncs that included a
+     *         change of the preference.
+     */
+    int getSetterCount(String key) {
+        Integer count = mSetterCountByKey.get(key);
+        return count != null ? count : 0;
     }
 
     @Override
     public void onSharedPreferenceChanged(
             SharedPreferences sharedPreferences, String key) {
-        syncManagedSettings();
+        int flags = getSyncFlags(key);
+        if (flags != 0) {
+            scheduleSync(key, flags);
+        }
         if (PREF_SEARCH_ENGINE.equals(key)) {
             updateSearchEngine(false);
         } else if (PREF_FULLSCREEN.equals(key)) {
@@ -348,14 +711,13 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             if (mController != null && mController.getUi() != null) {
                 mController.getUi().setUseQuickControls(sharedPreferences.getBoolean(key, false));
             }
-        } else if (PREF_LINK_PREFETCH.equals(key)) {
+        } else if (PREF_LINK_PREFETCH.equals(key) || PREF_DATA_PRELOAD.equals(key)) {
             updateConnectionType();
         }
     }
 
     public static String getFactoryResetHomeUrl(Context context) {
-        requireInitialization();
-        return sFactoryResetUrl;
+        return await(sInstance.mFactoryResetUrl, STAGE_FACTORY_RESET_URL);
     }
 
     public LayoutAlgorithm getLayoutAlgorithm() {
@@ -377,13 +739,11 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getPageCacheCapacity() {
-        requireInitialization();
         return mPageCacheCapacity;
     }
 
     public WebStorageSizeManager getWebStorageSizeManager() {
-        requireInitialization();
-        return mWebStorageSizeManager;
+        return await(mWebStorageSizeManager, STAGE_STORAGE);
     }
 
     private String getAppCachePath() {
@@ -409,7 +769,13 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean isDebugEnabled() {
-        requireInitialization();
+        if (mPrefsReady.getCount() != 0) {
+            if (isReleaseBuild()) {
+                // Turned off by mSetup
+                return false;
+            }
+            awaitPrefs();
+        }
         return mPrefs.getBoolean(PREF_DEBUG_MENU, false);
     }
 
@@ -441,6 +807,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         ContentResolver resolver = mContext.getContentResolver();
         Browser.clearHistory(resolver);
         Browser.clearSearches(resolver);
+        VisitedHistory.getInstance(mContext).onCleared();
+        NavigationPredictor.getInstance().onHistoryCleared();
     }
 
     public void clearFormData() {
@@ -475,7 +843,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 .putLong(GoogleAccountLogin.PREF_AUTOLOGIN_TIME, gal)
                 .apply();
         resetCachedValues();
-        syncManagedSettings();
+        // Clearing doesn't report the keys it removed
+        syncManagedSettings(SYNC_ALL);
     }
 
     private void resetCachedValues() {
@@ -541,6 +910,9 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         String linkPrefetchPreference = getLinkPrefetchEnabled();
         boolean linkPrefetchAllowed = linkPrefetchPreference.
             equals(getLinkPrefetchAlwaysPreferenceString(mContext));
+        String preloadPreference = getPreloadEnabled();
+        boolean preloadAllowed = preloadPreference.
+            equals(getPreloadAlwaysPreferenceString(mContext));
         NetworkInfo ni = cm.getActiveNetworkInfo();
         if (ni != null) {
             switch (ni.getType()) {
@@ -549,6 +921,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 case ConnectivityManager.TYPE_BLUETOOTH:
                     linkPrefetchAllowed |= linkPrefetchPreference.
                         equals(getLinkPrefetchOnWifiOnlyPreferenceString(mContext));
+                    preloadAllowed |= preloadPreference.
+                        equals(getPreloadOnWifiOnlyPreferenceString(mContext));
                     break;
                 case ConnectivityManager.TYPE_MOBILE:
                 case ConnectivityManager.TYPE_MOBILE_DUN:
@@ -559,10 +933,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     break;
             }
         }
-        if (mLinkPrefetchAllowed != linkPrefetchAllowed) {
-            mLinkPrefetchAllowed = linkPrefetchAllowed;
-            syncManagedSettings();
-        }
+        // Not synced to the WebSettings, none of their properties depends
+        // on it
+        mLinkPrefetchAllowed = linkPrefetchAllowed;
+        mPreloadAllowed = preloadAllowed;
     }
 
     // -----------------------------
@@ -585,7 +959,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getTextZoom() {
-        requireInitialization();
+        if (mPrefs.contains(PREF_TEXT_SIZE)) {
+            // Not migrated to text zoom yet
+            awaitPrefs();
+        }
         int textZoom = mPrefs.getInt(PREF_TEXT_ZOOM, 10);
         return getAdjustedTextZoom(textZoom);
     }
@@ -595,7 +972,6 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getDoubleTapZoom() {
-        requireInitialization();
         int doubleTapZoom = mPrefs.getInt(PREF_DOUBLE_TAP_ZOOM, 5);
         return getAdjustedDoubleTapZoom(doubleTapZoom);
     }
@@ -661,7 +1037,9 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // -----------------------------
 
     public String getHomePage() {
-        return mPrefs.getString(PREF_HOMEPAGE, getFactoryResetHomeUrl(mContext));
+        // Only wait for the default if it is needed
+        String homePage = mPrefs.getString(PREF_HOMEPAGE, null);
+        return homePage != null ? homePage : getFactoryResetHomeUrl(mContext);
     }
 
     public void setHomePage(String value) {
@@ -844,6 +1222,14 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         return mPrefs.getString(PREF_DATA_PRELOAD, getDefaultPreloadSetting());
     }
 
+    /**
+     * @return Whether the preload setting allows preloading on the current
+     *         connection.
+     */
+    public boolean isPreloadAllowed() {
+        return mPreloadAllowed;
+    }
+
     public static String getLinkPrefetchOnWifiOnlyPreferenceString(Context context) {
         return context.getResources().getString(R.string.pref_link_prefetch_value_wifi_only);
     }
@@ -19,7 +19,11 @@ package com.android.browser;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.util.AttributeSet;
+import android.view.KeyEvent;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputConnectionWrapper;
 import android.webkit.WebChromeClient;
 import android.webkit.WebStorage;
 import android.webkit.WebView;
@@ -41,6 +45,7 @@ public class BrowserWebView extends WebView {
     private OnScrollChangedListener mOnScrollChangedListener;
     private WebChromeClient mWebChromeClient;
     private WebViewClient mWebViewClient;
+    private boolean mHasTextInput;
 
     /**
      * @param context
@@ -142,6 +147,57 @@ public class BrowserWebView extends WebView {
         mOnScrollChangedListener = listener;
     }
 
+    @Override
+    public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
+        InputConnection connection = super.onCreateInputConnection(outAttrs);
+        if (connection == null) {
+            return null;
+        }
+        // The connection is created when a text field gets focus, only
+        // edits through it mean the user typed something
+        return new InputConnectionWrapper(connection, true) {
+            @Override
+            public boolean commitText(CharSequence text, int newCursorPosition) {
+                mHasTextInput = true;
+                return super.commitText(text, newCursorPosition);
+            }
+
+            @Override
+            public boolean setComposingText(CharSequence text, int newCursorPosition) {
+                mHasTextInput = true;
+                return super.setComposingText(text, newCursorPosition);
+            }
+
+            @Override
+            public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+                mHasTextInput = true;
+                return super.deleteSurroundingText(beforeLength, afterLength);
+            }
+        };
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        // Typing on a hardware keyboard doesn't go through the connection
+        if (onCheckIsTextEditor()
+                && (event.isPrintingKey() || keyCode == KeyEvent.KEYCODE_DEL)) {
+            mHasTextInput = true;
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    /**
+     * @return Whether a text field in the page was edited since the last
+     *         {@link #clearTextInput()}.
+     */
+    public boolean hasTextInput() {
+        return mHasTextInput;
+    }
+
+    public void clearTextInput() {
+        mHasTextInput = false;
+    }
+
     @Override
     public boolean showContextMenuForChild(View originalView) {
         return false;
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * Schedules the thumbnail captures of all tabs. Captures draw the page on
+ * the UI thread, so they are limited to a budget of captures and of UI
+ * thread time per second, and run when the UI thread is idle. A tab whose
+ * captures keep coming out the same is captured less and less often.
+ *
+ * Only used on the UI thread.
+ */
+public class CaptureScheduler {
+
+    private static final String LOGTAG = "CaptureScheduler";
+
+    // Delay after a new picture, so that a burst of them is captured once
+    static final int CAPTURE_DELAY = 100;
+    // Doublings of the delay for a tab whose captures didn't change
+    private static final int MAX_BACKOFF = 5;
+    // Budget over any second, for all the tabs
+    static final int MAX_CAPTURES_PER_SECOND = 4;
+    static final long MAX_CAPTURE_NANOS_PER_SECOND = 40 * 1000 * 1000;
+    private static final long WINDOW = 1000;
+    // Captures between two logs of the metrics
+    private static final int LOG_INTERVAL = 50;
+
+    private static CaptureScheduler sInstance;
+
+    private static class TabState {
+        boolean captured;
+        boolean pending;
+        long dueTime;
+        int unchangedCount;
+        int hash;
+    }
+
+    private static class Capture {
+        final long time;
+        final long nanos;
+
+        Capture(long time, long nanos) {
+            this.time = time;
+            this.nanos = nanos;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final WeakHashMap<Tab, TabState> mTabs = new WeakHashMap<Tab, TabState>();
+    private final ArrayList<Tab> mPending = new ArrayList<Tab>();
+    // Captures made during the last second
+    private final ArrayDeque<Capture> mWindow = new ArrayDeque<Capture>();
+    private long mWindowNanos;
+    private boolean mIdleHandlerAdded;
+    private int[] mPixels;
+
+    // Metrics
+    private int mCaptureCount;
+    private int mUnchangedCount;
+    private int mDeferredCount;
+    private long mCaptureNanos;
+    private long mMaxCaptureNanos;
+
+    public static CaptureScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new CaptureScheduler();
+        }
+        return sInstance;
+    }
+
+    private CaptureScheduler() {
+    }
+
+    /**
+     * Requests a capture of the tab, once its delay has passed and the
+     * budget allows it.
+     */
+    void schedule(Tab tab) {
+        TabState state = getState(tab);
+        if (state.pending) {
+            return;
+        }
+        state.pending = true;
+        state.dueTime = SystemClock.uptimeMillis()
+                + (CAPTURE_DELAY << Math.min(state.unchangedCount, MAX_BACKOFF));
+        mPending.add(tab);
+        scheduleNext();
+    }
+
+    void cancel(Tab tab) {
+        mPending.remove(tab);
+        mTabs.remove(tab);
+        if (mPending.isEmpty()) {
+            mHandler.removeCallbacks(mWaitForIdle);
+        }
+    }
+
+    private TabState getState(Tab tab) {
+        TabState state = mTabs.get(tab);
+        if (state == null) {
+            state = new TabState();
+            mTabs.put(tab, state);
+        }
+        return state;
+    }
+
+    /**
+     * Records a capture of the tab, scheduled or not, and drops the
+     * pending request of the tab.
+     * @param nanos UI thread time taken by the capture.
+     * @return Whether the capture differs from the previous one of the tab.
+     */
+    boolean onCaptured(Tab tab, Bitmap capture, long nanos) {
+        TabState state = getState(tab);
+        if (state.pending) {
+            state.pending = false;
+            mPending.remove(tab);
+        }
+        long start = System.nanoTime();
+        int hash = hashPixels(capture);
+        nanos += System.nanoTime() - start;
+        boolean changed = !state.captured || hash != state.hash;
+        if (changed) {
+            state.captured = true;
+            state.hash = hash;
+            state.unchangedCount = 0;
+        } else {
+            state.unchangedCount++;
+            mUnchangedCount++;
+        }
+        long now = SystemClock.uptimeMillis();
+        trimWindow(now);
+        mWindow.addLast(new Capture(now, nanos));
+        mWindowNanos += nanos;
+        mCaptureCount++;
+        mCaptureNanos += nanos;
+        mMaxCaptureNanos = Math.max(mMaxCaptureNanos, nanos);
+        if (Browser.LOGD_ENABLED && mCaptureCount % LOG_INTERVAL == 0) {
+            Log.d(LOGTAG, "Captures: " + mCaptureCount + ", unchanged: " + mUnchangedCount
+                    + ", deferred: " + mDeferredCount + ", UI time: "
+                    + mCaptureNanos / 1000000 + "ms, max: " + mMaxCaptureNanos / 1000000
+                    + "ms");
+        }
+        return changed;
+    }
+
+    private int hashPixels(Bitmap capture) {
+        int size = capture.getWidth() * capture.getHeight();
+        if (mPixels == null || mPixels.length != size) {
+            mPixels = new int[size];
+        }
+        capture.getPixels(mPixels, 0, capture.getWidth(), 0, 0,
+                capture.getWidth(), capture.getHeight());
+        return Arrays.hashCode(mPixels);
+    }
+
+    private void trimWindow(long now) {
+        while (!mWindow.isEmpty() && mWindow.peekFirst().time <= now - WINDOW) {
+            mWindowNanos -= mWindow.removeFirst().nanos;
+        }
+    }
+
+    /**
+     * @return When the budget allows the next capture.
+     */
+    private long getBudgetTime(long now) {
+        trimWindow(now);
+        if (mWindow.size() < MAX_CAPTURES_PER_SECOND
+                && mWindowNanos < MAX_CAPTURE_NANOS_PER_SECOND) {
+            return now;
+        }
+        return mWindow.peekFirst().time + WINDOW;
+    }
+
+    private Tab getNextTab() {
+        Tab next = null;
+        long nextDue = Long.MAX_VALUE;
+        for (Tab tab : mPending) {
+            TabState state = mTabs.get(tab);
+            if (state != null && state.dueTime < nextDue) {
+                next = tab;
+                nextDue = state.dueTime;
+            }
+        }
+        return next;
+    }
+
+    private void scheduleNext() {
+        mHandler.removeCallbacks(mWaitForIdle);
+        Tab next = getNextTab();
+        if (next == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long time = Math.max(mTabs.get(next).dueTime, getBudgetTime(now));
+        mHandler.postAtTime(mWaitForIdle, time);
+    }
+
+    private final Runnable mWaitForIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIdleHandlerAdded) {
+                mIdleHandlerAdded = true;
+                Looper.myQueue().addIdleHandler(mCaptureWhenIdle);
+            }
+        }
+    };
+
+    // Captures one tab per idle pass, so that no frame waits for several
+    private final MessageQueue.IdleHandler mCaptureWhenIdle = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mIdleHandlerAdded = false;
+            long now = SystemClock.uptimeMillis();
+            Tab next = getNextTab();
+            if (next != null && mTabs.get(next).dueTime <= now) {
+                if (getBudgetTime(now) > now) {
+                    mDeferredCount++;
+                } else {
+                    mPending.remove(next);
+                    mTabs.get(next).pending = false;
+                    next.capture();
+                }
+            }
+            scheduleNext();
+            return false;
+        }
+    };
+
+    /** Number of captures made */
+    int getCaptureCount() {
+        return mCaptureCount;
+    }
+
+    /** Number of captures that came out the same as the previous one */
+    int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /** Number of times a due capture was put off by the budget */
+    int getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /** Total UI thread time taken by captures */
+    long getCaptureTimeNanos() {
+        return mCaptureNanos;
+    }
+
+    long getMaxCaptureTimeNanos() {
+        return mMaxCaptureNanos;
+    }
+
+    int getPendingCount() {
+        return mPending.size();
+    }
+}
@@ -21,6 +21,7 @@ import android.app.Dialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -47,6 +48,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.provider.Browser;
 import android.provider.BrowserContract;
@@ -83,8 +85,8 @@ import android.widget.Toast;
 
 import com.android.browser.IntentHandler.UrlData;
 import com.android.browser.UI.ComboViews;
-import com.android.browser.provider.BrowserProvider2.Thumbnails;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
+import com.android.browser.util.BitmapDecoder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -127,6 +129,11 @@ public class Controller
 
     private static final int EMPTY_MENU = -1;
 
+    // onLowMemory() and onTrimMemory(TRIM_MEMORY_COMPLETE) arrive together
+    // on the same memory pressure, only the first of them within this time
+    // trims
+    private static final long COMPLETE_TRIM_WINDOW = 10 * 1000;
+
     // activity requestCode
     final static int COMBO_VIEW = 1;
     final static int PREFERENCES_PAGE = 3;
@@ -210,12 +217,16 @@ public class Controller
 
     private boolean mActivityPaused = true;
     private boolean mLoadStopped;
+    // Uptime of the last TRIM_MEMORY_COMPLETE pass, 0 if none
+    private long mLastCompleteTrim;
 
     private Handler mHandler;
     // Checks to see when the bookmarks database has changed, and updates the
     // Tabs' notion of whether they represent bookmarked sites.
     private ContentObserver mBookmarksObserver;
     private CrashRecoveryHandler mCrashRecoveryHandler;
+    // Restores the likely next tabs after the state was restored
+    private TabRestoreScheduler mRestoreScheduler;
 
     private boolean mBlockEvents;
 
@@ -225,6 +236,7 @@ public class Controller
         mActivity = browser;
         mSettings = BrowserSettings.getInstance();
         mTabControl = new TabControl(this);
+        mRestoreScheduler = new TabRestoreScheduler(browser, mTabControl);
         mSettings.setController(this);
         mCrashRecoveryHandler = CrashRecoveryHandler.initialize(this);
         mCrashRecoveryHandler.preloadCrashState();
@@ -300,7 +312,7 @@ public class Controller
     private void onPreloginFinished(Bundle icicle, Intent intent, long currentTabId,
             boolean restoreIncognitoTabs) {
         if (currentTabId == -1) {
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, null));
+            DataController.getInstance(mActivity).pruneThumbnails(null);
             if (intent == null) {
                 // This won't happen under common scenarios. The icicle is
                 // not null, but there aren't any tabs to restore.
@@ -338,7 +350,7 @@ public class Controller
             for (Tab t : tabs) {
                 restoredTabs.add(t.getId());
             }
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, restoredTabs));
+            DataController.getInstance(mActivity).pruneThumbnails(restoredTabs);
             if (tabs.size() == 0) {
                 openTabToHomePage();
             }
@@ -346,6 +358,7 @@ public class Controller
             // TabControl.restoreState() will create a new tab even if
             // restoring the state fails.
             setActiveTab(mTabControl.getCurrentTab());
+            mRestoreScheduler.start(mTabControl.getCurrentTab());
             // Intent is non-null when framework thinks the browser should be
             // launching with a new intent (icicle is null).
             if (intent != null) {
@@ -360,38 +373,6 @@ public class Controller
         }
     }
 
-    private static class PruneThumbnails implements Runnable {
-        private Context mContext;
-        private List<Long> mIds;
-
-        PruneThumbnails(Context context, List<Long> preserveIds) {
-            mContext = context.getApplicationContext();
-            mIds = preserveIds;
-        }
-
-        @Override
-        public void run() {
-            ContentResolver cr = mContext.getContentResolver();
-            if (mIds == null || mIds.size() == 0) {
-                cr.delete(Thumbnails.CONTENT_URI, null, null);
-            } else {
-                int length = mIds.size();
-                StringBuilder where = new StringBuilder();
-                where.append(Thumbnails._ID);
-                where.append(" not in (");
-                for (int i = 0; i < length; i++) {
-                    where.append(mIds.get(i));
-                    if (i < (length - 1)) {
-                        where.append(",");
-                    }
-                }
-                where.append(")");
-                cr.delete(Thumbnails.CONTENT_URI, where.toString(), null);
-            }
-        }
-
-    }
-
     @Override
     public WebViewFactory getWebViewFactory() {
         return mFactory;
@@ -632,6 +613,7 @@ public class Controller
             return;
         }
         mActivityPaused = true;
+        mRestoreScheduler.cancel();
         Tab tab = mTabControl.getCurrentTab();
         if (tab != null) {
             tab.pause();
@@ -648,6 +630,7 @@ public class Controller
         }
         mUi.onPause();
         mNetworkHandler.onPause();
+        NavigationPredictor.getInstance().save();
 
         WebView.disablePlatformNotifications();
         NfcHandler.unregister(mActivity);
@@ -750,6 +733,7 @@ public class Controller
             mUploadHandler = null;
         }
         if (mTabControl == null) return;
+        mRestoreScheduler.cancel();
         mUi.onDestroy();
         // Remove the current tab and sub window
         Tab t = mTabControl.getCurrentTab();
@@ -772,7 +756,23 @@ public class Controller
 
     @Override
     public void onLowMemory() {
-        mTabControl.freeMemory();
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            long now = SystemClock.uptimeMillis();
+            if (mLastCompleteTrim != 0 && now - mLastCompleteTrim < COMPLETE_TRIM_WINDOW) {
+                return;
+            }
+            mLastCompleteTrim = now;
+        }
+        if (TabEvictor.getTrimFraction(level) > 0) {
+            mRestoreScheduler.cancel();
+        }
+        mTabControl.trimMemory(level);
+        BitmapDecoder.getInstance(mActivity).trimMemory(level);
     }
 
     @Override
@@ -844,30 +844,24 @@ public class Controller
         // update the bookmark database for favicon
         maybeUpdateFavicon(tab, null, url, favicon);
 
-        Performance.tracePageStart(url);
-
-        // Performance probe
-        if (false) {
-            Performance.onPageStarted();
-        }
+        NavigationPredictor.getInstance().onPageStarted(tab, url);
 
+        Performance.tracePageStart(url);
+        Performance.onPageStarted(tab, url);
     }
 
     @Override
     public void onPageFinished(Tab tab) {
+        mRestoreScheduler.onPageFinished(tab);
         mCrashRecoveryHandler.backupState();
         mUi.onTabDataChanged(tab);
-
-        // Performance probe
-        if (false) {
-            Performance.onPageFinished(tab.getUrl());
-         }
-
+        Performance.onPageFinished(tab);
         Performance.tracePageFinished();
     }
 
     @Override
     public void onProgressChanged(Tab tab) {
+        Performance.onProgressChanged(tab);
         int newProgress = tab.getLoadProgress();
 
         if (newProgress == 100) {
@@ -921,6 +915,7 @@ public class Controller
 
     @Override
     public void onReceivedTitle(Tab tab, final String title) {
+        Performance.onReceivedTitle(tab);
         mUi.onTabDataChanged(tab);
         final String pageUrl = tab.getOriginalUrl();
         if (TextUtils.isEmpty(pageUrl) || pageUrl.length()
@@ -935,6 +930,7 @@ public class Controller
 
     @Override
     public void onFavicon(Tab tab, WebView view, Bitmap icon) {
+        Performance.onFavicon(tab);
         mUi.onTabDataChanged(tab);
         maybeUpdateFavicon(tab, view.getOriginalUrl(), view.getUrl(), icon);
     }
@@ -983,18 +979,7 @@ public class Controller
 
     @Override
     public void getVisitedHistory(final ValueCallback<String[]> callback) {
-        AsyncTask<Void, Void, String[]> task =
-                new AsyncTask<Void, Void, String[]>() {
-            @Override
-            public String[] doInBackground(Void... unused) {
-                return Browser.getVisitedHistory(mActivity.getContentResolver());
-            }
-            @Override
-            public void onPostExecute(String[] result) {
-                callback.onReceiveValue(result);
-            }
-        };
-        task.execute();
+        VisitedHistory.getInstance(mActivity).getVisitedHistory(callback);
     }
 
     @Override
@@ -1169,7 +1154,9 @@ public class Controller
                 if (Intent.ACTION_VIEW.equals(intent.getAction())) {
                     Tab t = getCurrentTab();
                     Uri uri = intent.getData();
-                    loadUrl(t, uri.toString());
+                    if (!showPredictedTab(t, new UrlData(uri.toString()))) {
+                        loadUrl(t, uri.toString());
+                    }
                 } else if (intent.hasExtra(ComboViewActivity.EXTRA_OPEN_ALL)) {
                     String[] urls = intent.getStringArrayExtra(
                             ComboViewActivity.EXTRA_OPEN_ALL);
@@ -1685,7 +1672,7 @@ public class Controller
     @Override
     public void toggleUserAgent() {
         WebView web = getCurrentWebView();
-        mSettings.toggleDesktopUseragent(web);
+        getCurrentTab().toggleDesktopUseragent();
         web.loadUrl(web.getOriginalUrl());
     }
 
@@ -2165,6 +2152,7 @@ public class Controller
 
     protected void removeTab(Tab tab) {
         mUi.removeTab(tab);
+        mRestoreScheduler.onTabRemoved(tab);
         mTabControl.removeTab(tab);
         mCrashRecoveryHandler.backupState();
     }
@@ -2173,6 +2161,7 @@ public class Controller
     public void setActiveTab(Tab tab) {
         // monkey protection against delayed start
         if (tab != null) {
+            mRestoreScheduler.onTabShown(tab, tab.getWebView() != null);
             mTabControl.setCurrentTab(tab);
             // the tab is guaranteed to have a webview after setCurrentTab
             mUi.setActiveTab(tab);
@@ -2264,6 +2253,25 @@ public class Controller
         return t;
     }
 
+    /**
+     * Shows the tab the navigation predictor preloaded for the url, in
+     * place of loading the url in the current tab.
+     * @return Whether there was such a tab.
+     */
+    boolean showPredictedTab(Tab current, UrlData urlData) {
+        if (current == null || current.isPrivateBrowsingEnabled()
+                || urlData.isPreloaded() || urlData.mHeaders != null
+                || urlData.mDisableUrlOverride) {
+            return false;
+        }
+        PreloadedTabControl preloaded = NavigationPredictor.getInstance()
+                .takePredictedTab(current, urlData.mUrl);
+        if (preloaded == null) {
+            return false;
+        }
+        return showPreloadedTab(new UrlData(urlData.mUrl, null, null, preloaded, null)) != null;
+    }
+
     // open a non inconito tab with the given url data
     // and set as active tab
     public Tab openTab(UrlData urlData) {
@@ -2419,7 +2427,8 @@ public class Controller
         if (url != null && url.length() != 0 && tab != null && view != null) {
             url = UrlUtils.smartUrlFilter(url);
             if (!((BrowserWebView) view).getWebViewClient().
-                    shouldOverrideUrlLoading(view, url)) {
+                    shouldOverrideUrlLoading(view, url)
+                    && !showPredictedTab(tab, new UrlData(url))) {
                 loadUrl(tab, url);
             }
         }
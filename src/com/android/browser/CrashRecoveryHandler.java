@@ -23,20 +23,22 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
+    // Legacy full snapshot, only read if there is no journal yet
     private static final String STATE_FILE = "browser_state.parcel";
+    private static final String JOURNAL_FILE = "browser_state.journal";
     private static final int BUFFER_SIZE = 4096;
     private static final long BACKUP_DELAY = 500; // 500ms between writes
     /* This is the duration for which we will prompt to restore
@@ -59,6 +61,11 @@ public class CrashRecoveryHandler {
     private boolean mIsPreloading = false;
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
+    private CrashRecoveryJournal mJournal;
+    // Time spent on the UI thread snapshotting the tabs, per backup
+    private long mLastBackupUiTime;
+    private long mTotalBackupUiTime;
+    private int mBackupCount;
 
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
@@ -76,6 +83,7 @@ public class CrashRecoveryHandler {
     private CrashRecoveryHandler(Controller controller) {
         mController = controller;
         mContext = mController.getActivity().getApplicationContext();
+        mJournal = new CrashRecoveryJournal(new File(mContext.getCacheDir(), JOURNAL_FILE));
         mForegroundHandler = new Handler();
         mBackgroundHandler = new Handler(BackgroundHandler.getLooper()) {
 
@@ -90,6 +98,7 @@ public class CrashRecoveryHandler {
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
+                    mJournal.clear();
                     File state = new File(mContext.getCacheDir(), STATE_FILE);
                     if (state.exists()) {
                         state.delete();
@@ -117,7 +126,10 @@ public class CrashRecoveryHandler {
         @Override
         public void run() {
             try {
+                long start = SystemClock.uptimeMillis();
                 final Bundle state = mController.createSaveState();
+                recordBackupUiTime(SystemClock.uptimeMillis() - start);
+                // Marshalling and writing happen on the background thread
                 Message.obtain(mBackgroundHandler, MSG_WRITE_STATE, state)
                         .sendToTarget();
                 // Remove any queued up saves
@@ -130,6 +142,36 @@ public class CrashRecoveryHandler {
 
     };
 
+    private void recordBackupUiTime(long time) {
+        mLastBackupUiTime = time;
+        mTotalBackupUiTime += time;
+        mBackupCount++;
+        if (LOGV_ENABLED) {
+            TabControl tc = mController.getTabControl();
+            Log.v(LOGTAG, "Backup took " + time + "ms on the UI thread, "
+                    + tc.getLastSavedCount() + " tabs saved, "
+                    + tc.getLastReusedCount() + " reused");
+        }
+    }
+
+    /**
+     * @return The milliseconds the last backup spent on the UI thread
+     */
+    public long getLastBackupUiTime() {
+        return mLastBackupUiTime;
+    }
+
+    /**
+     * @return The average milliseconds spent on the UI thread per backup
+     */
+    public long getAverageBackupUiTime() {
+        return mBackupCount == 0 ? 0 : mTotalBackupUiTime / mBackupCount;
+    }
+
+    public int getBackupCount() {
+        return mBackupCount;
+    }
+
     public void clearState() {
         mBackgroundHandler.sendEmptyMessage(MSG_CLEAR_STATE);
         updateLastRecovered(0);
@@ -154,7 +196,10 @@ public class CrashRecoveryHandler {
         }
         BrowserSettings browserSettings = BrowserSettings.getInstance();
         browserSettings.setLastRunPaused(false);
-        Bundle state = null;
+        Bundle state = mJournal.read();
+        if (state != null) {
+            return state.isEmpty() ? null : state;
+        }
         Parcel parcel = Parcel.obtain();
         FileInputStream fin = null;
         try {
@@ -216,7 +261,8 @@ public class CrashRecoveryHandler {
     }
 
     /**
-     * Writes the crash recovery state to a file synchronously.
+     * Writes the crash recovery state to a file synchronously. Only tabs
+     * whose state changed since the last write are appended to the journal.
      * Errors are swallowed, but logged.
      * @param state The state to write out
      */
@@ -224,26 +270,18 @@ public class CrashRecoveryHandler {
         if (LOGV_ENABLED) {
             Log.v(LOGTAG, "Saving crash recovery state");
         }
-        Parcel p = Parcel.obtain();
         try {
-            state.writeToParcel(p, 0);
-            File stateJournal = new File(mContext.getCacheDir(),
-                    STATE_FILE + ".journal");
-            FileOutputStream fout = new FileOutputStream(stateJournal);
-            fout.write(p.marshall());
-            fout.close();
-            File stateFile = new File(mContext.getCacheDir(),
-                    STATE_FILE);
-            if (!stateJournal.renameTo(stateFile)) {
-                // Failed to rename, try deleting the existing
-                // file and try again
-                stateFile.delete();
-                stateJournal.renameTo(stateFile);
+            long written = mJournal.write(state);
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Wrote " + written + " bytes of crash recovery state");
+            }
+            // Drop the legacy snapshot once the journal has the state
+            File legacy = new File(mContext.getCacheDir(), STATE_FILE);
+            if (legacy.exists()) {
+                legacy.delete();
             }
         } catch (Throwable e) {
             Log.i(LOGTAG, "Failed to save persistent state", e);
-        } finally {
-            p.recycle();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the crash recovery state. Each write only appends
+ * the tabs whose state changed since the previous write, plus the small
+ * header (tab order, current tab, ...), and ends with a commit record. On
+ * replay the records of a write only count once its commit is read. The
+ * journal is rewritten as a full snapshot when it grows too large compared
+ * to the live state, or when an append failed.
+ *
+ * Tab states are the Bundles stored under their tab id by
+ * {@link TabControl#saveState(Bundle)}; every other key goes in the header.
+ * TabControl hands back the very same Bundle for a tab that didn't change,
+ * so a tab whose Bundle is the one written last time is clean and isn't
+ * marshalled again.
+ */
+class CrashRecoveryJournal {
+
+    private static final String LOGTAG = "BrowserCrashRecovery";
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final int RECORD_HEADER = 1;
+    private static final int RECORD_TAB = 2;
+    private static final int RECORD_REMOVE_TAB = 3;
+    // Ends a write, its id is the number of records before it in the write
+    private static final int RECORD_COMMIT = 4;
+
+    // Compact once the journal is this many times larger than the live state
+    private static final int COMPACT_RATIO = 3;
+    // ...but never bother compacting a journal smaller than this
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    // The last state written for a live tab
+    private static class WrittenTab {
+        final Bundle state;
+        final long checksum;
+        final int length;
+        WrittenTab(Bundle s, long crc, int len) {
+            state = s;
+            checksum = crc;
+            length = len;
+        }
+    }
+
+    // A record read back, waiting for the commit of its write
+    private static class Record {
+        final int type;
+        final long id;
+        final byte[] data;
+        Record(int t, long i, byte[] d) {
+            type = t;
+            id = i;
+            data = d;
+        }
+    }
+
+    private final File mFile;
+    private final HashMap<Long, WrittenTab> mWritten = new HashMap<Long, WrittenTab>();
+    private boolean mInitialized;
+    private long mJournalBytes;
+    private int mMarshalledCount;
+    private final CRC32 mCrc = new CRC32();
+
+    CrashRecoveryJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records the given state, appending only what changed since the last
+     * call. Returns the number of bytes written to disk.
+     */
+    synchronized long write(Bundle state) throws IOException {
+        Bundle header = new Bundle(state);
+        LinkedHashMap<Long, Bundle> tabs = new LinkedHashMap<Long, Bundle>();
+        for (String key : state.keySet()) {
+            long id = parseTabId(key, state.get(key));
+            if (id != -1) {
+                header.remove(key);
+                tabs.put(id, state.getBundle(key));
+            }
+        }
+        byte[] headerData = marshallBundle(header);
+        if (!mInitialized) {
+            return compact(tabs, headerData);
+        }
+
+        // Marshall only the tabs which aren't clean
+        LinkedHashMap<Long, byte[]> changed = new LinkedHashMap<Long, byte[]>();
+        long liveBytes = headerData.length;
+        for (Map.Entry<Long, Bundle> entry : tabs.entrySet()) {
+            WrittenTab previous = mWritten.get(entry.getKey());
+            if (previous != null && previous.state == entry.getValue()) {
+                liveBytes += previous.length;
+                continue;
+            }
+            byte[] data = marshall(entry.getValue());
+            liveBytes += data.length;
+            if (previous == null || previous.checksum != checksum(data)
+                    || previous.length != data.length) {
+                changed.put(entry.getKey(), data);
+            } else {
+                // Same content, remember the instance so it's clean next time
+                mWritten.put(entry.getKey(),
+                        new WrittenTab(entry.getValue(), previous.checksum, previous.length));
+            }
+        }
+        if (mJournalBytes > COMPACT_MIN_BYTES && mJournalBytes > liveBytes * COMPACT_RATIO) {
+            return compact(tabs, headerData);
+        }
+
+        try {
+            return append(tabs, changed, headerData);
+        } catch (IOException e) {
+            // Whatever part of the append reached the file has no commit, but
+            // mWritten may no longer match it; start over from a snapshot
+            Log.w(LOGTAG, "Failed to append to crash recovery journal", e);
+            mInitialized = false;
+            return compact(tabs, headerData);
+        }
+    }
+
+    private long append(LinkedHashMap<Long, Bundle> tabs, LinkedHashMap<Long, byte[]> changed,
+            byte[] headerData) throws IOException {
+        long written = 0;
+        int records = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile, true), BUFFER_SIZE));
+        try {
+            Iterator<Long> iter = mWritten.keySet().iterator();
+            while (iter.hasNext()) {
+                long id = iter.next();
+                if (!tabs.containsKey(id)) {
+                    written += writeRecord(out, RECORD_REMOVE_TAB, id, null);
+                    records++;
+                    iter.remove();
+                }
+            }
+            for (Map.Entry<Long, byte[]> entry : changed.entrySet()) {
+                written += writeTab(out, entry.getKey(), tabs.get(entry.getKey()),
+                        entry.getValue());
+                records++;
+            }
+            written += writeRecord(out, RECORD_HEADER, -1, headerData);
+            records++;
+            written += writeRecord(out, RECORD_COMMIT, records, null);
+        } finally {
+            out.close();
+        }
+        mJournalBytes += written;
+        return written;
+    }
+
+    private long compact(LinkedHashMap<Long, Bundle> tabs, byte[] headerData)
+            throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        long written = 0;
+        int records = 0;
+        mWritten.clear();
+        mInitialized = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp), BUFFER_SIZE));
+        try {
+            for (Map.Entry<Long, Bundle> entry : tabs.entrySet()) {
+                written += writeTab(out, entry.getKey(), entry.getValue(),
+                        marshall(entry.getValue()));
+                records++;
+            }
+            written += writeRecord(out, RECORD_HEADER, -1, headerData);
+            records++;
+            written += writeRecord(out, RECORD_COMMIT, records, null);
+        } catch (IOException e) {
+            mWritten.clear();
+            throw e;
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            // Failed to rename, try deleting the existing
+            // file and try again
+            mFile.delete();
+            if (!temp.renameTo(mFile)) {
+                mWritten.clear();
+                throw new IOException("Failed to rename " + temp);
+            }
+        }
+        mInitialized = true;
+        mJournalBytes = written;
+        return written;
+    }
+
+    private long writeTab(DataOutputStream out, long id, Bundle state, byte[] data)
+            throws IOException {
+        mWritten.put(id, new WrittenTab(state, checksum(data), data.length));
+        return writeRecord(out, RECORD_TAB, id, data);
+    }
+
+    /**
+     * Replays the journal and returns the last complete state, or null if
+     * there is no journal. A partially written trailing write, for
+     * example from a crash during a write, is ignored.
+     */
+    synchronized Bundle read() {
+        HashMap<Long, Bundle> tabs = new HashMap<Long, Bundle>();
+        Bundle header = null;
+        // The records of the write being replayed, applied on its commit
+        ArrayList<Record> pending = new ArrayList<Record>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile), BUFFER_SIZE));
+            while (true) {
+                int type = in.readByte();
+                long id = in.readLong();
+                int length = in.readInt();
+                byte[] data = null;
+                if (length > 0) {
+                    data = new byte[length];
+                    in.readFully(data);
+                }
+                long crc = in.readLong();
+                if (crc != (data == null ? 0 : checksum(data))) {
+                    Log.w(LOGTAG, "Corrupt crash recovery journal record");
+                    break;
+                }
+                if (type != RECORD_COMMIT) {
+                    pending.add(new Record(type, id, data));
+                    continue;
+                }
+                if (id != pending.size()) {
+                    Log.w(LOGTAG, "Corrupt crash recovery journal commit");
+                    break;
+                }
+                for (Record record : pending) {
+                    switch (record.type) {
+                        case RECORD_HEADER:
+                            header = unmarshall(record.data);
+                            break;
+                        case RECORD_TAB:
+                            tabs.put(record.id, unmarshall(record.data));
+                            break;
+                        case RECORD_REMOVE_TAB:
+                            tabs.remove(record.id);
+                            break;
+                    }
+                }
+                pending.clear();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            // End of the journal
+        } catch (Throwable e) {
+            Log.w(LOGTAG, "Failed to read crash recovery journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+        if (header == null) {
+            return null;
+        }
+        Bundle state = new Bundle(header);
+        for (Map.Entry<Long, Bundle> entry : tabs.entrySet()) {
+            state.putBundle(Long.toString(entry.getKey()), entry.getValue());
+        }
+        return state;
+    }
+
+    synchronized void clear() {
+        mFile.delete();
+        mWritten.clear();
+        mInitialized = false;
+        mJournalBytes = 0;
+    }
+
+    long getJournalBytes() {
+        return mJournalBytes;
+    }
+
+    /**
+     * @return The number of tab states marshalled by the writes so far,
+     *         clean tabs aren't.
+     */
+    int getMarshalledCount() {
+        return mMarshalledCount;
+    }
+
+    private long writeRecord(DataOutputStream out, int type, long id, byte[] data)
+            throws IOException {
+        int length = data == null ? 0 : data.length;
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeInt(length);
+        if (data != null) {
+            out.write(data);
+        }
+        out.writeLong(data == null ? 0 : checksum(data));
+        return 1 + 8 + 4 + length + 8;
+    }
+
+    private long checksum(byte[] data) {
+        mCrc.reset();
+        mCrc.update(data, 0, data.length);
+        return mCrc.getValue();
+    }
+
+    private static long parseTabId(String key, Object value) {
+        if (!(value instanceof Bundle)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private byte[] marshall(Bundle b) {
+        mMarshalledCount++;
+        return marshallBundle(b);
+    }
+
+    private static byte[] marshallBundle(Bundle b) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeBundle(b);
+            return p.marshall();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static Bundle unmarshall(byte[] data) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } finally {
+            p.recycle();
+        }
+    }
+}
@@ -17,25 +17,40 @@
 
 package com.android.browser;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
-import android.net.Uri;
+import android.graphics.Canvas;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.History;
 import android.util.Log;
 
+import com.android.browser.provider.BrowserProvider2;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
@@ -46,12 +61,22 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    private static final int TAB_PRUNE_THUMBNAILS = 204;
+
+    // History writes are held back and merged per URL, then written in a
+    // single batch once either this many URLs are pending...
+    private static final int HISTORY_FLUSH_THRESHOLD = 32;
+    // ...or the oldest pending update has waited this long (in ms)
+    private static final long HISTORY_FLUSH_DELAY = 1000;
+
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
-    private ByteBuffer mBuffer; // to capture thumbnails
+    private Bitmap mScratch; // to capture thumbnails
+    // Set by the bookmarks observer, the index is reloaded on the next lookup
+    private volatile boolean mBookmarkIndexStale = true;
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
@@ -61,6 +86,22 @@ public class DataController {
         Object[] args;
     }
 
+    // Accumulated history changes for a single URL, waiting to be flushed
+    private static class PendingHistoryUpdate {
+        // Messages folded into this update
+        int messages;
+        int visits;
+        long lastVisited;
+        String title;
+    }
+
+    private static class PruneRequest {
+        final List<Long> preserveIds;
+        PruneRequest(List<Long> ids) {
+            preserveIds = ids;
+        }
+    }
+
     private static class DCMessage {
         int what;
         Object obj;
@@ -97,9 +138,18 @@ public class DataController {
                 }
             }
         };
+        mContext.getContentResolver().registerContentObserver(
+                BookmarkUtils.getBookmarksUri(mContext), true,
+                new ContentObserver(mCbHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mBookmarkIndexStale = true;
+                    }
+                });
     }
 
     public void updateVisitedHistory(String url) {
+        VisitedHistory.getInstance(mContext).onVisited(url);
         mDataHandler.sendMessage(HISTORY_UPDATE_VISITED, url);
     }
 
@@ -128,11 +178,33 @@ public class DataController {
         mDataHandler.sendMessage(TAB_SAVE_THUMBNAIL, tab);
     }
 
+    /**
+     * Deletes the saved thumbnails of every tab not in the given list.
+     * A null list deletes all of them.
+     */
+    public void pruneThumbnails(List<Long> preserveIds) {
+        mDataHandler.sendMessage(TAB_PRUNE_THUMBNAILS, new PruneRequest(preserveIds));
+    }
+
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
     class DataControllerHandler extends Thread {
         private BlockingQueue<DCMessage> mMessageQueue
                 = new LinkedBlockingQueue<DCMessage>();
+        // Only touched from this thread, in insertion order so that the
+        // batch is written in the order the pages were visited
+        private LinkedHashMap<String, PendingHistoryUpdate> mPendingHistory
+                = new LinkedHashMap<String, PendingHistoryUpdate>();
+        private long mHistoryFlushDeadline;
+        private TabThumbnailStore mThumbnailStore;
+        // Bookmarked URLs, only touched from this thread
+        private HashSet<String> mBookmarkedUrls = new HashSet<String>();
+        // Bookmarks version of the provider when the index was loaded
+        private long mBookmarksVersion = -1;
+        // Messages folded into a pending update for the same URL, and
+        // provider writes avoided by batching, logged with each batch
+        private int mMessagesMerged;
+        private int mTransactionsSaved;
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -141,9 +213,26 @@ public class DataController {
         @Override
         public void run() {
             setPriority(Thread.MIN_PRIORITY);
+            mThumbnailStore = new TabThumbnailStore(mContext);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    DCMessage msg;
+                    if (mPendingHistory.isEmpty()) {
+                        msg = mMessageQueue.take();
+                    } else {
+                        long wait = mHistoryFlushDeadline - SystemClock.uptimeMillis();
+                        msg = wait > 0
+                                ? mMessageQueue.poll(wait, TimeUnit.MILLISECONDS)
+                                : mMessageQueue.poll();
+                    }
+                    if (msg != null) {
+                        handleMessage(msg);
+                    }
+                    if (!mPendingHistory.isEmpty()
+                            && (mPendingHistory.size() >= HISTORY_FLUSH_THRESHOLD
+                            || SystemClock.uptimeMillis() >= mHistoryFlushDeadline)) {
+                        flushHistoryUpdates();
+                    }
                 } catch (InterruptedException ex) {
                     break;
                 }
@@ -164,139 +253,276 @@ public class DataController {
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
             case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
+                queueHistoryUpdate((String) msg.obj, true, null);
                 break;
             case HISTORY_UPDATE_TITLE:
                 String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
+                queueHistoryUpdate(args[0], false, args[1]);
                 break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                doQueryBookmarkStatus((String) msg.obj, collectBookmarkQueries(msg));
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
                 break;
             case TAB_DELETE_THUMBNAIL:
-                ContentResolver cr = mContext.getContentResolver();
-                try {
-                    cr.delete(ContentUris.withAppendedId(
-                            Thumbnails.CONTENT_URI, (Long)msg.obj),
-                            null, null);
-                } catch (Throwable t) {}
+                mThumbnailStore.delete((Long) msg.obj);
                 break;
             case TAB_SAVE_THUMBNAIL:
                 doSaveThumbnail((Tab)msg.obj);
                 break;
+            case TAB_PRUNE_THUMBNAILS:
+                doPruneThumbnails(((PruneRequest) msg.obj).preserveIds);
+                break;
             }
         }
 
-        private byte[] getCaptureBlob(Tab tab) {
+        // Copies the tab's capture into mScratch, so that encoding can
+        // happen without holding the tab lock
+        private boolean copyCapture(Tab tab) {
             synchronized (tab) {
                 Bitmap capture = tab.getScreenshot();
                 if (capture == null) {
-                    return null;
+                    return false;
                 }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
-                }
-                capture.copyPixelsToBuffer(mBuffer);
-                mBuffer.rewind();
-                return mBuffer.array();
+                ensureScratch(capture);
+                copyBitmap(capture, mScratch);
+                return true;
             }
         }
 
+        private void ensureScratch(Bitmap capture) {
+            if (mScratch == null || mScratch.getWidth() != capture.getWidth()
+                    || mScratch.getHeight() != capture.getHeight()
+                    || mScratch.getConfig() != capture.getConfig()) {
+                mScratch = Bitmap.createBitmap(capture.getWidth(),
+                        capture.getHeight(), capture.getConfig());
+            }
+        }
+
+        private void copyBitmap(Bitmap src, Bitmap dst) {
+            Canvas c = new Canvas(dst);
+            c.drawBitmap(src, 0, 0, null);
+            c.setBitmap(null);
+        }
+
         private void doSaveThumbnail(Tab tab) {
-            byte[] blob = getCaptureBlob(tab);
-            if (blob == null) {
+            if (!copyCapture(tab)) {
                 return;
             }
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(Thumbnails._ID, tab.getId());
-            values.put(Thumbnails.THUMBNAIL, blob);
-            cr.insert(Thumbnails.CONTENT_URI, values);
+            mThumbnailStore.save(tab.getId(), mScratch);
         }
 
         private void doLoadThumbnail(Tab tab) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
-            try {
-                Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
-                c = cr.query(uri, new String[] {Thumbnails._ID,
-                        Thumbnails.THUMBNAIL}, null, null, null);
-                if (c.moveToFirst()) {
-                    byte[] data = c.getBlob(1);
-                    if (data != null && data.length > 0) {
-                        tab.updateCaptureFromBlob(data);
-                    }
+            synchronized (tab) {
+                Bitmap capture = tab.getScreenshot();
+                if (capture == null) {
+                    return;
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
+                ensureScratch(capture);
+            }
+            if (!mThumbnailStore.load(tab.getId(), mScratch)) {
+                return;
+            }
+            synchronized (tab) {
+                Bitmap capture = tab.getScreenshot();
+                if (capture != null && capture.getWidth() == mScratch.getWidth()
+                        && capture.getHeight() == mScratch.getHeight()) {
+                    copyBitmap(mScratch, capture);
                 }
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
+        private void doPruneThumbnails(List<Long> preserveIds) {
+            mThumbnailStore.retainAll(preserveIds);
+            // Thumbnails used to be stored in the database, clear out
+            // anything left over from before, once
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            if (prefs.getBoolean(PreferenceKeys.KEY_LEGACY_THUMBNAILS_CLEARED, false)) {
+                return;
+            }
             try {
-                c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    android.provider.Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
+                mContext.getContentResolver().delete(Thumbnails.CONTENT_URI, null, null);
+                prefs.edit().putBoolean(PreferenceKeys.KEY_LEGACY_THUMBNAILS_CLEARED, true).apply();
+            } catch (Throwable t) {}
+        }
+
+        private void queueHistoryUpdate(String url, boolean visited, String title) {
+            // Key on the URL as the provider will store it, so that the
+            // lookup in flushHistoryUpdates() finds the existing row
+            url = BrowserProvider2.filterSearchClient(url);
+            PendingHistoryUpdate update = mPendingHistory.get(url);
+            if (update == null) {
+                if (mPendingHistory.isEmpty()) {
+                    mHistoryFlushDeadline = SystemClock.uptimeMillis() + HISTORY_FLUSH_DELAY;
+                }
+                update = new PendingHistoryUpdate();
+                mPendingHistory.put(url, update);
+            } else {
+                mMessagesMerged++;
+            }
+            update.messages++;
+            if (visited) {
+                update.visits++;
+                update.lastVisited = System.currentTimeMillis();
+            }
+            if (title != null) {
+                update.title = title;
+            }
+        }
+
+        private void flushHistoryUpdates() {
+            LinkedHashMap<String, PendingHistoryUpdate> pending = mPendingHistory;
+            mPendingHistory = new LinkedHashMap<String, PendingHistoryUpdate>();
+
+            ContentResolver cr = mContext.getContentResolver();
+            HashMap<String, long[]> existing = queryHistoryRows(cr, pending.keySet());
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            // The messages that each used to be a write of their own
+            int messages = 0;
+            boolean inserting = false;
+            for (String url : pending.keySet()) {
+                PendingHistoryUpdate update = pending.get(url);
+                long[] row = existing.get(url);
+                ContentValues values = new ContentValues();
+                if (row != null) {
+                    if (update.visits > 0) {
+                        values.put(History.VISITS, row[1] + update.visits);
+                        values.put(History.DATE_LAST_VISITED, update.lastVisited);
+                    }
+                    if (update.title != null) {
+                        values.put(History.TITLE, update.title);
+                    }
+                    ops.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(History.CONTENT_URI, row[0]))
+                            .withValues(values).build());
+                    messages += update.messages;
+                } else if (update.visits > 0) {
                     values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
+                    values.put(History.VISITS, update.visits);
+                    values.put(History.DATE_LAST_VISITED, update.lastVisited);
+                    values.put(History.TITLE, update.title != null ? update.title : url);
                     values.put(History.DATE_CREATED, 0);
                     values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
+                    ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                            .withValues(values).build());
+                    messages += update.messages;
+                    inserting = true;
+                }
+                // A title for a page that was never visited has nothing to
+                // update, same as the single row update used to do
+            }
+            if (ops.isEmpty()) {
+                return;
+            }
+            try {
+                cr.applyBatch(BrowserContract.AUTHORITY, ops);
+                mTransactionsSaved += messages - 1;
+                if (Browser.LOGD_ENABLED) {
+                    Log.d(LOGTAG, "Wrote " + ops.size() + " history rows for " + messages
+                            + " updates, merged " + mMessagesMerged + ", saved "
+                            + mTransactionsSaved + " writes so far");
+                }
+            } catch (RemoteException e) {
+                Log.e(LOGTAG, "Failed to write history batch", e);
+            } catch (OperationApplicationException e) {
+                Log.e(LOGTAG, "Failed to write history batch", e);
+            }
+            // Only after the batch, which updates rows by the ids queried
+            // above: truncating first could delete them
+            if (inserting) {
+                android.provider.Browser.truncateHistory(cr);
+            }
+        }
+
+        // Returns a map of url -> { _id, visits } for the urls already in history
+        private HashMap<String, long[]> queryHistoryRows(ContentResolver cr, Set<String> urls) {
+            HashMap<String, long[]> rows = new HashMap<String, long[]>();
+            StringBuilder where = new StringBuilder(History.URL + " IN (");
+            for (int i = 0; i < urls.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(")");
+            Cursor c = null;
+            try {
+                c = cr.query(History.CONTENT_URI,
+                        new String[] { History._ID, History.VISITS, History.URL },
+                        where.toString(), urls.toArray(new String[urls.size()]), null);
+                while (c != null && c.moveToNext()) {
+                    rows.put(c.getString(2), new long[] { c.getLong(0), c.getInt(1) });
                 }
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error querying history: " + e);
             } finally {
                 if (c != null) c.close();
             }
+            return rows;
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
-            // Check to see if the site is bookmarked
+        // Removes any other queued lookups for the same URL so that they can
+        // all be answered at once. Returns the distinct callbacks to notify.
+        private ArrayList<Object> collectBookmarkQueries(DCMessage msg) {
+            ArrayList<Object> replyTos = new ArrayList<Object>();
+            replyTos.add(msg.replyTo);
+            Iterator<DCMessage> iter = mMessageQueue.iterator();
+            while (iter.hasNext()) {
+                DCMessage queued = iter.next();
+                if (queued.what == QUERY_URL_IS_BOOKMARK && msg.obj.equals(queued.obj)) {
+                    iter.remove();
+                    if (!replyTos.contains(queued.replyTo)) {
+                        replyTos.add(queued.replyTo);
+                    }
+                }
+            }
+            return replyTos;
+        }
+
+        private void loadBookmarkIndex() {
+            // Clear the flag first so a change that races with the load
+            // marks the index stale again
+            mBookmarkIndexStale = false;
+            // Image and favicon updates notify the bookmarks uri as well,
+            // without changing any bookmark
+            long version = BookmarkUtils.queryBookmarksVersion(
+                    mContext.getContentResolver());
+            if (version >= 0 && version == mBookmarksVersion) {
+                return;
+            }
+            HashSet<String> urls = new HashSet<String>();
             Cursor cursor = null;
-            boolean isBookmark = false;
             try {
                 cursor = mContext.getContentResolver().query(
                         BookmarkUtils.getBookmarksUri(mContext),
                         new String[] { BrowserContract.Bookmarks.URL },
-                        BrowserContract.Bookmarks.URL + " == ?",
-                        new String[] { url },
-                        null);
-                isBookmark = cursor.moveToFirst();
+                        BrowserContract.Bookmarks.IS_FOLDER + " == 0",
+                        null, null);
+                while (cursor.moveToNext()) {
+                    String url = cursor.getString(0);
+                    if (url != null) {
+                        urls.add(url);
+                    }
+                }
+                mBookmarkedUrls = urls;
+                mBookmarksVersion = version;
             } catch (SQLiteException e) {
-                Log.e(LOGTAG, "Error checking for bookmark: " + e);
+                Log.e(LOGTAG, "Error loading bookmarks: " + e);
+                mBookmarkIndexStale = true;
             } finally {
                 if (cursor != null) cursor.close();
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
         }
 
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
+        private void doQueryBookmarkStatus(String url, ArrayList<Object> replyTos) {
+            if (mBookmarkIndexStale) {
+                loadBookmarkIndex();
+            }
+            boolean isBookmark = mBookmarkedUrls.contains(url);
+            for (Object replyTo : replyTos) {
+                CallbackContainer cc = new CallbackContainer();
+                cc.replyTo = replyTo;
+                cc.args = new Object[] { url, isBookmark };
+                mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
+            }
         }
     }
 }
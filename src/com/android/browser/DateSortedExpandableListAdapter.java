@@ -19,6 +19,9 @@ package com.android.browser;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DataSetObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,22 +30,52 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.TextView;
 
+import com.android.browser.provider.BrowserProvider2;
+
+import java.util.HashSet;
+
 /**
  * ExpandableListAdapter which separates data into categories based on date.
  * Used for History and Downloads.
+ *
+ * The adapter is given the number of items in each bin, see
+ * {@link #getBinBoundaries}, and pages the items of a bin in on demand
+ * with {@link #queryBin}, so that the cost of showing the list doesn't
+ * depend on the number of items.
  */
-public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+public abstract class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+    // Items queried at a time
+    static final int PAGE_SIZE = 50;
+    // Pages kept open
+    private static final int MAX_PAGES = 16;
+
     // Array for each of our bins.  Each entry represents how many items are
     // in that bin.
     private int mItemMap[];
     // This is our GroupCount.  We will have at most DateSorter.DAY_COUNT
     // bins, less if the user has no items in one or more bins.
     private int mNumberOfBins;
+    private int mItemCount;
+    private Cursor mBinCursor;
+    // The page cursor last moved by moveCursorToChildPosition
     private Cursor mCursor;
     private DateSorter mDateSorter;
-    private int mDateIndex;
-    private int mIdIndex;
+    private String mDateColumn;
     private Context mContext;
+    private Handler mHandler;
+
+    // Loaded pages, keyed by bin and page number
+    private final LruCache<Long, Cursor> mPages = new LruCache<Long, Cursor>(MAX_PAGES) {
+        @Override
+        protected void entryRemoved(boolean evicted, Long key, Cursor oldValue,
+                Cursor newValue) {
+            oldValue.close();
+        }
+    };
+    private final HashSet<Long> mLoadingPages = new HashSet<Long>();
+    // Changed with the bins, so that pages queried before are dropped.
+    // Written on the UI thread, read by the page loads.
+    private volatile int mGeneration;
 
     boolean mDataValid;
 
@@ -59,129 +92,78 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
             notifyDataSetInvalidated();
         }
     };
-    
-    public DateSortedExpandableListAdapter(Context context, int dateIndex) {
+
+    /**
+     * @param dateColumn The column the items are sorted by, most recent
+     *        first.
+     */
+    public DateSortedExpandableListAdapter(Context context, String dateColumn) {
         mContext = context;
         mDateSorter = new DateSorter(context);
-        mDateIndex = dateIndex;
+        mDateColumn = dateColumn;
+        mHandler = new Handler(Looper.getMainLooper());
         mDataValid = false;
-        mIdIndex = -1;
+        mItemMap = new int[DateSorter.DAY_COUNT];
     }
 
     /**
-     * Set up the bins for determining which items belong to which groups.
+     * Queries items of a bin, sorted by date. Called on a background thread.
+     * @param selection Selects the items of the bin.
+     * @param offset Position of the first item in the bin.
+     * @param limit Maximum number of items.
+     */
+    abstract Cursor queryBin(String selection, String[] selectionArgs, int offset, int limit);
+
+    /**
+     * @return The boundaries of the bins, for
+     *         {@link com.android.browser.provider.BrowserProvider2#PARAM_DATE_BINS}.
+     */
+    /* package */ String getBinBoundaries() {
+        StringBuilder boundaries = new StringBuilder();
+        for (int i = 0; i < DateSorter.DAY_COUNT - 1; i++) {
+            if (i > 0) {
+                boundaries.append(',');
+            }
+            boundaries.append(mDateSorter.getBoundary(i));
+        }
+        return boundaries.toString();
+    }
+
+    /**
+     * Set up the bins from the count of items in each of them.
      */
     private void buildMap() {
-        // The cursor is sorted by date
         // The ItemMap will store the number of items in each bin.
         int array[] = new int[DateSorter.DAY_COUNT];
-        // Zero out the array.
-        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
-            array[j] = 0;
-        }
         mNumberOfBins = 0;
-        int dateIndex = -1;
-        if (mCursor.moveToFirst() && mCursor.getCount() > 0) {
-            while (!mCursor.isAfterLast()) {
-                long date = getLong(mDateIndex);
-                int index = mDateSorter.getIndex(date);
-                if (index > dateIndex) {
-                    mNumberOfBins++;
-                    if (index == DateSorter.DAY_COUNT - 1) {
-                        // We are already in the last bin, so it will
-                        // include all the remaining items
-                        array[index] = mCursor.getCount()
-                                - mCursor.getPosition();
-                        break;
-                    }
-                    dateIndex = index;
-                }
-                array[dateIndex]++;
-                mCursor.moveToNext();
+        mItemCount = 0;
+        int binIndex = mBinCursor.getColumnIndexOrThrow(BrowserProvider2.DATE_BIN);
+        int countIndex = mBinCursor.getColumnIndexOrThrow(BrowserProvider2.DATE_BIN_COUNT);
+        for (mBinCursor.moveToFirst(); !mBinCursor.isAfterLast(); mBinCursor.moveToNext()) {
+            int bin = mBinCursor.getInt(binIndex);
+            int count = mBinCursor.getInt(countIndex);
+            if (bin < 0 || bin >= DateSorter.DAY_COUNT || count == 0) {
+                continue;
+            }
+            if (array[bin] == 0) {
+                mNumberOfBins++;
             }
+            array[bin] += count;
+            mItemCount += count;
         }
         mItemMap = array;
     }
 
-    /**
-     * Get the byte array at cursorIndex from the Cursor.  Assumes the Cursor
-     * has already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getString}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding byte array from the Cursor.
-     */
-    /* package */ byte[] getBlob(int cursorIndex) {
-        if (!mDataValid) return null; 
-        return mCursor.getBlob(cursorIndex);
-    }
-
     /* package */ Context getContext() {
         return mContext;
     }
 
     /**
-     * Get the integer at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.  Along with
-     * {@link #getBlob} and {@link #getString}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding integer from the Cursor.
+     * @return The cursor of the item the last successful
+     *         {@link #moveCursorToChildPosition} moved to.
      */
-    /* package */ int getInt(int cursorIndex) {
-        if (!mDataValid) return 0; 
-        return mCursor.getInt(cursorIndex);
-    }
-
-    /**
-     * Get the long at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.
-     */
-    /* package */ long getLong(int cursorIndex) {
-        if (!mDataValid) return 0; 
-        return mCursor.getLong(cursorIndex);
-    }
-
-    /**
-     * Get the String at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getInt}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding String from the Cursor.
-     */
-    /* package */ String getString(int cursorIndex) {
-        if (!mDataValid) return null; 
-        return mCursor.getString(cursorIndex);
-    }
-
-    /**
-     * Determine which group an item belongs to.
-     * @param childId ID of the child view in question.
-     * @return int Group position of the containing group.
-    /* package */ int groupFromChildId(long childId) {
-        if (!mDataValid) return -1; 
-        int group = -1;
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast();
-                mCursor.moveToNext()) {
-            if (getLong(mIdIndex) == childId) {
-                int bin = mDateSorter.getIndex(getLong(mDateIndex));
-                // bin is the same as the group if the number of bins is the
-                // same as DateSorter
-                if (DateSorter.DAY_COUNT == mNumberOfBins) {
-                    return bin;
-                }
-                // There are some empty bins.  Find the corresponding group.
-                group = 0;
-                for (int i = 0; i < bin; i++) {
-                    if (mItemMap[i] != 0) {
-                        group++;
-                    }
-                }
-                break;
-            }
-        }
-        return group;
+    /* package */ Cursor getChildCursor() {
+        return mCursor;
     }
 
     /**
@@ -233,44 +215,139 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Move the cursor the the position indicated.
+     * Move the cursor the the position indicated. Items that aren't loaded
+     * yet are queried in the background, and the observers notified once
+     * they are.
      * @param groupPosition Index of the group containing the desired item.
      * @param childPosition Index of the item within the specified group.
-     * @return boolean False if the cursor is closed, so the Cursor was not
-     *      moved.  True on success.
+     * @return boolean False if the item isn't loaded yet, or is gone, so
+     *      the Cursor was not moved.  True on success, see
+     *      {@link #getChildCursor}.
      */
     /* package */ boolean moveCursorToChildPosition(int groupPosition,
             int childPosition) {
-        if (!mDataValid || mCursor.isClosed()) {
+        if (!mDataValid) {
             return false;
         }
-        groupPosition = groupPositionToBin(groupPosition);
-        int index = childPosition;
-        for (int i = 0; i < groupPosition; i++) {
-            index += mItemMap[i];
+        int bin = groupPositionToBin(groupPosition);
+        int page = childPosition / PAGE_SIZE;
+        long key = getPageKey(bin, page);
+        Cursor cursor = mPages.get(key);
+        if (cursor == null) {
+            loadPage(bin, page);
+            return false;
         }
-        return mCursor.moveToPosition(index);
+        if (cursor.isClosed() || !cursor.moveToPosition(childPosition % PAGE_SIZE)) {
+            return false;
+        }
+        mCursor = cursor;
+        return true;
     }
 
+    private static long getPageKey(int bin, int page) {
+        return ((long) bin << 32) | page;
+    }
+
+    private void loadPage(final int bin, final int page) {
+        final long key = getPageKey(bin, page);
+        if (!mLoadingPages.add(key)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final String selection = getBinSelection(bin);
+        final String[] selectionArgs = getBinSelectionArgs(bin);
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    // The bins changed or the adapter was closed meanwhile
+                    return;
+                }
+                final Cursor cursor = queryBin(selection, selectionArgs,
+                        page * PAGE_SIZE, PAGE_SIZE);
+                if (cursor != null) {
+                    // Fills the window here rather than on the UI thread
+                    cursor.getCount();
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(generation, key, cursor);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int generation, long key, Cursor cursor) {
+        if (generation != mGeneration) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mLoadingPages.remove(key);
+        if (cursor != null) {
+            mPages.put(key, cursor);
+            notifyDataSetChanged();
+        }
+    }
+
+    // Matches DateSorter.getIndex, which puts the items without a date
+    // in the last bin
+    private String getBinSelection(int bin) {
+        if (bin == 0) {
+            return mDateColumn + " > ?";
+        }
+        if (bin == DateSorter.DAY_COUNT - 1) {
+            return "IFNULL(" + mDateColumn + ", 0) <= ?";
+        }
+        return mDateColumn + " > ? AND " + mDateColumn + " <= ?";
+    }
+
+    private String[] getBinSelectionArgs(int bin) {
+        String after = Long.toString(mDateSorter.getBoundary(bin));
+        String notAfter = bin > 0 ? Long.toString(mDateSorter.getBoundary(bin - 1)) : null;
+        if (bin == 0) {
+            return new String[] { after };
+        }
+        if (bin == DateSorter.DAY_COUNT - 1) {
+            return new String[] { notAfter };
+        }
+        return new String[] { after, notAfter };
+    }
+
+    /**
+     * Sets the count of items in each bin, as returned by a
+     * {@link com.android.browser.provider.BrowserProvider2#PARAM_DATE_BINS}
+     * query. The items loaded so far are dropped.
+     */
     public void changeCursor(Cursor cursor) {
-        if (cursor == mCursor) {
+        if (cursor == mBinCursor) {
             return;
         }
-        if (mCursor != null) {
-            mCursor.unregisterDataSetObserver(mDataSetObserver);
-            mCursor.close();
+        if (mBinCursor != null) {
+            mBinCursor.unregisterDataSetObserver(mDataSetObserver);
+            mBinCursor.close();
         }
-        mCursor = cursor;
+        mGeneration++;
+        mLoadingPages.clear();
+        mPages.evictAll();
+        mCursor = null;
+        mBinCursor = cursor;
         if (cursor != null) {
             cursor.registerDataSetObserver(mDataSetObserver);
-            mIdIndex = cursor.getColumnIndexOrThrow("_id");
             mDataValid = true;
             buildMap();
+            // Start with the most recent items, most likely to be shown
+            if (mNumberOfBins > 0) {
+                loadPage(groupPositionToBin(0), 0);
+            }
             // notify the observers about the new cursor
             notifyDataSetChanged();
         } else {
-            mIdIndex = -1;
             mDataValid = false;
+            mItemCount = 0;
             // notify the observers about the lack of a data set
             notifyDataSetInvalidated();
         }
@@ -341,14 +418,15 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     public long getChildId(int groupPosition, int childPosition) {
         if (!mDataValid) return 0; 
         if (moveCursorToChildPosition(groupPosition, childPosition)) {
-            return getLong(mIdIndex);
+            return mCursor.getLong(mCursor.getColumnIndexOrThrow("_id"));
         }
         return 0;
     }
 
     @Override
     public boolean hasStableIds() {
-        return true;
+        // Items that aren't loaded yet have no id
+        return false;
     }
 
     @Override
@@ -373,6 +451,6 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public boolean isEmpty() {
-        return !mDataValid || mCursor == null || mCursor.isClosed() || mCursor.getCount() == 0;
+        return !mDataValid || mItemCount == 0;
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import com.android.browser.provider.BrowserProvider2.DeletedHistory;
+
+/**
+ * The history rows deleted after a given entry of the provider's log of
+ * deletions. In memory copies of history remember the id of the last entry
+ * they have seen, and drop the rows logged since instead of loading history
+ * again. The log only keeps the latest entries, so a copy too far behind
+ * finds it incomplete and has to reload.
+ */
+class HistoryDeletions {
+
+    private static final String[] PROJECTION = new String[] {
+            DeletedHistory._ID, DeletedHistory.HISTORY_ID, DeletedHistory.URL };
+
+    private static final String[] LAST_ID_PROJECTION = new String[] {
+            "MAX(" + DeletedHistory._ID + ")" };
+
+    /** The id of the last entry read, to pass to the next query. */
+    final long lastId;
+    /** Whether every deletion after the given entry is listed. */
+    final boolean complete;
+    final long[] historyIds;
+    final String[] urls;
+
+    private HistoryDeletions(long lastId, boolean complete, long[] historyIds, String[] urls) {
+        this.lastId = lastId;
+        this.complete = complete;
+        this.historyIds = historyIds;
+        this.urls = urls;
+    }
+
+    /**
+     * @return The id of the newest entry of the log, 0 if it is empty, or
+     *         -1 if it can't be read. Read it before loading history, so
+     *         deletions racing with the load are replayed afterwards.
+     */
+    static long queryLastId(ContentResolver cr) {
+        Cursor c = null;
+        try {
+            c = cr.query(DeletedHistory.CONTENT_URI, LAST_ID_PROJECTION, null, null, null);
+            return c != null && c.moveToFirst() ? c.getLong(0) : -1;
+        } catch (SQLiteException e) {
+            return -1;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Reads the deletions logged after the entry afterId, oldest first.
+     * The result is incomplete if afterId is negative, if the log can't be
+     * read, or if entries after afterId were already dropped from it.
+     */
+    static HistoryDeletions query(ContentResolver cr, long afterId) {
+        if (afterId < 0) {
+            return new HistoryDeletions(queryLastId(cr), false, new long[0], new String[0]);
+        }
+        Cursor c = null;
+        try {
+            c = cr.query(DeletedHistory.CONTENT_URI, PROJECTION,
+                    DeletedHistory._ID + " > ?", new String[] { Long.toString(afterId) },
+                    DeletedHistory._ID);
+            if (c == null) {
+                return new HistoryDeletions(-1, false, new long[0], new String[0]);
+            }
+            int count = c.getCount();
+            long[] historyIds = new long[count];
+            String[] urls = new String[count];
+            long lastId = afterId;
+            boolean complete = true;
+            for (int i = 0; c.moveToNext(); i++) {
+                long id = c.getLong(0);
+                if (i == 0 && id != afterId + 1) {
+                    complete = false;
+                }
+                lastId = id;
+                historyIds[i] = c.getLong(1);
+                urls[i] = c.getString(2);
+            }
+            return new HistoryDeletions(lastId, complete, historyIds, urls);
+        } catch (SQLiteException e) {
+            return new HistoryDeletions(-1, false, new long[0], new String[0]);
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+}
@@ -185,7 +185,9 @@ public class IntentHandler {
                 // remove the association, since the new Intent means that it is
                 // no longer associated with that application.
                 current.setAppId(null);
-                mController.loadUrlDataIn(current, urlData);
+                if (!mController.showPredictedTab(current, urlData)) {
+                    mController.loadUrlDataIn(current, urlData);
+                }
             }
         }
     }
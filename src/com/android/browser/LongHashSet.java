@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+/**
+ * A set of longs in a single open addressing array with linear probing,
+ * so that large sets don't cost an object per entry. Not thread safe.
+ */
+class LongHashSet {
+
+    // Marks an empty slot, the value 0 is kept aside in mHasZero
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mSlots;
+    private int mSize;
+    private boolean mHasZero;
+
+    LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected The number of values the set should hold without
+     *        growing.
+     */
+    LongHashSet(int expected) {
+        mSlots = new long[capacityFor(expected)];
+    }
+
+    // Keeps the table at most half full
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long value) {
+        int mask = mSlots.length - 1;
+        int i = mix(value) & mask;
+        while (mSlots[i] != EMPTY && mSlots[i] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean contains(long value) {
+        if (value == EMPTY) {
+            return mHasZero;
+        }
+        return mSlots[indexOf(value)] == value;
+    }
+
+    /**
+     * @return true if the value wasn't in the set yet.
+     */
+    boolean add(long value) {
+        if (value == EMPTY) {
+            if (mHasZero) {
+                return false;
+            }
+            mHasZero = true;
+            mSize++;
+            return true;
+        }
+        int i = indexOf(value);
+        if (mSlots[i] == value) {
+            return false;
+        }
+        mSlots[i] = value;
+        mSize++;
+        if (mSize * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value was in the set.
+     */
+    boolean remove(long value) {
+        if (value == EMPTY) {
+            if (!mHasZero) {
+                return false;
+            }
+            mHasZero = false;
+            mSize--;
+            return true;
+        }
+        int i = indexOf(value);
+        if (mSlots[i] != value) {
+            return false;
+        }
+        mSlots[i] = EMPTY;
+        mSize--;
+        // Move back the values that probed past the removed one
+        int mask = mSlots.length - 1;
+        int j = (i + 1) & mask;
+        while (mSlots[j] != EMPTY) {
+            long moved = mSlots[j];
+            mSlots[j] = EMPTY;
+            mSlots[indexOf(moved)] = moved;
+            j = (j + 1) & mask;
+        }
+        return true;
+    }
+
+    void clear() {
+        mSlots = new long[MIN_CAPACITY];
+        mSize = 0;
+        mHasZero = false;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = mSlots;
+        mSlots = new long[capacity];
+        for (long value : old) {
+            if (value != EMPTY) {
+                mSlots[indexOf(value)] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Predicts the next page from the navigations seen so far, and preloads it
+ * through the {@link Preloader} when the prediction is likely enough. The
+ * preloaded tab is shown when its url is then loaded in the current tab,
+ * see {@link #takePredictedTab}.
+ *
+ * Two models are kept: the pages followed from each page, learned as tabs
+ * navigate and kept across restarts, and the most visited history urls,
+ * which complete what is typed in the url bar. Navigations in incognito
+ * tabs are neither learned nor predicted from, and pages deleted from the
+ * history are forgotten.
+ *
+ * Only used on the UI thread.
+ */
+public class NavigationPredictor {
+
+    private static final String LOGTAG = "NavigationPredictor";
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
+
+    // Preload session ids, one per model, so a new prediction replaces the
+    // previous one of its model
+    static final String PRELOAD_ID_PAGE = "navigation_predictor_page";
+    static final String PRELOAD_ID_TYPED = "navigation_predictor_typed";
+
+    // A page is preloaded when it followed the current page at least
+    // MIN_CONFIDENCE of MIN_SAMPLES or more times
+    static final float MIN_CONFIDENCE = 0.5f;
+    static final int MIN_SAMPLES = 3;
+    // Typed text is completed from the history once it is this long
+    static final int MIN_TYPED_LENGTH = 2;
+    // A preload not navigated to in this time was wasted
+    static final long PREDICTION_TIMEOUT = 30 * 1000;
+
+    // Bounds of the page model
+    private static final int MAX_PAGES = 256;
+    private static final int MAX_NEXT_PAGES = 8;
+    private static final int MAX_URL_LENGTH = 2048;
+    // Bounds of the typed model
+    private static final int MAX_HISTORY_URLS = 500;
+    private static final long HISTORY_MAX_AGE = 10 * 60 * 1000;
+
+    private static final String MODEL_FILE = "navigation_model";
+    private static final int MODEL_VERSION = 1;
+    // Delay before history deletions are looked for after a change
+    private static final long DELETE_CHECK_DELAY = 2000;
+    // Navigations between two logs of the metrics
+    private static final int LOG_INTERVAL = 50;
+
+    private static NavigationPredictor sInstance;
+
+    private static class HistoryUrl {
+        final String key;
+        final String url;
+        final int visits;
+
+        HistoryUrl(String key, String url, int visits) {
+            this.key = key;
+            this.url = url;
+            this.visits = visits;
+        }
+    }
+
+    private static class Prediction {
+        final String url;
+        final long time;
+
+        Prediction(String url, long time) {
+            this.url = url;
+            this.time = time;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Number of times each page followed a page, least recently used page first
+    private final LinkedHashMap<String, HashMap<String, Integer>> mPages =
+            new LinkedHashMap<String, HashMap<String, Integer>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, Integer>> e) {
+            return size() > MAX_PAGES;
+        }
+    };
+    // Last page of each tab
+    private final WeakHashMap<Object, String> mLastUrls = new WeakHashMap<Object, String>();
+    // Preloads not navigated to yet, by session id
+    private final HashMap<String, Prediction> mPredictions = new HashMap<String, Prediction>();
+    private ArrayList<HistoryUrl> mHistoryUrls = new ArrayList<HistoryUrl>();
+    private long mHistoryLoadTime = -HISTORY_MAX_AGE;
+    private boolean mHistoryLoading;
+    private boolean mModelChanged;
+    // The last entry of the provider's log of deletions the model was
+    // checked against, -1 before the first check
+    private long mLastDeletion = -1;
+    private boolean mCheckingDeletes;
+    // Changed when the model is cleared, so that the writes and reads
+    // started before are dropped. Guarded by this.
+    private int mModelGeneration;
+
+    private final Runnable mCheckDeletes = new Runnable() {
+        @Override
+        public void run() {
+            checkDeletes();
+        }
+    };
+
+    // Metrics
+    private int mNavigationCount;
+    private int mPredictionCount;
+    private int mHitCount;
+    private int mWastedCount;
+    private int mNotAllowedCount;
+
+    public static void initialize(Context context) {
+        sInstance = new NavigationPredictor(context);
+    }
+
+    public static NavigationPredictor getInstance() {
+        return sInstance;
+    }
+
+    private NavigationPredictor(Context context) {
+        mContext = context.getApplicationContext();
+        mContext.getContentResolver().registerContentObserver(History.CONTENT_URI, true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mHandler.removeCallbacks(mCheckDeletes);
+                        mHandler.postDelayed(mCheckDeletes, DELETE_CHECK_DELAY);
+                    }
+                });
+        final int generation = getModelGeneration();
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final LinkedHashMap<String, HashMap<String, Integer>> pages = readModel();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != getModelGeneration()) {
+                            // Cleared meanwhile
+                            return;
+                        }
+                        // Whatever was learned meanwhile is more recent
+                        for (Map.Entry<String, HashMap<String, Integer>> e : pages.entrySet()) {
+                            if (!mPages.containsKey(e.getKey())) {
+                                mPages.put(e.getKey(), e.getValue());
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The url without its fragment, or null if it isn't a web page.
+     */
+    static String normalizeUrl(String url) {
+        if (url == null || url.length() > MAX_URL_LENGTH
+                || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return null;
+        }
+        int fragment = url.indexOf('#');
+        return fragment < 0 ? url : url.substring(0, fragment);
+    }
+
+    /**
+     * @return The url as typed in the url bar: lowercase, without the scheme
+     *         and without "www.".
+     */
+    static String getTypedKey(String text) {
+        String key = text.trim().toLowerCase(Locale.US);
+        if (key.startsWith("http://")) {
+            key = key.substring("http://".length());
+        } else if (key.startsWith("https://")) {
+            key = key.substring("https://".length());
+        }
+        if (key.startsWith("www.")) {
+            key = key.substring("www.".length());
+        }
+        return key;
+    }
+
+    /**
+     * Learns the navigation from the previous page of the tab, and preloads
+     * the likely next page.
+     */
+    void onPageStarted(Tab tab, String url) {
+        if (!tab.isPrivateBrowsingEnabled()) {
+            onNavigation(tab, url);
+        }
+    }
+
+    void onNavigation(Object tab, String url) {
+        url = normalizeUrl(url);
+        if (url == null) {
+            return;
+        }
+        String previous = mLastUrls.put(tab, url);
+        if (url.equals(previous)) {
+            // Reloaded
+            return;
+        }
+        onNavigation(previous, url);
+    }
+
+    private void onNavigation(String previous, String url) {
+        mNavigationCount++;
+        checkPredictions(url);
+        if (previous != null) {
+            learn(previous, url);
+        }
+        String next = getLikelyNextPage(url);
+        if (next != null) {
+            preload(PRELOAD_ID_PAGE, next);
+        }
+        if (LOGD_ENABLED && mNavigationCount % LOG_INTERVAL == 0) {
+            Log.d(LOGTAG, "Navigations: " + mNavigationCount + ", preloads: "
+                    + mPredictionCount + ", hits: " + mHitCount + ", wasted: " + mWastedCount
+                    + ", not allowed: " + mNotAllowedCount + ", precision: " + getPrecision()
+                    + ", recall: " + getRecall());
+        }
+    }
+
+    /**
+     * Preloads the most visited history url completing the typed text, if
+     * it is the likely one.
+     */
+    void onTyped(String text) {
+        String key = getTypedKey(text);
+        if (key.length() < MIN_TYPED_LENGTH) {
+            return;
+        }
+        if (SystemClock.uptimeMillis() - mHistoryLoadTime > HISTORY_MAX_AGE) {
+            loadHistory();
+        }
+        String best = null;
+        int bestVisits = 0;
+        int total = 0;
+        for (HistoryUrl h : mHistoryUrls) {
+            if (h.key.startsWith(key)) {
+                total += h.visits;
+                if (h.visits > bestVisits) {
+                    best = h.url;
+                    bestVisits = h.visits;
+                }
+            }
+        }
+        if (bestVisits >= MIN_SAMPLES && bestVisits >= total * MIN_CONFIDENCE) {
+            preload(PRELOAD_ID_TYPED, best);
+        }
+    }
+
+    private void learn(String from, String to) {
+        HashMap<String, Integer> next = mPages.get(from);
+        if (next == null) {
+            next = new HashMap<String, Integer>();
+            mPages.put(from, next);
+        }
+        Integer count = next.get(to);
+        next.put(to, count == null ? 1 : count + 1);
+        if (next.size() > MAX_NEXT_PAGES) {
+            // Forget the least followed page
+            String least = null;
+            int leastCount = Integer.MAX_VALUE;
+            for (Map.Entry<String, Integer> e : next.entrySet()) {
+                if (!e.getKey().equals(to) && e.getValue() < leastCount) {
+                    least = e.getKey();
+                    leastCount = e.getValue();
+                }
+            }
+            next.remove(least);
+        }
+        mModelChanged = true;
+    }
+
+    /**
+     * @return The page likely to follow the url, or null.
+     */
+    String getLikelyNextPage(String url) {
+        HashMap<String, Integer> next = mPages.get(url);
+        if (next == null) {
+            return null;
+        }
+        String best = null;
+        int bestCount = 0;
+        int total = 0;
+        for (Map.Entry<String, Integer> e : next.entrySet()) {
+            total += e.getValue();
+            if (e.getValue() > bestCount) {
+                best = e.getKey();
+                bestCount = e.getValue();
+            }
+        }
+        if (total >= MIN_SAMPLES && bestCount >= total * MIN_CONFIDENCE) {
+            return best;
+        }
+        return null;
+    }
+
+    private void preload(String id, String url) {
+        Prediction current = mPredictions.get(id);
+        if (current != null && current.url.equals(url)) {
+            return;
+        }
+        Preloader preloader = Preloader.getInstance();
+        if (preloader == null || !BrowserSettings.getInstance().isPreloadAllowed()) {
+            mNotAllowedCount++;
+            return;
+        }
+        if (current != null) {
+            // Replaced before it was navigated to
+            mWastedCount++;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Preloading " + url);
+        mPredictions.put(id, new Prediction(url, SystemClock.uptimeMillis()));
+        mPredictionCount++;
+        preloader.handlePreloadRequest(id, url, null, null, Preloader.PRIORITY_LOW);
+    }
+
+    /**
+     * Takes the tab preloaded for the url, if any, to be shown in place of
+     * loading the url in the given tab. The navigation is learned as if
+     * that tab made it.
+     * @return The preloaded tab, or null.
+     */
+    PreloadedTabControl takePredictedTab(Object tab, String url) {
+        String normalized = normalizeUrl(url);
+        if (normalized == null || !normalized.equals(url)) {
+            // The preload has no fragment to scroll to
+            return null;
+        }
+        String id = null;
+        for (Map.Entry<String, Prediction> e : mPredictions.entrySet()) {
+            if (e.getValue().url.equals(url)) {
+                id = e.getKey();
+                break;
+            }
+        }
+        if (id == null) {
+            return null;
+        }
+        mPredictions.remove(id);
+        PreloadedTabControl preloaded = Preloader.getInstance().getPreloadedTab(id);
+        if (preloaded == null) {
+            // Evicted or expired
+            mWastedCount++;
+            return null;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Showing preloaded " + url);
+        mHitCount++;
+        String previous = tab != null ? mLastUrls.get(tab) : null;
+        mLastUrls.put(preloaded.getTab(), url);
+        onNavigation(previous, url);
+        return preloaded;
+    }
+
+    /**
+     * Drops the preloads of the url, loaded again rather than shown, and
+     * the expired ones. Both were wasted.
+     */
+    private void checkPredictions(String url) {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Map.Entry<String, Prediction>> i = mPredictions.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Prediction> e = i.next();
+            Prediction p = e.getValue();
+            if (p.url.equals(url) || now - p.time > PREDICTION_TIMEOUT) {
+                mWastedCount++;
+                i.remove();
+                if (p.url.equals(url)) {
+                    Preloader.getInstance().discardPreload(e.getKey());
+                }
+            }
+        }
+    }
+
+    private void loadHistory() {
+        if (mHistoryLoading) {
+            return;
+        }
+        mHistoryLoading = true;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<HistoryUrl> urls = queryHistory();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mHistoryUrls = urls;
+                        mHistoryLoadTime = SystemClock.uptimeMillis();
+                        mHistoryLoading = false;
+                    }
+                });
+            }
+        });
+    }
+
+    private ArrayList<HistoryUrl> queryHistory() {
+        ArrayList<HistoryUrl> urls = new ArrayList<HistoryUrl>();
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(
+                    History.CONTENT_URI.buildUpon().appendQueryParameter(
+                            BrowserContract.PARAM_LIMIT, Integer.toString(MAX_HISTORY_URLS))
+                            .build(),
+                    new String[] { History.URL, History.VISITS },
+                    History.VISITS + " > 0", null, History.VISITS + " DESC");
+            while (c != null && c.moveToNext()) {
+                String url = normalizeUrl(c.getString(0));
+                if (url != null) {
+                    urls.add(new HistoryUrl(getTypedKey(url), url, c.getInt(1)));
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "Failed to query history", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Forgets everything learned, along with the predictions, and deletes
+     * the saved model. Called when the history is cleared, from any thread.
+     */
+    void onHistoryCleared() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPages.clear();
+                mLastUrls.clear();
+                mHistoryUrls = new ArrayList<HistoryUrl>();
+                mHistoryLoadTime = -HISTORY_MAX_AGE;
+                mModelChanged = false;
+                for (String id : mPredictions.keySet()) {
+                    Preloader.getInstance().discardPreload(id);
+                }
+                mPredictions.clear();
+                synchronized (NavigationPredictor.this) {
+                    mModelGeneration++;
+                }
+                BackgroundHandler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteModel();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forgets the navigations from and to the pages deleted from the
+     * history since the last check, read from the provider's log of
+     * deletions. The first check, or one the log no longer reaches back
+     * to, compares the whole model with the history instead.
+     */
+    private void checkDeletes() {
+        if (mCheckingDeletes || mPages.isEmpty()) {
+            return;
+        }
+        mCheckingDeletes = true;
+        final long lastDeletion = mLastDeletion;
+        final HashSet<String> urls = new HashSet<String>();
+        if (lastDeletion < 0) {
+            for (Map.Entry<String, HashMap<String, Integer>> e : mPages.entrySet()) {
+                urls.add(e.getKey());
+                urls.addAll(e.getValue().keySet());
+            }
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentResolver cr = mContext.getContentResolver();
+                final HashSet<String> deleted = new HashSet<String>();
+                long checked;
+                boolean behind = false;
+                if (lastDeletion < 0) {
+                    // Read first, deletions during the query are replayed
+                    // by the next check
+                    checked = HistoryDeletions.queryLastId(cr);
+                    deleted.addAll(urls);
+                    if (!removeHistoryPages(cr, deleted)) {
+                        // Keeps the model until the next check
+                        deleted.clear();
+                        checked = -1;
+                    }
+                } else {
+                    HistoryDeletions deletions = HistoryDeletions.query(cr, lastDeletion);
+                    checked = deletions.complete ? deletions.lastId : -1;
+                    behind = !deletions.complete;
+                    for (String url : deletions.urls) {
+                        // Pages are learned without their fragment. The page
+                        // is forgotten even if history still has it with
+                        // another one.
+                        String page = normalizeUrl(url);
+                        if (page != null) {
+                            deleted.add(page);
+                        }
+                    }
+                }
+                final long lastChecked = checked;
+                final boolean compareNext = behind;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCheckingDeletes = false;
+                        mLastDeletion = lastChecked;
+                        if (compareNext) {
+                            // Compares the whole model instead
+                            mHandler.removeCallbacks(mCheckDeletes);
+                            mHandler.postDelayed(mCheckDeletes, DELETE_CHECK_DELAY);
+                        }
+                        if (!deleted.isEmpty()) {
+                            // The typed model is queried again too
+                            mHistoryLoadTime = -HISTORY_MAX_AGE;
+                        }
+                        forget(deleted);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Removes the pages of the history from pages, compared without their
+     * fragment.
+     * @return false if the history couldn't be read.
+     */
+    private boolean removeHistoryPages(ContentResolver cr, HashSet<String> pages) {
+        Cursor c = null;
+        try {
+            c = cr.query(History.CONTENT_URI, new String[] { History.URL },
+                    null, null, null);
+            while (c != null && c.moveToNext()) {
+                pages.remove(normalizeUrl(c.getString(0)));
+            }
+            return c != null;
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "Failed to query history", e);
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void forget(HashSet<String> urls) {
+        if (urls.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, HashMap<String, Integer>>> i = mPages.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, HashMap<String, Integer>> e = i.next();
+            e.getValue().keySet().removeAll(urls);
+            if (urls.contains(e.getKey()) || e.getValue().isEmpty()) {
+                i.remove();
+            }
+        }
+        mLastUrls.values().removeAll(urls);
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Forgot " + urls.size() + " deleted pages");
+        // Not kept on disk any longer than in the history
+        mModelChanged = true;
+        save();
+    }
+
+    /**
+     * Writes the page model in the background, if it changed.
+     */
+    void save() {
+        if (!mModelChanged) {
+            return;
+        }
+        mModelChanged = false;
+        final int generation = getModelGeneration();
+        final LinkedHashMap<String, HashMap<String, Integer>> pages =
+                new LinkedHashMap<String, HashMap<String, Integer>>();
+        for (Map.Entry<String, HashMap<String, Integer>> e : mPages.entrySet()) {
+            pages.put(e.getKey(), new HashMap<String, Integer>(e.getValue()));
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeModel(pages, generation);
+            }
+        });
+    }
+
+    private File getModelFile() {
+        return new File(mContext.getFilesDir(), MODEL_FILE);
+    }
+
+    private synchronized int getModelGeneration() {
+        return mModelGeneration;
+    }
+
+    private synchronized void deleteModel() {
+        File file = getModelFile();
+        if (file.exists() && !file.delete()) {
+            Log.w(LOGTAG, "Failed to delete " + file);
+        }
+    }
+
+    private synchronized void writeModel(Map<String, HashMap<String, Integer>> pages,
+            int generation) {
+        if (generation != mModelGeneration) {
+            // Cleared since
+            return;
+        }
+        File file = getModelFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MODEL_VERSION);
+            out.writeInt(pages.size());
+            for (Map.Entry<String, HashMap<String, Integer>> page : pages.entrySet()) {
+                out.writeUTF(page.getKey());
+                out.writeInt(page.getValue().size());
+                for (Map.Entry<String, Integer> next : page.getValue().entrySet()) {
+                    out.writeUTF(next.getKey());
+                    out.writeInt(next.getValue());
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(LOGTAG, "Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to write the navigation model", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+                tmp.delete();
+            }
+        }
+    }
+
+    private synchronized LinkedHashMap<String, HashMap<String, Integer>> readModel() {
+        LinkedHashMap<String, HashMap<String, Integer>> pages =
+                new LinkedHashMap<String, HashMap<String, Integer>>();
+        File file = getModelFile();
+        if (!file.exists()) {
+            return pages;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MODEL_VERSION) {
+                return pages;
+            }
+            int pageCount = in.readInt();
+            for (int i = 0; i < pageCount; i++) {
+                String url = in.readUTF();
+                int nextCount = in.readInt();
+                HashMap<String, Integer> next = new HashMap<String, Integer>();
+                for (int j = 0; j < nextCount; j++) {
+                    String nextUrl = in.readUTF();
+                    next.put(nextUrl, in.readInt());
+                }
+                pages.put(url, next);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read the navigation model", e);
+            pages.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+        return pages;
+    }
+
+    /** Navigations learned from */
+    int getNavigationCount() {
+        return mNavigationCount;
+    }
+
+    /** Pages preloaded */
+    int getPredictionCount() {
+        return mPredictionCount;
+    }
+
+    /** Preloaded pages that were shown */
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Preloaded pages replaced, timed out or loaded again before they were
+     * shown, each one a page load of wasted bandwidth
+     */
+    int getWastedCount() {
+        return mWastedCount;
+    }
+
+    /** Likely pages not preloaded because of the settings or connection */
+    int getNotAllowedCount() {
+        return mNotAllowedCount;
+    }
+
+    /** Share of the preloads that were shown */
+    float getPrecision() {
+        return mPredictionCount == 0 ? 0 : mHitCount / (float) mPredictionCount;
+    }
+
+    /** Share of the navigations that were preloaded */
+    float getRecall() {
+        return mNavigationCount == 0 ? 0 : mHitCount / (float) mNavigationCount;
+    }
+}
@@ -16,14 +16,37 @@
 
 package com.android.browser;
 
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.WebAddress;
+import android.os.Build;
 import android.os.Debug;
 import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.WeakHashMap;
+
 /**
  * Performance analysis
+ *
+ * Besides the method tracing, every page load of a tab that isn't incognito
+ * gets a {@link PageLoadTrace} with the time of each step of the load and the CPU
+ * it used. The last {@link #MAX_TRACES} loads are kept, to be exported as
+ * JSON or in the Chrome trace event format. All of it is only used on the
+ * UI thread.
  */
 public class Performance {
 
@@ -32,28 +55,186 @@ public class Performance {
     private final static boolean LOGD_ENABLED =
             com.android.browser.Browser.LOGD_ENABLED;
 
+    static final int MAX_TRACES = 100;
+
+    // The steps of a page load, in the order they usually happen
+    static final int EVENT_FIRST_PROGRESS = 0;
+    static final int EVENT_TITLE = 1;
+    static final int EVENT_FAVICON = 2;
+    static final int EVENT_THUMBNAIL = 3;
+    static final int EVENT_FINISHED = 4;
+    static final int EVENT_COUNT = 5;
+
+    private static final String[] EVENT_NAMES = new String[] {
+            "first_progress", "title", "favicon", "thumbnail", "finished" };
+
+    static final String JSON_FILE = "page_load_traces.json";
+    static final String CHROME_TRACE_FILE = "page_load_traces_chrome.json";
+
     private static boolean mInTrace;
 
-    // Performance probe
-    private static final int[] SYSTEM_CPU_FORMAT = new int[] {
-            Process.PROC_SPACE_TERM | Process.PROC_COMBINE,
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 1: user time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 2: nice time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 3: sys time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 4: idle time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 5: iowait time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 6: irq time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG  // 7: softirq time
-    };
-
-    private static long mStart;
-    private static long mProcessStart;
-    private static long mUserStart;
-    private static long mSystemStart;
-    private static long mIdleStart;
-    private static long mIrqStart;
-
-    private static long mUiStart;
+    // The trace of the current load of each tab. It stays here after the
+    // page finished, as the thumbnail is usually captured after that.
+    private static final WeakHashMap<Object, PageLoadTrace> sLoads =
+            new WeakHashMap<Object, PageLoadTrace>();
+    private static final ArrayDeque<PageLoadTrace> sTraces =
+            new ArrayDeque<PageLoadTrace>(MAX_TRACES);
+    private static int sDroppedCount;
+
+    /**
+     * The timing of a single page load. Event times are ms since the
+     * navigation started, or -1 if the event didn't happen. The UI thread
+     * CPU includes anything else the UI thread did meanwhile, such as
+     * other tabs loading at the same time.
+     */
+    static class PageLoadTrace {
+        final long mTabId;
+        final String mUrl;
+        // Wall clock time of the start, to match traces with other logs
+        final long mStartTime;
+        // Uptime of the start, the timebase of the events
+        final long mStart;
+        private final long mUiCpuStart;
+        private final long mProcessCpuStart;
+        private final long[] mEvents = new long[EVENT_COUNT];
+        private long mUiCpu = -1;
+        private long mProcessCpu = -1;
+        private boolean mAborted;
+
+        PageLoadTrace(long tabId, String url) {
+            mTabId = tabId;
+            mUrl = url;
+            mStartTime = System.currentTimeMillis();
+            mStart = SystemClock.uptimeMillis();
+            mUiCpuStart = SystemClock.currentThreadTimeMillis();
+            mProcessCpuStart = Process.getElapsedCpuTime();
+            Arrays.fill(mEvents, -1);
+        }
+
+        /**
+         * Records the first time the event happens.
+         * @return Whether it is the first time.
+         */
+        boolean record(int event) {
+            if (mEvents[event] >= 0) {
+                return false;
+            }
+            mEvents[event] = SystemClock.uptimeMillis() - mStart;
+            return true;
+        }
+
+        void finish() {
+            record(EVENT_FINISHED);
+            mUiCpu = SystemClock.currentThreadTimeMillis() - mUiCpuStart;
+            mProcessCpu = Process.getElapsedCpuTime() - mProcessCpuStart;
+        }
+
+        void abort() {
+            mAborted = true;
+            mUiCpu = SystemClock.currentThreadTimeMillis() - mUiCpuStart;
+            mProcessCpu = Process.getElapsedCpuTime() - mProcessCpuStart;
+        }
+
+        boolean isDone() {
+            return mAborted || mEvents[EVENT_FINISHED] >= 0;
+        }
+
+        boolean isAborted() {
+            return mAborted;
+        }
+
+        long getEventTime(int event) {
+            return mEvents[event];
+        }
+
+        /**
+         * @return The ms from the start until the page finished or another
+         *         load replaced it, or -1 if neither happened yet.
+         */
+        long getDuration() {
+            if (mEvents[EVENT_FINISHED] >= 0) {
+                return mEvents[EVENT_FINISHED];
+            }
+            long duration = -1;
+            if (mAborted) {
+                for (long time : mEvents) {
+                    duration = Math.max(duration, time);
+                }
+            }
+            return duration;
+        }
+
+        long getUiCpu() {
+            return mUiCpu;
+        }
+
+        long getProcessCpu() {
+            return mProcessCpu;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject trace = new JSONObject();
+            trace.put("tab_id", mTabId);
+            trace.put("url", mUrl);
+            trace.put("start_time", mStartTime);
+            JSONObject events = new JSONObject();
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                if (mEvents[i] >= 0) {
+                    events.put(EVENT_NAMES[i], mEvents[i]);
+                }
+            }
+            trace.put("events", events);
+            trace.put("ui_cpu_ms", mUiCpu);
+            trace.put("process_cpu_ms", mProcessCpu);
+            trace.put("aborted", mAborted);
+            return trace;
+        }
+
+        /**
+         * Adds the load as a complete event on the row of its tab, with an
+         * instant event for each step.
+         */
+        void addChromeEvents(JSONArray traceEvents, int pid) throws JSONException {
+            long ts = mStart * 1000;
+            JSONObject args = new JSONObject();
+            args.put("url", mUrl);
+            args.put("ui_cpu_ms", mUiCpu);
+            args.put("process_cpu_ms", mProcessCpu);
+            args.put("aborted", mAborted);
+            traceEvents.put(chromeEvent("page_load", "X", pid, ts)
+                    .put("dur", Math.max(getDuration(), 0) * 1000)
+                    .put("args", args));
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                if (mEvents[i] >= 0) {
+                    traceEvents.put(chromeEvent(EVENT_NAMES[i], "i", pid,
+                            ts + mEvents[i] * 1000).put("s", "t"));
+                }
+            }
+        }
+
+        private JSONObject chromeEvent(String name, String phase, int pid, long ts)
+                throws JSONException {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("cat", "page_load")
+                    .put("ph", phase)
+                    .put("pid", pid)
+                    .put("tid", mTabId)
+                    .put("ts", ts);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("tab ").append(mTabId);
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                sb.append(", ").append(EVENT_NAMES[i]).append(' ').append(mEvents[i]);
+            }
+            sb.append(", ui cpu ").append(mUiCpu)
+                    .append(", process cpu ").append(mProcessCpu)
+                    .append(mAborted ? ", aborted: " : ": ").append(mUrl);
+            return sb.toString();
+        }
+    }
 
     static void tracePageStart(String url) {
         if (BrowserSettings.getInstance().isTracing()) {
@@ -78,54 +259,192 @@ public class Performance {
         }
     }
 
-    static void onPageStarted() {
-        mStart = SystemClock.uptimeMillis();
-        mProcessStart = Process.getElapsedCpuTime();
-        long[] sysCpu = new long[7];
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT, null, sysCpu, null)) {
-            mUserStart = sysCpu[0] + sysCpu[1];
-            mSystemStart = sysCpu[2];
-            mIdleStart = sysCpu[3];
-            mIrqStart = sysCpu[4] + sysCpu[5] + sysCpu[6];
+    static void onPageStarted(Tab tab, String url) {
+        if (tab.isPrivateBrowsingEnabled()) {
+            // Incognito urls are neither kept nor exported
+            sLoads.remove(tab);
+            return;
+        }
+        onPageStarted(tab, tab.getId(), url);
+    }
+
+    static void onProgressChanged(Tab tab) {
+        // The progress is set to its initial value when the load starts,
+        // before the WebView reports any
+        if (tab.getLoadProgress() > Tab.INITIAL_PROGRESS) {
+            onEvent(tab, EVENT_FIRST_PROGRESS);
+        }
+    }
+
+    static void onReceivedTitle(Tab tab) {
+        onEvent(tab, EVENT_TITLE);
+    }
+
+    static void onFavicon(Tab tab) {
+        onEvent(tab, EVENT_FAVICON);
+    }
+
+    static void onThumbnailCaptured(Tab tab) {
+        onEvent(tab, EVENT_THUMBNAIL);
+    }
+
+    static void onPageFinished(Tab tab) {
+        onEvent(tab, EVENT_FINISHED);
+    }
+
+    /**
+     * Starts the trace of a new load of the tab. A load of the tab which
+     * didn't finish yet is recorded as aborted.
+     * @param tab The tab, or anything standing in for it.
+     */
+    static void onPageStarted(Object tab, long tabId, String url) {
+        PageLoadTrace previous = sLoads.get(tab);
+        if (previous != null && !previous.isDone()) {
+            previous.abort();
+            add(previous);
         }
-        mUiStart = SystemClock.currentThreadTimeMillis();
+        sLoads.put(tab, new PageLoadTrace(tabId, url));
     }
 
-    static void onPageFinished(String url) {
-        long[] sysCpu = new long[7];
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT, null, sysCpu, null)) {
-            String uiInfo =
-                    "UI thread used " + (SystemClock.currentThreadTimeMillis() - mUiStart) + " ms";
-            if (LOGD_ENABLED) {
-                Log.d(LOGTAG, uiInfo);
+    /**
+     * Records the event for the current load of the tab. The load is done
+     * once it finished, and only the thumbnail is recorded after that.
+     */
+    static void onEvent(Object tab, int event) {
+        PageLoadTrace trace = sLoads.get(tab);
+        if (trace == null) {
+            return;
+        }
+        if (event == EVENT_FINISHED) {
+            if (!trace.isDone()) {
+                trace.finish();
+                add(trace);
             }
-            // The string that gets written to the log
-            String performanceString =
-                    "It took total " + (SystemClock.uptimeMillis() - mStart)
-                            + " ms clock time to load the page." + "\nbrowser process used "
-                            + (Process.getElapsedCpuTime() - mProcessStart)
-                            + " ms, user processes used " + (sysCpu[0] + sysCpu[1] - mUserStart)
-                            * 10 + " ms, kernel used " + (sysCpu[2] - mSystemStart) * 10
-                            + " ms, idle took " + (sysCpu[3] - mIdleStart) * 10
-                            + " ms and irq took " + (sysCpu[4] + sysCpu[5] + sysCpu[6] - mIrqStart)
-                            * 10 + " ms, " + uiInfo;
-            if (LOGD_ENABLED) {
-                Log.d(LOGTAG, performanceString + "\nWebpage: " + url);
+        } else if (!trace.isDone() || event == EVENT_THUMBNAIL) {
+            trace.record(event);
+        }
+    }
+
+    private static void add(PageLoadTrace trace) {
+        if (sTraces.size() >= MAX_TRACES) {
+            sTraces.removeFirst();
+            sDroppedCount++;
+        }
+        sTraces.addLast(trace);
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "Page load: " + trace);
+        }
+    }
+
+    /**
+     * @return The recorded loads, oldest first.
+     */
+    static List<PageLoadTrace> getTraces() {
+        return new ArrayList<PageLoadTrace>(sTraces);
+    }
+
+    /**
+     * @return The number of loads dropped to make room for newer ones.
+     */
+    static int getDroppedCount() {
+        return sDroppedCount;
+    }
+
+    static void clearTraces() {
+        sTraces.clear();
+        sDroppedCount = 0;
+    }
+
+    /**
+     * @return The recorded loads, along with the build they were recorded
+     *         on, to compare loads across builds.
+     */
+    static JSONObject toJson(Context context) throws JSONException {
+        JSONObject json = new JSONObject();
+        try {
+            PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            json.put("version_name", info.versionName);
+            json.put("version_code", info.versionCode);
+        } catch (NameNotFoundException e) {
+            // Our own package, can't happen
+        }
+        json.put("build", Build.FINGERPRINT);
+        json.put("device", Build.MODEL);
+        json.put("dropped", sDroppedCount);
+        JSONArray traces = new JSONArray();
+        for (PageLoadTrace trace : sTraces) {
+            traces.put(trace.toJson());
+        }
+        json.put("traces", traces);
+        return json;
+    }
+
+    /**
+     * @return The recorded loads in the Chrome trace event format, with a
+     *         row per tab, as loaded by chrome://tracing.
+     */
+    static JSONObject toChromeTrace() throws JSONException {
+        int pid = Process.myPid();
+        JSONArray traceEvents = new JSONArray();
+        List<Long> tabIds = new ArrayList<Long>();
+        for (PageLoadTrace trace : sTraces) {
+            if (!tabIds.contains(trace.mTabId)) {
+                tabIds.add(trace.mTabId);
+                JSONObject args = new JSONObject().put("name", "Tab " + trace.mTabId);
+                traceEvents.put(new JSONObject()
+                        .put("name", "thread_name")
+                        .put("ph", "M")
+                        .put("pid", pid)
+                        .put("tid", trace.mTabId)
+                        .put("args", args));
             }
-            if (url != null) {
-                // strip the url to maintain consistency
-                String newUrl = new String(url);
-                if (newUrl.startsWith("http://www.")) {
-                    newUrl = newUrl.substring(11);
-                } else if (newUrl.startsWith("http://")) {
-                    newUrl = newUrl.substring(7);
-                } else if (newUrl.startsWith("https://www.")) {
-                    newUrl = newUrl.substring(12);
-                } else if (newUrl.startsWith("https://")) {
-                    newUrl = newUrl.substring(8);
-                }
-                if (LOGD_ENABLED) {
-                    Log.d(LOGTAG, newUrl + " loaded");
+            trace.addChromeEvents(traceEvents, pid);
+        }
+        JSONObject json = new JSONObject();
+        json.put("traceEvents", traceEvents);
+        json.put("displayTimeUnit", "ms");
+        return json;
+    }
+
+    /**
+     * Writes {@link #JSON_FILE} and {@link #CHROME_TRACE_FILE} to the
+     * directory. The exports are made on the calling thread, and the files
+     * written in the background.
+     */
+    public static void exportTraces(Context context, final File dir) {
+        final String json;
+        final String chromeTrace;
+        try {
+            json = toJson(context).toString();
+            chromeTrace = toChromeTrace().toString();
+        } catch (JSONException e) {
+            Log.e(LOGTAG, "Failed to export page load traces", e);
+            return;
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                dir.mkdirs();
+                write(new File(dir, JSON_FILE), json);
+                write(new File(dir, CHROME_TRACE_FILE), chromeTrace);
+            }
+        });
+    }
+
+    private static void write(File file, String data) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
                 }
             }
         }
@@ -77,6 +77,7 @@ public interface PreferenceKeys {
     static final String PREF_SMALL_SCREEN = "small_screen";
     static final String PREF_WIDE_VIEWPORT = "wide_viewport";
     static final String PREF_RESET_PRELOGIN = "reset_prelogin";
+    static final String PREF_EXPORT_PAGE_LOAD_TRACES = "export_page_load_traces";
 
     // ----------------------
     // Keys for lab_preferences.xml
@@ -119,4 +120,13 @@ public interface PreferenceKeys {
      * Key for whether or not the last run was paused.
      */
     static final String KEY_LAST_RUN_PAUSED = "last_paused";
+
+    // ----------------------
+    // Keys for data migrations
+    // ----------------------
+    /**
+     * Set once the thumbnails left in the database by older versions
+     * are deleted.
+     */
+    static final String KEY_LEGACY_THUMBNAILS_CLEARED = "legacy_thumbnails_cleared";
 }
@@ -41,6 +41,8 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
     static final String EXTRA_PRELOAD_DISCARD = "preload_discard";
     static final String EXTRA_SEARCHBOX_CANCEL = "searchbox_cancel";
     static final String EXTRA_SEARCHBOX_SETQUERY = "searchbox_query";
+    // One of the Preloader.PRIORITY_ values, normal if not given
+    static final String EXTRA_PRELOAD_PRIORITY = "preload_priority";
 
     private ConnectivityManager mConnectivityManager;
 
@@ -121,12 +123,16 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
                 }
             }
             String sbQuery = i.getStringExtra(EXTRA_SEARCHBOX_SETQUERY);
+            int priority = i.getIntExtra(EXTRA_PRELOAD_PRIORITY, Preloader.PRIORITY_NORMAL);
+            priority = Math.max(Preloader.PRIORITY_LOW,
+                    Math.min(Preloader.PRIORITY_HIGH, priority));
             if (url != null) {
                 if (LOGD_ENABLED){
                     Log.d(LOGTAG, "Preload request(" + id + ", " + url + ", " +
                             headers + ", " + sbQuery + ")");
                 }
-                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery);
+                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery,
+                        priority);
             }
         }
     }
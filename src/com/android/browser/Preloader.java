@@ -15,16 +15,29 @@
  */
 package com.android.browser;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.WebView;
 
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Singleton class for handling preload requests.
+ *
+ * Keeps a pool of preload sessions, so that requests from the search box
+ * and predicted navigations don't displace each other. The pool is bounded
+ * by a share of the memory class, and all the sessions share a budget of
+ * page loads. A request for a new session when the pool is full evicts the
+ * least recently used session of the lowest priority, if its own priority
+ * is no lower.
+ *
+ * Only used on the UI thread.
  */
 public class Preloader {
 
@@ -33,12 +46,41 @@ public class Preloader {
 
     private static final int PRERENDER_TIMEOUT_MILLIS = 30 * 1000; // 30s
 
+    // Priorities of the preload requests
+    static final int PRIORITY_LOW = -1; // predicted navigations
+    static final int PRIORITY_NORMAL = 0;
+    static final int PRIORITY_HIGH = 1;
+
+    static final int MAX_SESSIONS = 3;
+    // Rough memory taken by the WebView of a session, sessions may use up
+    // to 1/MEMORY_FRACTION of the memory class
+    private static final int SESSION_MEMORY_MB = 8;
+    private static final int MEMORY_FRACTION = 4;
+    // Page loads allowed to all the sessions over LOAD_WINDOW_MILLIS
+    static final int MAX_LOADS_PER_WINDOW = 30;
+    private static final long LOAD_WINDOW_MILLIS = 60 * 1000;
+    // Preloaded tabs asked for between two logs of the metrics
+    private static final int LOG_INTERVAL = 10;
+
     private static Preloader sInstance;
 
     private final Context mContext;
     private final Handler mHandler;
     private final BrowserWebViewFactory mFactory;
-    private volatile PreloaderSession mSession;
+    // In access order, least recently used first
+    private final LinkedHashMap<String, PreloaderSession> mSessions =
+            new LinkedHashMap<String, PreloaderSession>(MAX_SESSIONS, 0.75f, true);
+    private final ArrayDeque<Long> mLoadTimes = new ArrayDeque<Long>();
+    private int mMaxSessions;
+    private int mMaxLoads = MAX_LOADS_PER_WINDOW;
+
+    // Metrics
+    private int mHitCount;
+    private int mMissCount;
+    private int mRejectedCount;
+    private int mEvictedCount;
+    private int mExpiredCount;
+    private int mThrottledCount;
 
     public static void initialize(Context context) {
         sInstance = new Preloader(context);
@@ -51,53 +93,102 @@ public class Preloader {
     private Preloader(Context context) {
         mContext = context.getApplicationContext();
         mHandler = new Handler(Looper.getMainLooper());
-        mSession = null;
         mFactory = new BrowserWebViewFactory(context);
-
+        ActivityManager am = (ActivityManager) mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        int memorySessions = am.getMemoryClass() / MEMORY_FRACTION / SESSION_MEMORY_MB;
+        mMaxSessions = Math.max(1, Math.min(MAX_SESSIONS, memorySessions));
     }
 
-    private PreloaderSession getSession(String id) {
-        if (mSession == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
-            mSession = new PreloaderSession(id);
-            WebViewTimersControl.getInstance().onPrerenderStart(
-                    mSession.getWebView());
-            return mSession;
-        } else if (mSession.mId.equals(id)) {
+    private PreloaderSession getSession(String id, int priority) {
+        PreloaderSession s = mSessions.get(id);
+        if (s != null) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Returning existing preload session " + id);
-            return mSession;
+            s.mPriority = Math.max(s.mPriority, priority);
+            return s;
         }
-
-        if (LOGD_ENABLED) Log.d(LOGTAG, "Existing session in progress : " + mSession.mId +
-                " returning null.");
-        return null;
+        if (mSessions.size() >= mMaxSessions && !evictFor(priority)) {
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Preload sessions full, rejecting " + id);
+            mRejectedCount++;
+            return null;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
+        s = new PreloaderSession(id, priority);
+        mSessions.put(id, s);
+        WebViewTimersControl.getInstance().onPrerenderStart(s.getWebView());
+        return s;
     }
 
-    private PreloaderSession takeSession(String id) {
-        PreloaderSession s = null;
-        if (mSession != null && mSession.mId.equals(id)) {
-            s = mSession;
-            mSession = null;
+    /**
+     * Evicts the least recently used of the sessions with the lowest
+     * priority, unless that is above the given one.
+     * @return Whether a session was evicted.
+     */
+    private boolean evictFor(int priority) {
+        PreloaderSession victim = null;
+        // Least recently used first, so the first of the lowest priority wins
+        for (PreloaderSession s : mSessions.values()) {
+            if (victim == null || s.mPriority < victim.mPriority) {
+                victim = s;
+            }
+        }
+        if (victim == null || victim.mPriority > priority) {
+            return false;
         }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Evict preload session " + victim.mId);
+        mEvictedCount++;
+        discardPreload(victim.mId);
+        return true;
+    }
 
+    private PreloaderSession takeSession(String id) {
+        PreloaderSession s = mSessions.remove(id);
         if (s != null) {
             s.cancelTimeout();
         }
-
         return s;
     }
 
+    /**
+     * @return Whether the budget shared by all the sessions allows another
+     *         page load.
+     */
+    private boolean hasLoadBudget() {
+        long now = SystemClock.uptimeMillis();
+        while (!mLoadTimes.isEmpty() && mLoadTimes.peekFirst() <= now - LOAD_WINDOW_MILLIS) {
+            mLoadTimes.removeFirst();
+        }
+        if (mLoadTimes.size() >= mMaxLoads) {
+            mThrottledCount++;
+            return false;
+        }
+        return true;
+    }
+
     public void handlePreloadRequest(String id, String url, Map<String, String> headers,
-            String searchBoxQuery) {
-        PreloaderSession s = getSession(id);
+            String searchBoxQuery, int priority) {
+        // Checked before a session is evicted or created for the request
+        PreloaderSession s = mSessions.get(id);
+        boolean load = s == null || !url.equals(s.mUrl);
+        if (load && !hasLoadBudget()) {
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Preload budget used up, not loading " + url);
+            if (s != null) {
+                s.touch(); // reset timer
+            }
+            return;
+        }
+        s = getSession(id, priority);
         if (s == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Discarding preload request, existing"
-                    + " session in progress");
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Discarding preload request " + id);
             return;
         }
 
         s.touch(); // reset timer
         PreloadedTabControl tab = s.getTabControl();
+        if (load) {
+            mLoadTimes.addLast(SystemClock.uptimeMillis());
+        }
+        s.mUrl = url;
         if (searchBoxQuery != null) {
             tab.loadUrlIfChanged(url, headers);
             tab.setQuery(searchBoxQuery);
@@ -107,7 +198,7 @@ public class Preloader {
     }
 
     public void cancelSearchBoxPreload(String id) {
-        PreloaderSession s = getSession(id);
+        PreloaderSession s = mSessions.get(id);
         if (s != null) {
             s.touch(); // reset timer
             PreloadedTabControl tab = s.getTabControl();
@@ -119,7 +210,9 @@ public class Preloader {
         PreloaderSession s = takeSession(id);
         if (s != null) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Discard preload session " + id);
-            WebViewTimersControl.getInstance().onPrerenderDone(s == null ? null : s.getWebView());
+            if (mSessions.isEmpty()) {
+                WebViewTimersControl.getInstance().onPrerenderDone(s.getWebView());
+            }
             PreloadedTabControl t = s.getTabControl();
             t.destroy();
         } else {
@@ -127,6 +220,15 @@ public class Preloader {
         }
     }
 
+    /**
+     * Discards all the sessions.
+     */
+    void discardAll() {
+        for (String id : mSessions.keySet().toArray(new String[mSessions.size()])) {
+            discardPreload(id);
+        }
+    }
+
     /**
      * Return a preloaded tab, and remove it from the preloader. This is used when the
      * view is about to be displayed.
@@ -134,27 +236,98 @@ public class Preloader {
     public PreloadedTabControl getPreloadedTab(String id) {
         PreloaderSession s = takeSession(id);
         if (LOGD_ENABLED) Log.d(LOGTAG, "Showing preload session " + id + "=" + s);
+        if (s != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        if (LOGD_ENABLED && (mHitCount + mMissCount) % LOG_INTERVAL == 0) {
+            Log.d(LOGTAG, "Preloaded tabs: " + mHitCount + " hits, " + mMissCount
+                    + " misses; sessions rejected: " + mRejectedCount + ", evicted: "
+                    + mEvictedCount + ", expired: " + mExpiredCount
+                    + "; loads throttled: " + mThrottledCount);
+        }
         return s == null ? null : s.getTabControl();
     }
 
+    int getSessionCount() {
+        return mSessions.size();
+    }
+
+    boolean hasSession(String id) {
+        return mSessions.containsKey(id);
+    }
+
+    int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    void setMaxSessions(int maxSessions) {
+        mMaxSessions = maxSessions;
+    }
+
+    int getMaxLoads() {
+        return mMaxLoads;
+    }
+
+    /**
+     * Sets the page loads allowed over the load window, for tests.
+     */
+    void setMaxLoads(int maxLoads) {
+        mMaxLoads = maxLoads;
+    }
+
+    /** Number of preloaded tabs asked for that were there */
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of preloaded tabs asked for that were not, or no longer, there */
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Number of new sessions refused by a full pool */
+    int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /** Number of sessions evicted for a new one */
+    int getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /** Number of sessions discarded after PRERENDER_TIMEOUT_MILLIS unused */
+    int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /** Number of page loads refused by the load budget */
+    int getThrottledCount() {
+        return mThrottledCount;
+    }
+
     private class PreloaderSession {
         private final String mId;
         private final PreloadedTabControl mTabControl;
+        private int mPriority;
+        private String mUrl;
 
         private final Runnable mTimeoutTask = new Runnable(){
             @Override
             public void run() {
                 if (LOGD_ENABLED) Log.d(LOGTAG, "Preload session timeout " + mId);
+                mExpiredCount++;
                 discardPreload(mId);
             }};
 
-        public PreloaderSession(String id) {
+        public PreloaderSession(String id, int priority) {
             mId = id;
+            mPriority = priority;
             mTabControl = new PreloadedTabControl(
                     new Tab(new PreloadController(mContext), mFactory.createWebView(false)));
             touch();
         }
-
         public void cancelTimeout() {
             mHandler.removeCallbacks(mTimeoutTask);
         }
@@ -0,0 +1,847 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In memory index of history and bookmarks for the omnibox. Every url is
+ * keyed by itself without the scheme and from each label of its host, every
+ * title from the start of each word. A key is a long pointing at an offset
+ * in one of the lowercase url and title strings, so keys don't copy any
+ * text. The keys are kept sorted by the text they point at, a lookup is a
+ * binary search, and matches are ranked by frecency.
+ *
+ * The index is loaded on a background thread and follows changes to the
+ * provider: new and updated visits are merged in as they happen, deleted
+ * history rows are replayed from the provider's log of deletions. Bookmark
+ * edits cause a reload, and are detected with the bookmarks version
+ * BrowserProvider2 keeps in its settings.
+ */
+class SuggestionEngine {
+
+    private static final String LOGTAG = "SuggestionEngine";
+
+    private static final String[] HISTORY_PROJECTION = new String[] {
+            History._ID, // 0
+            History.URL, // 1
+            History.TITLE, // 2
+            History.VISITS, // 3
+            History.DATE_LAST_VISITED, // 4
+    };
+    private static final String[] BOOKMARKS_PROJECTION = new String[] {
+            Bookmarks._ID, // 0
+            Bookmarks.URL, // 1
+            Bookmarks.TITLE, // 2
+    };
+    // Matches the columns SuggestionsAdapter reads from the provider
+    private static final String[] RESULT_COLUMNS = new String[] {
+            OmniboxSuggestions._ID,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.IS_BOOKMARK,
+    };
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_UPDATE = 2;
+    // Coalesce the notifications of a page load
+    private static final long UPDATE_DELAY = 500;
+
+    // Keys added after the load are kept in a small sorted array, merged
+    // into the main one once it is full
+    static final int MAX_PENDING_KEYS = 256;
+    // Only index the first few words of long titles
+    private static final int MAX_TITLE_KEYS = 8;
+    // A key is the text id shifted left by this, plus the offset in the text
+    private static final int OFFSET_BITS = 16;
+    private static final int MAX_OFFSET = (1 << OFFSET_BITS) - 1;
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    // A bookmark ranks as if it had been visited this many more times
+    private static final int BOOKMARK_VISITS = 5;
+
+    private static SuggestionEngine sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // Guarded by this
+    private Index mIndex;
+    private boolean mLoadRequested;
+    // Only touched on the handler thread
+    private boolean mHistoryChanged;
+    private boolean mBookmarksChanged;
+
+    static synchronized SuggestionEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SuggestionEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SuggestionEngine(Context context) {
+        mContext = context;
+        mHandler = new Handler(BackgroundHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD:
+                        reload();
+                        break;
+                    case MSG_UPDATE:
+                        update();
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts loading the index in the background, if it isn't already.
+     */
+    synchronized void load() {
+        if (mLoadRequested) {
+            return;
+        }
+        mLoadRequested = true;
+        mContext.getContentResolver().registerContentObserver(
+                BrowserContract.AUTHORITY_URI, true, new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onProviderChange(uri);
+                    }
+                });
+        mHandler.sendEmptyMessage(MSG_LOAD);
+    }
+
+    private void onProviderChange(Uri uri) {
+        String table = uri == null ? null : uri.getPathSegments().isEmpty()
+                ? null : uri.getPathSegments().get(0);
+        if (table == null) {
+            mHistoryChanged = true;
+            mBookmarksChanged = true;
+        } else if (table.equals(History.CONTENT_URI.getLastPathSegment())) {
+            mHistoryChanged = true;
+        } else if (table.equals(Bookmarks.CONTENT_URI.getLastPathSegment())) {
+            mBookmarksChanged = true;
+        } else {
+            // Images, searches, settings...
+            return;
+        }
+        mHandler.removeMessages(MSG_UPDATE);
+        mHandler.sendEmptyMessageDelayed(MSG_UPDATE, UPDATE_DELAY);
+    }
+
+    synchronized boolean isLoaded() {
+        return mIndex != null;
+    }
+
+    /**
+     * Returns the best matches for the input, ranked by frecency, in a
+     * cursor with the columns of {@link OmniboxSuggestions}. Returns null
+     * if the index isn't loaded yet or can't answer that kind of input, in
+     * which case the caller should query the provider instead.
+     */
+    synchronized Cursor query(CharSequence constraint, int limit) {
+        if (mIndex == null) {
+            return null;
+        }
+        String input = normalizeInput(constraint);
+        if (input == null) {
+            return null;
+        }
+        int[] rows = mIndex.match(input, limit, System.currentTimeMillis());
+        MatrixCursor c = new MatrixCursor(RESULT_COLUMNS, rows.length);
+        for (int row : rows) {
+            boolean bookmark = mIndex.bookmarkTitles[row] != null;
+            c.addRow(new Object[] {
+                    mIndex.getId(row),
+                    bookmark ? mIndex.bookmarkTitles[row] : mIndex.titles[row],
+                    mIndex.urls[row],
+                    bookmark ? 1 : 0,
+            });
+        }
+        return c;
+    }
+
+    /**
+     * @return The lowercase input without its scheme, or null if the index
+     *         can't answer it.
+     */
+    static String normalizeInput(CharSequence constraint) {
+        String input = constraint.toString().toLowerCase();
+        if (input.startsWith("http://")) {
+            input = input.substring(7);
+        } else if (input.startsWith("https://")) {
+            input = input.substring(8);
+        } else if ("https://".startsWith(input) || "http://".startsWith(input)) {
+            // Every url would match
+            return null;
+        }
+        return input.length() == 0 ? null : input;
+    }
+
+    static int getFrecency(int visits, long lastVisited, boolean bookmark, long now) {
+        long age = (now - lastVisited) / DAY;
+        int weight;
+        if (age < 4) {
+            weight = 100;
+        } else if (age < 14) {
+            weight = 70;
+        } else if (age < 31) {
+            weight = 50;
+        } else if (age < 90) {
+            weight = 30;
+        } else {
+            weight = 10;
+        }
+        return weight * (1 + visits + (bookmark ? BOOKMARK_VISITS : 0));
+    }
+
+    /**
+     * @return The text url keys point at: the lowercase url without its
+     *         scheme.
+     */
+    static String getUrlText(String url) {
+        String text = url.toLowerCase();
+        if (text.startsWith("http://")) {
+            return text.substring(7);
+        } else if (text.startsWith("https://")) {
+            return text.substring(8);
+        }
+        return text;
+    }
+
+    /**
+     * Adds the offsets in text where keys start: for a url text the start
+     * and each label of the host, for a title the start of each word.
+     * @return The number of offsets added.
+     */
+    static int collectKeyOffsets(String text, boolean url, int[] out) {
+        int count = 0;
+        if (url) {
+            out[count++] = 0;
+            int hostEnd = text.indexOf('/');
+            if (hostEnd == -1) {
+                hostEnd = text.length();
+            }
+            for (int i = text.indexOf('.'); i != -1 && i < hostEnd && count < out.length;
+                    i = text.indexOf('.', i + 1)) {
+                out[count++] = i + 1;
+            }
+        } else {
+            for (int i = 0; i < text.length() && count < MAX_TITLE_KEYS; i++) {
+                if (Character.isLetterOrDigit(text.charAt(i))
+                        && (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)))) {
+                    out[count++] = i;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the keys for a url and title as strings, all lowercase. Only
+     * used to check the keys, the index itself doesn't copy them.
+     */
+    static void collectKeys(String url, String title, List<String> out) {
+        int[] offsets = new int[Index.MAX_KEYS_PER_TEXT];
+        if (url != null) {
+            String text = getUrlText(url);
+            int count = collectKeyOffsets(text, true, offsets);
+            for (int i = 0; i < count; i++) {
+                out.add(text.substring(offsets[i]));
+            }
+        }
+        if (title != null) {
+            String text = title.toLowerCase();
+            int count = collectKeyOffsets(text, false, offsets);
+            for (int i = 0; i < count; i++) {
+                out.add(text.substring(offsets[i]));
+            }
+        }
+    }
+
+    private void reload() {
+        // Anything that changes during the load is picked up by the update
+        // after it
+        mHistoryChanged = false;
+        mBookmarksChanged = false;
+        Index index = loadIndex();
+        if (index != null) {
+            synchronized (this) {
+                mIndex = index;
+            }
+        }
+    }
+
+    private Index loadIndex() {
+        ContentResolver cr = mContext.getContentResolver();
+        Index index = new Index();
+        Cursor c = null;
+        try {
+            index.lastDeletion = HistoryDeletions.queryLastId(cr);
+            index.bookmarksVersion = BookmarkUtils.queryBookmarksVersion(cr);
+            c = cr.query(History.CONTENT_URI, HISTORY_PROJECTION, null, null, null);
+            while (c.moveToNext()) {
+                index.putHistory(c.getLong(0), c.getString(1), c.getString(2), c.getInt(3),
+                        c.getLong(4));
+            }
+            c.close();
+            c = cr.query(BookmarkUtils.getBookmarksUri(mContext), BOOKMARKS_PROJECTION,
+                    Bookmarks.IS_FOLDER + " == 0", null, null);
+            while (c.moveToNext()) {
+                index.putBookmark(c.getLong(0), c.getString(1), c.getString(2));
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading suggestions: " + e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+        index.finishLoad();
+        return index;
+    }
+
+    /**
+     * Removes the history rows deleted and merges the ones added or visited
+     * since the last load or update into the index. Reloads instead if
+     * bookmarks changed, or if the log of deletions no longer goes back to
+     * the last update.
+     */
+    private void update() {
+        Index index;
+        synchronized (this) {
+            index = mIndex;
+        }
+        if (index == null) {
+            reload();
+            return;
+        }
+        boolean historyChanged = mHistoryChanged;
+        boolean bookmarksChanged = mBookmarksChanged;
+        mHistoryChanged = false;
+        mBookmarksChanged = false;
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor c = null;
+        try {
+            if (bookmarksChanged
+                    && BookmarkUtils.queryBookmarksVersion(cr) != index.bookmarksVersion) {
+                reload();
+                return;
+            }
+            if (!historyChanged) {
+                return;
+            }
+            // Read the deletions, then the rows, before taking the lock,
+            // queries can be slow. A row deleted in between is replayed by
+            // the next update.
+            HistoryDeletions deletions = HistoryDeletions.query(cr, index.lastDeletion);
+            if (!deletions.complete) {
+                reload();
+                return;
+            }
+            c = cr.query(History.CONTENT_URI, HISTORY_PROJECTION,
+                    History._ID + " > ? OR " + History.DATE_LAST_VISITED + " >= ?",
+                    new String[] { Long.toString(index.maxHistoryId),
+                            Long.toString(index.newestVisit) }, null);
+            int count = c.getCount();
+            long[] ids = new long[count];
+            String[] urls = new String[count];
+            String[] titles = new String[count];
+            int[] visits = new int[count];
+            long[] dates = new long[count];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                urls[i] = c.getString(1);
+                titles[i] = c.getString(2);
+                visits[i] = c.getInt(3);
+                dates[i] = c.getLong(4);
+            }
+            synchronized (this) {
+                for (int i = 0; i < deletions.historyIds.length; i++) {
+                    index.removeHistory(deletions.historyIds[i], deletions.urls[i]);
+                }
+                index.lastDeletion = deletions.lastId;
+                for (int i = 0; i < count; i++) {
+                    index.putHistory(ids[i], urls[i], titles[i], visits[i], dates[i]);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error updating suggestions: " + e);
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * The rows, the texts they are keyed by and the sorted keys.
+     *
+     * Rows are stored in parallel arrays, one per url. Texts are the
+     * lowercase urls and titles keys point into; they never change, so the
+     * order of the keys doesn't either. A title that changes gets a new text
+     * and the old one is marked dead, as are all the texts of a removed row.
+     * Their keys are skipped by match(), and once enough of them pile up
+     * compact() drops them and renumbers the live rows and texts.
+     */
+    static class Index {
+        static final int MAX_KEYS_PER_TEXT = 32;
+
+        String[] urls = new String[64];
+        String[] titles = new String[64];
+        // null if the url isn't bookmarked
+        String[] bookmarkTitles = new String[64];
+        long[] historyIds = new long[64];
+        long[] bookmarkIds = new long[64];
+        int[] visits = new int[64];
+        long[] dates = new long[64];
+        // The texts of the url, title and bookmark title of each row, or -1.
+        // A row without a url text was removed.
+        int[] urlTexts = new int[64];
+        int[] titleTexts = new int[64];
+        int[] bookmarkTexts = new int[64];
+        int rowCount;
+        final HashMap<String, Integer> rowsByUrl = new HashMap<String, Integer>();
+        long newestVisit;
+        long maxHistoryId;
+        // The last entry of the provider's log of deletions replayed
+        long lastDeletion;
+        long bookmarksVersion;
+
+        String[] texts = new String[64];
+        // The row of each text, -1 once the text is dead
+        int[] textRows = new int[64];
+        int textCount;
+        int deadTextCount;
+
+        // Sorted by the text they point at
+        long[] keys = new long[64];
+        int keyCount;
+        // Until finishLoad(), keys are appended unsorted
+        boolean loading = true;
+        // Keys added after the load, also sorted
+        final long[] pendingKeys = new long[MAX_PENDING_KEYS];
+        int pendingCount;
+
+        // Rows already seen by the current match, by generation
+        int[] seen = new int[64];
+        int generation;
+
+        private final int[] mOffsets = new int[MAX_KEYS_PER_TEXT];
+
+        long getId(int row) {
+            // Like the provider, bookmarked urls use the id of the bookmark
+            return bookmarkTitles[row] != null ? bookmarkIds[row] : historyIds[row];
+        }
+
+        private int getRow(String url) {
+            Integer row = rowsByUrl.get(url);
+            if (row != null) {
+                return row;
+            }
+            if (rowCount == urls.length) {
+                int size = rowCount * 2;
+                urls = Arrays.copyOf(urls, size);
+                titles = Arrays.copyOf(titles, size);
+                bookmarkTitles = Arrays.copyOf(bookmarkTitles, size);
+                historyIds = Arrays.copyOf(historyIds, size);
+                bookmarkIds = Arrays.copyOf(bookmarkIds, size);
+                visits = Arrays.copyOf(visits, size);
+                dates = Arrays.copyOf(dates, size);
+                urlTexts = Arrays.copyOf(urlTexts, size);
+                titleTexts = Arrays.copyOf(titleTexts, size);
+                bookmarkTexts = Arrays.copyOf(bookmarkTexts, size);
+                seen = Arrays.copyOf(seen, size);
+            }
+            int newRow = rowCount++;
+            urls[newRow] = url;
+            titleTexts[newRow] = -1;
+            bookmarkTexts[newRow] = -1;
+            rowsByUrl.put(url, newRow);
+            urlTexts[newRow] = addText(newRow, getUrlText(url), true);
+            return newRow;
+        }
+
+        void putHistory(long id, String url, String title, int visitCount, long date) {
+            if (url == null) {
+                return;
+            }
+            int row = getRow(url);
+            if (historyIds[row] == 0 || id > historyIds[row]) {
+                historyIds[row] = id;
+            }
+            if (title != null && !title.equals(titles[row])) {
+                titles[row] = title;
+                killText(titleTexts[row]);
+                titleTexts[row] = addText(row, title.toLowerCase(), false);
+            }
+            visits[row] = Math.max(visits[row], visitCount);
+            dates[row] = Math.max(dates[row], date);
+            newestVisit = Math.max(newestVisit, date);
+            maxHistoryId = Math.max(maxHistoryId, id);
+            compactIfNeeded();
+        }
+
+        /**
+         * Removes the history row with the given id and url. A bookmarked
+         * url keeps its row, without the history title and visits.
+         */
+        void removeHistory(long id, String url) {
+            Integer r = url == null ? null : rowsByUrl.get(url);
+            if (r == null || historyIds[r] != id) {
+                // Not loaded yet, or already replaced by a newer row
+                return;
+            }
+            int row = r;
+            historyIds[row] = 0;
+            visits[row] = 0;
+            dates[row] = 0;
+            titles[row] = null;
+            killText(titleTexts[row]);
+            titleTexts[row] = -1;
+            if (bookmarkTitles[row] == null) {
+                rowsByUrl.remove(url);
+                killText(urlTexts[row]);
+                urlTexts[row] = -1;
+            }
+            compactIfNeeded();
+        }
+
+        void putBookmark(long id, String url, String title) {
+            if (url == null) {
+                return;
+            }
+            int row = getRow(url);
+            bookmarkIds[row] = id;
+            bookmarkTitles[row] = title == null ? "" : title;
+            if (title != null && bookmarkTexts[row] == -1) {
+                bookmarkTexts[row] = addText(row, title.toLowerCase(), false);
+            }
+        }
+
+        private int addText(int row, String text, boolean url) {
+            if (textCount == texts.length) {
+                texts = Arrays.copyOf(texts, textCount * 2);
+                textRows = Arrays.copyOf(textRows, textCount * 2);
+            }
+            int id = textCount++;
+            texts[id] = text;
+            textRows[id] = row;
+            int count = collectKeyOffsets(text, url, mOffsets);
+            for (int i = 0; i < count; i++) {
+                if (mOffsets[i] <= MAX_OFFSET) {
+                    addKey(((long) id << OFFSET_BITS) | mOffsets[i]);
+                }
+            }
+            return id;
+        }
+
+        private void killText(int id) {
+            if (id == -1) {
+                return;
+            }
+            textRows[id] = -1;
+            deadTextCount++;
+        }
+
+        private void compactIfNeeded() {
+            if (deadTextCount > MAX_PENDING_KEYS && deadTextCount * 2 > textCount) {
+                compact();
+            }
+        }
+
+        private void addKey(long key) {
+            if (loading) {
+                if (keyCount == keys.length) {
+                    keys = Arrays.copyOf(keys, keyCount * 2);
+                }
+                keys[keyCount++] = key;
+                return;
+            }
+            if (pendingCount == MAX_PENDING_KEYS) {
+                mergePending();
+            }
+            int i = lowerBound(pendingKeys, pendingCount, key);
+            System.arraycopy(pendingKeys, i, pendingKeys, i + 1, pendingCount - i);
+            pendingKeys[i] = key;
+            pendingCount++;
+        }
+
+        /**
+         * Sorts the keys appended by the load, later keys go to the pending
+         * keys instead.
+         */
+        void finishLoad() {
+            long[] scratch = new long[keyCount];
+            sort(keys, scratch, 0, keyCount);
+            loading = false;
+        }
+
+        /**
+         * Moves the pending keys into the sorted keys. Each pending key is
+         * placed by a binary search and the keys between them are moved in
+         * blocks, without comparing them.
+         */
+        private void mergePending() {
+            if (keyCount + pendingCount > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keyCount + pendingCount));
+            }
+            int end = keyCount;
+            for (int j = pendingCount - 1; j >= 0; j--) {
+                int pos = lowerBound(keys, end, pendingKeys[j]);
+                System.arraycopy(keys, pos, keys, pos + j + 1, end - pos);
+                keys[pos + j] = pendingKeys[j];
+                end = pos;
+            }
+            keyCount += pendingCount;
+            pendingCount = 0;
+        }
+
+        /**
+         * Drops the dead texts, their keys and the removed rows, and
+         * renumbers what is left so ids stay dense. Keys are ordered by the
+         * text they point at, not by text id, so the remaining keys stay in
+         * order and nothing is sorted again.
+         */
+        void compact() {
+            int[] rowMap = new int[rowCount];
+            int rows = 0;
+            for (int i = 0; i < rowCount; i++) {
+                if (urlTexts[i] == -1) {
+                    rowMap[i] = -1;
+                    continue;
+                }
+                rowMap[i] = rows;
+                urls[rows] = urls[i];
+                titles[rows] = titles[i];
+                bookmarkTitles[rows] = bookmarkTitles[i];
+                historyIds[rows] = historyIds[i];
+                bookmarkIds[rows] = bookmarkIds[i];
+                visits[rows] = visits[i];
+                dates[rows] = dates[i];
+                urlTexts[rows] = urlTexts[i];
+                titleTexts[rows] = titleTexts[i];
+                bookmarkTexts[rows] = bookmarkTexts[i];
+                seen[rows] = 0;
+                rows++;
+            }
+            // getRow() expects the rows past rowCount to be empty
+            Arrays.fill(urls, rows, rowCount, null);
+            Arrays.fill(titles, rows, rowCount, null);
+            Arrays.fill(bookmarkTitles, rows, rowCount, null);
+            Arrays.fill(historyIds, rows, rowCount, 0);
+            Arrays.fill(bookmarkIds, rows, rowCount, 0);
+            Arrays.fill(visits, rows, rowCount, 0);
+            Arrays.fill(dates, rows, rowCount, 0);
+            rowCount = rows;
+
+            int[] textMap = new int[textCount];
+            int count = 0;
+            for (int i = 0; i < textCount; i++) {
+                if (textRows[i] == -1) {
+                    textMap[i] = -1;
+                    continue;
+                }
+                textMap[i] = count;
+                texts[count] = texts[i];
+                textRows[count] = rowMap[textRows[i]];
+                count++;
+            }
+            Arrays.fill(texts, count, textCount, null);
+            textCount = count;
+            deadTextCount = 0;
+
+            rowsByUrl.clear();
+            for (int i = 0; i < rowCount; i++) {
+                rowsByUrl.put(urls[i], i);
+                urlTexts[i] = textMap[urlTexts[i]];
+                titleTexts[i] = titleTexts[i] == -1 ? -1 : textMap[titleTexts[i]];
+                bookmarkTexts[i] = bookmarkTexts[i] == -1 ? -1 : textMap[bookmarkTexts[i]];
+            }
+            keyCount = remapKeys(keys, keyCount, textMap);
+            pendingCount = remapKeys(pendingKeys, pendingCount, textMap);
+        }
+
+        private static int remapKeys(long[] array, int count, int[] textMap) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int text = textMap[(int) (array[i] >>> OFFSET_BITS)];
+                if (text != -1) {
+                    array[kept++] = ((long) text << OFFSET_BITS) | (array[i] & MAX_OFFSET);
+                }
+            }
+            return kept;
+        }
+
+        private int compareKeys(long lhs, long rhs) {
+            String l = texts[(int) (lhs >>> OFFSET_BITS)];
+            String r = texts[(int) (rhs >>> OFFSET_BITS)];
+            int li = (int) (lhs & MAX_OFFSET);
+            int ri = (int) (rhs & MAX_OFFSET);
+            int ln = l.length();
+            int rn = r.length();
+            while (li < ln && ri < rn) {
+                int diff = l.charAt(li++) - r.charAt(ri++);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return (ln - li) - (rn - ri);
+        }
+
+        /**
+         * Compares the text of the key with the input, as if the text were
+         * cut to the length of the input: 0 means the key starts with input.
+         */
+        private int compareKeyToPrefix(long key, String input) {
+            String text = texts[(int) (key >>> OFFSET_BITS)];
+            int ti = (int) (key & MAX_OFFSET);
+            int n = input.length();
+            for (int i = 0; i < n; i++, ti++) {
+                if (ti == text.length()) {
+                    return -1;
+                }
+                int diff = text.charAt(ti) - input.charAt(i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
+
+        private int lowerBound(long[] array, int count, long key) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareKeys(array[mid], key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private int lowerBound(long[] array, int count, String input) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareKeyToPrefix(array[mid], input) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // Merge sort of keys[from, to), using scratch of the same size
+        private void sort(long[] array, long[] scratch, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(array, scratch, from, mid);
+            sort(array, scratch, mid, to);
+            if (compareKeys(array[mid - 1], array[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(array, from, scratch, from, to - from);
+            int l = from;
+            int r = mid;
+            for (int i = from; i < to; i++) {
+                if (r >= to || (l < mid && compareKeys(scratch[l], scratch[r]) <= 0)) {
+                    array[i] = scratch[l++];
+                } else {
+                    array[i] = scratch[r++];
+                }
+            }
+        }
+
+        /**
+         * Returns the rows with a key starting with input, best first.
+         */
+        int[] match(String input, int limit, long now) {
+            if (limit <= 0) {
+                return new int[0];
+            }
+            if (++generation == 0) {
+                Arrays.fill(seen, 0);
+                generation = 1;
+            }
+            int[] top = new int[limit];
+            int[] topScores = new int[limit];
+            int found = 0;
+            for (int i = lowerBound(keys, keyCount, input);
+                    i < keyCount && compareKeyToPrefix(keys[i], input) == 0; i++) {
+                found = offer(keys[i], now, top, topScores, found);
+            }
+            for (int i = lowerBound(pendingKeys, pendingCount, input);
+                    i < pendingCount && compareKeyToPrefix(pendingKeys[i], input) == 0; i++) {
+                found = offer(pendingKeys[i], now, top, topScores, found);
+            }
+            return Arrays.copyOf(top, found);
+        }
+
+        private int offer(long key, long now, int[] top, int[] topScores, int found) {
+            int row = textRows[(int) (key >>> OFFSET_BITS)];
+            if (row == -1 || seen[row] == generation) {
+                return found;
+            }
+            seen[row] = generation;
+            int score = getFrecency(visits[row], dates[row],
+                    bookmarkTitles[row] != null, now);
+            if (found == top.length && score <= topScores[found - 1]) {
+                return found;
+            }
+            int i = found == top.length ? found - 1 : found++;
+            while (i > 0 && topScores[i - 1] < score) {
+                top[i] = top[i - 1];
+                topScores[i] = topScores[i - 1];
+                i--;
+            }
+            top[i] = row;
+            topScores[i] = score;
+            return found;
+        }
+    }
+}
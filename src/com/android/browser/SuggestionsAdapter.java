@@ -16,11 +16,9 @@
 
 package com.android.browser;
 
-import android.app.SearchManager;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.provider.BrowserContract;
 import android.text.Html;
 import android.text.TextUtils;
@@ -36,6 +34,7 @@ import android.widget.TextView;
 
 import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
 import com.android.browser.search.SearchEngine;
+import com.android.browser.search.SuggestionFetcher;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -74,6 +73,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     final Object mResultsLock = new Object();
     boolean mIncognitoMode;
     BrowserSettings mSettings;
+    final SuggestionEngine mEngine;
+    final SuggestionFetcher mFetcher;
 
     interface CompletionListener {
 
@@ -92,6 +93,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         mLinesLandscape = mContext.getResources().
                 getInteger(R.integer.max_suggest_lines_landscape);
 
+        mEngine = SuggestionEngine.getInstance(ctx);
+        mEngine.load();
+        mFetcher = SuggestionFetcher.getInstance(ctx);
         mFilter = new SuggestFilter();
         addSource(new CombinedCursor());
     }
@@ -200,29 +204,21 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         view.findViewById(R.id.suggestion).setOnClickListener(this);
     }
 
-    class SlowFilterTask extends AsyncTask<CharSequence, Void, List<SuggestItem>> {
-
+    final SuggestionFetcher.Listener mSuggestListener = new SuggestionFetcher.Listener() {
         @Override
-        protected List<SuggestItem> doInBackground(CharSequence... params) {
-            SuggestCursor cursor = new SuggestCursor();
-            cursor.runQuery(params[0]);
-            List<SuggestItem> results = new ArrayList<SuggestItem>();
-            int count = cursor.getCount();
-            for (int i = 0; i < count; i++) {
-                results.add(cursor.getItem());
-                cursor.moveToNext();
+        public void onSuggestions(String query, List<SuggestionFetcher.Suggestion> suggestions) {
+            List<SuggestItem> results = new ArrayList<SuggestItem>(suggestions.size());
+            for (SuggestionFetcher.Suggestion s : suggestions) {
+                int type = (TextUtils.isEmpty(s.url)) ? TYPE_SUGGEST : TYPE_SUGGEST_URL;
+                SuggestItem item = new SuggestItem(s.title, s.url, type);
+                item.extra = s.extra;
+                results.add(item);
             }
-            cursor.close();
-            return results;
-        }
-
-        @Override
-        protected void onPostExecute(List<SuggestItem> items) {
-            mSuggestResults = items;
+            mSuggestResults = results;
             mMixedResults = buildSuggestionResults();
             notifyDataSetChanged();
         }
-    }
+    };
 
     SuggestionResults buildSuggestionResults() {
         SuggestionResults mixed = new SuggestionResults();
@@ -261,7 +257,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         void startSuggestionsAsync(final CharSequence constraint) {
             if (!mIncognitoMode) {
-                new SlowFilterTask().execute(constraint);
+                mFetcher.fetch(mSettings.getSearchEngine(),
+                        constraint == null ? null : constraint.toString(),
+                        mSuggestListener);
             }
         }
 
@@ -435,6 +433,13 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             if (mCursor != null) {
                 mCursor.close();
             }
+            int limit = Math.max(mLinesLandscape, mLinesPortrait);
+            // Answer from memory when we can, it's ranked and much faster
+            mCursor = mEngine.query(constraint, limit);
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+                return;
+            }
             String like = constraint + "%";
             String[] args = null;
             String selection = null;
@@ -454,7 +459,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             }
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
             ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
+                    Integer.toString(limit));
             mCursor =
                     mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
                             selection, (constraint != null) ? args : null, null);
@@ -494,59 +499,35 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         }
     }
 
-    class SuggestCursor extends CursorSource {
-
-        @Override
-        public SuggestItem getItem() {
-            if (mCursor != null) {
-                String title = mCursor.getString(
-                        mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_1));
-                String text2 = mCursor.getString(
-                        mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2));
-                String url = mCursor.getString(
-                        mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2_URL));
-                String uri = mCursor.getString(
-                        mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_INTENT_DATA));
-                int type = (TextUtils.isEmpty(url)) ? TYPE_SUGGEST : TYPE_SUGGEST_URL;
-                SuggestItem item = new SuggestItem(title, url, type);
-                item.extra = mCursor.getString(
-                        mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA));
-                return item;
-            }
-            return null;
-        }
-
-        @Override
-        public void runQuery(CharSequence constraint) {
-            if (mCursor != null) {
-                mCursor.close();
-            }
-            SearchEngine searchEngine = mSettings.getSearchEngine();
-            if (!TextUtils.isEmpty(constraint)) {
-                if (searchEngine != null && searchEngine.supportsSuggestions()) {
-                    mCursor = searchEngine.getSuggestions(mContext, constraint.toString());
-                    if (mCursor != null) {
-                        mCursor.moveToFirst();
-                    }
-                }
-            } else {
-                if (searchEngine.wantsEmptyQuery()) {
-                    mCursor = searchEngine.getSuggestions(mContext, "");
-                }
-                mCursor = null;
-            }
-        }
-
-    }
-
     public void clearCache() {
         mFilterResults = null;
         mSuggestResults = null;
         notifyDataSetInvalidated();
     }
 
+    /**
+     * Called when the user is about to type, to get the search engine
+     * ready for suggestion requests.
+     */
+    public void warmUp() {
+        if (!mIncognitoMode) {
+            mFetcher.warmUp(mSettings.getSearchEngine());
+        }
+    }
+
+    /**
+     * Called when the view showing the suggestions goes away, so that the
+     * shared fetcher doesn't keep the adapter.
+     */
+    public void detach() {
+        mFetcher.detach(mSuggestListener);
+    }
+
     public void setIncognitoMode(boolean incognito) {
         mIncognitoMode = incognito;
+        if (incognito) {
+            mFetcher.cancel();
+        }
         clearCache();
     }
 
@@ -35,7 +35,6 @@ import android.graphics.PorterDuffXfermode;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
 import android.security.KeyChain;
@@ -71,13 +70,13 @@ import android.widget.Toast;
 import com.android.browser.TabControl.OnThumbnailUpdatedListener;
 import com.android.browser.homepages.HomeProvider;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
+import com.android.browser.util.BitmapPool;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.LinkedList;
 import java.util.Map;
@@ -99,9 +98,7 @@ class Tab implements PictureListener {
     // of the browser.
     private static final String CONSOLE_LOGTAG = "browser";
 
-    private static final int MSG_CAPTURE = 42;
-    private static final int CAPTURE_DELAY = 100;
-    private static final int INITIAL_PROGRESS = 5;
+    static final int INITIAL_PROGRESS = 5;
 
     private static final String RESTRICTED = "<html><body>not allowed</body></html>";
 
@@ -192,7 +189,6 @@ class Tab implements PictureListener {
     private int mCaptureWidth;
     private int mCaptureHeight;
     private Bitmap mCapture;
-    private Handler mHandler;
     private boolean mUpdateThumbnail;
 
     /**
@@ -348,6 +344,10 @@ class Tab implements PictureListener {
             mCurrentState = new PageState(mContext,
                     view.isPrivateBrowsingEnabled(), url, favicon);
             mLoadStartTime = SystemClock.uptimeMillis();
+            markStateDirty();
+            if (view instanceof BrowserWebView) {
+                ((BrowserWebView) view).clearTextInput();
+            }
 
             // If we start a touch icon load and then load a new page, we don't
             // want to cancel the current touch icon loader. But, we do want to
@@ -386,6 +386,7 @@ class Tab implements PictureListener {
                         url, SystemClock.uptimeMillis() - mLoadStartTime);
             }
             syncCurrentState(view, url);
+            markStateDirty();
             mWebViewController.onPageFinished(Tab.this);
         }
 
@@ -506,6 +507,7 @@ class Tab implements PictureListener {
         @Override
         public void doUpdateVisitedHistory(WebView view, String url,
                 boolean isReload) {
+            markStateDirty();
             mWebViewController.doUpdateVisitedHistory(Tab.this, isReload);
         }
 
@@ -803,6 +805,7 @@ class Tab implements PictureListener {
         @Override
         public void onReceivedTitle(WebView view, final String title) {
             mCurrentState.mTitle = title;
+            markStateDirty();
             mWebViewController.onReceivedTitle(Tab.this, title);
         }
 
@@ -1178,16 +1181,6 @@ class Tab implements PictureListener {
             mId = TabControl.getNextId();
         }
         setWebView(w);
-        mHandler = new Handler() {
-            @Override
-            public void handleMessage(Message m) {
-                switch (m.what) {
-                case MSG_CAPTURE:
-                    capture();
-                    break;
-                }
-            }
-        };
     }
 
     public boolean shouldUpdateThumbnail() {
@@ -1207,8 +1200,12 @@ class Tab implements PictureListener {
         if (mWebViewController.shouldCaptureThumbnails()) {
             synchronized (Tab.this) {
                 if (mCapture == null) {
-                    mCapture = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
+                    mCapture = BitmapPool.getInstance().get(mCaptureWidth, mCaptureHeight,
                             Bitmap.Config.RGB_565);
+                    if (mCapture == null) {
+                        mCapture = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
+                                Bitmap.Config.RGB_565);
+                    }
                     mCapture.eraseColor(Color.WHITE);
                     if (mInForeground) {
                         postCapture();
@@ -1217,6 +1214,8 @@ class Tab implements PictureListener {
             }
         } else {
             synchronized (Tab.this) {
+                // Not pooled, the tab switcher or pie menu may still be
+                // drawing it
                 mCapture = null;
                 deleteThumbnail();
             }
@@ -1267,6 +1266,7 @@ class Tab implements PictureListener {
         }
         // set the new one
         mMainView = w;
+        markStateDirty();
         // attach the WebViewClient, WebChromeClient and DownloadListener
         if (mMainView != null) {
             mMainView.setWebViewClient(mWebViewClient);
@@ -1297,6 +1297,7 @@ class Tab implements PictureListener {
      * Destroy the tab's main WebView and subWindow if any
      */
     void destroy() {
+        CaptureScheduler.getInstance().cancel(this);
         if (mMainView != null) {
             dismissSubWindow();
             // save the WebView to call destroy() after detach it from the tab
@@ -1376,6 +1377,7 @@ class Tab implements PictureListener {
             throw new IllegalStateException("Cannot set parent to self!");
         }
         mParent = parent;
+        markStateDirty();
         // This tab may have been freed due to low memory. If that is the case,
         // the parent tab id is already saved. If we are changing that id
         // (most likely due to removing the parent tab) we must update the
@@ -1586,6 +1588,7 @@ class Tab implements PictureListener {
      */
     void setAppId(String id) {
         mAppId = id;
+        markStateDirty();
     }
 
     boolean closeOnBack() {
@@ -1594,6 +1597,15 @@ class Tab implements PictureListener {
 
     void setCloseOnBack(boolean close) {
         mCloseOnBack = close;
+        markStateDirty();
+    }
+
+    /**
+     * Switches the tab between the desktop and the default user agent.
+     */
+    void toggleDesktopUseragent() {
+        mSettings.toggleDesktopUseragent(getWebView());
+        markStateDirty();
     }
 
     String getUrl() {
@@ -1688,6 +1700,26 @@ class Tab implements PictureListener {
         return mInPageLoad;
     }
 
+    /**
+     * @return TRUE if the user has edited a text field in the current page,
+     *         which would be lost if the WebView was destroyed.
+     */
+    boolean hasFormInput() {
+        return mMainView instanceof BrowserWebView
+                && ((BrowserWebView) mMainView).hasTextInput();
+    }
+
+    /**
+     * Tells the TabControl that the state returned by {@link #saveState()}
+     * is out of date.
+     */
+    private void markStateDirty() {
+        TabControl tc = mWebViewController.getTabControl();
+        if (tc != null) {
+            tc.markStateDirty(this);
+        }
+    }
+
     /**
      * @return The Bundle with the tab's state if it can be saved, otherwise null
      */
@@ -1842,6 +1874,7 @@ class Tab implements PictureListener {
         if (mMainView.getContentWidth() <= 0 || mMainView.getContentHeight() <= 0) {
             return;
         }
+        long start = System.nanoTime();
         Canvas c = new Canvas(mCapture);
         final int left = mMainView.getScrollX();
         final int top = mMainView.getScrollY() + mMainView.getVisibleTitleHeight();
@@ -1863,7 +1896,12 @@ class Tab implements PictureListener {
         c.drawRect(0, mCapture.getHeight() - 1, mCapture.getWidth(),
                 mCapture.getHeight(), sAlphaPaint);
         c.setBitmap(null);
-        mHandler.removeMessages(MSG_CAPTURE);
+        Performance.onThumbnailCaptured(this);
+        if (!CaptureScheduler.getInstance().onCaptured(this, mCapture,
+                System.nanoTime() - start)) {
+            // Nothing to save or show again
+            return;
+        }
         persistThumbnail();
         TabControl tc = mWebViewController.getTabControl();
         if (tc != null) {
@@ -1881,9 +1919,7 @@ class Tab implements PictureListener {
     }
 
     private void postCapture() {
-        if (!mHandler.hasMessages(MSG_CAPTURE)) {
-            mHandler.sendEmptyMessageDelayed(MSG_CAPTURE, CAPTURE_DELAY);
-        }
+        CaptureScheduler.getInstance().schedule(this);
     }
 
     public boolean canGoBack() {
@@ -1925,23 +1961,6 @@ class Tab implements PictureListener {
         DataController.getInstance(mContext).deleteThumbnail(this);
     }
 
-    void updateCaptureFromBlob(byte[] blob) {
-        synchronized (Tab.this) {
-            if (mCapture == null) {
-                return;
-            }
-            ByteBuffer buffer = ByteBuffer.wrap(blob);
-            try {
-                mCapture.copyPixelsFromBuffer(buffer);
-            } catch (RuntimeException rex) {
-                Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
-                        + buffer.capacity() + " blob: " + blob.length
-                        + "capture: " + mCapture.getByteCount());
-                throw rex;
-            }
-        }
-    }
-
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(100);
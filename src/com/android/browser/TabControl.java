@@ -16,14 +16,17 @@
 
 package com.android.browser;
 
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.WebView;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -34,6 +37,8 @@ class TabControl {
 
     private static final String POSITIONS = "positions";
     private static final String CURRENT = "current";
+    // Tab ids, most recently used first
+    private static final String MRU = "mru";
 
     public static interface OnThumbnailUpdatedListener {
         void onThumbnailUpdated(Tab t);
@@ -43,8 +48,6 @@ class TabControl {
     private int mMaxTabs;
     // Private array of WebViews that are used as tabs.
     private ArrayList<Tab> mTabs;
-    // Queue of most recently viewed tabs.
-    private ArrayList<Tab> mTabQueue;
     // Current position in mTabs.
     private int mCurrentTab = -1;
     // the main browser controller
@@ -52,6 +55,18 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    // State saved for each tab that hasn't changed since the last saveState.
+    // Tabs missing from the map are dirty and have to be saved again.
+    private HashMap<Tab, Bundle> mCleanStates = new HashMap<Tab, Bundle>();
+    // Number of tab states saved and reused by the last saveState
+    private int mLastSavedCount;
+    private int mLastReusedCount;
+
+    // Picks the background tabs to free when memory is low
+    private final TabEvictor mEvictor = new TabEvictor(TabEvictor.DEFAULT_POLICY);
+    // Uptime at which each tab was last the current tab
+    private HashMap<Tab, Long> mLastUsedTimes = new HashMap<Tab, Long>();
+
     /**
      * Construct a new TabControl object
      */
@@ -59,7 +74,6 @@ class TabControl {
         mController = controller;
         mMaxTabs = mController.getMaxTabs();
         mTabs = new ArrayList<Tab>(mMaxTabs);
-        mTabQueue = new ArrayList<Tab>(mMaxTabs);
     }
 
     synchronized static long getNextId() {
@@ -177,6 +191,7 @@ class TabControl {
             }
         }
         mTabs.add(tab);
+        mLastUsedTimes.put(tab, SystemClock.uptimeMillis());
         tab.setController(mController);
         mController.onSetWebView(tab, tab.getWebView());
         tab.putInBackground();
@@ -203,6 +218,7 @@ class TabControl {
         // Create a new tab and add it to the tab list
         Tab t = new Tab(mController, w, state);
         mTabs.add(t);
+        mLastUsedTimes.put(t, SystemClock.uptimeMillis());
         // Initially put the tab in the background.
         t.putInBackground();
         return t;
@@ -256,8 +272,8 @@ class TabControl {
         // clear it's references to parent and children
         t.removeFromTree();
 
-        // Remove it from the queue of viewed tabs.
-        mTabQueue.remove(t);
+        mCleanStates.remove(t);
+        mLastUsedTimes.remove(t);
         return true;
     }
 
@@ -269,7 +285,8 @@ class TabControl {
             t.destroy();
         }
         mTabs.clear();
-        mTabQueue.clear();
+        mCleanStates.clear();
+        mLastUsedTimes.clear();
     }
 
     /**
@@ -280,11 +297,33 @@ class TabControl {
         return mTabs.size();
     }
 
+    /**
+     * Marks the tab's state as changed, so that the next saveState asks the
+     * tab for a new snapshot instead of reusing the previous one.
+     */
+    void markStateDirty(Tab t) {
+        mCleanStates.remove(t);
+    }
+
+    /**
+     * @return The number of tabs whose state was saved by the last
+     * {@link #saveState(Bundle)}, as opposed to reused from a previous one.
+     */
+    int getLastSavedCount() {
+        return mLastSavedCount;
+    }
+
+    int getLastReusedCount() {
+        return mLastReusedCount;
+    }
+
     /**
      * save the tab state:
      * current position
      * position sorted array of tab ids
      * for each tab id, save the tab state
+     * Only tabs marked dirty since the previous call are asked to save their
+     * state, the others reuse the Bundle they saved last time.
      * @param outState
      * @param saveImages
      */
@@ -295,8 +334,19 @@ class TabControl {
         }
         long[] ids = new long[numTabs];
         int i = 0;
+        mLastSavedCount = 0;
+        mLastReusedCount = 0;
         for (Tab tab : mTabs) {
-            Bundle tabState = tab.saveState();
+            Bundle tabState = mCleanStates.get(tab);
+            if (tabState == null) {
+                tabState = tab.saveState();
+                mLastSavedCount++;
+                if (tabState != null) {
+                    mCleanStates.put(tab, tabState);
+                }
+            } else {
+                mLastReusedCount++;
+            }
             if (tabState != null) {
                 ids[i++] = tab.getId();
                 String key = Long.toString(tab.getId());
@@ -323,7 +373,35 @@ class TabControl {
                 cid = current.getId();
             }
             outState.putLong(CURRENT, cid);
+            outState.putLongArray(MRU, getMruIds());
+        }
+    }
+
+    private long[] getMruIds() {
+        ArrayList<Tab> tabs = new ArrayList<Tab>(mTabs);
+        Collections.sort(tabs, new Comparator<Tab>() {
+            @Override
+            public int compare(Tab lhs, Tab rhs) {
+                long l = getLastUsedTime(lhs);
+                long r = getLastUsedTime(rhs);
+                return l > r ? -1 : (l < r ? 1 : 0);
+            }
+        });
+        long[] ids = new long[tabs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tabs.get(i).getId();
         }
+        return ids;
+    }
+
+    /**
+     * @return The uptime at which the tab was last the current tab, or
+     *         created, or 0 if it hasn't been either since it was restored
+     *         without a saved order.
+     */
+    long getLastUsedTime(Tab t) {
+        Long time = mLastUsedTimes.get(t);
+        return time != null ? time : 0;
     }
 
     /**
@@ -414,8 +492,6 @@ class TabControl {
                 Tab t = new Tab(mController, state);
                 tabMap.put(id, t);
                 mTabs.add(t);
-                // added the tab to the front as they are not current
-                mTabQueue.add(0, t);
             }
         }
 
@@ -428,6 +504,17 @@ class TabControl {
                 setCurrentTab(getTab(0));
             }
         }
+        // restore the order in which the tabs were used
+        long[] mru = inState.getLongArray(MRU);
+        if (mru != null) {
+            long now = SystemClock.uptimeMillis();
+            for (int i = 0; i < mru.length; i++) {
+                Tab t = tabMap.get(mru[i]);
+                if (t != null && t != getCurrentTab()) {
+                    mLastUsedTimes.put(t, now - i - 1);
+                }
+            }
+        }
         // restore parent/child relationships
         for (long id : ids) {
             final Tab tab = tabMap.get(id);
@@ -445,25 +532,41 @@ class TabControl {
     }
 
     /**
-     * Free the memory in this order, 1) free the background tabs; 2) free the
-     * WebView cache;
+     * Free as much memory as possible, as for
+     * {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
      */
     void freeMemory() {
-        if (getTabCount() == 0) return;
+        trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
+    /**
+     * Free memory for the given {@link ComponentCallbacks2} trim level, in
+     * this order, 1) free background tabs until the level's share of their
+     * memory is released; 2) if there are none and the level asks for the
+     * most, free the WebView cache.
+     */
+    void trimMemory(int level) {
+        if (getTabCount() == 0) return;
+        float fraction = TabEvictor.getTrimFraction(level);
+        if (fraction == 0) return;
+
+        List<TabCandidate> candidates = getEvictionCandidates(getCurrentTab());
+        List<TabCandidate> victims = mEvictor.selectVictimsForTrim(candidates, level,
+                SystemClock.uptimeMillis());
+        if (victims.size() > 0) {
+            Log.w(LOGTAG, "Free " + victims.size() + " of " + candidates.size()
+                    + " background tabs for trim level " + level);
+            for (TabCandidate c : victims) {
                 // store the WebView's state.
-                t.saveState();
+                c.tab.saveState();
                 // destroy the tab
-                t.destroy();
+                c.tab.destroy();
+                mCleanStates.remove(c.tab);
             }
             return;
         }
 
+        if (fraction < TabEvictor.MAX_TRIM_FRACTION) return;
         // free the WebView's unused memory (this includes the cache)
         Log.w(LOGTAG, "Free WebView's unused memory and cache");
         WebView view = getCurrentWebView();
@@ -472,57 +575,107 @@ class TabControl {
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
+    /**
+     * Replaces the policy deciding which tabs are freed first.
+     */
+    void setEvictionPolicy(TabEvictor.Policy policy) {
+        mEvictor.setPolicy(policy);
+    }
 
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
+    /**
+     * A background tab with a WebView, as seen by the TabEvictor.
+     */
+    private class TabCandidate implements TabEvictor.Candidate {
+        final Tab tab;
+        private final long mFootprint;
+
+        TabCandidate(Tab t) {
+            tab = t;
+            mFootprint = estimateFootprint(t.getWebView())
+                    + estimateFootprint(t.getSubWebView());
         }
 
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
+        @Override
+        public long getFootprint() {
+            return mFootprint;
         }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
-            }
+        @Override
+        public long getLastUsedTime() {
+            return TabControl.this.getLastUsedTime(tab);
         }
 
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
+        @Override
+        public boolean isLoading() {
+            return tab.inPageLoad();
         }
 
-        return tabsToGo;
+        @Override
+        public boolean hasFormInput() {
+            return tab.hasFormInput();
+        }
     }
 
-    Tab getLeastUsedTab(Tab current) {
+    private static long estimateFootprint(WebView view) {
+        if (view == null) {
+            return 0;
+        }
+        return TabEvictor.estimateFootprint(view.getWidth(), view.getHeight(),
+                (int) (view.getContentHeight() * view.getScale()),
+                view.copyBackForwardList().getSize());
+    }
+
+    /**
+     * @return The tabs with a WebView which are not the current tab or the
+     *         parent of the current tab.
+     */
+    private List<TabCandidate> getEvictionCandidates(Tab current) {
+        ArrayList<TabCandidate> candidates = new ArrayList<TabCandidate>();
+        // Don't do anything if we only have 1 tab or if the current tab is
+        // null.
         if (getTabCount() == 1 || current == null) {
-            return null;
+            return candidates;
+        }
+        for (Tab t : mTabs) {
+            if (t.getWebView() != null && t != current && t != current.getParent()) {
+                candidates.add(new TabCandidate(t));
+            }
         }
-        if (mTabQueue.size() == 0) {
+        return candidates;
+    }
+
+    /**
+     * Creates the WebView of a tab restored without one, and loads its saved
+     * state, while the tab stays in the background.
+     * @return true if the WebView was created.
+     */
+    boolean restoreInBackground(Tab t) {
+        if (t.getWebView() != null || !mTabs.contains(t) || t == getCurrentTab()) {
+            return false;
+        }
+        // Same work as in setCurrentTab() except for showing the tab
+        t.setWebView(createNewWebView());
+        return true;
+    }
+
+    /**
+     * @return The least recently used tab with a WebView which is not the
+     *         current tab or its parent. Used to close a tab for good, so
+     *         unlike freeing memory it doesn't go by the eviction policy.
+     */
+    Tab getLeastUsedTab(Tab current) {
+        if (getTabCount() == 1 || current == null) {
             return null;
         }
-        // find a tab which is not the current tab or the parent of the
-        // current tab
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                if (t != current && t != current.getParent()) {
-                    return t;
-                }
+        Tab leastUsed = null;
+        for (Tab t : mTabs) {
+            if (t.getWebView() != null && t != current && t != current.getParent()
+                    && (leastUsed == null
+                            || getLastUsedTime(t) < getLastUsedTime(leastUsed))) {
+                leastUsed = t;
             }
         }
-        return null;
+        return leastUsed;
     }
 
     /**
@@ -646,20 +799,16 @@ class TabControl {
         if (current == newTab && !force) {
             return true;
         }
+        long now = SystemClock.uptimeMillis();
         if (current != null) {
             current.putInBackground();
             mCurrentTab = -1;
+            mLastUsedTimes.put(current, now);
         }
         if (newTab == null) {
             return false;
         }
-
-        // Move the newTab to the end of the queue
-        int index = mTabQueue.indexOf(newTab);
-        if (index != -1) {
-            mTabQueue.remove(index);
-        }
-        mTabQueue.add(newTab);
+        mLastUsedTimes.put(newTab, now);
 
         // Display the new current tab
         mCurrentTab = mTabs.indexOf(newTab);
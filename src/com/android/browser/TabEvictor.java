@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the background tabs whose WebViews get destroyed when memory is
+ * low. Each trim level asks for a fraction of the memory held by the
+ * candidate tabs back, and tabs are evicted one at a time, highest
+ * {@link Policy} score first, until that much is freed.
+ */
+class TabEvictor {
+
+    /**
+     * A tab that could be evicted, as seen by the policy.
+     */
+    interface Candidate {
+        /** Estimated memory held by the tab's WebViews, in bytes */
+        long getFootprint();
+
+        /** Uptime in ms at which the tab was last the current tab */
+        long getLastUsedTime();
+
+        /** Whether the tab is loading a page, which would be lost */
+        boolean isLoading();
+
+        /** Whether the user has typed into the page, which would be lost */
+        boolean hasFormInput();
+    }
+
+    /**
+     * Scores candidates for eviction.
+     */
+    interface Policy {
+        /**
+         * @return How much the candidate should be evicted, candidates with
+         *         higher scores go first.
+         */
+        float score(Candidate candidate, long now);
+    }
+
+    // Background tabs idle for this long count half as recently used
+    private static final long IDLE_HALF_LIFE = 5 * 60 * 1000;
+    // Restoring these is costly, so they need to be that much bigger or
+    // older to be evicted
+    private static final float LOADING_PENALTY = 4;
+    private static final float FORM_INPUT_PENALTY = 16;
+
+    /**
+     * Evicts big and long unused tabs first, and avoids tabs that would
+     * lose a page load or form input.
+     */
+    static final Policy DEFAULT_POLICY = new Policy() {
+        @Override
+        public float score(Candidate candidate, long now) {
+            long idle = Math.max(0, now - candidate.getLastUsedTime());
+            // From 0.25 for a tab that was just used to 1.25 for a
+            // forgotten one
+            float age = 0.25f + idle / (float) (idle + IDLE_HALF_LIFE);
+            float score = candidate.getFootprint() * age;
+            if (candidate.isLoading()) {
+                score /= LOADING_PENALTY;
+            }
+            if (candidate.hasFormInput()) {
+                score /= FORM_INPUT_PENALTY;
+            }
+            return score;
+        }
+    };
+
+    /**
+     * Evicts the least recently used tabs first.
+     */
+    static final Policy LRU_POLICY = new Policy() {
+        @Override
+        public float score(Candidate candidate, long now) {
+            return now - candidate.getLastUsedTime();
+        }
+    };
+
+    // The most any trim level frees, which is what onLowMemory used to
+    static final float MAX_TRIM_FRACTION = 0.5f;
+
+    // What a WebView costs before it shows anything
+    static final long WEBVIEW_BASE_FOOTPRINT = 2 * 1024 * 1024;
+    // Bytes per back/forward list entry
+    static final long HISTORY_ENTRY_FOOTPRINT = 16 * 1024;
+    // Screens of content beyond the visible one that are kept rendered
+    private static final int CACHED_SCREENS = 2;
+
+    private Policy mPolicy;
+
+    TabEvictor(Policy policy) {
+        mPolicy = policy;
+    }
+
+    void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return The fraction of the candidates' memory to free for the given
+     *         {@link ComponentCallbacks2} trim level.
+     */
+    static float getTrimFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return MAX_TRIM_FRACTION;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // The process is still near the top of the LRU list, and the
+            // user may come right back
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return MAX_TRIM_FRACTION;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.125f;
+        }
+        return 0f;
+    }
+
+    /**
+     * Estimates the memory held by a WebView.
+     * @param width The view width in pixels.
+     * @param height The view height in pixels.
+     * @param contentHeight The content height in pixels, at the current
+     *        scale.
+     * @param historySize The number of back/forward list entries.
+     */
+    static long estimateFootprint(int width, int height, int contentHeight,
+            int historySize) {
+        long rendered = Math.min(contentHeight, (long) height * (1 + CACHED_SCREENS));
+        return WEBVIEW_BASE_FOOTPRINT + Math.max(0, rendered) * Math.max(0, width) * 4
+                + historySize * HISTORY_ENTRY_FOOTPRINT;
+    }
+
+    static long getTotalFootprint(List<? extends Candidate> candidates) {
+        long total = 0;
+        for (Candidate c : candidates) {
+            total += c.getFootprint();
+        }
+        return total;
+    }
+
+    /**
+     * Picks the candidates to evict for the given trim level. Like
+     * onLowMemory used to, never evicts more than half of the open tabs,
+     * counting the current one.
+     * @param candidates The tabs that may be evicted.
+     * @return The candidates to evict, in order.
+     */
+    <T extends Candidate> List<T> selectVictimsForTrim(List<T> candidates, int level,
+            long now) {
+        long target = (long) (getTrimFraction(level) * getTotalFootprint(candidates));
+        List<T> victims = selectVictims(candidates, target, now);
+        int max = (candidates.size() + 1) / 2;
+        return victims.size() > max ? victims.subList(0, max) : victims;
+    }
+
+    /**
+     * Picks candidates to evict, best first, until their footprints add
+     * up to at least bytesToFree.
+     */
+    <T extends Candidate> List<T> selectVictims(List<T> candidates, long bytesToFree,
+            long now) {
+        ArrayList<T> victims = new ArrayList<T>();
+        if (bytesToFree <= 0 || candidates.isEmpty()) {
+            return victims;
+        }
+        victims.addAll(candidates);
+        Collections.sort(victims, new ScoreComparator(now));
+        long freed = 0;
+        int count = 0;
+        while (count < victims.size() && freed < bytesToFree) {
+            freed += victims.get(count++).getFootprint();
+        }
+        return new ArrayList<T>(victims.subList(0, count));
+    }
+
+    private class ScoreComparator implements Comparator<Candidate> {
+        private final long mNow;
+
+        ScoreComparator(long now) {
+            mNow = now;
+        }
+
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            return Float.compare(mPolicy.score(rhs, mNow), mPolicy.score(lhs, mNow));
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Restores the WebViews of the tabs the user is most likely to switch to
+ * next after the browser state was restored, so that switching to them
+ * doesn't have to wait for a cold load. Tabs are restored one at a time,
+ * only while the current tab isn't loading, the UI thread is idle and
+ * there is memory to spare. Also reports how long the user waited for each
+ * restored tab once switching to it.
+ */
+class TabRestoreScheduler {
+
+    private static final String LOGTAG = "TabRestoreScheduler";
+
+    // Most tabs restored ahead of time
+    static final int MAX_PREWARM_TABS = 3;
+    // Let the current tab start loading first
+    private static final long START_DELAY = 1000;
+    // How long to wait before checking again when busy
+    private static final long BUSY_DELAY = 500;
+    // A tab that takes longer than this to load stops holding up the next
+    private static final long RESTORE_TIMEOUT = 30 * 1000;
+    // Memory classes below this only get one tab restored ahead of time
+    private static final int LOW_MEMORY_CLASS = 32;
+    // Java heap that has to remain free after restoring a tab
+    private static final long MIN_HEAP_HEADROOM = 4 * 1024 * 1024;
+
+    private static final int MSG_RESTORE_NEXT = 1;
+
+    private final TabControl mTabControl;
+    private final ActivityManager mActivityManager;
+    private final Handler mHandler;
+
+    // Tabs still to be restored, most likely first
+    private final LinkedList<Tab> mQueue = new LinkedList<Tab>();
+    // The tab being restored in the background, if any
+    private Tab mRestoring;
+    // Uptime at which each tab started loading its restored state
+    private final HashMap<Tab, Long> mStartTimes = new HashMap<Tab, Long>();
+    // Uptime at which each tab was shown while still loading
+    private final HashMap<Tab, Long> mShownTimes = new HashMap<Tab, Long>();
+    // Tabs restored in the background that finished loading
+    private final HashMap<Tab, Long> mReadyTimes = new HashMap<Tab, Long>();
+    // Time the user waited for each restored tab after switching to it, by
+    // tab id
+    private final HashMap<Long, Long> mTimeToInteractive = new HashMap<Long, Long>();
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            restoreNext();
+            return false;
+        }
+    };
+
+    TabRestoreScheduler(Context context, TabControl tabControl) {
+        mTabControl = tabControl;
+        mActivityManager = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        mHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_RESTORE_NEXT) {
+                    // Wait for the UI to be idle
+                    Looper.myQueue().addIdleHandler(mIdleHandler);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts restoring the most likely next tabs of the ones restored
+     * without a WebView.
+     */
+    void start(Tab current) {
+        cancel();
+        List<Tab> tabs = mTabControl.getTabs();
+        ArrayList<Tab> candidates = new ArrayList<Tab>();
+        for (Tab t : tabs) {
+            if (t != current && t.getWebView() == null) {
+                candidates.add(t);
+            }
+        }
+        int max = mActivityManager.getMemoryClass() < LOW_MEMORY_CLASS
+                ? 1 : MAX_PREWARM_TABS;
+        mQueue.addAll(rank(candidates, current, getMruOrder(tabs), max));
+        if (!mQueue.isEmpty()) {
+            mHandler.sendEmptyMessageDelayed(MSG_RESTORE_NEXT, START_DELAY);
+        }
+    }
+
+    /**
+     * Stops restoring tabs. A tab that is being restored finishes loading.
+     * Must be called on the UI thread.
+     */
+    void cancel() {
+        mQueue.clear();
+        mHandler.removeMessages(MSG_RESTORE_NEXT);
+        Looper.myQueue().removeIdleHandler(mIdleHandler);
+    }
+
+    private List<Tab> getMruOrder(List<Tab> tabs) {
+        ArrayList<Tab> mru = new ArrayList<Tab>(tabs);
+        Collections.sort(mru, new Comparator<Tab>() {
+            @Override
+            public int compare(Tab lhs, Tab rhs) {
+                long l = mTabControl.getLastUsedTime(lhs);
+                long r = mTabControl.getLastUsedTime(rhs);
+                return l > r ? -1 : (l < r ? 1 : 0);
+            }
+        });
+        return mru;
+    }
+
+    /**
+     * Orders the candidates by how likely the user is to switch to them
+     * next: the parent and children of the current tab first, then the
+     * others, most recently used first.
+     * @param mru All tabs, most recently used first.
+     * @return The first max candidates in that order.
+     */
+    static List<Tab> rank(List<Tab> candidates, Tab current, final List<Tab> mru, int max) {
+        final ArrayList<Tab> related = new ArrayList<Tab>();
+        if (current != null) {
+            if (current.getParent() != null) {
+                related.add(current.getParent());
+            }
+            if (current.getChildren() != null) {
+                related.addAll(current.getChildren());
+            }
+        }
+        ArrayList<Tab> ranked = new ArrayList<Tab>(candidates);
+        Collections.sort(ranked, new Comparator<Tab>() {
+            @Override
+            public int compare(Tab lhs, Tab rhs) {
+                boolean l = related.contains(lhs);
+                boolean r = related.contains(rhs);
+                if (l != r) {
+                    return l ? -1 : 1;
+                }
+                return mru.indexOf(lhs) - mru.indexOf(rhs);
+            }
+        });
+        while (ranked.size() > max) {
+            ranked.remove(ranked.size() - 1);
+        }
+        return ranked;
+    }
+
+    private boolean isBusy(long now) {
+        if (mRestoring != null) {
+            Long start = mStartTimes.get(mRestoring);
+            if (start == null || now - start < RESTORE_TIMEOUT) {
+                return true;
+            }
+            Log.w(LOGTAG, "Tab " + mRestoring.getId() + " is taking too long to restore");
+            mRestoring = null;
+        }
+        Tab current = mTabControl.getCurrentTab();
+        return current != null && current.inPageLoad();
+    }
+
+    private boolean hasMemoryHeadroom() {
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        mActivityManager.getMemoryInfo(info);
+        if (info.lowMemory || info.availMem < info.threshold * 2) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used > MIN_HEAP_HEADROOM;
+    }
+
+    private void restoreNext() {
+        long now = SystemClock.uptimeMillis();
+        if (mQueue.isEmpty()) {
+            return;
+        }
+        if (isBusy(now)) {
+            mHandler.sendEmptyMessageDelayed(MSG_RESTORE_NEXT, BUSY_DELAY);
+            return;
+        }
+        if (!hasMemoryHeadroom()) {
+            Log.i(LOGTAG, "Low on memory, not restoring " + mQueue.size() + " more tabs");
+            cancel();
+            return;
+        }
+        Tab t = mQueue.removeFirst();
+        if (mTabControl.restoreInBackground(t)) {
+            mRestoring = t;
+            mStartTimes.put(t, now);
+        } else {
+            mHandler.sendEmptyMessage(MSG_RESTORE_NEXT);
+        }
+    }
+
+    /**
+     * Called before the tab becomes the current tab.
+     * @param hasWebView Whether the tab has a WebView, if not, it has to be
+     *        restored now.
+     */
+    void onTabShown(Tab t, boolean hasWebView) {
+        mQueue.remove(t);
+        long now = SystemClock.uptimeMillis();
+        if (!hasWebView) {
+            // Restored on the spot
+            mStartTimes.put(t, now);
+            mShownTimes.put(t, now);
+        } else if (mReadyTimes.remove(t) != null) {
+            report(t, 0, true);
+        } else if (mStartTimes.containsKey(t)) {
+            // Still loading
+            mShownTimes.put(t, now);
+        }
+    }
+
+    void onPageFinished(Tab t) {
+        Long start = mStartTimes.remove(t);
+        if (start == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        boolean background = t == mRestoring;
+        Long shown = mShownTimes.remove(t);
+        if (shown != null) {
+            report(t, now - shown, shown > start);
+        } else {
+            mReadyTimes.put(t, now);
+            Log.i(LOGTAG, "Tab " + t.getId() + " restored in the background in "
+                    + (now - start) + "ms");
+        }
+        if (background) {
+            mRestoring = null;
+            if (t != mTabControl.getCurrentTab()) {
+                // Like any other background tab
+                t.pause();
+            }
+            if (!mQueue.isEmpty()) {
+                mHandler.sendEmptyMessageDelayed(MSG_RESTORE_NEXT, BUSY_DELAY);
+            }
+        }
+    }
+
+    void onTabRemoved(Tab t) {
+        mQueue.remove(t);
+        mStartTimes.remove(t);
+        mShownTimes.remove(t);
+        mReadyTimes.remove(t);
+        if (t == mRestoring) {
+            mRestoring = null;
+            if (!mQueue.isEmpty()) {
+                mHandler.sendEmptyMessage(MSG_RESTORE_NEXT);
+            }
+        }
+    }
+
+    private void report(Tab t, long timeToInteractive, boolean prewarmed) {
+        mTimeToInteractive.put(t.getId(), timeToInteractive);
+        Log.i(LOGTAG, "Tab " + t.getId() + " interactive " + timeToInteractive
+                + "ms after switching to it"
+                + (prewarmed ? ", restored in the background" : ", restored on switch"));
+    }
+
+    /**
+     * @return How long the user waited for the restored tab after switching
+     *         to it, or -1 if it hasn't been switched to or isn't loaded yet.
+     */
+    long getTimeToInteractive(long tabId) {
+        Long time = mTimeToInteractive.get(tabId);
+        return time != null ? time : -1;
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persists tab thumbnails as one file per tab, encoded with a pluggable
+ * {@link Codec}. The total size on disk is kept under a byte budget by
+ * evicting the least recently used thumbnails.
+ *
+ * Not thread safe, all calls are expected to come from the same thread.
+ */
+class TabThumbnailStore {
+
+    private static final String LOGTAG = "TabThumbnailStore";
+    private static final String DIRECTORY = "tab_thumbnails";
+    private static final String SUFFIX = ".thumb";
+    private static final int BUFFER_SIZE = 8192;
+    // Codec id, width and height
+    private static final int HEADER_SIZE = 9;
+
+    static final long DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+    /**
+     * Encodes a capture to a stream, and decodes it back into a bitmap of
+     * the same size and config.
+     */
+    interface Codec {
+        /** Identifies the codec in the file header, must be unique */
+        int getId();
+        void encode(Bitmap capture, OutputStream out) throws IOException;
+        void decode(InputStream in, Bitmap into) throws IOException;
+    }
+
+    /**
+     * Stores the pixels exactly as the bitmap holds them.
+     */
+    static class RawCodec implements Codec {
+        static final int ID = 1;
+
+        private ByteBuffer mBuffer;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+
+        @Override
+        public void encode(Bitmap capture, OutputStream out) throws IOException {
+            mBuffer = copyPixels(capture, mBuffer);
+            out.write(mBuffer.array(), 0, capture.getByteCount());
+        }
+
+        @Override
+        public void decode(InputStream in, Bitmap into) throws IOException {
+            byte[] data = new byte[into.getByteCount()];
+            new DataInputStream(in).readFully(data);
+            into.copyPixelsFromBuffer(ByteBuffer.wrap(data));
+        }
+    }
+
+    /**
+     * Stores the capture as a PNG. Smallest output, but the slowest to write.
+     */
+    static class PngCodec implements Codec {
+        static final int ID = 2;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+
+        @Override
+        public void encode(Bitmap capture, OutputStream out) throws IOException {
+            if (!capture.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                throw new IOException("PNG compression failed");
+            }
+        }
+
+        @Override
+        public void decode(InputStream in, Bitmap into) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = into.getConfig();
+            options.inDither = false;
+            Bitmap decoded = BitmapFactory.decodeStream(in, null, options);
+            if (decoded == null) {
+                throw new IOException("Failed to decode PNG thumbnail");
+            }
+            Canvas c = new Canvas(into);
+            c.drawBitmap(decoded, 0, 0, null);
+            c.setBitmap(null);
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * Cheap run length coding of 16 bit pixels. Each pixel is stored as the
+     * difference from the pixel before it, and runs of identical differences
+     * are collapsed. Flat backgrounds and gradients, which make up most of
+     * a page thumbnail, reduce to a handful of bytes.
+     *
+     * Only valid for 2 byte per pixel configs such as RGB_565.
+     */
+    static class DeltaRleCodec implements Codec {
+        static final int ID = 3;
+        private static final int MAX_RUN = 0xFFFF;
+
+        private ByteBuffer mBuffer;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+
+        @Override
+        public void encode(Bitmap capture, OutputStream out) throws IOException {
+            mBuffer = copyPixels(capture, mBuffer);
+            byte[] px = mBuffer.array();
+            int count = capture.getByteCount() / 2;
+            DataOutputStream dout = new DataOutputStream(out);
+            int prev = 0;
+            int runValue = -1;
+            int runLength = 0;
+            for (int i = 0; i < count; i++) {
+                int pixel = (px[i * 2] & 0xFF) | ((px[i * 2 + 1] & 0xFF) << 8);
+                int delta = (pixel - prev) & 0xFFFF;
+                prev = pixel;
+                if (delta == runValue && runLength < MAX_RUN) {
+                    runLength++;
+                    continue;
+                }
+                if (runLength > 0) {
+                    dout.writeShort(runLength);
+                    dout.writeShort(runValue);
+                }
+                runValue = delta;
+                runLength = 1;
+            }
+            if (runLength > 0) {
+                dout.writeShort(runLength);
+                dout.writeShort(runValue);
+            }
+            dout.flush();
+        }
+
+        @Override
+        public void decode(InputStream in, Bitmap into) throws IOException {
+            int count = into.getByteCount() / 2;
+            byte[] px = new byte[count * 2];
+            DataInputStream din = new DataInputStream(in);
+            int prev = 0;
+            int i = 0;
+            while (i < count) {
+                int runLength = din.readUnsignedShort();
+                int delta = din.readUnsignedShort();
+                if (runLength == 0 || i + runLength > count) {
+                    throw new IOException("Corrupt thumbnail run");
+                }
+                for (int end = i + runLength; i < end; i++) {
+                    prev = (prev + delta) & 0xFFFF;
+                    px[i * 2] = (byte) prev;
+                    px[i * 2 + 1] = (byte) (prev >> 8);
+                }
+            }
+            into.copyPixelsFromBuffer(ByteBuffer.wrap(px));
+        }
+    }
+
+    private static ByteBuffer copyPixels(Bitmap capture, ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() < capture.getByteCount()) {
+            buffer = ByteBuffer.allocate(capture.getByteCount());
+        }
+        buffer.rewind();
+        capture.copyPixelsToBuffer(buffer);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private final File mDirectory;
+    private final Codec mCodec;
+    private final Codec[] mDecoders;
+    private final long mBudget;
+    // id -> file size, in access order so the eldest entry is evicted first
+    private final LinkedHashMap<Long, Long> mEntries =
+            new LinkedHashMap<Long, Long>(16, 0.75f, true);
+    private long mTotalBytes;
+    private int mEvictions;
+    private int mRawFallbacks;
+    // Only created once a capture doesn't shrink with mCodec
+    private RawCodec mRawCodec;
+
+    TabThumbnailStore(Context context) {
+        this(new File(context.getFilesDir(), DIRECTORY), new DeltaRleCodec(),
+                DEFAULT_BUDGET);
+    }
+
+    TabThumbnailStore(File directory, Codec codec, long budget) {
+        mDirectory = directory;
+        mCodec = codec;
+        mBudget = budget;
+        // Files written with a different codec are still readable
+        mDecoders = new Codec[] { new RawCodec(), new PngCodec(), new DeltaRleCodec() };
+        mDirectory.mkdirs();
+        loadIndex();
+    }
+
+    private void loadIndex() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so the access order starts out as the write order
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                mEntries.put(id, f.length());
+                mTotalBytes += f.length();
+            } catch (NumberFormatException e) {
+                f.delete();
+            }
+        }
+    }
+
+    private File getFile(long id) {
+        return new File(mDirectory, id + SUFFIX);
+    }
+
+    /**
+     * Encodes and writes the capture for the given tab, replacing any
+     * previous thumbnail. Captures the codec doesn't shrink, such as noisy
+     * photos, are stored raw instead. Returns false if the write failed.
+     */
+    boolean save(long id, Bitmap capture) {
+        File target = getFile(id);
+        File temp = new File(mDirectory, id + SUFFIX + ".tmp");
+        try {
+            write(temp, mCodec, capture);
+            if (mCodec.getId() != RawCodec.ID
+                    && temp.length() > HEADER_SIZE + capture.getByteCount()) {
+                if (mRawCodec == null) {
+                    mRawCodec = new RawCodec();
+                }
+                write(temp, mRawCodec, capture);
+                mRawFallbacks++;
+            }
+            if (!temp.renameTo(target)) {
+                target.delete();
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Failed to rename " + temp);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to save thumbnail for tab " + id, e);
+            temp.delete();
+            return false;
+        }
+        Long old = mEntries.put(id, target.length());
+        if (old != null) {
+            mTotalBytes -= old;
+        }
+        mTotalBytes += target.length();
+        trimToBudget(id);
+        return true;
+    }
+
+    private static void write(File file, Codec codec, Bitmap capture) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeByte(codec.getId());
+            header.writeInt(capture.getWidth());
+            header.writeInt(capture.getHeight());
+            codec.encode(capture, out);
+            out.close();
+            out = null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    /**
+     * Decodes the stored thumbnail for the tab into the given bitmap, which
+     * must have the same dimensions as the one that was saved.
+     * Returns false if there was no usable thumbnail.
+     */
+    boolean load(long id, Bitmap into) {
+        if (mEntries.get(id) == null) {
+            return false;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFile(id)), BUFFER_SIZE);
+            DataInputStream header = new DataInputStream(in);
+            int codecId = header.readUnsignedByte();
+            int width = header.readInt();
+            int height = header.readInt();
+            if (width != into.getWidth() || height != into.getHeight()) {
+                // Thumbnail size changed, for example after a configuration change
+                delete(id);
+                return false;
+            }
+            for (Codec codec : mDecoders) {
+                if (codec.getId() == codecId) {
+                    codec.decode(in, into);
+                    return true;
+                }
+            }
+            Log.w(LOGTAG, "Unknown thumbnail codec " + codecId);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to load thumbnail for tab " + id, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+        delete(id);
+        return false;
+    }
+
+    void delete(long id) {
+        Long size = mEntries.remove(id);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        getFile(id).delete();
+    }
+
+    /**
+     * Deletes every thumbnail that doesn't belong to one of the given tabs.
+     * A null or empty collection deletes all of them.
+     */
+    void retainAll(Collection<Long> ids) {
+        Iterator<Map.Entry<Long, Long>> iter = mEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> entry = iter.next();
+            if (ids == null || !ids.contains(entry.getKey())) {
+                getFile(entry.getKey()).delete();
+                mTotalBytes -= entry.getValue();
+                iter.remove();
+            }
+        }
+    }
+
+    private void trimToBudget(long keepId) {
+        Iterator<Map.Entry<Long, Long>> iter = mEntries.entrySet().iterator();
+        while (mTotalBytes > mBudget && iter.hasNext()) {
+            Map.Entry<Long, Long> entry = iter.next();
+            if (entry.getKey() == keepId) {
+                continue;
+            }
+            getFile(entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            iter.remove();
+            mEvictions++;
+        }
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    int getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return The number of captures stored raw as the codec made them larger.
+     */
+    int getRawFallbackCount() {
+        return mRawFallbacks;
+    }
+
+    Codec getCodec() {
+        return mCodec;
+    }
+}
@@ -29,6 +29,8 @@ import android.provider.Browser;
 import android.util.Log;
 import android.webkit.WebView;
 
+import com.android.browser.IntentHandler.UrlData;
+
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -123,6 +125,12 @@ public class UrlHandler {
             return true;
         }
 
+        // A link to the page predicted from this one shows the tab it was
+        // preloaded in, rather than fetching it again
+        if (view == tab.getWebView() && mController.showPredictedTab(tab, new UrlData(url))) {
+            return true;
+        }
+
         return false;
     }
 
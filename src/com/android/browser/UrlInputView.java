@@ -109,6 +109,7 @@ public class UrlInputView extends AutoCompleteTextView
         super.onFocusChanged(focused, direction, prevRect);
         int state = -1;
         if (focused) {
+            mAdapter.warmUp();
             if (hasSelection()) {
                 state = StateListener.STATE_HIGHLIGHTED;
             } else {
@@ -126,6 +127,12 @@ public class UrlInputView extends AutoCompleteTextView
         });
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAdapter.detach();
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent evt) {
         boolean hasSelection = hasSelection();
@@ -321,6 +328,9 @@ public class UrlInputView extends AutoCompleteTextView
         if (StateListener.STATE_HIGHLIGHTED == mState) {
             changeState(StateListener.STATE_EDITED);
         }
+        if (StateListener.STATE_EDITED == mState && !mIncognitoMode) {
+            NavigationPredictor.getInstance().onTyped(s.toString());
+        }
     }
 
     @Override
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+import android.webkit.ValueCallback;
+
+import com.android.browser.provider.BrowserProvider2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The visited URLs WebViews use to color links, loaded from the provider
+ * once per process and then kept up to date as pages are visited. URLs
+ * are deduplicated by a 64 bit hash kept in a {@link LongHashSet}.
+ *
+ * Changes made outside of the browser's UI, such as history truncation
+ * and sync, are followed through the provider: new rows are merged in and
+ * the rows in its log of deletions are removed. The set is only rebuilt
+ * if that log no longer reaches back to the last update.
+ */
+class VisitedHistory {
+
+    private static final String LOGTAG = "VisitedHistory";
+    private static final boolean LOGD_ENABLED = com.android.browser.Browser.LOGD_ENABLED;
+
+    private static final String[] PROJECTION = new String[] {
+            History._ID, // 0
+            History.URL, // 1
+    };
+    private static final String VISITED_SELECTION = History.VISITS + " > 0";
+
+    private static final int MSG_UPDATE = 1;
+    // Coalesce the notifications of a page load
+    private static final long UPDATE_DELAY = 500;
+
+    private static VisitedHistory sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler;
+    private final Handler mUpdateHandler;
+
+    // All guarded by this
+    private final LongHashSet mHashes = new LongHashSet();
+    private String[] mUrls = new String[0];
+    private int mCount;
+    // Number of urls in mUrls whose hash was removed from mHashes
+    private int mRemovedCount;
+    // mUrls trimmed to mCount, shared by the callbacks until the next change
+    private String[] mSnapshot;
+    private boolean mLoaded;
+    private boolean mLoading;
+    // Set if the history was cleared while it was being loaded
+    private boolean mClearedWhileLoading;
+    // Urls visited while the history was being loaded
+    private ArrayList<String> mVisitedWhileLoading = new ArrayList<String>();
+    private ArrayList<ValueCallback<String[]>> mPendingCallbacks =
+            new ArrayList<ValueCallback<String[]>>();
+    // The rows of the provider seen so far
+    private long mMaxId;
+    // The last entry of the provider's log of deletions seen so far
+    private long mLastDeletion;
+    private boolean mObserving;
+
+    static synchronized VisitedHistory getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new VisitedHistory(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private VisitedHistory(Context context) {
+        mContext = context;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mUpdateHandler = new Handler(BackgroundHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_UPDATE) {
+                    update();
+                }
+            }
+        };
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the url.
+     */
+    static long hash(String url) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            h ^= url.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Passes the visited URLs to the callback on the UI thread, loading them
+     * first if this is the first request.
+     */
+    void getVisitedHistory(final ValueCallback<String[]> callback) {
+        final String[] urls;
+        synchronized (this) {
+            if (!mLoaded) {
+                mPendingCallbacks.add(callback);
+                startLoad();
+                return;
+            }
+            urls = getSnapshot();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReceiveValue(urls);
+            }
+        });
+    }
+
+    // Called with the lock held
+    private void startLoad() {
+        if (mLoading) {
+            return;
+        }
+        mLoading = true;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+        ContentResolver cr = mContext.getContentResolver();
+        long lastDeletion = HistoryDeletions.queryLastId(cr);
+        long maxId = 0;
+        ArrayList<String> loaded = new ArrayList<String>();
+        Cursor c = null;
+        try {
+            c = cr.query(History.CONTENT_URI, PROJECTION, VISITED_SELECTION, null, null);
+            if (c != null) {
+                loaded.ensureCapacity(c.getCount());
+                while (c.moveToNext()) {
+                    maxId = Math.max(maxId, c.getLong(0));
+                    loaded.add(c.getString(1));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading visited history: " + e);
+        } finally {
+            if (c != null) c.close();
+        }
+        final String[] urls;
+        final ArrayList<ValueCallback<String[]>> callbacks;
+        synchronized (this) {
+            if (mClearedWhileLoading) {
+                loaded.clear();
+                mClearedWhileLoading = false;
+            }
+            clear();
+            ensureCapacity(loaded.size() + mVisitedWhileLoading.size());
+            for (String url : loaded) {
+                add(url);
+            }
+            // Merge in what was visited in the meantime
+            for (String url : mVisitedWhileLoading) {
+                add(url);
+            }
+            mVisitedWhileLoading.clear();
+            mMaxId = maxId;
+            mLastDeletion = lastDeletion;
+            mLoaded = true;
+            mLoading = false;
+            urls = getSnapshot();
+            callbacks = mPendingCallbacks;
+            mPendingCallbacks = new ArrayList<ValueCallback<String[]>>();
+            if (!mObserving) {
+                mObserving = true;
+                cr.registerContentObserver(History.CONTENT_URI, true,
+                        new ContentObserver(mUpdateHandler) {
+                            @Override
+                            public void onChange(boolean selfChange) {
+                                mUpdateHandler.removeMessages(MSG_UPDATE);
+                                mUpdateHandler.sendEmptyMessageDelayed(MSG_UPDATE,
+                                        UPDATE_DELAY);
+                            }
+                        });
+            }
+        }
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "Loaded " + urls.length + " visited urls in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (callbacks.isEmpty()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ValueCallback<String[]> callback : callbacks) {
+                    callback.onReceiveValue(urls);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follows a change to the history table: removes the urls of the rows
+     * deleted and adds the rows that are new since the last load or update.
+     * Rebuilds the set instead if deletions were dropped from the log.
+     * Runs on the update handler.
+     */
+    private void update() {
+        ContentResolver cr = mContext.getContentResolver();
+        long lastDeletion;
+        long maxId;
+        synchronized (this) {
+            if (!mLoaded || mLoading) {
+                return;
+            }
+            lastDeletion = mLastDeletion;
+            maxId = mMaxId;
+        }
+        // Read before the new rows, so a url deleted and visited again is
+        // removed first and then added back
+        HistoryDeletions deletions = HistoryDeletions.query(cr, lastDeletion);
+        if (!deletions.complete) {
+            synchronized (this) {
+                startLoad();
+            }
+            return;
+        }
+        synchronized (this) {
+            for (String url : deletions.urls) {
+                onDeleted(url);
+            }
+            mLastDeletion = deletions.lastId;
+        }
+        Cursor c = null;
+        try {
+            c = cr.query(History.CONTENT_URI, PROJECTION,
+                    History._ID + " > ? AND " + VISITED_SELECTION,
+                    new String[] { Long.toString(maxId) }, null);
+            if (c == null) {
+                return;
+            }
+            synchronized (this) {
+                while (c.moveToNext()) {
+                    mMaxId = Math.max(mMaxId, c.getLong(0));
+                    add(c.getString(1));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error updating visited history: " + e);
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private String[] getSnapshot() {
+        if (mSnapshot == null) {
+            compact();
+            mSnapshot = Arrays.copyOf(mUrls, mCount);
+        }
+        return mSnapshot;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mUrls.length < capacity) {
+            mUrls = Arrays.copyOf(mUrls, Math.max(capacity, mUrls.length * 3 / 2));
+        }
+    }
+
+    private boolean add(String url) {
+        if (url == null) {
+            return false;
+        }
+        long hash = hash(url);
+        if (mHashes.contains(hash)) {
+            return false;
+        }
+        // A removed url may still be in mUrls
+        compact();
+        mHashes.add(hash);
+        ensureCapacity(mCount + 1);
+        mUrls[mCount++] = url;
+        mSnapshot = null;
+        return true;
+    }
+
+    /**
+     * Drops the urls whose hash was removed from mUrls.
+     */
+    private void compact() {
+        if (mRemovedCount == 0) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mHashes.contains(hash(mUrls[i]))) {
+                mUrls[kept++] = mUrls[i];
+            }
+        }
+        Arrays.fill(mUrls, kept, mCount, null);
+        mCount = kept;
+        mRemovedCount = 0;
+    }
+
+    /**
+     * Records a visit to the url. Can be called from any thread.
+     */
+    synchronized void onVisited(String url) {
+        if (url == null) {
+            return;
+        }
+        // Stored the way the provider stores it
+        url = BrowserProvider2.filterSearchClient(url);
+        if (mLoading) {
+            mVisitedWhileLoading.add(url);
+        }
+        add(url);
+    }
+
+    /**
+     * Forgets the url, after it was deleted from the history. The url is
+     * dropped from the list the next time it is needed.
+     */
+    synchronized void onDeleted(String url) {
+        if (url == null || !mHashes.remove(hash(url))) {
+            return;
+        }
+        mRemovedCount++;
+        mSnapshot = null;
+    }
+
+    /**
+     * Forgets all urls, after the history was cleared.
+     */
+    synchronized void onCleared() {
+        clear();
+        mVisitedWhileLoading.clear();
+        mClearedWhileLoading = mLoading;
+    }
+
+    private void clear() {
+        mHashes.clear();
+        mUrls = new String[0];
+        mCount = 0;
+        mRemovedCount = 0;
+        mSnapshot = null;
+    }
+
+    synchronized int size() {
+        return mHashes.size();
+    }
+}
@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.List;
 
 public class HomeProvider extends ContentProvider {
 
@@ -78,7 +79,7 @@ public class HomeProvider extends ContentProvider {
             ParcelFileDescriptor[] pipes = ParcelFileDescriptor.createPipe();
             final ParcelFileDescriptor write = pipes[1];
             AssetFileDescriptor afd = new AssetFileDescriptor(write, 0, -1);
-            new RequestHandler(getContext(), uri, afd.createOutputStream()).start();
+            RequestHandler.execute(getContext(), uri, afd.createOutputStream());
             return pipes[0];
         } catch (IOException e) {
             Log.e(TAG, "Failed to handle request: " + uri, e);
@@ -95,6 +96,9 @@ public class HomeProvider extends ContentProvider {
                 if (AUTHORITY.equals(uri.getAuthority())) {
                     InputStream ins = context.getContentResolver()
                             .openInputStream(uri);
+                    if (isThumbnail(uri)) {
+                        return new WebResourceResponse("image/png", null, ins);
+                    }
                     return new WebResourceResponse("text/html", "utf-8", ins);
                 }
             }
@@ -102,13 +106,19 @@ public class HomeProvider extends ContentProvider {
             if (listFiles && interceptFile(url)) {
                 PipedInputStream ins = new PipedInputStream();
                 PipedOutputStream outs = new PipedOutputStream(ins);
-                new RequestHandler(context, Uri.parse(url), outs).start();
+                RequestHandler.execute(context, Uri.parse(url), outs);
                 return new WebResourceResponse("text/html", "utf-8", ins);
             }
         } catch (Exception e) {}
         return null;
     }
 
+    private static boolean isThumbnail(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() > 0
+                && MostVisitedCache.THUMBNAIL_PATH.equals(segments.get(0));
+    }
+
     private static boolean interceptFile(String url) {
         if (!url.startsWith("file:///")) {
             return false;
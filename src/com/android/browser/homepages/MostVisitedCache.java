@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.homepages;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.text.TextUtils;
+
+import com.android.browser.R;
+import com.android.browser.provider.BrowserProvider2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The most visited home page, rendered once into a byte buffer and served
+ * from there until its entries change. The thumbnails are served
+ * separately, from {@link #THUMBNAIL_PATH}, so the page stays small.
+ */
+class MostVisitedCache {
+
+    static final String THUMBNAIL_PATH = "thumb";
+    private static final int MAX_ENTRIES = 12;
+
+    // We can reuse this for both History and Bookmarks queries because the
+    // columns defined actually belong to the CommonColumn and ImageColumn
+    // interfaces that both History and Bookmarks implement
+    private static final String[] PROJECTION = new String[] {
+        History.URL,
+        History.TITLE,
+        History.THUMBNAIL
+    };
+    private static final String SELECTION = History.URL
+            + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
+    // The same rows, without reading their thumbnails
+    private static final String[] SIGNATURE_PROJECTION = new String[] {
+        History.URL,
+        History.TITLE,
+        BrowserProvider2.THUMBNAIL_ID
+    };
+    private static final String SIGNATURE_SELECTION = History.URL
+            + " NOT LIKE 'content:%' AND " + BrowserProvider2.THUMBNAIL_ID + " IS NOT NULL";
+
+    private static MostVisitedCache sInstance;
+
+    /**
+     * A url shown on the page.
+     */
+    static class Entry {
+        final String url;
+        final String title;
+        final byte[] thumbnail;
+
+        Entry(String url, String title, byte[] thumbnail) {
+            this.url = url;
+            this.title = title;
+            this.thumbnail = thumbnail;
+        }
+
+        boolean isSame(Entry other) {
+            return TextUtils.equals(url, other.url)
+                    && TextUtils.equals(title, other.title)
+                    && Arrays.equals(thumbnail, other.thumbnail);
+        }
+    }
+
+    /**
+     * A rendered page and its entries. The thumbnail urls include the
+     * generation, so that they are never served for another page.
+     */
+    static class Snapshot {
+        final int generation;
+        final byte[] page;
+        final ArrayList<Entry> entries;
+
+        Snapshot(int generation, byte[] page, ArrayList<Entry> entries) {
+            this.generation = generation;
+            this.page = page;
+            this.entries = entries;
+        }
+
+        /**
+         * @return The thumbnail of the url in the page, or null.
+         */
+        byte[] getThumbnail(int generation, int index) {
+            if (generation != this.generation
+                    || index < 0 || index >= entries.size()) {
+                return null;
+            }
+            return entries.get(index).thumbnail;
+        }
+
+        /**
+         * @return Whether the page shows exactly these entries.
+         */
+        boolean shows(ArrayList<Entry> entries) {
+            if (entries.size() != this.entries.size()) {
+                return false;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                if (!entries.get(i).isSame(this.entries.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Context mContext;
+    // Guarded by this
+    private Snapshot mSnapshot;
+    // The url, title and thumbnail id of each entry of mSnapshot
+    private ArrayList<String> mSignature;
+    private int mGeneration;
+    private int mRenderCount;
+    // Set on any change of history or bookmarks, most of which, like
+    // visit dates of urls not shown, leave the page as it is
+    private volatile boolean mStale = true;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mStale = true;
+        }
+    };
+
+    static synchronized MostVisitedCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MostVisitedCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MostVisitedCache(Context context) {
+        mContext = context;
+        // Thumbnail changes are notified on the history and bookmark uris
+        mContext.getContentResolver().registerContentObserver(
+                History.CONTENT_URI, true, mObserver);
+        mContext.getContentResolver().registerContentObserver(
+                Bookmarks.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * @return The current page, rendered again first if its entries
+     *         changed. The thumbnails are only read when the signature of
+     *         the entries changed.
+     */
+    synchronized Snapshot getSnapshot() throws IOException {
+        if (mSnapshot == null || mStale) {
+            // Cleared first, so that changes during the query aren't lost
+            mStale = false;
+            ArrayList<String> signature = querySignature();
+            if (mSnapshot == null || !signature.equals(mSignature)) {
+                ArrayList<Entry> entries = queryEntries();
+                if (mSnapshot == null || !mSnapshot.shows(entries)) {
+                    mSnapshot = render(++mGeneration, entries);
+                    mRenderCount++;
+                }
+                mSignature = signature;
+            }
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * @return The snapshot the thumbnail urls were last served with.
+     */
+    synchronized Snapshot peekSnapshot() {
+        return mSnapshot;
+    }
+
+    synchronized int getRenderCount() {
+        return mRenderCount;
+    }
+
+    private ArrayList<Entry> queryEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(MAX_ENTRIES);
+        Cursor cursor = query(PROJECTION, SELECTION);
+        try {
+            while (entries.size() < MAX_ENTRIES && cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getString(0), cursor.getString(1),
+                        cursor.getBlob(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return The url, title and thumbnail id of each entry, which change
+     *         whenever the entries do.
+     */
+    private ArrayList<String> querySignature() {
+        ArrayList<String> signature = new ArrayList<String>(MAX_ENTRIES * 3);
+        Cursor cursor = query(SIGNATURE_PROJECTION, SIGNATURE_SELECTION);
+        try {
+            for (int i = 0; i < MAX_ENTRIES && cursor.moveToNext(); i++) {
+                signature.add(cursor.getString(0));
+                signature.add(cursor.getString(1));
+                signature.add(cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return signature;
+    }
+
+    // The most visited history, then the latest bookmarks if there are
+    // too few
+    private Cursor query(String[] projection, String selection) {
+        Cursor historyResults = mContext.getContentResolver().query(
+                History.CONTENT_URI, projection, selection,
+                null, History.VISITS + " DESC LIMIT " + MAX_ENTRIES);
+        if (historyResults.getCount() >= MAX_ENTRIES) {
+            return historyResults;
+        }
+        Cursor bookmarkResults;
+        try {
+            bookmarkResults = mContext.getContentResolver().query(
+                    Bookmarks.CONTENT_URI, projection, selection,
+                    null, Bookmarks.DATE_CREATED + " DESC LIMIT " + MAX_ENTRIES);
+        } catch (RuntimeException e) {
+            historyResults.close();
+            throw e;
+        }
+        return new MergeCursor(new Cursor[] { historyResults, bookmarkResults });
+    }
+
+    private Snapshot render(final int generation, final ArrayList<Entry> entries)
+            throws IOException {
+        Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+        t.assignLoop("most_visited", new Template.ListEntityIterator() {
+            int index = -1;
+
+            @Override
+            public void writeValue(OutputStream stream, String key) throws IOException {
+                Entry entry = entries.get(index);
+                if (key.equals("url")) {
+                    stream.write(htmlEncode(entry.url));
+                } else if (key.equals("title")) {
+                    stream.write(htmlEncode(entry.title));
+                } else if (key.equals("thumbnail")) {
+                    stream.write((THUMBNAIL_PATH + "/" + generation + "/" + index)
+                            .getBytes());
+                }
+            }
+
+            @Override
+            public Template.ListEntityIterator getListIterator(String key) {
+                return null;
+            }
+
+            @Override
+            public void reset() {
+                index = -1;
+            }
+
+            @Override
+            public boolean moveToNext() {
+                return (++index) < entries.size();
+            }
+        });
+        t.write(out);
+        return new Snapshot(generation, out.toByteArray(), entries);
+    }
+
+    private static byte[] htmlEncode(String s) {
+        return TextUtils.htmlEncode(s).getBytes();
+    }
+}
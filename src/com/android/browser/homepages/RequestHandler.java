@@ -19,19 +19,17 @@ package com.android.browser.homepages;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.content.res.Resources;
-import android.database.Cursor;
-import android.database.MergeCursor;
 import android.net.Uri;
-import android.provider.BrowserContract.Bookmarks;
-import android.provider.BrowserContract.History;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import com.android.browser.R;
 import com.android.browser.homepages.Template.ListEntityIterator;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -39,34 +37,91 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class RequestHandler extends Thread {
+public class RequestHandler implements Runnable {
 
     private static final String TAG = "RequestHandler";
     private static final int INDEX = 1;
     private static final int RESOURCE = 2;
+    private static final int THUMBNAIL = 3;
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    // Requests are written to pipes, a reader that stops reading blocks
+    // its thread, so a few are kept
+    private static final int THREADS = 3;
+    private static final ThreadPoolExecutor sExecutor;
+
+    // Time to first byte of the home page, guarded by RequestHandler.class
+    private static int sIndexCount;
+    private static long sIndexFirstByteMillis;
+    private static long sIndexMaxFirstByteMillis;
+
     Uri mUri;
     Context mContext;
     OutputStream mOutput;
+    final long mStartTime;
+    long mFirstByteTime;
 
     static {
         sUriMatcher.addURI(HomeProvider.AUTHORITY, "/", INDEX);
         sUriMatcher.addURI(HomeProvider.AUTHORITY, "res/*/*", RESOURCE);
+        sUriMatcher.addURI(HomeProvider.AUTHORITY,
+                MostVisitedCache.THUMBNAIL_PATH + "/#/#", THUMBNAIL);
+
+        sExecutor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("HomeRequest #" + mCount.getAndIncrement()) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+        sExecutor.allowCoreThreadTimeOut(true);
     }
 
-    public RequestHandler(Context context, Uri uri, OutputStream out) {
+    public RequestHandler(Context context, Uri uri, final OutputStream out) {
         mUri = uri;
         mContext = context.getApplicationContext();
-        mOutput = out;
+        mStartTime = SystemClock.uptimeMillis();
+        mOutput = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                onWrite();
+                out.write(buffer, offset, length);
+            }
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                onWrite();
+                out.write(oneByte);
+            }
+        };
+    }
+
+    /**
+     * Handles the request on one of the request threads.
+     */
+    public static void execute(Context context, Uri uri, OutputStream out) {
+        sExecutor.execute(new RequestHandler(context, uri, out));
     }
 
     @Override
     public void run() {
-        super.run();
         try {
             doHandleRequest();
         } catch (Exception e) {
@@ -76,6 +131,40 @@ public class RequestHandler extends Thread {
         }
     }
 
+    private void onWrite() {
+        if (mFirstByteTime == 0) {
+            mFirstByteTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    private void reportIndexFirstByte(boolean rendered) {
+        if (mFirstByteTime == 0) {
+            return;
+        }
+        long firstByte = mFirstByteTime - mStartTime;
+        synchronized (RequestHandler.class) {
+            sIndexCount++;
+            sIndexFirstByteMillis += firstByte;
+            sIndexMaxFirstByteMillis = Math.max(sIndexMaxFirstByteMillis, firstByte);
+        }
+        Log.i(TAG, "Home page first byte after " + firstByte + "ms"
+                + (rendered ? ", rendered" : ", from cache"));
+    }
+
+    /** Number of home page requests answered */
+    static synchronized int getIndexCount() {
+        return sIndexCount;
+    }
+
+    /** Average time to first byte of the home page */
+    static synchronized long getAverageIndexFirstByteMillis() {
+        return sIndexCount > 0 ? sIndexFirstByteMillis / sIndexCount : 0;
+    }
+
+    static synchronized long getMaxIndexFirstByteMillis() {
+        return sIndexMaxFirstByteMillis;
+    }
+
     void doHandleRequest() throws IOException {
         if ("file".equals(mUri.getScheme())) {
             writeFolderIndex();
@@ -89,6 +178,9 @@ public class RequestHandler extends Thread {
         case RESOURCE:
             writeResource(getUriResourcePath());
             break;
+        case THUMBNAIL:
+            writeThumbnail();
+            break;
         }
     }
 
@@ -96,52 +188,25 @@ public class RequestHandler extends Thread {
         return TextUtils.htmlEncode(s).getBytes();
     }
 
-    // We can reuse this for both History and Bookmarks queries because the
-    // columns defined actually belong to the CommonColumn and ImageColumn
-    // interfaces that both History and Bookmarks implement
-    private static final String[] PROJECTION = new String[] {
-        History.URL,
-        History.TITLE,
-        History.THUMBNAIL
-    };
-    private static final String SELECTION = History.URL
-            + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
     void writeTemplatedIndex() throws IOException {
-        Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
-        Cursor historyResults = mContext.getContentResolver().query(
-                History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
-        Cursor cursor = historyResults;
-        try {
-            if (cursor.getCount() < 12) {
-                Cursor bookmarkResults = mContext.getContentResolver().query(
-                        Bookmarks.CONTENT_URI, PROJECTION, SELECTION,
-                        null, Bookmarks.DATE_CREATED + " DESC LIMIT 12");
-                cursor = new MergeCursor(new Cursor[] { historyResults, bookmarkResults }) {
-                    @Override
-                    public int getCount() {
-                        return Math.min(12, super.getCount());
-                    }
-                };
-            }
-            t.assignLoop("most_visited", new Template.CursorListEntityWrapper(cursor) {
-                @Override
-                public void writeValue(OutputStream stream, String key) throws IOException {
-                    Cursor cursor = getCursor();
-                    if (key.equals("url")) {
-                        stream.write(htmlEncode(cursor.getString(0)));
-                    } else if (key.equals("title")) {
-                        stream.write(htmlEncode(cursor.getString(1)));
-                    } else if (key.equals("thumbnail")) {
-                        stream.write("data:image/png;base64,".getBytes());
-                        byte[] thumb = cursor.getBlob(2);
-                        stream.write(Base64.encode(thumb, Base64.DEFAULT));
-                    }
-                }
-            });
-            t.write(mOutput);
-        } finally {
-            cursor.close();
+        MostVisitedCache cache = MostVisitedCache.getInstance(mContext);
+        int renderCount = cache.getRenderCount();
+        MostVisitedCache.Snapshot snapshot = cache.getSnapshot();
+        mOutput.write(snapshot.page);
+        reportIndexFirstByte(cache.getRenderCount() != renderCount);
+    }
+
+    void writeThumbnail() throws IOException {
+        List<String> segments = mUri.getPathSegments();
+        MostVisitedCache.Snapshot snapshot =
+                MostVisitedCache.getInstance(mContext).peekSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        byte[] thumbnail = snapshot.getThumbnail(Integer.parseInt(segments.get(1)),
+                Integer.parseInt(segments.get(2)));
+        if (thumbnail != null) {
+            mOutput.write(thumbnail);
         }
     }
 
@@ -20,12 +20,16 @@ import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceFragment;
+import android.widget.Toast;
 
 import com.android.browser.BrowserSettings;
 import com.android.browser.GoogleAccountLogin;
+import com.android.browser.Performance;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.R;
 
+import java.io.File;
+
 public class DebugPreferencesFragment extends PreferenceFragment
         implements OnPreferenceClickListener {
     @Override
@@ -37,6 +41,8 @@ public class DebugPreferencesFragment extends PreferenceFragment
 
         Preference e = findPreference(PreferenceKeys.PREF_RESET_PRELOGIN);
         e.setOnPreferenceClickListener(this);
+        e = findPreference(PreferenceKeys.PREF_EXPORT_PAGE_LOAD_TRACES);
+        e.setOnPreferenceClickListener(this);
     }
 
     @Override
@@ -47,6 +53,14 @@ public class DebugPreferencesFragment extends PreferenceFragment
                     .apply();
             return true;
         }
+        if (PreferenceKeys.PREF_EXPORT_PAGE_LOAD_TRACES.equals(preference.getKey())) {
+            File dir = getActivity().getExternalFilesDir(null);
+            if (dir != null) {
+                Performance.exportTraces(getActivity(), dir);
+                Toast.makeText(getActivity(), dir.getPath(), Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        }
         return false;
     }
 }
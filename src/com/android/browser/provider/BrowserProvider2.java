@@ -36,6 +36,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -52,7 +54,9 @@ import android.provider.BrowserContract.SyncState;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
 import android.text.TextUtils;
+import android.util.Log;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.R;
 import com.android.browser.UrlUtils;
 import com.android.browser.widget.BookmarkThumbnailWidgetProvider;
@@ -64,15 +68,29 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
+    private static final String TAG = "BrowserProvider2";
+
     public static final String PARAM_GROUP_BY = "groupBy";
     public static final String PARAM_ALLOW_EMPTY_ACCOUNTS = "allowEmptyAccounts";
 
+    /**
+     * Counts the combined rows by last visit date instead of returning them.
+     * The value is a comma separated list of bin boundaries in ms, most
+     * recent first, like those of {@link android.webkit.DateSorter}. A row
+     * falls into the first bin whose boundary it was last visited after,
+     * or the bin after the last boundary. The cursor has a
+     * {@link #DATE_BIN} and a {@link #DATE_BIN_COUNT} column, with a row
+     * for each non empty bin in order.
+     */
+    public static final String PARAM_DATE_BINS = "dateBins";
+    public static final String DATE_BIN = "date_bin";
+    public static final String DATE_BIN_COUNT = "date_bin_count";
+
     public static final String LEGACY_AUTHORITY = "browser";
     static final Uri LEGACY_AUTHORITY_URI = new Uri.Builder()
             .authority(LEGACY_AUTHORITY).scheme("content").build();
@@ -93,6 +111,31 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String IS_BOOKMARK = "bookmark";
     }
 
+    /**
+     * The log of deleted history rows, newest last. Only the latest
+     * {@link #DELETED_HISTORY_SIZE} entries are kept: a reader that finds
+     * the entries after its last one gone has to reload history.
+     */
+    public static interface DeletedHistory {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "deleted_history");
+        public static final String _ID = "_id";
+        public static final String HISTORY_ID = "history_id";
+        public static final String URL = "url";
+    }
+
+    // Column of history and bookmarks queries: the id of the stored
+    // thumbnail of the url. Images are stored once per content, so the id
+    // changes whenever the thumbnail does, and is read without the image.
+    public static final String THUMBNAIL_ID = "thumbnail_id";
+
+    // Setting counting bookmark edits, which in memory copies of the table
+    // can't follow from new rows alone. History deletions are followed
+    // with DeletedHistory instead.
+    public static final String SETTING_BOOKMARKS_VERSION = "bookmarks_version";
+    // The counter of history deletions of version 36
+    private static final String SETTING_HISTORY_DELETES = "history_deletes";
+
     static final String TABLE_BOOKMARKS = "bookmarks";
     static final String TABLE_HISTORY = "history";
     static final String TABLE_IMAGES = "images";
@@ -101,6 +144,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
+    static final String TABLE_SUGGEST_INDEX = "suggest_index";
+    static final String TABLE_IMAGE_ORPHANS = "image_orphans";
+    static final String TABLE_DELETED_HISTORY = "deleted_history";
+
+    // Columns of TABLE_SUGGEST_INDEX, which maps lowercase prefix search keys
+    // to the history rows they belong to
+    private static final String SUGGEST_INDEX_HISTORY_ID = "history_id";
+    private static final String SUGGEST_INDEX_BOOKMARK_ID = "bookmark_id";
+    private static final String SUGGEST_INDEX_KEY = "key";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
@@ -123,6 +175,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     private static final String TABLE_BOOKMARKS_JOIN_HISTORY =
         "history LEFT OUTER JOIN bookmarks ON history.url = bookmarks.url";
+    private static final String TABLE_BOOKMARKS_JOIN_HISTORY_INNER =
+        "history JOIN bookmarks ON history.url = bookmarks.url";
 
     private static final String[] SUGGEST_PROJECTION = new String[] {
             qualifyColumn(TABLE_HISTORY, History._ID),
@@ -137,6 +191,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
             + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
 
+    // Narrows the suggestions down to the history rows with a key starting
+    // with the input, so that SUGGEST_SELECTION only has to check those
+    private static final String SUGGEST_INDEX_SELECTION =
+            "history._id IN (SELECT " + SUGGEST_INDEX_HISTORY_ID
+            + " FROM " + TABLE_SUGGEST_INDEX + " WHERE "
+            + SUGGEST_INDEX_KEY + " >= lower(?) AND "
+            + SUGGEST_INDEX_KEY + " < lower(?) || ?)";
+
+    // Sorts after any key starting with the same prefix
+    private static final String SUGGEST_INDEX_KEY_MAX = "\uDBFF\uDFFF";
+
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
@@ -145,9 +210,34 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
             "(SELECT url FROM history WHERE url IS NOT NULL)";
 
+    // Column of TABLE_IMAGE_ORPHANS, the urls which may have lost the last
+    // row using their images
+    private static final String IMAGE_ORPHAN_URL = "url";
+
+    // Images are collected in batches, once writes have stopped for
+    // IMAGE_GC_DELAY, so a delete never waits for a scan of the history
+    static final int IMAGE_GC_BATCH = 200;
+    private static final long IMAGE_GC_DELAY = 5000;
+    private static final long IMAGE_GC_BATCH_INTERVAL = 100;
+
+    private static final String IMAGE_GC_BATCH_SELECTION =
+            "SELECT " + IMAGE_ORPHAN_URL + " FROM " + TABLE_IMAGE_ORPHANS +
+            " ORDER BY rowid LIMIT " + IMAGE_GC_BATCH;
+
+    // Uses the url indices rather than scanning bookmarks and history
+    private static final String IMAGE_GC_SELECTION =
+            "url_key IN (" + IMAGE_GC_BATCH_SELECTION + ") AND NOT EXISTS " +
+            "(SELECT 1 FROM bookmarks WHERE bookmarks.url = url_key AND deleted == 0) " +
+            "AND NOT EXISTS (SELECT 1 FROM history WHERE history.url = url_key)";
+
+    // Entries kept in TABLE_DELETED_HISTORY. Readers further behind, as
+    // after clearing a long history, load history again instead
+    static final int DELETED_HISTORY_SIZE = 1000;
+
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
     static final int OMNIBOX_SUGGESTIONS = 20;
+    static final int DELETED_HISTORY = 30;
 
     static final int BOOKMARKS = 1000;
     static final int BOOKMARKS_ID = 1001;
@@ -228,6 +318,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "thumbnails", THUMBNAILS);
         matcher.addURI(authority, "thumbnails/#", THUMBNAILS_ID);
         matcher.addURI(authority, "omnibox_suggestions", OMNIBOX_SUGGESTIONS);
+        matcher.addURI(authority, "deleted_history", DELETED_HISTORY);
 
         // Legacy
         matcher.addURI(LEGACY_AUTHORITY, "searches", SEARCHES);
@@ -258,6 +349,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Bookmarks.FAVICON, Bookmarks.FAVICON);
         map.put(Bookmarks.THUMBNAIL, Bookmarks.THUMBNAIL);
         map.put(Bookmarks.TOUCH_ICON, Bookmarks.TOUCH_ICON);
+        map.put(THUMBNAIL_ID, thumbnailIdColumn(TABLE_BOOKMARKS));
         map.put(Bookmarks.IS_FOLDER, Bookmarks.IS_FOLDER);
         map.put(Bookmarks.PARENT, Bookmarks.PARENT);
         map.put(Bookmarks.POSITION, Bookmarks.POSITION);
@@ -308,6 +400,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.FAVICON, History.FAVICON);
         map.put(History.THUMBNAIL, History.THUMBNAIL);
         map.put(History.TOUCH_ICON, History.TOUCH_ICON);
+        map.put(THUMBNAIL_ID, thumbnailIdColumn(TABLE_HISTORY));
         map.put(History.DATE_CREATED, History.DATE_CREATED);
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
@@ -384,16 +477,31 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return table + "." + column + " AS " + column;
     }
 
+    static final String thumbnailIdColumn(String table) {
+        return "(SELECT " + ImageStore.REF_THUMBNAIL + " FROM " + ImageStore.TABLE_REFS
+                + " WHERE " + ImageStore.REF_URL + " = " + table + "." + History.URL
+                + ") AS " + THUMBNAIL_ID;
+    }
+
     DatabaseHelper mOpenHelper;
     SyncStateContentProviderHelper mSyncHelper = new SyncStateContentProviderHelper();
     // This is so provider tests can intercept widget updating
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
     boolean mSyncToNetwork = true;
+    boolean mCollectImages = false;
+
+    private final Handler mImageGcHandler = new Handler(BackgroundHandler.getLooper());
+
+    // Image GC metrics, guarded by mImageGcHandler
+    private int mImageGcPassCount;
+    private int mImageGcReclaimedCount;
+    private long mImageGcMillis;
+    private long mMaxImageGcMillis;
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 37;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -436,14 +544,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.USER_ENTERED + " INTEGER" +
                     ");");
 
-            db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
-                    Images.URL + " TEXT UNIQUE NOT NULL," +
-                    Images.FAVICON + " BLOB," +
-                    Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
-                    ");");
-            db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
-                    "(" + Images.URL + ")");
+            ImageStore.create(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -458,6 +559,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             createAccountsView(db);
             createThumbnails(db);
+            createSuggestIndex(db);
+            createImageOrphans(db);
+            createChangeCounters(db);
+            createDeletedHistory(db);
 
             mSyncHelper.createDatabase(db);
 
@@ -480,6 +585,188 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     ");");
         }
 
+        /**
+         * Creates the table of urls whose images may no longer be used,
+         * along with the triggers filling it as bookmarks and history rows
+         * are deleted or change url. Only urls with images are recorded.
+         */
+        void createImageOrphans(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_IMAGE_ORPHANS + " (" +
+                    IMAGE_ORPHAN_URL + " TEXT PRIMARY KEY" +
+                    ");");
+            String addOrphan = "INSERT OR IGNORE INTO " + TABLE_IMAGE_ORPHANS
+                    + " (" + IMAGE_ORPHAN_URL + ") SELECT old.url WHERE EXISTS (SELECT 1 FROM "
+                    + ImageStore.TABLE_REFS + " WHERE " + ImageStore.REF_URL + " = old.url);";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_image_orphan_delete"
+                    + " AFTER DELETE ON " + TABLE_HISTORY
+                    + " BEGIN " + addOrphan + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_image_orphan_update"
+                    + " AFTER UPDATE OF " + History.URL + " ON " + TABLE_HISTORY
+                    + " WHEN old." + History.URL + " IS NOT new." + History.URL
+                    + " BEGIN " + addOrphan + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_image_orphan_delete"
+                    + " AFTER DELETE ON " + TABLE_BOOKMARKS
+                    + " BEGIN " + addOrphan + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_image_orphan_update"
+                    + " AFTER UPDATE OF " + Bookmarks.URL + ", " + Bookmarks.IS_DELETED
+                    + " ON " + TABLE_BOOKMARKS
+                    + " WHEN old." + Bookmarks.URL + " IS NOT new." + Bookmarks.URL
+                    + " OR new." + Bookmarks.IS_DELETED + " != 0"
+                    + " BEGIN " + addOrphan + " END");
+        }
+
+        /**
+         * Creates the setting counting bookmark edits, along with the
+         * triggers incrementing it.
+         */
+        void createChangeCounters(SQLiteDatabase db) {
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_SETTINGS + " (" + Settings.KEY
+                    + ", " + Settings.VALUE + ") VALUES ('" + SETTING_BOOKMARKS_VERSION
+                    + "', 0)");
+            String bumpBookmarks = "UPDATE " + TABLE_SETTINGS + " SET " + Settings.VALUE
+                    + " = " + Settings.VALUE + " + 1 WHERE " + Settings.KEY
+                    + " = '" + SETTING_BOOKMARKS_VERSION + "';";
+            for (String event : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_version_"
+                        + event.toLowerCase() + " AFTER " + event + " ON " + TABLE_BOOKMARKS
+                        + " BEGIN " + bumpBookmarks + " END");
+            }
+        }
+
+        /**
+         * Creates the log of deleted history rows, along with the trigger
+         * filling it and dropping the entries past DELETED_HISTORY_SIZE.
+         */
+        void createDeletedHistory(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_DELETED_HISTORY + " (" +
+                    DeletedHistory._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    DeletedHistory.HISTORY_ID + " INTEGER NOT NULL," +
+                    DeletedHistory.URL + " TEXT" +
+                    ");");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_deleted_log"
+                    + " AFTER DELETE ON " + TABLE_HISTORY
+                    + " BEGIN INSERT INTO " + TABLE_DELETED_HISTORY + " ("
+                    + DeletedHistory.HISTORY_ID + ", " + DeletedHistory.URL
+                    + ") VALUES (old." + History._ID + ", old." + History.URL + ");"
+                    + " DELETE FROM " + TABLE_DELETED_HISTORY + " WHERE "
+                    + DeletedHistory._ID + " <= (SELECT MAX(" + DeletedHistory._ID
+                    + ") FROM " + TABLE_DELETED_HISTORY + ") - " + DELETED_HISTORY_SIZE
+                    + "; END");
+        }
+
+        /**
+         * Creates the index used by doSuggestQuery, along with the triggers
+         * that keep it up to date. Every history row is keyed by its url
+         * without the scheme, and without "www.", by its title and by the
+         * titles of the bookmarks with the same url. All keys are lowercase
+         * so a prefix search is a range scan over the key index.
+         */
+        void createSuggestIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON "
+                    + TABLE_HISTORY + "(" + History.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.URL + ")");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SUGGEST_INDEX + " (" +
+                    SUGGEST_INDEX_HISTORY_ID + " INTEGER NOT NULL," +
+                    SUGGEST_INDEX_BOOKMARK_ID + " INTEGER," +
+                    SUGGEST_INDEX_KEY + " TEXT NOT NULL" +
+                    ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS suggestIndexKey ON "
+                    + TABLE_SUGGEST_INDEX + "(" + SUGGEST_INDEX_KEY + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS suggestIndexHistoryId ON "
+                    + TABLE_SUGGEST_INDEX + "(" + SUGGEST_INDEX_HISTORY_ID + ")");
+
+            String deleteHistoryKeys = "DELETE FROM " + TABLE_SUGGEST_INDEX
+                    + " WHERE " + SUGGEST_INDEX_HISTORY_ID + " = old." + History._ID + ";";
+            String deleteBookmarkKeys = "DELETE FROM " + TABLE_SUGGEST_INDEX
+                    + " WHERE " + SUGGEST_INDEX_BOOKMARK_ID + " = old." + Bookmarks._ID
+                    + " AND " + SUGGEST_INDEX_HISTORY_ID + " IN (SELECT " + History._ID
+                    + " FROM " + TABLE_HISTORY + " WHERE " + History.URL
+                    + " = old." + Bookmarks.URL + ");";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_suggest_insert"
+                    + " AFTER INSERT ON " + TABLE_HISTORY + " BEGIN "
+                    + insertHistoryKeys("new.") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_suggest_update"
+                    + " AFTER UPDATE OF " + History.URL + ", " + History.TITLE
+                    + " ON " + TABLE_HISTORY
+                    + " WHEN new." + History.URL + " IS NOT old." + History.URL
+                    + " OR new." + History.TITLE + " IS NOT old." + History.TITLE
+                    + " BEGIN " + deleteHistoryKeys + insertHistoryKeys("new.") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_suggest_delete"
+                    + " AFTER DELETE ON " + TABLE_HISTORY
+                    + " BEGIN " + deleteHistoryKeys + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_suggest_insert"
+                    + " AFTER INSERT ON " + TABLE_BOOKMARKS + " BEGIN "
+                    + insertBookmarkKeys(" AND bookmarks._id = new._id") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_suggest_update"
+                    + " AFTER UPDATE OF " + Bookmarks.URL + ", " + Bookmarks.TITLE
+                    + " ON " + TABLE_BOOKMARKS
+                    + " WHEN new." + Bookmarks.URL + " IS NOT old." + Bookmarks.URL
+                    + " OR new." + Bookmarks.TITLE + " IS NOT old." + Bookmarks.TITLE
+                    + " BEGIN " + deleteBookmarkKeys
+                    + insertBookmarkKeys(" AND bookmarks._id = new._id") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_suggest_delete"
+                    + " AFTER DELETE ON " + TABLE_BOOKMARKS
+                    + " BEGIN " + deleteBookmarkKeys + " END");
+
+            // Index the rows that are already there
+            db.delete(TABLE_SUGGEST_INDEX, null, null);
+            for (String statement : insertHistoryKeys("").split(";")) {
+                db.execSQL(statement);
+            }
+        }
+
+        /**
+         * Returns the statements adding the keys of a history row, separated
+         * by ';'. The row is either the trigger's "new." row, or every row in
+         * the history table if prefix is empty.
+         */
+        private String insertHistoryKeys(String prefix) {
+            boolean trigger = prefix.length() > 0;
+            String from = trigger ? "" : " FROM " + TABLE_HISTORY;
+            String url = prefix + History.URL;
+            String title = prefix + History.TITLE;
+            String insert = "INSERT INTO " + TABLE_SUGGEST_INDEX + " ("
+                    + SUGGEST_INDEX_HISTORY_ID + ", " + SUGGEST_INDEX_KEY + ") ";
+            StringBuilder sql = new StringBuilder();
+            // The url without http:// or https://
+            sql.append(insert).append("SELECT ").append(prefix).append(History._ID)
+                    .append(", CASE WHEN lower(substr(").append(url)
+                    .append(", 1, 7)) = 'http://' THEN lower(substr(").append(url)
+                    .append(", 8)) ELSE lower(substr(").append(url).append(", 9)) END")
+                    .append(from).append(" WHERE lower(substr(").append(url)
+                    .append(", 1, 7)) = 'http://' OR lower(substr(").append(url)
+                    .append(", 1, 8)) = 'https://';");
+            sql.append(insert).append("SELECT ").append(prefix).append(History._ID)
+                    .append(", lower(").append(title).append(")").append(from)
+                    .append(" WHERE ").append(title).append(" IS NOT NULL;");
+            // The url without www., derived from the key added above
+            sql.append(insert).append("SELECT ").append(SUGGEST_INDEX_HISTORY_ID)
+                    .append(", substr(").append(SUGGEST_INDEX_KEY).append(", 5) FROM ")
+                    .append(TABLE_SUGGEST_INDEX).append(" WHERE ")
+                    .append(SUGGEST_INDEX_KEY).append(" >= 'www.' AND ")
+                    .append(SUGGEST_INDEX_KEY).append(" < 'www/'");
+            if (trigger) {
+                sql.append(" AND ").append(SUGGEST_INDEX_HISTORY_ID).append(" = new.")
+                        .append(History._ID);
+            }
+            sql.append(";");
+            sql.append(insertBookmarkKeys(trigger ? " AND history._id = new._id" : ""));
+            return sql.toString();
+        }
+
+        /**
+         * Returns the statement adding the titles of the bookmarks matching
+         * the history rows selected by the extra where clause.
+         */
+        private String insertBookmarkKeys(String where) {
+            return "INSERT INTO " + TABLE_SUGGEST_INDEX + " ("
+                    + SUGGEST_INDEX_HISTORY_ID + ", " + SUGGEST_INDEX_BOOKMARK_ID + ", "
+                    + SUGGEST_INDEX_KEY + ") SELECT history._id, bookmarks._id,"
+                    + " lower(bookmarks.title) FROM " + TABLE_BOOKMARKS_JOIN_HISTORY_INNER
+                    + " WHERE bookmarks.title IS NOT NULL" + where + ";";
+        }
+
         void enableSync(SQLiteDatabase db) {
             ContentValues values = new ContentValues();
             values.put(Settings.KEY, Settings.KEY_SYNC_ENABLED);
@@ -542,7 +829,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                             imageValues.put(Images.URL, url);
                             imageValues.put(Images.FAVICON, c.getBlob(2));
                             imageValues.put(Images.TOUCH_ICON, c.getBlob(3));
-                            db.insert(TABLE_IMAGES, Images.THUMBNAIL, imageValues);
+                            ImageStore.put(db, imageValues);
                             db.insert(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
                         }
                         c.close();
@@ -604,33 +891,58 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion < 32) {
-                createOmniboxSuggestions(db);
+            if (oldVersion < 25) {
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKMARKS);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCHES);
+                ImageStore.drop(db);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SETTINGS);
+                mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
+                onCreate(db);
+                // Created at the current version
+                return;
             }
-            if (oldVersion < 31) {
-                createThumbnails(db);
+            // The steps below run in version order, each on the schema
+            // left by the ones before
+            if (oldVersion < 26) {
+                db.execSQL("DROP VIEW IF EXISTS combined");
+            }
+            if (oldVersion < 27) {
+                createAccountsView(db);
+            }
+            if (oldVersion < 28) {
+                enableSync(db);
             }
             if (oldVersion < 30) {
                 db.execSQL("DROP VIEW IF EXISTS " + VIEW_SNAPSHOTS_COMBINED);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SNAPSHOTS);
             }
-            if (oldVersion < 28) {
-                enableSync(db);
+            if (oldVersion < 31) {
+                createThumbnails(db);
             }
-            if (oldVersion < 27) {
-                createAccountsView(db);
+            if (oldVersion < 32) {
+                createOmniboxSuggestions(db);
             }
-            if (oldVersion < 26) {
-                db.execSQL("DROP VIEW IF EXISTS combined");
+            if (oldVersion < 33) {
+                createSuggestIndex(db);
             }
-            if (oldVersion < 25) {
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKMARKS);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCHES);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SETTINGS);
-                mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
-                onCreate(db);
+            if (oldVersion < 34) {
+                ImageStore.migrate(db);
+            }
+            if (oldVersion < 35) {
+                // Needs the image store, and the url indices of version 33
+                createImageOrphans(db);
+                db.delete(ImageStore.TABLE_REFS, IMAGE_PRUNE, null);
+            }
+            if (oldVersion < 36) {
+                createChangeCounters(db);
+            }
+            if (oldVersion < 37) {
+                // Replaces the history deletions counter
+                db.execSQL("DROP TRIGGER IF EXISTS history_deletes_count");
+                db.delete(TABLE_SETTINGS, Settings.KEY + " = ?",
+                        new String[] { SETTING_HISTORY_DELETES });
+                createDeletedHistory(db);
             }
         }
 
@@ -703,7 +1015,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         if (thumb != null) {
                             imageValues.put(Images.THUMBNAIL, thumb);
                         }
-                        db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
+                        ImageStore.put(db, imageValues);
                     }
                 }
             } catch (ArrayIndexOutOfBoundsException e) {
@@ -823,9 +1135,30 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
             mUpdateWidgets = false;
         }
+        if (mCollectImages) {
+            // Pushed back by every write, so it runs once the browser is idle
+            mImageGcHandler.removeCallbacks(mImageGc);
+            mImageGcHandler.postDelayed(mImageGc, IMAGE_GC_DELAY);
+            mCollectImages = false;
+        }
         mSyncToNetwork = true;
     }
 
+    @Override
+    public void shutdown() {
+        mImageGcHandler.removeCallbacks(mImageGc);
+        super.shutdown();
+    }
+
+    private final Runnable mImageGc = new Runnable() {
+        @Override
+        public void run() {
+            if (collectImages()) {
+                mImageGcHandler.postDelayed(this, IMAGE_GC_BATCH_INTERVAL);
+            }
+        }
+    };
+
     @Override
     public String getType(Uri uri) {
         final int match = URI_MATCHER.match(uri);
@@ -1094,6 +1427,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 } else {
                     selectionArgs = DatabaseUtils.appendSelectionArgs(args, selectionArgs);
                 }
+                String dateBins = uri.getQueryParameter(PARAM_DATE_BINS);
+                if (dateBins != null) {
+                    projection = new String[] {
+                            createDateBinColumn(dateBins),
+                            "COUNT(*) AS " + DATE_BIN_COUNT };
+                    groupBy = DATE_BIN;
+                    sortOrder = DATE_BIN;
+                }
                 break;
             }
 
@@ -1120,6 +1461,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
+            case DELETED_HISTORY: {
+                qb.setTables(TABLE_DELETED_HISTORY);
+                break;
+            }
+
             default: {
                 throw new UnsupportedOperationException("Unknown URL " + uri.toString());
             }
@@ -1141,15 +1487,29 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     || selectionArgs[0].startsWith("file")) {
                 selectionArgs[0] = like;
             } else {
-                selectionArgs = new String[6];
-                selectionArgs[0] = "http://" + like;
-                selectionArgs[1] = "http://www." + like;
-                selectionArgs[2] = "https://" + like;
-                selectionArgs[3] = "https://www." + like;
+                String input = selectionArgs[0];
+                // A % or _ in the input is a LIKE wildcard, which a prefix
+                // range can't express. Scan with the LIKE patterns alone.
+                boolean indexed = input.indexOf('%') < 0 && input.indexOf('_') < 0;
+                int i = indexed ? 3 : 0;
+                selectionArgs = new String[i + 6];
+                if (indexed) {
+                    selectionArgs[0] = input;
+                    selectionArgs[1] = input;
+                    selectionArgs[2] = SUGGEST_INDEX_KEY_MAX;
+                }
+                selectionArgs[i++] = "http://" + like;
+                selectionArgs[i++] = "http://www." + like;
+                selectionArgs[i++] = "https://" + like;
+                selectionArgs[i++] = "https://www." + like;
                 // To match against titles.
-                selectionArgs[4] = like;
-                selectionArgs[5] = like;
-                selection = SUGGEST_SELECTION;
+                selectionArgs[i++] = like;
+                selectionArgs[i++] = like;
+                // The index only returns candidates, SUGGEST_SELECTION still
+                // decides which of them match
+                selection = indexed
+                        ? SUGGEST_INDEX_SELECTION + " AND (" + SUGGEST_SELECTION + ")"
+                        : SUGGEST_SELECTION;
             }
             selection = DatabaseUtils.concatenateWhere(selection,
                     Bookmarks.IS_DELETED + "=0 AND " + Bookmarks.IS_FOLDER + "=0");
@@ -1162,6 +1522,25 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new SuggestionsCursor(c);
     }
 
+    // The boundaries are parsed so that only numbers end up in the SQL
+    static String createDateBinColumn(String dateBins) {
+        String[] boundaries = TextUtils.split(dateBins, ",");
+        StringBuilder column = new StringBuilder("CASE");
+        for (int i = 0; i < boundaries.length; i++) {
+            long boundary;
+            try {
+                boundary = Long.parseLong(boundaries[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid date bins " + dateBins);
+            }
+            column.append(" WHEN ").append(Combined.DATE_LAST_VISITED)
+                    .append(" > ").append(boundary).append(" THEN ").append(i);
+        }
+        column.append(" ELSE ").append(boundaries.length)
+                .append(" END AS ").append(DATE_BIN);
+        return column.toString();
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
         String[] args = null;
@@ -1291,7 +1670,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selection = (String) withAccount[0];
                 selectionArgs = (String[]) withAccount[1];
                 deleted = deleteBookmarks(selection, selectionArgs, callerIsSyncAdapter);
-                pruneImages();
+                mCollectImages = true;
                 if (deleted > 0) {
                     refreshWidgets();
                 }
@@ -1307,7 +1686,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
-                pruneImages();
+                mCollectImages = true;
                 break;
             }
 
@@ -1370,6 +1749,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
                 }
                 c.close();
+                mCollectImages = true;
                 break;
             }
             case THUMBNAILS_ID: {
@@ -1478,11 +1858,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 Boolean isFolder = values.getAsBoolean(Bookmarks.IS_FOLDER);
                 if ((isFolder == null || !isFolder)
                         && imageValues != null && !TextUtils.isEmpty(url)) {
-                    int count = db.update(TABLE_IMAGES, imageValues, Images.URL + "=?",
-                            new String[] { url });
-                    if (count == 0) {
-                        db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
-                    }
+                    ImageStore.put(db, imageValues);
                 }
 
                 id = db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
@@ -1503,7 +1879,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 ContentValues imageValues = extractImageValues(values,
                         values.getAsString(History.URL));
                 if (imageValues != null) {
-                    db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
+                    ImageStore.put(db, imageValues);
                 }
 
                 id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
@@ -1597,7 +1973,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     }
 
     // Filters out the client= param for search urls
-    private String filterSearchClient(String url) {
+    public static String filterSearchClient(String url) {
         // remove "client" before updating it to the history so that it wont
         // show up in the auto-complete list.
         int index = url.indexOf("client=");
@@ -1743,29 +2119,36 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (TextUtils.isEmpty(url)) {
                     throw new IllegalArgumentException("Images.URL is required");
                 }
-                if (!shouldUpdateImages(db, url, values)) {
+                // We want to avoid sending out more URI notifications than
+                // we have to. Things like a site's favicon or touch icon
+                // rarely change, but the browser stores them again every
+                // time the page loads.
+                if (!ImageStore.put(db, values)) {
                     return 0;
                 }
-                int count = db.update(TABLE_IMAGES, values, Images.URL + "=?",
-                        new String[] { url });
-                if (count == 0) {
-                    db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, values);
-                    count = 1;
-                }
+                int count = 1;
                 // Only favicon is exposed in the public API. If we updated
                 // the thumbnail or touch icon don't bother notifying the
                 // legacy authority since it can't read it anyway.
                 boolean updatedLegacy = false;
+                boolean used = false;
                 if (getUrlCount(db, TABLE_BOOKMARKS, url) > 0) {
                     postNotifyUri(Bookmarks.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                     refreshWidgets();
+                    used = true;
                 }
                 if (getUrlCount(db, TABLE_HISTORY, url) > 0) {
                     postNotifyUri(History.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
+                    used = true;
+                }
+                if (!used) {
+                    // Nothing shows these images, collect them later on
+                    addImageOrphan(db, url);
+                    mCollectImages = true;
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                if (updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
                 // Even though we may be calling notifyUri on Bookmarks, don't
@@ -1796,7 +2179,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 throw new UnsupportedOperationException("Unknown update URI " + uri);
             }
         }
-        pruneImages();
+        if (match == BOOKMARKS || match == BOOKMARKS_ID
+                || match == HISTORY || match == HISTORY_ID) {
+            mCollectImages = true;
+        }
         if (modified > 0) {
             postNotifyUri(uri);
             if (shouldNotifyLegacy(uri)) {
@@ -1806,57 +2192,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return modified;
     }
 
-    // We want to avoid sending out more URI notifications than we have to
-    // Thus, we check to see if the images we are about to store are already there
-    // This is used because things like a site's favion or touch icon is rarely
-    // changed, but the browser tries to update it every time the page loads.
-    // Without this, we will always send out 3 URI notifications per page load.
-    // With this, that drops to 0 or 1, depending on if the thumbnail changed.
-    private boolean shouldUpdateImages(
-            SQLiteDatabase db, String url, ContentValues values) {
-        final String[] projection = new String[] {
-                Images.FAVICON,
-                Images.THUMBNAIL,
-                Images.TOUCH_ICON,
-        };
-        Cursor cursor = db.query(TABLE_IMAGES, projection, Images.URL + "=?",
-                new String[] { url }, null, null, null);
-        byte[] nfavicon = values.getAsByteArray(Images.FAVICON);
-        byte[] nthumb = values.getAsByteArray(Images.THUMBNAIL);
-        byte[] ntouch = values.getAsByteArray(Images.TOUCH_ICON);
-        byte[] cfavicon = null;
-        byte[] cthumb = null;
-        byte[] ctouch = null;
-        try {
-            if (cursor.getCount() <= 0) {
-                return nfavicon != null || nthumb != null || ntouch != null;
-            }
-            while (cursor.moveToNext()) {
-                if (nfavicon != null) {
-                    cfavicon = cursor.getBlob(0);
-                    if (!Arrays.equals(nfavicon, cfavicon)) {
-                        return true;
-                    }
-                }
-                if (nthumb != null) {
-                    cthumb = cursor.getBlob(1);
-                    if (!Arrays.equals(nthumb, cthumb)) {
-                        return true;
-                    }
-                }
-                if (ntouch != null) {
-                    ctouch = cursor.getBlob(2);
-                    if (!Arrays.equals(ntouch, ctouch)) {
-                        return true;
-                    }
-                }
-            }
-        } finally {
-            cursor.close();
-        }
-        return false;
-    }
-
     int getUrlCount(SQLiteDatabase db, String table, String url) {
         Cursor c = db.query(table, new String[] { "COUNT(*)" },
                 "url = ?", new String[] { url }, null, null, null);
@@ -1973,10 +2308,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
 
                     if (!TextUtils.isEmpty(url)) {
-                        args[0] = url;
-                        if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
-                            db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
-                        }
+                        ImageStore.put(db, imageValues);
                     }
                 }
             }
@@ -2040,10 +2372,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         url = cursor.getString(1);
                         imageValues.put(Images.URL, url);
                     }
-                    args[0] = url;
-                    if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
-                        db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
-                    }
+                    ImageStore.put(db, imageValues);
                 }
             }
         } finally {
@@ -2115,9 +2444,77 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return imageValues;
     }
 
-    int pruneImages() {
+    private static void addImageOrphan(SQLiteDatabase db, String url) {
+        ContentValues values = new ContentValues();
+        values.put(IMAGE_ORPHAN_URL, url);
+        db.insertWithOnConflict(TABLE_IMAGE_ORPHANS, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Deletes the images of a batch of orphaned urls, unless a bookmark or
+     * history row uses them again.
+     * @return Whether more orphaned urls are left.
+     */
+    @VisibleForTesting
+    public boolean collectImages() {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        long start = SystemClock.elapsedRealtime();
+        int reclaimed;
+        long left;
+        db.beginTransaction();
+        try {
+            reclaimed = db.delete(ImageStore.TABLE_REFS, IMAGE_GC_SELECTION, null);
+            db.delete(TABLE_IMAGE_ORPHANS, IMAGE_ORPHAN_URL + " IN ("
+                    + IMAGE_GC_BATCH_SELECTION + ")", null);
+            left = DatabaseUtils.queryNumEntries(db, TABLE_IMAGE_ORPHANS);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long time = SystemClock.elapsedRealtime() - start;
+        synchronized (mImageGcHandler) {
+            mImageGcPassCount++;
+            mImageGcReclaimedCount += reclaimed;
+            mImageGcMillis += time;
+            mMaxImageGcMillis = Math.max(mMaxImageGcMillis, time);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Image GC pass " + mImageGcPassCount + ": reclaimed " + reclaimed
+                    + " in " + time + "ms, " + left + " urls left");
+        }
+        return left > 0;
+    }
+
+    /** Number of image GC passes run */
+    @VisibleForTesting
+    public int getImageGcPassCount() {
+        synchronized (mImageGcHandler) {
+            return mImageGcPassCount;
+        }
+    }
+
+    /** Number of urls whose images the GC deleted */
+    @VisibleForTesting
+    public int getImageGcReclaimedCount() {
+        synchronized (mImageGcHandler) {
+            return mImageGcReclaimedCount;
+        }
+    }
+
+    /** Total time spent in image GC passes */
+    @VisibleForTesting
+    public long getImageGcMillis() {
+        synchronized (mImageGcHandler) {
+            return mImageGcMillis;
+        }
+    }
+
+    @VisibleForTesting
+    public long getMaxImageGcMillis() {
+        synchronized (mImageGcHandler) {
+            return mMaxImageGcMillis;
+        }
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
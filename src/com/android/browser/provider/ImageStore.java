@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BrowserContract.Images;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores the favicons, thumbnails and touch icons of BrowserProvider2 once
+ * per content. Each distinct image is a row of {@link #TABLE_BLOBS} keyed by
+ * the hash of its bytes, and {@link #TABLE_REFS} maps every url to the blobs
+ * of its images. Triggers count the references to each blob and delete it
+ * once nothing refers to it anymore.
+ *
+ * {@link BrowserProvider2#TABLE_IMAGES} is a view over both tables with the
+ * columns of the old images table, so the queries don't change.
+ */
+final class ImageStore {
+
+    static final String TABLE_BLOBS = "image_blobs";
+    static final String TABLE_REFS = "image_refs";
+
+    // Columns of TABLE_BLOBS
+    static final String BLOB_ID = "_id";
+    static final String BLOB_HASH = "hash";
+    static final String BLOB_DATA = "data";
+    static final String BLOB_REF_COUNT = "ref_count";
+
+    // Columns of TABLE_REFS, the blob ids of the images of the url
+    static final String REF_URL = Images.URL;
+    static final String REF_FAVICON = "favicon_id";
+    static final String REF_THUMBNAIL = "thumbnail_id";
+    static final String REF_TOUCH_ICON = "touch_icon_id";
+
+    // The image columns, and the TABLE_REFS column for each
+    private static final String[] IMAGE_COLUMNS = new String[] {
+            Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON };
+    private static final String[] REF_COLUMNS = new String[] {
+            REF_FAVICON, REF_THUMBNAIL, REF_TOUCH_ICON };
+
+    private static final String TABLE_OLD_IMAGES = "images_old";
+
+    private ImageStore() {
+    }
+
+    /**
+     * Creates both tables, the triggers counting the references and the
+     * images view.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_BLOBS + " (" +
+                BLOB_ID + " INTEGER PRIMARY KEY," +
+                BLOB_HASH + " INTEGER UNIQUE NOT NULL," +
+                BLOB_DATA + " BLOB NOT NULL," +
+                BLOB_REF_COUNT + " INTEGER NOT NULL DEFAULT 0" +
+                ");");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_REFS + " (" +
+                REF_URL + " TEXT UNIQUE NOT NULL," +
+                REF_FAVICON + " INTEGER," +
+                REF_THUMBNAIL + " INTEGER," +
+                REF_TOUCH_ICON + " INTEGER" +
+                ");");
+
+        // A url may use the same blob for several of its images, so each
+        // column is counted by a statement of its own
+        StringBuilder addRefs = new StringBuilder();
+        StringBuilder releaseRefs = new StringBuilder();
+        StringBuilder changeRefs = new StringBuilder();
+        for (String column : REF_COLUMNS) {
+            String changed = " AND old." + column + " IS NOT new." + column + ";";
+            addRefs.append(changeRefCount("new." + column, "+")).append(';');
+            releaseRefs.append(changeRefCount("old." + column, "-")).append(';');
+            changeRefs.append(changeRefCount("new." + column, "+")).append(changed)
+                    .append(changeRefCount("old." + column, "-")).append(changed);
+        }
+        String deleteUnused = "DELETE FROM " + TABLE_BLOBS + " WHERE "
+                + BLOB_REF_COUNT + " <= 0 AND " + BLOB_ID + " IN (old." + REF_FAVICON
+                + ", old." + REF_THUMBNAIL + ", old." + REF_TOUCH_ICON + ");";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS image_refs_insert"
+                + " AFTER INSERT ON " + TABLE_REFS
+                + " BEGIN " + addRefs + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS image_refs_update"
+                + " AFTER UPDATE ON " + TABLE_REFS
+                + " BEGIN " + changeRefs + deleteUnused + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS image_refs_delete"
+                + " AFTER DELETE ON " + TABLE_REFS
+                + " BEGIN " + releaseRefs + deleteUnused + " END");
+
+        StringBuilder view = new StringBuilder("CREATE VIEW IF NOT EXISTS ")
+                .append(BrowserProvider2.TABLE_IMAGES).append(" AS SELECT ").append(REF_URL);
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            view.append(", (SELECT ").append(BLOB_DATA).append(" FROM ").append(TABLE_BLOBS)
+                    .append(" WHERE ").append(BLOB_ID).append(" = ").append(REF_COLUMNS[i])
+                    .append(") AS ").append(IMAGE_COLUMNS[i]);
+        }
+        view.append(" FROM ").append(TABLE_REFS);
+        db.execSQL(view.toString());
+    }
+
+    private static String changeRefCount(String id, String op) {
+        return "UPDATE " + TABLE_BLOBS + " SET " + BLOB_REF_COUNT + " = "
+                + BLOB_REF_COUNT + " " + op + " 1 WHERE " + BLOB_ID + " = " + id;
+    }
+
+    /**
+     * Drops the store, along with an images table from before it.
+     */
+    static void drop(SQLiteDatabase db) {
+        if (isOldImagesTable(db)) {
+            db.execSQL("DROP TABLE IF EXISTS " + BrowserProvider2.TABLE_IMAGES);
+        } else {
+            db.execSQL("DROP VIEW IF EXISTS " + BrowserProvider2.TABLE_IMAGES);
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_REFS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BLOBS);
+    }
+
+    /**
+     * Moves the images of the old images table, with a copy per url, into
+     * the store.
+     */
+    static void migrate(SQLiteDatabase db) {
+        if (!isOldImagesTable(db)) {
+            create(db);
+            return;
+        }
+        db.execSQL("ALTER TABLE " + BrowserProvider2.TABLE_IMAGES
+                + " RENAME TO " + TABLE_OLD_IMAGES);
+        create(db);
+        String[] projection = new String[IMAGE_COLUMNS.length + 1];
+        projection[0] = Images.URL;
+        System.arraycopy(IMAGE_COLUMNS, 0, projection, 1, IMAGE_COLUMNS.length);
+        Cursor c = db.query(TABLE_OLD_IMAGES, projection, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.clear();
+                values.put(Images.URL, c.getString(0));
+                for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+                    values.put(IMAGE_COLUMNS[i], c.getBlob(i + 1));
+                }
+                put(db, values);
+            }
+        } finally {
+            c.close();
+        }
+        db.execSQL("DROP TABLE " + TABLE_OLD_IMAGES);
+    }
+
+    private static boolean isOldImagesTable(SQLiteDatabase db) {
+        Cursor c = db.query("sqlite_master", new String[] { "type" }, "name = ?",
+                new String[] { BrowserProvider2.TABLE_IMAGES }, null, null, null);
+        try {
+            return c.moveToFirst() && "table".equals(c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Sets the images of a url, like an update or insert of the old images
+     * table would. Images not in the values are left as they are, and an
+     * image which is already stored is only referred to again. Whether an
+     * image changed is decided on the hashes, without reading any blob.
+     * @param values The url in {@link Images#URL}, and any of the images.
+     * @return Whether any image of the url changed.
+     */
+    static boolean put(SQLiteDatabase db, ContentValues values) {
+        String url = values.getAsString(Images.URL);
+        long[] current = getRefs(db, url);
+        ContentValues refs = new ContentValues();
+        boolean changed = current == null;
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            if (!values.containsKey(IMAGE_COLUMNS[i])) {
+                continue;
+            }
+            byte[] data = values.getAsByteArray(IMAGE_COLUMNS[i]);
+            if (data == null) {
+                refs.putNull(REF_COLUMNS[i]);
+                changed |= current != null && current[i] != 0;
+                continue;
+            }
+            long hash = hash(data);
+            long id = findBlob(db, hash);
+            if (id == 0) {
+                ContentValues blob = new ContentValues();
+                blob.put(BLOB_HASH, hash);
+                blob.put(BLOB_DATA, data);
+                id = db.insertOrThrow(TABLE_BLOBS, null, blob);
+            }
+            refs.put(REF_COLUMNS[i], id);
+            changed |= current != null && current[i] != id;
+        }
+        if (!changed) {
+            return false;
+        }
+        if (current == null) {
+            refs.put(REF_URL, url);
+            db.insertOrThrow(TABLE_REFS, null, refs);
+        } else {
+            db.update(TABLE_REFS, refs, REF_URL + " = ?", new String[] { url });
+        }
+        return true;
+    }
+
+    /**
+     * @return The blob ids of the images of the url, 0 for none, or null if
+     *         the url has no row.
+     */
+    private static long[] getRefs(SQLiteDatabase db, String url) {
+        Cursor c = db.query(TABLE_REFS, REF_COLUMNS, REF_URL + " = ?",
+                new String[] { url }, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            long[] ids = new long[REF_COLUMNS.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = c.getLong(i);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long findBlob(SQLiteDatabase db, long hash) {
+        SQLiteStatement s = db.compileStatement("SELECT " + BLOB_ID + " FROM "
+                + TABLE_BLOBS + " WHERE " + BLOB_HASH + " = ?");
+        try {
+            s.bindLong(1, hash);
+            return s.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return 0;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * @return The first 64 bits of the SHA-1 of the data. Even among
+     *         millions of images a collision is far less likely than a
+     *         corrupt file.
+     */
+    static long hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] sha = digest.digest(data);
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (sha[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -111,6 +111,14 @@ public class DefaultSearchEngine implements SearchEngine {
         return searchManager.getSuggestions(mSearchable, query);
     }
 
+    public void cancelSuggestions(Thread thread) {
+        // The suggestion provider query can't be aborted
+    }
+
+    public void warmUp(Context context) {
+        // Suggestions come from a local provider
+    }
+
     public boolean supportsSuggestions() {
         return !TextUtils.isEmpty(mSearchable.getSuggestAuthority());
     }
@@ -17,29 +17,33 @@ package com.android.browser.search;
 
 import com.android.browser.R;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
 
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.Bundle;
 import android.provider.Browser;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides search suggestions, if any, for a given web search provider.
@@ -48,12 +52,6 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static final String TAG = "OpenSearchSearchEngine";
 
-    private static final String USER_AGENT = "Android/1.0";
-    private static final int HTTP_TIMEOUT_MS = 1000;
-
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.connection-manager.timeout";
-
     // Indices of the columns in the below arrays.
     private static final int COLUMN_INDEX_ID = 0;
     private static final int COLUMN_INDEX_QUERY = 1;
@@ -80,13 +78,21 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private final SearchEngineInfo mSearchEngineInfo;
 
-    private final AndroidHttpClient mHttpClient;
+    private final SearchHttpClient mHttpClient;
+
+    // The adapter never shows more suggestions than this
+    private final int mMaxResults;
+
+    // Requests in progress, by the thread that is waiting on them
+    private final ConcurrentHashMap<Thread, HttpGet> mRequests =
+            new ConcurrentHashMap<Thread, HttpGet>();
 
     public OpenSearchSearchEngine(Context context, SearchEngineInfo searchEngineInfo) {
         mSearchEngineInfo = searchEngineInfo;
-        mHttpClient = AndroidHttpClient.newInstance(USER_AGENT);
-        HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, HTTP_TIMEOUT_MS);
+        Resources res = context.getResources();
+        mMaxResults = Math.max(res.getInteger(R.integer.max_suggest_lines_portrait),
+                res.getInteger(R.integer.max_suggest_lines_landscape));
+        mHttpClient = SearchHttpClient.getInstance(context);
     }
 
     public String getName() {
@@ -137,53 +143,134 @@ public class OpenSearchSearchEngine implements SearchEngine {
             return null;
         }
 
-        try {
-            String content = readUrl(suggestUri);
-            if (content == null) return null;
-            /* The data format is a JSON array with items being regular strings or JSON arrays
-             * themselves. We are interested in the second and third elements, both of which
-             * should be JSON arrays. The second element/array contains the suggestions and the
-             * third element contains the descriptions. Some search engines don't support
-             * suggestion descriptions so the third element is optional.
-             */
-            JSONArray results = new JSONArray(content);
-            JSONArray suggestions = results.getJSONArray(1);
-            JSONArray descriptions = null;
-            if (results.length() > 2) {
-                descriptions = results.getJSONArray(2);
-                // Some search engines given an empty array "[]" for descriptions instead of
-                // not including it in the response.
-                if (descriptions.length() == 0) {
-                    descriptions = null;
-                }
-            }
-            return new SuggestionsCursor(suggestions, descriptions);
-        } catch (JSONException e) {
-            Log.w(TAG, "Error", e);
-        }
-        return null;
+        return readSuggestions(suggestUri);
     }
 
     /**
-     * Executes a GET request and returns the response content.
+     * Executes a GET request and parses the response as it streams in.
      *
      * @param url Request URI.
-     * @return The response content. This is the empty string if the response
-     *         contained no content.
+     * @return The suggestions, or null if the request failed.
      */
-    public String readUrl(String url) {
+    private Cursor readSuggestions(String url) {
+        HttpGet method = new HttpGet(url);
+        Thread thread = Thread.currentThread();
+        mRequests.put(thread, method);
+        InputStream in = null;
         try {
-            HttpGet method = new HttpGet(url);
+            if (thread.isInterrupted()) {
+                // Cancelled before the request was registered
+                Log.i(TAG, "Suggestion request cancelled");
+                return null;
+            }
             HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                return EntityUtils.toString(response.getEntity());
-            } else {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                // Closing it releases the connection back to the pool
+                in = entity.getContent();
+            }
+            if (response.getStatusLine().getStatusCode() != 200 || entity == null) {
                 Log.i(TAG, "Suggestion request failed");
                 return null;
             }
+            String charset = EntityUtils.getContentCharSet(entity);
+            if (charset == null) {
+                charset = HTTP.DEFAULT_CONTENT_CHARSET;
+            }
+            return parseSuggestions(new InputStreamReader(in, charset), mMaxResults);
         } catch (IOException e) {
+            if (method.isAborted()) {
+                Log.i(TAG, "Suggestion request cancelled");
+            } else {
+                Log.w(TAG, "Error", e);
+            }
+            return null;
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when the response has an unexpected shape
             Log.w(TAG, "Error", e);
             return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+            mRequests.remove(thread);
+        }
+    }
+
+    /**
+     * Parses a suggestion response, reading no further than needed for
+     * the first maxResults suggestions.
+     *
+     * The data format is a JSON array with items being regular strings or JSON arrays
+     * themselves. We are interested in the second and third elements, both of which
+     * should be JSON arrays. The second element/array contains the suggestions and the
+     * third element contains the descriptions. Some search engines don't support
+     * suggestion descriptions so the third element is optional.
+     */
+    static SuggestionsCursor parseSuggestions(Reader in, int maxResults) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.beginArray();
+        // The query
+        reader.skipValue();
+        String[] suggestions = new String[maxResults];
+        // Skip the rest of the suggestions to get to the descriptions
+        int count = readStrings(reader, suggestions, true);
+        String[] descriptions = null;
+        if (count > 0 && reader.hasNext() && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            descriptions = new String[count];
+            // Some search engines given an empty array "[]" for descriptions instead of
+            // not including it in the response.
+            if (readStrings(reader, descriptions, false) == 0) {
+                descriptions = null;
+            }
+        }
+        // Whatever follows isn't needed
+        return new SuggestionsCursor(suggestions, descriptions, count);
+    }
+
+    /**
+     * Reads the strings of the next array into out. Once out is full, the
+     * rest of the array is skipped if skipRest is set, otherwise the reader
+     * is left in the middle of it. Returns the number of strings read.
+     */
+    private static int readStrings(JsonReader reader, String[] out, boolean skipRest)
+            throws IOException {
+        int count = 0;
+        reader.beginArray();
+        while (count < out.length && reader.hasNext()) {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                out[count++] = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (count == out.length && !skipRest) {
+            return count;
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return count;
+    }
+
+    public void cancelSuggestions(Thread thread) {
+        HttpGet method = mRequests.get(thread);
+        if (method != null) {
+            method.abort();
+        }
+    }
+
+    public void warmUp(Context context) {
+        if (!supportsSuggestions() || !isNetworkConnected(context)) {
+            return;
+        }
+        String suggestUri = mSearchEngineInfo.getSuggestUriForQuery("");
+        if (!TextUtils.isEmpty(suggestUri)) {
+            mHttpClient.warmUp(suggestUri);
         }
     }
 
@@ -192,7 +279,7 @@ public class OpenSearchSearchEngine implements SearchEngine {
     }
 
     public void close() {
-        mHttpClient.close();
+        // The http client is shared with other instances
     }
 
     private boolean isNetworkConnected(Context context) {
@@ -209,20 +296,26 @@ public class OpenSearchSearchEngine implements SearchEngine {
         return connectivity.getActiveNetworkInfo();
     }
 
-    private static class SuggestionsCursor extends AbstractCursor {
+    /**
+     * The parsed suggestions, as parallel arrays.
+     */
+    static class SuggestionsCursor extends AbstractCursor {
+
+        private final String[] mSuggestions;
 
-        private final JSONArray mSuggestions;
+        private final String[] mDescriptions;
 
-        private final JSONArray mDescriptions;
+        private final int mCount;
 
-        public SuggestionsCursor(JSONArray suggestions, JSONArray descriptions) {
+        public SuggestionsCursor(String[] suggestions, String[] descriptions, int count) {
             mSuggestions = suggestions;
             mDescriptions = descriptions;
+            mCount = count;
         }
 
         @Override
         public int getCount() {
-            return mSuggestions.length();
+            return mCount;
         }
 
         @Override
@@ -234,17 +327,10 @@ public class OpenSearchSearchEngine implements SearchEngine {
         public String getString(int column) {
             if (mPos != -1) {
                 if ((column == COLUMN_INDEX_QUERY) || (column == COLUMN_INDEX_TEXT_1)) {
-                    try {
-                        return mSuggestions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mSuggestions[mPos];
                 } else if (column == COLUMN_INDEX_TEXT_2) {
-                    try {
-                        return mDescriptions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mDescriptions != null && mPos < mDescriptions.length
+                            ? mDescriptions[mPos] : null;
                 } else if (column == COLUMN_INDEX_ICON) {
                     return String.valueOf(R.drawable.magnifying_glass);
                 }
@@ -47,6 +47,21 @@ public interface SearchEngine {
      */
     public Cursor getSuggestions(Context context, String query);
 
+    /**
+     * Aborts the suggestion request running on the given thread, if any,
+     * in which case that call to getSuggestions returns null. Callers
+     * interrupt the thread first, and getSuggestions doesn't send a request
+     * once its thread is interrupted, so a cancellation that comes before
+     * the request is sent isn't lost.
+     */
+    public void cancelSuggestions(Thread thread);
+
+    /**
+     * Gets ready for getSuggestions calls, e.g. by connecting to the
+     * suggestion server. Blocks, so must be called on a background thread.
+     */
+    public void warmUp(Context context);
+
     /**
      * Checks whether this search engine supports search suggestions.
      */
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.ResponseProcessCookies;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP client shared by all search engines. Connections are pooled and
+ * kept alive, so that switching engines or typing another query doesn't
+ * set up a new TCP connection and TLS session each time. A connection to
+ * the suggestion server can also be opened ahead of time, see
+ * {@link #warmUp(String)}. Like AndroidHttpClient, the client neither
+ * stores nor sends cookies and doesn't follow redirects.
+ */
+public class SearchHttpClient {
+
+    private static final String TAG = "SearchHttpClient";
+    private static final boolean LOGV_ENABLED = false;
+
+    private static final String USER_AGENT = "Android/1.0";
+    private static final int SOCKET_TIMEOUT_MS = 20 * 1000;
+    // Warm-ups are only worth it if they finish before the user has typed
+    private static final int WARM_UP_TIMEOUT_MS = 3 * 1000;
+    // How long to wait for a free connection from the pool
+    private static final int POOL_TIMEOUT_MS = 1000;
+    private static final int MAX_CONNECTIONS_PER_HOST = 2;
+    private static final int MAX_CONNECTIONS = 8;
+    // Idle connections are closed after this, or sooner if the server asks
+    static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private static SearchHttpClient sInstance;
+
+    private final ThreadSafeClientConnManager mConnManager;
+    private final DefaultHttpClient mClient;
+
+    // Set when the calling thread opens a new connection
+    private final ThreadLocal<Boolean> mOpened = new ThreadLocal<Boolean>();
+
+    // Requests can run on several threads at once
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mReusedCount = new AtomicInteger();
+    private final AtomicInteger mConnectCount = new AtomicInteger();
+    private final AtomicInteger mWarmUpCount = new AtomicInteger();
+
+    public static synchronized SearchHttpClient getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SearchHttpClient(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    SearchHttpClient(Context context) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        // Pooled connections may have been closed by the server
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpProtocolParams.setUserAgent(params, USER_AGENT);
+        HttpClientParams.setRedirecting(params, false);
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http",
+                PlainSocketFactory.getSocketFactory(), 80));
+        // Caches TLS sessions, so that new connections can resume them
+        schemeRegistry.register(new Scheme("https",
+                SSLCertificateSocketFactory.getHttpSocketFactory(SOCKET_TIMEOUT_MS,
+                        new SSLSessionCache(context)), 443));
+
+        mConnManager = new ThreadSafeClientConnManager(params, schemeRegistry) {
+            @Override
+            protected ClientConnectionOperator createConnectionOperator(
+                    SchemeRegistry schreg) {
+                return new DefaultClientConnectionOperator(schreg) {
+                    @Override
+                    public void openConnection(OperatedClientConnection conn,
+                            HttpHost target, InetAddress local, HttpContext context,
+                            HttpParams params) throws IOException {
+                        mConnectCount.incrementAndGet();
+                        mOpened.set(Boolean.TRUE);
+                        super.openConnection(conn, target, local, context, params);
+                    }
+                };
+            }
+        };
+        mClient = new DefaultHttpClient(mConnManager, params) {
+            @Override
+            protected BasicHttpProcessor createHttpProcessor() {
+                // Search engines shouldn't be able to track the user
+                BasicHttpProcessor processor = super.createHttpProcessor();
+                processor.removeRequestInterceptorByClass(RequestAddCookies.class);
+                processor.removeResponseInterceptorByClass(ResponseProcessCookies.class);
+                return processor;
+            }
+
+            @Override
+            protected ConnectionKeepAliveStrategy createConnectionKeepAliveStrategy() {
+                return new DefaultConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response,
+                            HttpContext context) {
+                        long duration = super.getKeepAliveDuration(response, context);
+                        return duration < 0 || duration > KEEP_ALIVE_MS
+                                ? KEEP_ALIVE_MS : duration;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Executes the request on a pooled connection. The response entity
+     * must be consumed or its content closed to give the connection back
+     * to the pool.
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        mConnManager.closeExpiredConnections();
+        mOpened.set(Boolean.FALSE);
+        HttpResponse response = mClient.execute(request);
+        mRequestCount.incrementAndGet();
+        if (!mOpened.get()) {
+            mReusedCount.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Opens a connection to the host of the given url and leaves it in the
+     * pool, unless there is an idle one already. Blocks for up to a few
+     * seconds, so must be called on a background thread that isn't needed
+     * for requests in the meantime.
+     */
+    public void warmUp(String url) {
+        ManagedClientConnection conn = null;
+        try {
+            HttpGet request = new HttpGet(url);
+            URI uri = request.getURI();
+            if (uri.getHost() == null) {
+                return;
+            }
+            HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+            HttpContext context = new BasicHttpContext();
+            HttpRoute route = mClient.getRoutePlanner().determineRoute(target, request, context);
+            if (route.isTunnelled()) {
+                // Only worth it if the proxy tunnel is set up as well
+                return;
+            }
+            mConnManager.closeExpiredConnections();
+            conn = mConnManager.requestConnection(route, null)
+                    .getConnection(POOL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!conn.isOpen()) {
+                HttpParams params = mClient.getParams().copy();
+                HttpConnectionParams.setConnectionTimeout(params, WARM_UP_TIMEOUT_MS);
+                HttpConnectionParams.setSoTimeout(params, WARM_UP_TIMEOUT_MS);
+                conn.open(route, context, params);
+                mWarmUpCount.incrementAndGet();
+            }
+            conn.markReusable();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Bad warm-up url " + url);
+        } catch (HttpException e) {
+            Log.w(TAG, "Warm-up failed", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Warm-up failed", e);
+        } catch (InterruptedException e) {
+            // Give up
+        } finally {
+            if (conn != null) {
+                mConnManager.releaseConnection(conn, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (LOGV_ENABLED) {
+            Log.v(TAG, "Warmed up " + url + ", connection reuse rate " + getReuseRate());
+        }
+    }
+
+    /**
+     * Closes all connections, the client can't be used afterwards.
+     */
+    void shutdown() {
+        mConnManager.shutdown();
+    }
+
+    /** Number of requests executed */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Number of requests that went over an already open connection */
+    int getReusedCount() {
+        return mReusedCount.get();
+    }
+
+    /** Number of connections opened, including by warm-ups */
+    int getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /** Number of connections opened by warm-ups */
+    int getWarmUpCount() {
+        return mWarmUpCount.get();
+    }
+
+    /**
+     * Fraction of the requests that reused a pooled connection.
+     */
+    public float getReuseRate() {
+        int requests = mRequestCount.get();
+        return requests == 0 ? 0 : mReusedCount.get() / (float) requests;
+    }
+}
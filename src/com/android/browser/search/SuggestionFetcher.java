@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import com.android.browser.BackgroundHandler;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches search engine suggestions as the user types. Requests are only
+ * sent once the input has settled for {@link #DEBOUNCE_DELAY}, and a
+ * request that is superseded by newer input is aborted. Parsed results are
+ * kept in an LRU cache by engine and query. While the network request for
+ * a longer query is pending, the cached results for a prefix of it are
+ * filtered locally and delivered right away.
+ */
+public class SuggestionFetcher {
+
+    /**
+     * Receives suggestions on the main thread. For a given query it may be
+     * called first with results filtered from a shorter query, then with
+     * the results from the search engine.
+     */
+    public interface Listener {
+        void onSuggestions(String query, List<Suggestion> suggestions);
+    }
+
+    /**
+     * A suggestion row, read from the search engine's cursor.
+     */
+    public static class Suggestion {
+        public final String title;
+        public final String url;
+        public final String extra;
+
+        public Suggestion(String title, String url, String extra) {
+            this.title = title;
+            this.url = url;
+            this.extra = extra;
+        }
+    }
+
+    static final long DEBOUNCE_DELAY = 150;
+    private static final int CACHE_SIZE = 64;
+    private static final int MSG_FETCH = 1;
+
+    private static SuggestionFetcher sInstance;
+
+    private final Context mContext;
+    private final long mDebounceDelay;
+    private final Handler mMainHandler;
+    private final Handler mFetchHandler;
+    private final Thread mFetchThread;
+    private final LruCache<String, List<Suggestion>> mCache =
+            new LruCache<String, List<Suggestion>>(CACHE_SIZE);
+
+    private final Object mLock = new Object();
+    // The most recent request, any other is stale. Guarded by mLock.
+    private Request mLatest;
+    // The request waiting on the search engine. Guarded by mLock.
+    private Request mInFlight;
+
+    private final AtomicBoolean mWarmingUp = new AtomicBoolean();
+
+    private volatile int mRequestCount;
+    private volatile int mCancelCount;
+    private volatile int mCacheHitCount;
+    private volatile int mPrefixHitCount;
+
+    private static class Request {
+        final SearchEngine engine;
+        final String query;
+        final Listener listener;
+        // null if there is no engine
+        final String key;
+
+        Request(SearchEngine engine, String query, Listener listener) {
+            this.engine = engine;
+            this.query = query;
+            this.listener = listener;
+            key = engine == null ? null : getCacheKey(engine, query);
+        }
+    }
+
+    public static synchronized SuggestionFetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SuggestionFetcher(context.getApplicationContext(),
+                    DEBOUNCE_DELAY);
+        }
+        return sInstance;
+    }
+
+    SuggestionFetcher(Context context, long debounceDelay) {
+        mContext = context;
+        mDebounceDelay = debounceDelay;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread thread = new HandlerThread("SuggestionFetcher",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFetchThread = thread;
+        mFetchHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_FETCH:
+                        doFetch((Request) msg.obj);
+                        break;
+                }
+            }
+        };
+    }
+
+    private static String getCacheKey(SearchEngine engine, String query) {
+        return engine.getName() + '\n' + query;
+    }
+
+    /**
+     * Requests suggestions for the query, superseding any previous request.
+     * Can be called from any thread.
+     */
+    public void fetch(SearchEngine engine, String query, Listener listener) {
+        Request request = new Request(engine, query, listener);
+        synchronized (mLock) {
+            mLatest = request;
+            if (mInFlight != null && !TextUtils.equals(mInFlight.key, request.key)) {
+                cancelInFlight();
+            }
+        }
+        mFetchHandler.removeMessages(MSG_FETCH);
+        if (engine == null || TextUtils.isEmpty(query) || !engine.supportsSuggestions()) {
+            deliver(request, Collections.<Suggestion>emptyList());
+            return;
+        }
+        List<Suggestion> cached = mCache.get(request.key);
+        if (cached != null) {
+            mCacheHitCount++;
+            deliver(request, cached);
+            return;
+        }
+        List<Suggestion> filtered = filterCachedPrefix(engine, query);
+        if (filtered != null) {
+            mPrefixHitCount++;
+            deliver(request, filtered);
+        }
+        mFetchHandler.sendMessageDelayed(
+                mFetchHandler.obtainMessage(MSG_FETCH, request), mDebounceDelay);
+    }
+
+    /**
+     * Gets the engine ready for suggestion requests, such as when the user
+     * is about to type. Can be called from any thread.
+     */
+    public void warmUp(final SearchEngine engine) {
+        if (engine == null || !engine.supportsSuggestions()
+                || !mWarmingUp.compareAndSet(false, true)) {
+            return;
+        }
+        // Not on the fetch thread, a slow connect would hold up requests
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.warmUp(mContext);
+                } finally {
+                    mWarmingUp.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the pending request, if any, and aborts it if it is in flight.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mLatest = null;
+            if (mInFlight != null) {
+                cancelInFlight();
+            }
+        }
+        mFetchHandler.removeMessages(MSG_FETCH);
+    }
+
+    /**
+     * Cancels the request of the listener, if it is the latest one, so
+     * that the fetcher doesn't keep the listener once its owner is gone.
+     */
+    public void detach(Listener listener) {
+        synchronized (mLock) {
+            if (mLatest == null || mLatest.listener != listener) {
+                return;
+            }
+        }
+        cancel();
+    }
+
+    /**
+     * Aborts the request the fetch thread is waiting on. Called under the
+     * lock, so that it can't hit the request the fetch thread moves on to
+     * next. The interrupt records the cancellation in case the engine
+     * hasn't sent the request yet, the engine checks it before sending.
+     */
+    private void cancelInFlight() {
+        mFetchThread.interrupt();
+        mInFlight.engine.cancelSuggestions(mFetchThread);
+        mCancelCount++;
+    }
+
+    /**
+     * Returns the cached results of the longest prefix of the query that
+     * start with the query, or null if none do.
+     */
+    private List<Suggestion> filterCachedPrefix(SearchEngine engine, String query) {
+        String lowerQuery = query.toLowerCase();
+        for (int i = query.length() - 1; i > 0; i--) {
+            List<Suggestion> cached = mCache.get(getCacheKey(engine, query.substring(0, i)));
+            if (cached == null) {
+                continue;
+            }
+            ArrayList<Suggestion> filtered = new ArrayList<Suggestion>();
+            for (Suggestion s : cached) {
+                if (s.title != null && s.title.toLowerCase().startsWith(lowerQuery)) {
+                    filtered.add(s);
+                }
+            }
+            return filtered.isEmpty() ? null : filtered;
+        }
+        return null;
+    }
+
+    private void doFetch(Request request) {
+        synchronized (mLock) {
+            if (request != mLatest) {
+                return;
+            }
+            mInFlight = request;
+        }
+        List<Suggestion> results = mCache.get(request.key);
+        if (results == null) {
+            mRequestCount++;
+            Cursor c = request.engine.getSuggestions(mContext, request.query);
+            if (c != null) {
+                try {
+                    results = readSuggestions(c);
+                } finally {
+                    c.close();
+                }
+                mCache.put(request.key, results);
+            }
+        }
+        synchronized (mLock) {
+            mInFlight = null;
+            // Clears a cancellation that came in too late to be seen
+            Thread.interrupted();
+        }
+        if (results != null) {
+            deliver(request, results);
+        }
+    }
+
+    private static List<Suggestion> readSuggestions(Cursor c) {
+        int titleIndex = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_1);
+        int urlIndex = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2_URL);
+        int extraIndex = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA);
+        ArrayList<Suggestion> results = new ArrayList<Suggestion>(c.getCount());
+        while (c.moveToNext()) {
+            results.add(new Suggestion(
+                    titleIndex == -1 ? null : c.getString(titleIndex),
+                    urlIndex == -1 ? null : c.getString(urlIndex),
+                    extraIndex == -1 ? null : c.getString(extraIndex)));
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    private void deliver(final Request request, final List<Suggestion> suggestions) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (request != mLatest) {
+                        return;
+                    }
+                }
+                request.listener.onSuggestions(request.query, suggestions);
+            }
+        });
+    }
+
+    /** Number of requests sent to search engines */
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /** Number of requests aborted because newer input came in */
+    int getCancelCount() {
+        return mCancelCount;
+    }
+
+    /** Number of queries answered from the cache without a request */
+    int getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /** Number of queries given early results filtered from a prefix */
+    int getPrefixHitCount() {
+        return mPrefixHitCount;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * Decodes favicons, thumbnails and touch icons from their database blobs,
+ * downsampled to the size they are shown at. Decoded bitmaps are kept in
+ * an LRU cache bounded in bytes, keyed by url and image type, and decoded
+ * into bitmaps from the {@link BitmapPool} when possible.
+ *
+ * Bitmaps returned by {@link #decode} are pinned, so they aren't handed
+ * out for reuse while shown. They must be given back with
+ * {@link #release} once the view showing them shows something else. A
+ * bitmap that is never released is simply left to the garbage collector,
+ * pins don't keep bitmaps alive.
+ *
+ * Thread safe.
+ */
+public class BitmapDecoder {
+
+    private static final String LOGTAG = "BitmapDecoder";
+    private static final boolean DEBUG = false;
+
+    public static final int TYPE_FAVICON = 1;
+    public static final int TYPE_THUMBNAIL = 2;
+    public static final int TYPE_TOUCH_ICON = 3;
+
+    // Share of the memory class used for the cache
+    private static final int CACHE_FRACTION = 16;
+
+    private static BitmapDecoder sInstance;
+
+    private static class Entry {
+        final Bitmap bitmap;
+        // Tells whether the blob changed since it was decoded
+        final int dataHash;
+        final int sampleSize;
+
+        Entry(Bitmap bitmap, int dataHash, int sampleSize) {
+            this.bitmap = bitmap;
+            this.dataHash = dataHash;
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    private static class Pin {
+        int count;
+        boolean cached;
+    }
+
+    private final BitmapPool mPool;
+    private final LruCache<String, Entry> mCache;
+    // Bitmaps that are in use, all others in the cache can be reused once
+    // they are evicted. Bitmap uses identity for equals. Guarded by this.
+    private final WeakHashMap<Bitmap, Pin> mPins = new WeakHashMap<Bitmap, Pin>();
+
+    // Guarded by this
+    private int mHitCount;
+    private int mMissCount;
+    private long mDecodedBytes;
+    private long mSavedBytes;
+
+    public static synchronized BitmapDecoder getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            int cacheBytes = am.getMemoryClass() * 1024 * 1024 / CACHE_FRACTION;
+            sInstance = new BitmapDecoder(BitmapPool.getInstance(), cacheBytes);
+        }
+        return sInstance;
+    }
+
+    BitmapDecoder(BitmapPool pool, int cacheBytes) {
+        mPool = pool;
+        mCache = new LruCache<String, Entry>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return BitmapPool.getAllocationSize(value.bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                onRemoved(oldValue.bitmap);
+            }
+        };
+    }
+
+    private static String getKey(String url, int type) {
+        return type + ":" + url;
+    }
+
+    /**
+     * @return The largest power of two to divide the image dimensions by
+     *         while keeping them at least as big as the requested ones. A
+     *         requested dimension of 0 or less is ignored.
+     */
+    static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return sampleSize;
+        }
+        while ((reqWidth <= 0 || width / (sampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (sampleSize * 2) >= reqHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the image, or returns the cached bitmap if it was decoded
+     * before from the same data at a big enough size. The bitmap is at
+     * least reqWidth x reqHeight unless the image is smaller. Must be
+     * released with {@link #release}.
+     * @return The pinned bitmap, or null if data is null or can't be
+     *         decoded.
+     */
+    public Bitmap decode(String url, int type, byte[] data, int reqWidth, int reqHeight) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        String key = getKey(url, type);
+        int dataHash = Arrays.hashCode(data);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = computeSampleSize(opts.outWidth, opts.outHeight,
+                reqWidth, reqHeight);
+        synchronized (this) {
+            Entry entry = mCache.get(key);
+            if (entry != null && entry.dataHash == dataHash
+                    && entry.sampleSize <= sampleSize) {
+                mHitCount++;
+                pin(entry.bitmap, true);
+                return entry.bitmap;
+            }
+            mMissCount++;
+        }
+        Bitmap bitmap = decodeSampled(data, opts.outWidth, opts.outHeight, sampleSize);
+        if (bitmap == null) {
+            return null;
+        }
+        synchronized (this) {
+            int size = BitmapPool.getAllocationSize(bitmap);
+            mDecodedBytes += size;
+            mSavedBytes += (long) opts.outWidth * opts.outHeight
+                    * BitmapPool.getBytesPerPixel(bitmap.getConfig()) - size;
+            // Pinned first, so that it isn't reused if it is too big to
+            // stay in the cache
+            pin(bitmap, true);
+            mCache.put(key, new Entry(bitmap, dataHash, sampleSize));
+        }
+        if (DEBUG) {
+            Log.d(LOGTAG, "Decoded " + key + " at 1/" + sampleSize + ", "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight());
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeSampled(byte[] data, int width, int height, int sampleSize) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSize;
+        opts.inScaled = false;
+        opts.inMutable = true;
+        // RemoteViews and the pool require a known config
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Rounded up, the decoder may not round down
+            int w = (width + sampleSize - 1) / sampleSize;
+            int h = (height + sampleSize - 1) / sampleSize;
+            opts.inBitmap = mPool.get(w, h, opts.inPreferredConfig);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all. Dropped rather than
+            // pooled again, the failed decode may have written to it.
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        }
+    }
+
+    private void pin(Bitmap bitmap, boolean cached) {
+        Pin pin = mPins.get(bitmap);
+        if (pin == null) {
+            pin = new Pin();
+            pin.cached = cached;
+            mPins.put(bitmap, pin);
+        }
+        pin.count++;
+    }
+
+    // Called with the lock held
+    private void onRemoved(Bitmap bitmap) {
+        Pin pin = mPins.get(bitmap);
+        if (pin == null) {
+            mPool.put(bitmap);
+        } else {
+            pin.cached = false;
+        }
+    }
+
+    /**
+     * Pins a bitmap returned by {@link #decode} once more, for a second
+     * holder. Bitmaps that aren't pinned already are ignored.
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        Pin pin = bitmap != null ? mPins.get(bitmap) : null;
+        if (pin != null) {
+            pin.count++;
+        }
+    }
+
+    /**
+     * Gives back a bitmap returned by {@link #decode}, once it isn't shown
+     * anymore. Other bitmaps are ignored, so it is safe to pass whatever a
+     * view was showing before.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Pin pin = bitmap != null ? mPins.get(bitmap) : null;
+        if (pin == null) {
+            return;
+        }
+        if (--pin.count == 0) {
+            mPins.remove(bitmap);
+            if (!pin.cached) {
+                mPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Shrinks the cache according to the {@link ComponentCallbacks2} trim
+     * level.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+            mPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+            mPool.trimToSize(mPool.getSize() / 2);
+        }
+    }
+
+    /** Number of decodes served from the cache */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Bytes of bitmaps decoded */
+    public synchronized long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    /** Bytes not allocated thanks to downsampling */
+    public synchronized long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    synchronized int getCacheSize() {
+        return mCache.size();
+    }
+
+    synchronized int getPinnedCount() {
+        return mPins.size();
+    }
+}
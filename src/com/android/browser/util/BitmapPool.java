@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps that are no longer shown, kept around so that their memory can
+ * be decoded or drawn into again instead of allocating new bitmaps. They
+ * are bucketed by allocation size, and the pool as a whole is bounded in
+ * bytes, dropping the biggest bitmaps first.
+ *
+ * Thread safe.
+ */
+public class BitmapPool {
+
+    static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    // A bitmap can stand in for one of up to this many times smaller
+    private static final int MAX_SIZE_RATIO = 2;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+    // Free bitmaps by allocation size in bytes
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+    private long mBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static boolean canReconfigure() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    static int getAllocationSize(Bitmap b) {
+        return canReconfigure() ? b.getAllocationByteCount() : b.getByteCount();
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+        case ALPHA_8:
+            return 1;
+        case RGB_565:
+        case ARGB_4444:
+            return 2;
+        default:
+            return 4;
+        }
+    }
+
+    /**
+     * @return A free mutable bitmap with the given size and config, or null
+     *         if there is none. Its content is undefined. Before KitKat,
+     *         a bitmap can only be decoded into without sampling.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * getBytesPerPixel(config);
+        Bitmap bitmap = canReconfigure()
+                ? removeAtLeast(needed, width, height, config)
+                : removeExact(needed, width, height, config);
+        if (bitmap == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return bitmap;
+    }
+
+    // Since KitKat, any big enough bitmap can be reconfigured
+    private Bitmap removeAtLeast(int needed, int width, int height, Bitmap.Config config) {
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = mBuckets.ceilingEntry(needed);
+        if (entry == null || entry.getKey() > needed * MAX_SIZE_RATIO) {
+            return null;
+        }
+        Bitmap bitmap = removeFrom(entry);
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    // Before, only bitmaps of the very same size and config can be reused
+    private Bitmap removeExact(int needed, int width, int height, Bitmap.Config config) {
+        LinkedList<Bitmap> bucket = mBuckets.get(needed);
+        if (bucket == null) {
+            return null;
+        }
+        for (Bitmap b : bucket) {
+            if (b.getWidth() == width && b.getHeight() == height
+                    && b.getConfig() == config) {
+                bucket.remove(b);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(needed);
+                }
+                mBytes -= needed;
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private Bitmap removeFrom(Map.Entry<Integer, LinkedList<Bitmap>> entry) {
+        LinkedList<Bitmap> bucket = entry.getValue();
+        Bitmap bitmap = bucket.removeFirst();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        mBytes -= entry.getKey();
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap to the pool. The caller must not draw or show it
+     * anymore.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = getAllocationSize(bitmap);
+        if (size > mMaxBytes / 2) {
+            // Would push out everything else
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(size, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.addLast(bitmap);
+        mBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops free bitmaps, biggest first, until at most maxBytes are left.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mBuckets.isEmpty()) {
+            removeFrom(mBuckets.lastEntry());
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    /** Number of requests that got a bitmap from the pool */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of requests the pool couldn't serve */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+}
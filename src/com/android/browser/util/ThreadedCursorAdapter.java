@@ -17,44 +17,142 @@ package com.android.browser.util;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 import android.os.Process;
-import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.Adapter;
 import android.widget.BaseAdapter;
 import android.widget.CursorAdapter;
 
 import com.android.browser.R;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Adapter whose row objects are built from the cursor on background
+ * threads, shared by all instances. Rows are also loaded ahead of the
+ * scroll direction, loads for rows that scrolled out of view are
+ * cancelled, and loaded row objects are kept until the data changes.
+ */
 public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
-    private static final String LOGTAG = "BookmarksThreadedAdapter";
+    private static final String LOGTAG = "ThreadedCursorAdapter";
     private static final boolean DEBUG = false;
 
+    // Rows loaded ahead of the last requested one
+    static final int DEFAULT_PREFETCH_ROWS = 8;
+    // Loaded rows kept, the ones furthest from the last requested row are
+    // dropped first
+    private static final int MAX_CACHED_ROWS = 64;
+    // Row objects kept for reuse
+    private static final int MAX_RECYCLED_ROWS = 8;
+    private static final int LOADER_THREADS = 2;
+    private static final long LOADER_KEEP_ALIVE = 5;
+
+    // Rows that are shown go before prefetched ones
+    private static final int PRIORITY_VISIBLE = 0;
+
+    private static ThreadPoolExecutor sLoader;
+    private static final AtomicLong sSequence = new AtomicLong();
+
     private Context mContext;
     private Object mCursorLock = new Object();
     private CursorAdapter mCursorAdapter;
     private T mLoadingObject;
-    private Handler mLoadHandler;
     private Handler mHandler;
     private int mSize;
     private boolean mHasCursor;
-    private long mGeneration;
+    private volatile long mGeneration;
+
+    // All below only touched on the UI thread
+    // Loaded row objects by position, for the current generation
+    private final SparseArray<T> mRows = new SparseArray<T>();
+    private final SparseArray<LoadTask> mPending = new SparseArray<LoadTask>();
+    private final ArrayList<LoadContainer> mContainers = new ArrayList<LoadContainer>();
+    private int mLastPosition = -1;
+    private int mDirection = 1;
+    private int mPrefetchRows = DEFAULT_PREFETCH_ROWS;
+    private int mPlaceholderCount;
+    private int mPrefetchCount;
+    private int mCancelCount;
+
+    // Guarded by itself, filled on the UI thread and used by the loaders
+    private final ArrayList<T> mRecycled = new ArrayList<T>();
 
     private class LoadContainer {
         WeakReference<View> view;
         int position;
-        T bind_object;
-        Adapter owner;
+        ThreadedCursorAdapter<T> owner;
         boolean loaded;
-        long generation;
+    }
+
+    private static class LoadTask implements Runnable, Comparable<LoadTask> {
+        final ThreadedCursorAdapter<?> adapter;
+        final int position;
+        final long generation;
+        final int priority;
+        final long sequence;
+        volatile boolean cancelled;
+
+        LoadTask(ThreadedCursorAdapter<?> adapter, int position, long generation,
+                int priority) {
+            this.adapter = adapter;
+            this.position = position;
+            this.generation = generation;
+            this.priority = priority;
+            sequence = sSequence.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            if (!cancelled) {
+                adapter.loadRow(this);
+            }
+        }
+
+        @Override
+        public int compareTo(LoadTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            // Newest first, those are where the user scrolled to
+            return sequence > other.sequence ? -1 : (sequence < other.sequence ? 1 : 0);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getLoader() {
+        if (sLoader == null) {
+            sLoader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+                    LOADER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private int mCount;
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread("threaded_adapter_" + mCount++) {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            };
+                        }
+                    });
+            // Threads go away while no list is loading
+            sLoader.allowCoreThreadTimeOut(true);
+        }
+        return sLoader;
     }
 
     public ThreadedCursorAdapter(Context context, Cursor c) {
@@ -76,7 +174,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetChanged() {
                 super.notifyDataSetChanged();
                 mSize = getCount();
-                mGeneration++;
+                onGenerationChanged();
                 ThreadedCursorAdapter.this.notifyDataSetChanged();
             }
 
@@ -84,45 +182,13 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetInvalidated() {
                 super.notifyDataSetInvalidated();
                 mSize = getCount();
-                mGeneration++;
+                onGenerationChanged();
                 ThreadedCursorAdapter.this.notifyDataSetInvalidated();
             }
 
         };
         mSize = mCursorAdapter.getCount();
-        HandlerThread thread = new HandlerThread("threaded_adapter_" + this,
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mLoadHandler = new Handler(thread.getLooper()) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public void handleMessage(Message msg) {
-                if (DEBUG) {
-                    Log.d(LOGTAG, "loading: " + msg.what);
-                }
-                loadRowObject(msg.what, (LoadContainer) msg.obj);
-            }
-        };
-        mHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                @SuppressWarnings("unchecked")
-                LoadContainer container = (LoadContainer) msg.obj;
-                if (container == null) {
-                    return;
-                }
-                View view = container.view.get();
-                if (view == null
-                        || container.owner != ThreadedCursorAdapter.this
-                        || container.position != msg.what
-                        || view.getWindowToken() == null
-                        || container.generation != mGeneration) {
-                    return;
-                }
-                container.loaded = true;
-                bindView(view, container.bind_object);
-            }
-        };
+        mHandler = new Handler();
     }
 
     @Override
@@ -142,21 +208,186 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         }
     }
 
-    private void loadRowObject(int position, LoadContainer container) {
-        if (container == null
-                || container.position != position
-                || container.owner != ThreadedCursorAdapter.this
-                || container.view.get() == null) {
-            return;
+    // The row objects of the previous generation describe other rows
+    private void onGenerationChanged() {
+        mGeneration++;
+        for (int i = 0; i < mPending.size(); i++) {
+            cancel(mPending.valueAt(i));
+        }
+        mPending.clear();
+        for (int i = 0; i < mRows.size(); i++) {
+            recycle(mRows.valueAt(i));
+        }
+        mRows.clear();
+        for (LoadContainer container : mContainers) {
+            container.loaded = false;
+        }
+    }
+
+    /**
+     * Copies the current row, so that the row object can be built without
+     * holding the cursor.
+     */
+    private static Cursor copyRow(Cursor c) {
+        String[] columns = c.getColumnNames();
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            switch (c.getType(i)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                values[i] = c.getLong(i);
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                values[i] = c.getDouble(i);
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                values[i] = c.getString(i);
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                values[i] = c.getBlob(i);
+                break;
+            }
         }
+        MatrixCursor row = new MatrixCursor(columns, 1);
+        row.addRow(values);
+        row.moveToFirst();
+        return row;
+    }
+
+    // Called on a loader thread
+    private void loadRow(final LoadTask task) {
+        Cursor row;
         synchronized (mCursorLock) {
-            Cursor c = (Cursor) mCursorAdapter.getItem(position);
-            if (c == null || c.isClosed()) {
+            Cursor c = mCursorAdapter.getCursor();
+            if (task.generation != mGeneration || c == null || c.isClosed()
+                    || !c.moveToPosition(task.position)) {
                 return;
             }
-            container.bind_object = getRowObject(c, container.bind_object);
+            row = copyRow(c);
+        }
+        if (DEBUG) {
+            Log.d(LOGTAG, "loading: " + task.position);
+        }
+        T recycled = null;
+        synchronized (mRecycled) {
+            if (!mRecycled.isEmpty()) {
+                recycled = mRecycled.remove(mRecycled.size() - 1);
+            }
+        }
+        final T object = getRowObject(row, recycled);
+        row.close();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onRowLoaded(task, object);
+            }
+        });
+    }
+
+    private void onRowLoaded(LoadTask task, T object) {
+        if (mPending.get(task.position) == task) {
+            mPending.remove(task.position);
+        }
+        if (task.cancelled || task.generation != mGeneration) {
+            recycle(object);
+            return;
+        }
+        T previous = mRows.get(task.position);
+        if (previous != null && previous != object) {
+            recycle(previous);
+        }
+        mRows.put(task.position, object);
+        trimRows();
+        for (LoadContainer container : mContainers) {
+            View view = container.view.get();
+            if (view == null
+                    || container.owner != this
+                    || container.position != task.position
+                    || container.loaded
+                    || view.getWindowToken() == null) {
+                continue;
+            }
+            container.loaded = true;
+            bindView(view, object);
+        }
+    }
+
+    private void recycle(T object) {
+        if (object == null || object == mLoadingObject) {
+            return;
+        }
+        synchronized (mRecycled) {
+            if (mRecycled.size() < MAX_RECYCLED_ROWS) {
+                mRecycled.add(object);
+                return;
+            }
+        }
+        releaseRowObject(object);
+    }
+
+    private void trimRows() {
+        while (mRows.size() > MAX_CACHED_ROWS) {
+            int furthest = 0;
+            for (int i = 1; i < mRows.size(); i++) {
+                if (Math.abs(mRows.keyAt(i) - mLastPosition)
+                        > Math.abs(mRows.keyAt(furthest) - mLastPosition)) {
+                    furthest = i;
+                }
+            }
+            recycle(mRows.valueAt(furthest));
+            mRows.removeAt(furthest);
+        }
+    }
+
+    private void load(int position, int priority) {
+        if (mRows.get(position) != null || mPending.get(position) != null) {
+            return;
+        }
+        LoadTask task = new LoadTask(this, position, mGeneration, priority);
+        mPending.put(position, task);
+        getLoader().execute(task);
+    }
+
+    private void cancel(LoadTask task) {
+        task.cancelled = true;
+        getLoader().remove(task);
+    }
+
+    private boolean isShown(int position) {
+        for (Iterator<LoadContainer> it = mContainers.iterator(); it.hasNext();) {
+            LoadContainer container = it.next();
+            if (container.view.get() == null) {
+                it.remove();
+            } else if (container.owner == this && container.position == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads the rows ahead of position in the scroll direction, and cancels
+     * the loads of rows that are neither shown nor ahead.
+     */
+    private void prefetch(int position) {
+        for (int i = 1; i <= mPrefetchRows; i++) {
+            int p = position + i * mDirection;
+            if (p < 0 || p >= mSize) {
+                break;
+            }
+            if (mRows.get(p) == null && mPending.get(p) == null) {
+                mPrefetchCount++;
+                load(p, PRIORITY_VISIBLE + i);
+            }
+        }
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int p = mPending.keyAt(i);
+            int ahead = (p - position) * mDirection;
+            if ((ahead <= 0 || ahead > mPrefetchRows) && !isShown(p)) {
+                cancel(mPending.valueAt(i));
+                mPending.removeAt(i);
+                mCancelCount++;
+            }
         }
-        mHandler.obtainMessage(position, container).sendToTarget();
     }
 
     @Override
@@ -171,21 +402,30 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             container.view = new WeakReference<View>(convertView);
             convertView.setTag(R.id.load_object, container);
         }
-        if (container.position == position
-                && container.owner == this
-                && container.loaded
-                && container.generation == mGeneration) {
-            bindView(convertView, container.bind_object);
+        if (container.owner != this) {
+            mContainers.add(container);
+        }
+        container.position = position;
+        container.owner = this;
+        if (position != mLastPosition && mLastPosition >= 0) {
+            mDirection = position > mLastPosition ? 1 : -1;
+        }
+        mLastPosition = position;
+        T row = mRows.get(position);
+        if (row != null) {
+            container.loaded = true;
+            bindView(convertView, row);
         } else {
+            container.loaded = false;
+            mPlaceholderCount++;
             bindView(convertView, cachedLoadObject());
             if (mHasCursor) {
-                container.position = position;
-                container.loaded = false;
-                container.owner = this;
-                container.generation = mGeneration;
-                mLoadHandler.obtainMessage(position, container).sendToTarget();
+                load(position, PRIORITY_VISIBLE);
             }
         }
+        if (mHasCursor) {
+            prefetch(position);
+        }
         return convertView;
     }
 
@@ -197,7 +437,6 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     }
 
     public void changeCursor(Cursor cursor) {
-        mLoadHandler.removeCallbacksAndMessages(null);
         mHandler.removeCallbacksAndMessages(null);
         synchronized (mCursorLock) {
             mHasCursor = (cursor != null);
@@ -205,9 +444,44 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         }
     }
 
+    /**
+     * Sets how many rows are loaded ahead of the scroll direction, 0 to
+     * only load rows once they are shown.
+     */
+    void setPrefetchRows(int rows) {
+        mPrefetchRows = rows;
+    }
+
+    /** Whether the row object for the position is loaded */
+    boolean hasRow(int position) {
+        return mRows.get(position) != null;
+    }
+
+    /** Number of times a view was bound to the loading object */
+    int getPlaceholderCount() {
+        return mPlaceholderCount;
+    }
+
+    /** Number of rows loaded ahead of being shown */
+    int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    /** Number of loads cancelled as their rows scrolled out of view */
+    int getCancelCount() {
+        return mCancelCount;
+    }
+
     public abstract View newView(Context context, ViewGroup parent);
     public abstract void bindView(View view, T object);
     public abstract T getRowObject(Cursor c, T recycleObject);
     public abstract T getLoadingObject();
+
+    /**
+     * Called on the UI thread when a row object is dropped instead of kept
+     * for reuse, to release what it holds.
+     */
+    protected void releaseRowObject(T object) {
+    }
     protected abstract long getItemId(Cursor c);
-}
\ No newline at end of file
+}
@@ -24,9 +24,6 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.BrowserContract;
@@ -39,6 +36,7 @@ import android.widget.RemoteViewsService;
 import com.android.browser.BrowserActivity;
 import com.android.browser.R;
 import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.util.BitmapDecoder;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -166,10 +164,32 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         private long mCurrentFolder = -1;
         private long mRootFolder = -1;
         private SharedPreferences mPreferences = null;
+        private BitmapDecoder mDecoder;
+        private int mThumbWidth;
+        private int mThumbHeight;
+        private int mFaviconSize;
+        // Shown by the last views returned. Those are sent before the next
+        // view is asked for, so they can be released then.
+        private Bitmap mSentThumbnail;
+        private Bitmap mSentFavicon;
 
         public BookmarkFactory(Context context, int widgetId) {
             mContext = context.getApplicationContext();
             mWidgetId = widgetId;
+            mDecoder = BitmapDecoder.getInstance(mContext);
+            mThumbWidth = mContext.getResources().getDimensionPixelSize(
+                    R.dimen.widgetColumnWidth);
+            mThumbHeight = mContext.getResources().getDimensionPixelSize(
+                    R.dimen.widgetThumbnailHeight);
+            mFaviconSize = mContext.getResources().getDimensionPixelSize(
+                    R.dimen.favicon_size);
+        }
+
+        private void releaseSentBitmaps() {
+            mDecoder.release(mSentThumbnail);
+            mDecoder.release(mSentFavicon);
+            mSentThumbnail = null;
+            mSentFavicon = null;
         }
 
         void syncState() {
@@ -214,6 +234,7 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
 
         @Override
         public RemoteViews getViewAt(int position) {
+            releaseSentBitmaps();
             if (!mBookmarks.moveToPosition(position)) {
                 return null;
             }
@@ -249,24 +270,22 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 views.setImageViewResource(R.id.favicon, R.drawable.ic_bookmark_widget_bookmark_holo_dark);
                 views.setDrawableParameters(R.id.thumb, true, 0, -1, null, -1);
             } else {
-                // RemoteViews require a valid bitmap config
-                Options options = new Options();
-                options.inPreferredConfig = Config.ARGB_8888;
-                Bitmap thumbnail = null, favicon = null;
-                byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
+                // Decoded as ARGB_8888, RemoteViews require a valid bitmap
+                // config
+                Bitmap thumbnail = mDecoder.decode(url, BitmapDecoder.TYPE_THUMBNAIL,
+                        mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL), mThumbWidth, mThumbHeight);
                 views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
-                if (blob != null && blob.length > 0) {
-                    thumbnail = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                if (thumbnail != null) {
+                    mSentThumbnail = thumbnail;
                     views.setImageViewBitmap(R.id.thumb, thumbnail);
                 } else {
                     views.setImageViewResource(R.id.thumb,
                             R.drawable.browser_thumbnail);
                 }
-                blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
-                if (blob != null && blob.length > 0) {
-                    favicon = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                Bitmap favicon = mDecoder.decode(url, BitmapDecoder.TYPE_FAVICON,
+                        mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON), mFaviconSize, mFaviconSize);
+                if (favicon != null) {
+                    mSentFavicon = favicon;
                     views.setImageViewBitmap(R.id.favicon, favicon);
                 } else {
                     views.setImageViewResource(R.id.favicon,
@@ -307,6 +326,7 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
 
         @Override
         public void onDestroy() {
+            releaseSentBitmaps();
             if (mBookmarks != null) {
                 mBookmarks.close();
                 mBookmarks = null;
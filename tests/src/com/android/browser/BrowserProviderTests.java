@@ -21,6 +21,8 @@ import com.android.browser.provider.BrowserProvider2;
 import com.android.browser.tests.utils.ProviderTestCase3;
 
 import android.app.SearchManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -105,6 +107,64 @@ public class BrowserProviderTests extends ProviderTestCase3<BrowserProvider2> {
         assertInsertQuery("http://www.example.com/sdaga", title, query);
     }
 
+    public void testDateBins() {
+        addHistory("http://bins.example.com/1", 3000);
+        addHistory("http://bins.example.com/2", 2500);
+        addHistory("http://bins.example.com/3", 500);
+        addHistory("http://bins.example.com/4", 100);
+        Uri uri = BrowserContract.Combined.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserProvider2.PARAM_DATE_BINS, "2000,1000")
+                .build();
+        Cursor c = getMockContentResolver().query(uri, null,
+                "url LIKE 'http://bins.example.com/%'", null, null);
+        try {
+            // The empty bin in between is left out
+            assertEquals(2, c.getCount());
+            int bin = c.getColumnIndexOrThrow(BrowserProvider2.DATE_BIN);
+            int count = c.getColumnIndexOrThrow(BrowserProvider2.DATE_BIN_COUNT);
+            assertTrue(c.moveToNext());
+            assertEquals(0, c.getInt(bin));
+            assertEquals(2, c.getInt(count));
+            assertTrue(c.moveToNext());
+            assertEquals(2, c.getInt(bin));
+            assertEquals(2, c.getInt(count));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testInvalidDateBins() {
+        Uri uri = BrowserContract.Combined.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserProvider2.PARAM_DATE_BINS, "1) OR (1")
+                .build();
+        try {
+            getMockContentResolver().query(uri, null, null, null, null);
+            fail("Invalid bins accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testDeletedHistoryLog() {
+        ContentResolver cr = getMockContentResolver();
+        long lastId = HistoryDeletions.queryLastId(cr);
+        assertTrue(lastId >= 0);
+        Uri uri = insertHistory("http://deleted.example.com/#top", 100);
+        assertEquals(0, HistoryDeletions.query(cr, lastId).historyIds.length);
+
+        deleteUri(uri);
+        HistoryDeletions deletions = HistoryDeletions.query(cr, lastId);
+        assertTrue(deletions.complete);
+        assertEquals(1, deletions.historyIds.length);
+        assertEquals(ContentUris.parseId(uri), deletions.historyIds[0]);
+        // The url is logged exactly as history had it
+        assertEquals("http://deleted.example.com/#top", deletions.urls[0]);
+        assertEquals(deletions.lastId, HistoryDeletions.queryLastId(cr));
+        assertEquals(0, HistoryDeletions.query(cr, deletions.lastId).historyIds.length);
+
+        // Without a known last entry, the deletions can't be replayed
+        assertFalse(HistoryDeletions.query(cr, -1).complete);
+    }
+
     //
     // Utilities
     //
@@ -162,6 +222,21 @@ public class BrowserProviderTests extends ProviderTestCase3<BrowserProvider2> {
                 values);
     }
 
+    private void addHistory(String url, long date) {
+        mDeleteUris.add(insertHistory(url, date));
+    }
+
+    private Uri insertHistory(String url, long date) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.URL, url);
+        values.put(BrowserContract.History.TITLE, url);
+        values.put(BrowserContract.History.VISITS, 1);
+        values.put(BrowserContract.History.DATE_LAST_VISITED, date);
+        Uri uri = getMockContentResolver().insert(BrowserContract.History.CONTENT_URI, values);
+        assertNotNull(uri);
+        return uri;
+    }
+
     private void deleteUri(Uri uri) {
         int count = getMockContentResolver().delete(uri, null, null);
         assertEquals("Failed to delete " + uri, 1, count);
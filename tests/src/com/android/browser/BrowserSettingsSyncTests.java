@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+/**
+ * Tests which WebSettings a preference change is synced to, and that the
+ * changes of a frame are synced together.
+ */
+@SmallTest
+public class BrowserSettingsSyncTests extends InstrumentationTestCase
+        implements PreferenceKeys {
+
+    private static final long TIMEOUT = 5000;
+
+    private BrowserSettings mBrowserSettings;
+    private WebView mWebView;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mWebView != null) {
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mBrowserSettings.stopManagingSettings(mWebView.getSettings());
+                    mWebView.destroy();
+                }
+            });
+        }
+        super.tearDown();
+    }
+
+    public void testSingleSetter() {
+        assertEquals(BrowserSettings.SYNC_TEXT_ZOOM,
+                BrowserSettings.getSyncFlags(PREF_TEXT_ZOOM));
+        assertEquals(BrowserSettings.SYNC_JAVASCRIPT,
+                BrowserSettings.getSyncFlags(PREF_ENABLE_JAVASCRIPT));
+        assertEquals(BrowserSettings.SYNC_LAYOUT_ALGORITHM,
+                BrowserSettings.getSyncFlags(PREF_AUTOFIT_PAGES));
+        assertEquals(BrowserSettings.SYNC_LAYOUT_ALGORITHM,
+                BrowserSettings.getSyncFlags(PREF_NORMAL_LAYOUT));
+    }
+
+    public void testSharedSettings() {
+        int flags = BrowserSettings.getSyncFlags(PREF_ACCEPT_COOKIES);
+        assertEquals(BrowserSettings.SYNC_COOKIES, flags);
+        assertEquals(0, flags & BrowserSettings.SYNC_WEB_SETTINGS);
+    }
+
+    public void testDebugMenu() {
+        int flags = BrowserSettings.getSyncFlags(PREF_DEBUG_MENU);
+        // Every getter checking isDebugEnabled must be resynced
+        assertTrue((flags & BrowserSettings.SYNC_USER_AGENT) != 0);
+        assertTrue((flags & BrowserSettings.SYNC_WIDE_VIEWPORT) != 0);
+        assertTrue((flags & BrowserSettings.SYNC_LAYOUT_ALGORITHM) != 0);
+        assertTrue((flags & BrowserSettings.SYNC_JAVASCRIPT_CONSOLE) != 0);
+        assertEquals(0, flags & BrowserSettings.SYNC_TEXT_ZOOM);
+    }
+
+    public void testUnrelatedKeys() {
+        assertEquals(0, BrowserSettings.getSyncFlags(PREF_SEARCH_ENGINE));
+        assertEquals(0, BrowserSettings.getSyncFlags(PREF_FULLSCREEN));
+        assertEquals(0, BrowserSettings.getSyncFlags("unknown"));
+    }
+
+    @MediumTest
+    public void testChangesOfAFrameSyncOnce() throws Exception {
+        mBrowserSettings = BrowserSettings.getInstance();
+        if (mBrowserSettings == null) {
+            BrowserSettings.initialize(getInstrumentation().getTargetContext());
+            mBrowserSettings = BrowserSettings.getInstance();
+        }
+        // The preferences are only listened to once they are set up
+        mBrowserSettings.awaitPrefs();
+        final SharedPreferences prefs = mBrowserSettings.getPreferences();
+        final int textZoom = prefs.getInt(PREF_TEXT_ZOOM, 10);
+        final int minFontSize = prefs.getInt(PREF_MIN_FONT_SIZE, 0);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mWebView = new WebView(getInstrumentation().getTargetContext());
+                mBrowserSettings.startManagingSettings(mWebView.getSettings());
+            }
+        });
+        try {
+            // Other WebSettings may be managed too: a change with a single
+            // setter calls it once on each of them
+            int[] before = getCounts(PREF_MIN_FONT_SIZE);
+            changePrefs(prefs.edit().putInt(PREF_TEXT_ZOOM, textZoom + 1));
+            int[] after = waitForSync(before[0] + 1, PREF_MIN_FONT_SIZE);
+            int managed = after[1] - before[1];
+            assertTrue(managed > 0);
+            assertEquals(before[2], after[2]);
+
+            // Text zoom has one setter, the minimum font size two
+            before = after;
+            changePrefs(prefs.edit().putInt(PREF_TEXT_ZOOM, textZoom),
+                    prefs.edit().putInt(PREF_MIN_FONT_SIZE, minFontSize + 1));
+            after = waitForSync(before[0] + 1, PREF_MIN_FONT_SIZE);
+            Thread.sleep(100);
+            assertEquals(before[0] + 1, getCounts(PREF_MIN_FONT_SIZE)[0]);
+            assertEquals(3 * managed, after[1] - before[1]);
+            assertEquals(3 * managed, after[2] - before[2]);
+            final int[] synced = new int[2];
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    WebSettings settings = mWebView.getSettings();
+                    synced[0] = settings.getTextZoom();
+                    synced[1] = settings.getMinimumFontSize();
+                }
+            });
+            assertEquals(mBrowserSettings.getTextZoom(), synced[0]);
+            assertEquals(mBrowserSettings.getMinimumFontSize(), synced[1]);
+        } finally {
+            changePrefs(prefs.edit().putInt(PREF_TEXT_ZOOM, textZoom)
+                    .putInt(PREF_MIN_FONT_SIZE, minFontSize));
+        }
+    }
+
+    private void runOnMainSync(Runnable r) {
+        getInstrumentation().runOnMainSync(r);
+    }
+
+    /**
+     * Commits the edits in a single task of the UI thread, so their changes
+     * are synced on the same frame.
+     */
+    private void changePrefs(final SharedPreferences.Editor... editors) {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (SharedPreferences.Editor editor : editors) {
+                    editor.commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The sync count, setter count and setter count of the key,
+     *         read on the UI thread that updates them.
+     */
+    private int[] getCounts(final String key) {
+        final int[] counts = new int[3];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                counts[0] = mBrowserSettings.getSyncCount();
+                counts[1] = mBrowserSettings.getSetterCount();
+                counts[2] = mBrowserSettings.getSetterCount(key);
+            }
+        });
+        return counts;
+    }
+
+    private int[] waitForSync(int syncCount, String key) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        int[] counts;
+        while ((counts = getCounts(key))[0] < syncCount
+                && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(syncCount, counts[0]);
+        return counts;
+    }
+}
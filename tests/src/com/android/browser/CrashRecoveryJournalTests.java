@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Replay tests for CrashRecoveryJournal, plus a benchmark against writing
+ * the full state snapshot on every navigation.
+ */
+@MediumTest
+public class CrashRecoveryJournalTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "CrashRecoveryJournalTests";
+    private static final int TAB_COUNT = 30;
+    // Roughly the size of a WebView back/forward list with a few entries
+    private static final int TAB_STATE_SIZE = 8 * 1024;
+    private static final int NAVIGATIONS = 100;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_state.journal");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private Bundle createTabState(long id, int navigation) {
+        Bundle tab = new Bundle();
+        byte[] history = new byte[TAB_STATE_SIZE];
+        Arrays.fill(history, (byte) (id + navigation));
+        tab.putByteArray("history", history);
+        tab.putLong(Tab.ID, id);
+        tab.putString(Tab.CURRURL, "http://www.example.com/" + id + "/" + navigation);
+        tab.putString(Tab.CURRTITLE, "Page " + navigation);
+        return tab;
+    }
+
+    private Bundle createState(Bundle[] tabs, long current) {
+        Bundle state = new Bundle();
+        long[] ids = new long[tabs.length];
+        for (int i = 0; i < tabs.length; i++) {
+            ids[i] = i + 1;
+            if (tabs[i] != null) {
+                state.putBundle(Long.toString(ids[i]), tabs[i]);
+            }
+        }
+        state.putLongArray("positions", ids);
+        state.putLong("current", current);
+        state.putSerializable("lastActiveDate", Calendar.getInstance());
+        return state;
+    }
+
+    private Bundle[] createTabs() {
+        Bundle[] tabs = new Bundle[TAB_COUNT];
+        for (int i = 0; i < tabs.length; i++) {
+            tabs[i] = createTabState(i + 1, 0);
+        }
+        return tabs;
+    }
+
+    private void assertSameState(Bundle expected, Bundle actual) {
+        assertNotNull(actual);
+        assertTrue(Arrays.equals(expected.getLongArray("positions"),
+                actual.getLongArray("positions")));
+        assertEquals(expected.getLong("current"), actual.getLong("current"));
+        for (long id : expected.getLongArray("positions")) {
+            String key = Long.toString(id);
+            Bundle e = expected.getBundle(key);
+            Bundle a = actual.getBundle(key);
+            if (e == null) {
+                assertNull(a);
+                continue;
+            }
+            assertNotNull(a);
+            assertEquals(e.getString(Tab.CURRURL), a.getString(Tab.CURRURL));
+            assertTrue(Arrays.equals(e.getByteArray("history"), a.getByteArray("history")));
+        }
+    }
+
+    public void testReplay() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        journal.write(createState(tabs, 1));
+        tabs[3] = createTabState(4, 1);
+        journal.write(createState(tabs, 4));
+        // Close a tab
+        tabs[5] = null;
+        Bundle state = createState(tabs, 4);
+        journal.write(state);
+        assertSameState(state, new CrashRecoveryJournal(mFile).read());
+    }
+
+    public void testOnlyChangedTabsAppended() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        long full = journal.write(createState(tabs, 1));
+        tabs[0] = createTabState(1, 1);
+        long incremental = journal.write(createState(tabs, 1));
+        assertTrue(incremental < TAB_STATE_SIZE * 2);
+        assertTrue(incremental * 10 < full);
+    }
+
+    public void testIgnoresTruncatedRecord() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        Bundle state = createState(tabs, 1);
+        journal.write(state);
+        long length = mFile.length();
+        tabs[0] = createTabState(1, 1);
+        journal.write(createState(tabs, 1));
+        // Simulate a crash half way through the second write
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(length + TAB_STATE_SIZE / 2);
+        raf.close();
+        assertSameState(state, new CrashRecoveryJournal(mFile).read());
+    }
+
+    public void testIgnoresUncommittedWrite() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        Bundle state = createState(tabs, 1);
+        journal.write(state);
+        tabs[0] = createTabState(1, 1);
+        journal.write(createState(tabs, 2));
+        // Every record of the second write made it except its commit
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 21);
+        raf.close();
+        assertSameState(state, new CrashRecoveryJournal(mFile).read());
+    }
+
+    public void testCleanTabsNotMarshalled() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        journal.write(createState(tabs, 1));
+        int marshalled = journal.getMarshalledCount();
+        tabs[2] = createTabState(3, 1);
+        Bundle state = createState(tabs, 3);
+        journal.write(state);
+        assertEquals(marshalled + 1, journal.getMarshalledCount());
+        assertSameState(state, new CrashRecoveryJournal(mFile).read());
+    }
+
+    @LargeTest
+    public void testJournalBenchmark() throws Exception {
+        CrashRecoveryJournal journal = new CrashRecoveryJournal(mFile);
+        Bundle[] tabs = createTabs();
+        long journalBytes = 0;
+        long snapshotBytes = 0;
+        byte[] snapshot = null;
+        Bundle state = null;
+        for (int i = 0; i < NAVIGATIONS; i++) {
+            int tab = i % 3;
+            tabs[tab] = createTabState(tab + 1, i);
+            state = createState(tabs, tab + 1);
+            journalBytes += journal.write(state);
+            Parcel p = Parcel.obtain();
+            state.writeToParcel(p, 0);
+            snapshot = p.marshall();
+            p.recycle();
+            snapshotBytes += snapshot.length;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Bundle replayed = new CrashRecoveryJournal(mFile).read();
+        long journalRecovery = SystemClock.elapsedRealtime() - start;
+        assertSameState(state, replayed);
+
+        start = SystemClock.elapsedRealtime();
+        Parcel p = Parcel.obtain();
+        p.unmarshall(snapshot, 0, snapshot.length);
+        p.setDataPosition(0);
+        p.readBundle();
+        p.recycle();
+        long snapshotRecovery = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOGTAG, "Bytes per navigation: journal " + (journalBytes / NAVIGATIONS)
+                + ", snapshot " + (snapshotBytes / NAVIGATIONS));
+        Log.i(LOGTAG, "Recovery: journal " + journalRecovery + "ms ("
+                + mFile.length() + " bytes), snapshot " + snapshotRecovery + "ms ("
+                + snapshot.length + " bytes)");
+        assertTrue(journalBytes < snapshotBytes);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.provider.BrowserProvider2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the paging of DateSortedExpandableListAdapter, with a single bin of
+ * items served from memory.
+ */
+@MediumTest
+public class DateSortedExpandableListAdapterTests extends InstrumentationTestCase {
+
+    private static final long TIMEOUT = 5000;
+    private static final int ITEMS = 120;
+
+    private TestAdapter mAdapter;
+
+    private static class TestAdapter extends DateSortedExpandableListAdapter {
+        final List<Integer> mOffsets = new ArrayList<Integer>();
+        final List<Cursor> mPages = new ArrayList<Cursor>();
+        volatile CountDownLatch mEntered;
+        volatile CountDownLatch mGate;
+
+        TestAdapter(Context context) {
+            super(context, "date");
+        }
+
+        @Override
+        Cursor queryBin(String selection, String[] selectionArgs, int offset, int limit) {
+            try {
+                CountDownLatch gate = mGate;
+                if (gate != null) {
+                    mEntered.countDown();
+                    gate.await();
+                }
+            } catch (InterruptedException e) {
+            }
+            MatrixCursor page = new MatrixCursor(new String[] { "_id" });
+            for (int i = offset; i < Math.min(ITEMS, offset + limit); i++) {
+                page.addRow(new Object[] { i });
+            }
+            synchronized (this) {
+                mOffsets.add(offset);
+                mPages.add(page);
+            }
+            return page;
+        }
+
+        synchronized List<Integer> getOffsets() {
+            return new ArrayList<Integer>(mOffsets);
+        }
+
+        synchronized List<Cursor> getPages() {
+            return new ArrayList<Cursor>(mPages);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new TestAdapter(getInstrumentation().getTargetContext());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setBins(null);
+        super.tearDown();
+    }
+
+    private void runOnMainSync(Runnable r) {
+        getInstrumentation().runOnMainSync(r);
+    }
+
+    private void setBins(final Cursor bins) {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.changeCursor(bins);
+            }
+        });
+    }
+
+    private static Cursor createBins() {
+        MatrixCursor bins = new MatrixCursor(new String[] {
+                BrowserProvider2.DATE_BIN, BrowserProvider2.DATE_BIN_COUNT });
+        bins.addRow(new Object[] { 0, ITEMS });
+        return bins;
+    }
+
+    /**
+     * @return The id of the item, or -1 if it isn't loaded.
+     */
+    private long getId(final int childPosition) {
+        final long[] id = new long[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mAdapter.moveCursorToChildPosition(0, childPosition)) {
+                    id[0] = mAdapter.getChildCursor().getLong(0);
+                } else {
+                    id[0] = -1;
+                }
+            }
+        });
+        return id[0];
+    }
+
+    private long waitForId(int childPosition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        long id;
+        while ((id = getId(childPosition)) == -1 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        return id;
+    }
+
+    private void waitForQueries(int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        while (mAdapter.getPages().size() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mAdapter.getPages().size());
+    }
+
+    private static boolean waitForClose(Cursor cursor) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        while (!cursor.isClosed() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        return cursor.isClosed();
+    }
+
+    public void testLoadsPages() throws Exception {
+        setBins(createBins());
+        assertEquals(1, mAdapter.getGroupCount());
+        assertEquals(ITEMS, mAdapter.getChildrenCount(0));
+        assertFalse(mAdapter.hasStableIds());
+
+        // The first page is loaded with the bins
+        assertEquals(3, waitForId(3));
+        assertEquals(-1, getId(DateSortedExpandableListAdapter.PAGE_SIZE + 1));
+        assertEquals(DateSortedExpandableListAdapter.PAGE_SIZE + 1,
+                waitForId(DateSortedExpandableListAdapter.PAGE_SIZE + 1));
+        assertEquals(ITEMS - 1, waitForId(ITEMS - 1));
+        // Each page is queried once
+        assertEquals(0, getId(0));
+        assertEquals(3, mAdapter.getOffsets().size());
+        assertEquals(0, (int) mAdapter.getOffsets().get(0));
+        assertEquals(DateSortedExpandableListAdapter.PAGE_SIZE,
+                (int) mAdapter.getOffsets().get(1));
+
+        // Changing the bins closes the pages
+        setBins(createBins());
+        assertTrue(mAdapter.getPages().get(1).isClosed());
+        assertTrue(mAdapter.getPages().get(2).isClosed());
+        assertEquals(0, waitForId(0));
+        setBins(null);
+        for (Cursor page : mAdapter.getPages()) {
+            assertTrue(page.isClosed());
+        }
+    }
+
+    public void testDropsStalePages() throws Exception {
+        setBins(createBins());
+        waitForId(0);
+        mAdapter.mEntered = new CountDownLatch(1);
+        mAdapter.mGate = new CountDownLatch(1);
+        assertEquals(-1, getId(DateSortedExpandableListAdapter.PAGE_SIZE));
+        // Closing the adapter while the page is queried
+        assertTrue(mAdapter.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        setBins(null);
+        CountDownLatch gate = mAdapter.mGate;
+        mAdapter.mGate = null;
+        gate.countDown();
+        waitForQueries(2);
+        // Its result is dropped, even though nothing queries the page again
+        assertTrue(waitForClose(mAdapter.getPages().get(1)));
+
+        // New bins load their own pages
+        setBins(createBins());
+        waitForQueries(3);
+        assertEquals(2, waitForId(2));
+        assertFalse(mAdapter.getPages().get(2).isClosed());
+    }
+}
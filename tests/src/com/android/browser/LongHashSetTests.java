@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests LongHashSet against a HashSet, and the url hash used by
+ * VisitedHistory.
+ */
+@SmallTest
+public class LongHashSetTests extends AndroidTestCase {
+
+    public void testAddContainsRemove() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(43));
+        // 0 marks empty slots, so it is stored separately
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(2, set.size());
+        assertTrue(set.remove(0));
+        assertTrue(set.remove(42));
+        assertFalse(set.remove(42));
+        assertEquals(0, set.size());
+    }
+
+    public void testAgainstHashSet() {
+        Random random = new Random(1234);
+        LongHashSet set = new LongHashSet();
+        HashSet<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            // A small range, so that removes and duplicates hit
+            long value = random.nextInt(5000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long value = -100; value < 4900; value++) {
+            assertEquals("value " + value, expected.contains(value), set.contains(value));
+        }
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(expected.iterator().next()));
+    }
+
+    public void testCollidingValues() {
+        LongHashSet set = new LongHashSet();
+        // Same low bits, so they probe the same slots before mixing
+        for (long i = 1; i <= 1000; i++) {
+            set.add(i << 32);
+        }
+        for (long i = 1; i <= 1000; i += 2) {
+            assertTrue(set.remove(i << 32));
+        }
+        for (long i = 1; i <= 1000; i++) {
+            assertEquals(i % 2 == 0, set.contains(i << 32));
+        }
+    }
+
+    public void testUrlHash() {
+        assertEquals(VisitedHistory.hash("http://www.google.com/"),
+                VisitedHistory.hash("http://www.google.com/"));
+        assertFalse(VisitedHistory.hash("http://www.google.com/")
+                == VisitedHistory.hash("http://www.google.com"));
+        HashSet<Long> hashes = new HashSet<Long>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(hashes.add(VisitedHistory.hash("http://example.com/page" + i)));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Tests the page model of NavigationPredictor, with plain objects standing
+ * in for the tabs.
+ */
+@SmallTest
+public class NavigationPredictorTests extends InstrumentationTestCase
+        implements PreferenceKeys {
+
+    private NavigationPredictor mPredictor;
+    private String mBase;
+    private SharedPreferences mPrefs;
+    private String mPreloadSetting;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPredictor = NavigationPredictor.getInstance();
+        mPrefs = BrowserSettings.getInstance().getPreferences();
+        mPreloadSetting = mPrefs.getString(PREF_DATA_PRELOAD, null);
+        mPrefs.edit().putString(PREF_DATA_PRELOAD, BrowserSettings
+                .getPreloadAlwaysPreferenceString(getInstrumentation().getTargetContext()))
+                .apply();
+        // Pages of their own, whatever the model learned before
+        mBase = "http://predictor" + System.nanoTime() + ".test/";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Preloader.getInstance().discardPreload(NavigationPredictor.PRELOAD_ID_PAGE);
+            }
+        });
+        mPrefs.edit().putString(PREF_DATA_PRELOAD, mPreloadSetting).apply();
+        super.tearDown();
+    }
+
+    private void navigate(final Object tab, final String... paths) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    mPredictor.onNavigation(tab, mBase + path);
+                }
+            }
+        });
+    }
+
+    public void testNormalizeUrl() {
+        assertEquals("http://a.com/b", NavigationPredictor.normalizeUrl("http://a.com/b#c"));
+        assertEquals("https://a.com/", NavigationPredictor.normalizeUrl("https://a.com/"));
+        assertNull(NavigationPredictor.normalizeUrl("about:blank"));
+        assertNull(NavigationPredictor.normalizeUrl("javascript:void(0)"));
+        assertNull(NavigationPredictor.normalizeUrl(null));
+    }
+
+    public void testTypedKey() {
+        assertEquals("example.com/", NavigationPredictor.getTypedKey("http://www.example.com/"));
+        assertEquals("example.com", NavigationPredictor.getTypedKey(" WWW.Example.com "));
+        assertEquals("ex", NavigationPredictor.getTypedKey("https://ex"));
+    }
+
+    public void testLearnsNextPage() {
+        Object tab = new Object();
+        for (int i = 0; i < NavigationPredictor.MIN_SAMPLES - 1; i++) {
+            navigate(tab, "index", "news");
+        }
+        // Not enough samples yet
+        assertNull(mPredictor.getLikelyNextPage(mBase + "index"));
+        navigate(tab, "index", "news");
+        assertEquals(mBase + "news", mPredictor.getLikelyNextPage(mBase + "index"));
+    }
+
+    public void testNeedsConfidence() {
+        Object tab = new Object();
+        navigate(tab, "index", "a", "index", "b", "index", "c", "index", "d");
+        assertNull(mPredictor.getLikelyNextPage(mBase + "index"));
+        navigate(tab, "index", "a", "index", "a", "index", "a");
+        assertEquals(mBase + "a", mPredictor.getLikelyNextPage(mBase + "index"));
+    }
+
+    public void testLearnsPerTab() {
+        Object tab1 = new Object();
+        Object tab2 = new Object();
+        for (int i = 0; i < NavigationPredictor.MIN_SAMPLES; i++) {
+            // Interleaved, each tab still goes from index to its own page
+            navigate(tab1, "index");
+            navigate(tab2, "other");
+            navigate(tab1, "news");
+            navigate(tab2, "sports");
+        }
+        assertEquals(mBase + "news", mPredictor.getLikelyNextPage(mBase + "index"));
+        assertEquals(mBase + "sports", mPredictor.getLikelyNextPage(mBase + "other"));
+    }
+
+    public void testIgnoresReloads() {
+        Object tab = new Object();
+        int navigations = mPredictor.getNavigationCount();
+        navigate(tab, "index", "index", "index");
+        assertEquals(navigations + 1, mPredictor.getNavigationCount());
+        assertNull(mPredictor.getLikelyNextPage(mBase + "index"));
+    }
+
+    public void testForgetsOnHistoryCleared() throws Exception {
+        Object tab = new Object();
+        for (int i = 0; i < NavigationPredictor.MIN_SAMPLES; i++) {
+            navigate(tab, "index", "news");
+        }
+        navigate(tab, "index");
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mPredictor.onHistoryCleared();
+            }
+        });
+        // Cleared by a message to the main thread
+        getInstrumentation().waitForIdleSync();
+        assertNull(mPredictor.getLikelyNextPage(mBase + "index"));
+        assertNull(takePredictedTab(tab, "news"));
+        // The tab's previous page is forgotten too
+        navigate(tab, "news");
+        assertNull(mPredictor.getLikelyNextPage(mBase + "index"));
+        File model = new File(getInstrumentation().getTargetContext().getFilesDir(),
+                "navigation_model");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (model.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(model.exists());
+    }
+
+    private PreloadedTabControl takePredictedTab(final Object tab, final String path) {
+        final PreloadedTabControl[] preloaded = new PreloadedTabControl[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                preloaded[0] = mPredictor.takePredictedTab(tab, mBase + path);
+            }
+        });
+        return preloaded[0];
+    }
+
+    private void destroy(final PreloadedTabControl tab) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                tab.destroy();
+            }
+        });
+    }
+
+    public void testCountsHitsOnHandover() {
+        Object tab = new Object();
+        for (int i = 0; i < NavigationPredictor.MIN_SAMPLES; i++) {
+            navigate(tab, "index", "news");
+        }
+        int predictions = mPredictor.getPredictionCount();
+        int hits = mPredictor.getHitCount();
+        int navigations = mPredictor.getNavigationCount();
+        navigate(tab, "index");
+        assertEquals(predictions + 1, mPredictor.getPredictionCount());
+        assertNull(takePredictedTab(tab, "other"));
+        PreloadedTabControl preloaded = takePredictedTab(tab, "news");
+        assertNotNull(preloaded);
+        destroy(preloaded);
+        assertEquals(hits + 1, mPredictor.getHitCount());
+        // Learned as a navigation of the tab
+        assertEquals(navigations + 2, mPredictor.getNavigationCount());
+        assertNull(takePredictedTab(tab, "news"));
+    }
+
+    public void testReloadedPredictionIsWasted() {
+        Object tab = new Object();
+        for (int i = 0; i < NavigationPredictor.MIN_SAMPLES; i++) {
+            navigate(tab, "index", "news");
+        }
+        int hits = mPredictor.getHitCount();
+        int wasted = mPredictor.getWastedCount();
+        navigate(tab, "index");
+        assertTrue(Preloader.getInstance().hasSession(NavigationPredictor.PRELOAD_ID_PAGE));
+        // Loaded in the tab rather than taken from the preloader
+        navigate(tab, "news");
+        assertEquals(hits, mPredictor.getHitCount());
+        assertEquals(wasted + 1, mPredictor.getWastedCount());
+        assertNull(takePredictedTab(tab, "news"));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.Performance.PageLoadTrace;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Tests the page load traces of Performance, with plain objects standing in
+ * for the tabs.
+ */
+@SmallTest
+public class PerformanceTests extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearTraces();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearTraces();
+        super.tearDown();
+    }
+
+    private void runOnMainSync(Runnable r) {
+        getInstrumentation().runOnMainSync(r);
+    }
+
+    private void clearTraces() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Performance.clearTraces();
+            }
+        });
+    }
+
+    private void load(final Object tab, final long tabId, final String url,
+            final int... events) {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Performance.onPageStarted(tab, tabId, url);
+                for (int event : events) {
+                    Performance.onEvent(tab, event);
+                }
+            }
+        });
+    }
+
+    private List<PageLoadTrace> getTraces() {
+        final Object[] traces = new Object[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                traces[0] = Performance.getTraces();
+            }
+        });
+        @SuppressWarnings("unchecked")
+        List<PageLoadTrace> result = (List<PageLoadTrace>) traces[0];
+        return result;
+    }
+
+    public void testRecordsEachTab() {
+        Object tab1 = new Object();
+        Object tab2 = new Object();
+        load(tab1, 1, "http://a.com/", Performance.EVENT_FIRST_PROGRESS);
+        load(tab2, 2, "http://b.com/", Performance.EVENT_TITLE);
+        assertEquals(0, getTraces().size());
+        load(tab1, 1, "http://a.com/", Performance.EVENT_TITLE, Performance.EVENT_FINISHED);
+        List<PageLoadTrace> traces = getTraces();
+        // The first load of tab1 was replaced before it finished
+        assertEquals(2, traces.size());
+        assertTrue(traces.get(0).isAborted());
+        assertTrue(traces.get(0).getEventTime(Performance.EVENT_FIRST_PROGRESS) >= 0);
+        assertFalse(traces.get(1).isAborted());
+        assertEquals(1, traces.get(1).mTabId);
+        assertTrue(traces.get(1).getEventTime(Performance.EVENT_TITLE) >= 0);
+        assertEquals(-1, traces.get(1).getEventTime(Performance.EVENT_FAVICON));
+    }
+
+    public void testRecordsEventsOnce() {
+        Object tab = new Object();
+        load(tab, 1, "http://a.com/", Performance.EVENT_TITLE, Performance.EVENT_FINISHED,
+                Performance.EVENT_TITLE, Performance.EVENT_THUMBNAIL,
+                Performance.EVENT_FINISHED);
+        List<PageLoadTrace> traces = getTraces();
+        assertEquals(1, traces.size());
+        PageLoadTrace trace = traces.get(0);
+        assertTrue(trace.getEventTime(Performance.EVENT_TITLE)
+                <= trace.getEventTime(Performance.EVENT_FINISHED));
+        // The thumbnail is usually captured after the page finished
+        assertTrue(trace.getEventTime(Performance.EVENT_THUMBNAIL) >= 0);
+        // A finished load isn't recorded again when the next one starts
+        load(tab, 1, "http://a.com/next");
+        assertEquals(1, getTraces().size());
+    }
+
+    public void testRingBuffer() {
+        Object tab = new Object();
+        for (int i = 0; i < Performance.MAX_TRACES + 10; i++) {
+            load(tab, 1, "http://a.com/" + i, Performance.EVENT_FINISHED);
+        }
+        List<PageLoadTrace> traces = getTraces();
+        assertEquals(Performance.MAX_TRACES, traces.size());
+        assertEquals("http://a.com/10", traces.get(0).mUrl);
+        assertEquals(10, Performance.getDroppedCount());
+    }
+
+    public void testExports() throws Exception {
+        Object tab = new Object();
+        load(tab, 7, "http://a.com/", Performance.EVENT_FIRST_PROGRESS,
+                Performance.EVENT_FAVICON, Performance.EVENT_FINISHED);
+        final JSONObject[] exports = new JSONObject[2];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    exports[0] = Performance.toJson(getInstrumentation().getTargetContext());
+                    exports[1] = Performance.toChromeTrace();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        JSONArray traces = exports[0].getJSONArray("traces");
+        assertEquals(1, traces.length());
+        JSONObject trace = traces.getJSONObject(0);
+        assertEquals("http://a.com/", trace.getString("url"));
+        assertEquals(7, trace.getLong("tab_id"));
+        JSONObject events = trace.getJSONObject("events");
+        assertTrue(events.has("first_progress"));
+        assertTrue(events.has("favicon"));
+        assertTrue(events.has("finished"));
+        assertFalse(events.has("title"));
+        assertTrue(trace.getLong("process_cpu_ms") >= 0);
+
+        // The tab name, the load and its three steps
+        JSONArray traceEvents = exports[1].getJSONArray("traceEvents");
+        assertEquals(5, traceEvents.length());
+        assertEquals("M", traceEvents.getJSONObject(0).getString("ph"));
+        JSONObject pageLoad = traceEvents.getJSONObject(1);
+        assertEquals("X", pageLoad.getString("ph"));
+        assertEquals(7, pageLoad.getLong("tid"));
+        for (int i = 2; i < traceEvents.length(); i++) {
+            JSONObject event = traceEvents.getJSONObject(i);
+            assertEquals("i", event.getString("ph"));
+            assertTrue(event.getLong("ts") >= pageLoad.getLong("ts"));
+        }
+    }
+}
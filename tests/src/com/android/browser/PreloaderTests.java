@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.tests.utils.LocalHttpServer;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Drives the preload session pool through PreloadRequestReceiver, with the
+ * pages served by a local HTTP server.
+ */
+@MediumTest
+public class PreloaderTests extends InstrumentationTestCase implements PreferenceKeys {
+
+    private static final String ACTION_PRELOAD = "android.intent.action.PRELOAD";
+    private static final long TIMEOUT = 10000;
+
+    private Context mContext;
+    private LocalHttpServer mServer;
+    private Preloader mPreloader;
+    private SharedPreferences mPrefs;
+    private String mPreloadSetting;
+    private int mMaxSessions;
+    private int mMaxLoads;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mServer = new LocalHttpServer(new LocalHttpServer.Responder() {
+            @Override
+            public String respond(String path) {
+                return "<html><head><title>" + path + "</title></head></html>";
+            }
+        });
+        mPrefs = BrowserSettings.getInstance().getPreferences();
+        mPreloadSetting = mPrefs.getString(PREF_DATA_PRELOAD, null);
+        mPrefs.edit().putString(PREF_DATA_PRELOAD,
+                BrowserSettings.getPreloadAlwaysPreferenceString(mContext)).apply();
+        mPreloader = Preloader.getInstance();
+        mMaxSessions = mPreloader.getMaxSessions();
+        mMaxLoads = mPreloader.getMaxLoads();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mPreloader.discardAll();
+                mPreloader.setMaxSessions(mMaxSessions);
+                mPreloader.setMaxLoads(mMaxLoads);
+            }
+        });
+        mPrefs.edit().putString(PREF_DATA_PRELOAD, mPreloadSetting).apply();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private void preload(String id, String path, int priority) {
+        final Intent intent = new Intent(ACTION_PRELOAD);
+        intent.setData(Uri.parse(mServer.getUrl(path)));
+        intent.putExtra(PreloadRequestReceiver.EXTRA_PRELOAD_ID, id);
+        intent.putExtra(PreloadRequestReceiver.EXTRA_PRELOAD_PRIORITY, priority);
+        receive(intent);
+    }
+
+    private void discard(String id) {
+        Intent intent = new Intent(ACTION_PRELOAD);
+        intent.putExtra(PreloadRequestReceiver.EXTRA_PRELOAD_ID, id);
+        intent.putExtra(PreloadRequestReceiver.EXTRA_PRELOAD_DISCARD, true);
+        receive(intent);
+    }
+
+    private void receive(final Intent intent) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                new PreloadRequestReceiver().onReceive(mContext, intent);
+            }
+        });
+    }
+
+    private PreloadedTabControl takeTab(final String id) {
+        final PreloadedTabControl[] tab = new PreloadedTabControl[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                tab[0] = mPreloader.getPreloadedTab(id);
+            }
+        });
+        return tab[0];
+    }
+
+    private void destroy(final PreloadedTabControl tab) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                tab.destroy();
+            }
+        });
+    }
+
+    private void setMaxSessions(final int maxSessions) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mPreloader.setMaxSessions(maxSessions);
+            }
+        });
+    }
+
+    private void setMaxLoads(final int maxLoads) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mPreloader.setMaxLoads(maxLoads);
+            }
+        });
+    }
+
+    private void waitForRequest(String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!mServer.getRequests().contains(path)) {
+            assertTrue("Timed out waiting for " + path, System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    public void testConcurrentSessions() throws Exception {
+        setMaxSessions(2);
+        preload("search", "/search", Preloader.PRIORITY_NORMAL);
+        preload("link", "/link", Preloader.PRIORITY_LOW);
+        assertTrue(mPreloader.hasSession("search"));
+        assertTrue(mPreloader.hasSession("link"));
+        waitForRequest("/search");
+        waitForRequest("/link");
+    }
+
+    public void testHitsAndMisses() throws Exception {
+        int hits = mPreloader.getHitCount();
+        int misses = mPreloader.getMissCount();
+        preload("page", "/page", Preloader.PRIORITY_NORMAL);
+        PreloadedTabControl tab = takeTab("page");
+        assertNotNull(tab);
+        destroy(tab);
+        assertNull(takeTab("page"));
+        assertNull(takeTab("unknown"));
+        assertEquals(hits + 1, mPreloader.getHitCount());
+        assertEquals(misses + 2, mPreloader.getMissCount());
+    }
+
+    public void testEvictsByPriorityThenAge() throws Exception {
+        setMaxSessions(2);
+        int evicted = mPreloader.getEvictedCount();
+        int rejected = mPreloader.getRejectedCount();
+        preload("low", "/low", Preloader.PRIORITY_LOW);
+        preload("normal1", "/normal1", Preloader.PRIORITY_NORMAL);
+        preload("normal2", "/normal2", Preloader.PRIORITY_NORMAL);
+        assertFalse(mPreloader.hasSession("low"));
+        // Every session has a higher priority
+        preload("low2", "/low2", Preloader.PRIORITY_LOW);
+        assertFalse(mPreloader.hasSession("low2"));
+        // Takes the place of the least recently used
+        preload("high", "/high", Preloader.PRIORITY_HIGH);
+        assertFalse(mPreloader.hasSession("normal1"));
+        assertTrue(mPreloader.hasSession("normal2"));
+        assertTrue(mPreloader.hasSession("high"));
+        assertEquals(evicted + 2, mPreloader.getEvictedCount());
+        assertEquals(rejected + 1, mPreloader.getRejectedCount());
+    }
+
+    public void testThrottledRequestKeepsSessions() throws Exception {
+        setMaxSessions(1);
+        int evicted = mPreloader.getEvictedCount();
+        int throttled = mPreloader.getThrottledCount();
+        preload("low", "/low", Preloader.PRIORITY_LOW);
+        setMaxLoads(0);
+        // Would evict the session, but couldn't load anything
+        preload("high", "/high", Preloader.PRIORITY_HIGH);
+        assertTrue(mPreloader.hasSession("low"));
+        assertFalse(mPreloader.hasSession("high"));
+        assertEquals(evicted, mPreloader.getEvictedCount());
+        assertEquals(throttled + 1, mPreloader.getThrottledCount());
+        // Asking for the page already loaded takes no budget
+        preload("low", "/low", Preloader.PRIORITY_LOW);
+        assertEquals(throttled + 1, mPreloader.getThrottledCount());
+    }
+
+    public void testDiscard() throws Exception {
+        preload("page", "/page", Preloader.PRIORITY_NORMAL);
+        assertTrue(mPreloader.hasSession("page"));
+        discard("page");
+        assertFalse(mPreloader.hasSession("page"));
+        assertEquals(0, mPreloader.getSessionCount());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Tests the keys and ranking used by SuggestionEngine.
+ */
+@SmallTest
+public class SuggestionEngineTests extends AndroidTestCase {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private ArrayList<String> collectKeys(String url, String title) {
+        ArrayList<String> keys = new ArrayList<String>();
+        SuggestionEngine.collectKeys(url, title, keys);
+        return keys;
+    }
+
+    public void testUrlKeys() {
+        ArrayList<String> keys = collectKeys("http://www.Example.com/a.b", null);
+        assertTrue(keys.contains("www.example.com/a.b"));
+        assertTrue(keys.contains("example.com/a.b"));
+        assertTrue(keys.contains("com/a.b"));
+        // Dots in the path don't start a key
+        assertFalse(keys.contains("b"));
+        assertTrue(collectKeys("file:///sdcard/x.html", null)
+                .contains("file:///sdcard/x.html"));
+    }
+
+    public void testTitleKeys() {
+        ArrayList<String> keys = collectKeys(null, "Android - Open Source");
+        assertEquals(3, keys.size());
+        assertTrue(keys.contains("android - open source"));
+        assertTrue(keys.contains("open source"));
+        assertTrue(keys.contains("source"));
+    }
+
+    public void testFrecency() {
+        long now = 1000 * DAY;
+        int recent = SuggestionEngine.getFrecency(1, now - DAY, false, now);
+        int old = SuggestionEngine.getFrecency(1, now - 200 * DAY, false, now);
+        int frequent = SuggestionEngine.getFrecency(20, now - 200 * DAY, false, now);
+        int bookmark = SuggestionEngine.getFrecency(1, now - DAY, true, now);
+        assertTrue(recent > old);
+        assertTrue(frequent > old);
+        assertTrue(bookmark > recent);
+    }
+
+    private static String[] matchUrls(SuggestionEngine.Index index, String input, int limit,
+            long now) {
+        int[] rows = index.match(input, limit, now);
+        String[] urls = new String[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            urls[i] = index.urls[rows[i]];
+        }
+        return urls;
+    }
+
+    public void testMatchAndRanking() {
+        long now = 1000 * DAY;
+        SuggestionEngine.Index index = new SuggestionEngine.Index();
+        index.putHistory(1, "http://www.example.com/", "Example Domain", 1, now - DAY);
+        index.putHistory(2, "http://example.org/", "Another example", 3, now - DAY);
+        index.putHistory(3, "http://android.com/", "Android", 1, now - DAY);
+        index.putHistory(4, "http://exam.net/", null, 1, now - DAY);
+        index.putBookmark(10, "http://www.example.com/", "Example");
+        index.finishLoad();
+
+        // Prefixes of urls, host labels and title words all match once
+        String[] urls = matchUrls(index, "exam", 10, now);
+        assertEquals(3, urls.length);
+        // The bookmark ranks first, then the most visited
+        assertEquals("http://www.example.com/", urls[0]);
+        assertEquals("http://example.org/", urls[1]);
+        assertEquals("http://exam.net/", urls[2]);
+        assertEquals(2, matchUrls(index, "exam", 2, now).length);
+        assertEquals(1, matchUrls(index, "another ex", 10, now).length);
+        assertEquals(0, matchUrls(index, "example.org/x", 10, now).length);
+        assertEquals(0, matchUrls(index, "xyz", 10, now).length);
+
+        // Bookmarked urls use the id of the bookmark, like the provider
+        int row = index.match("android", 1, now)[0];
+        assertEquals(3, index.getId(row));
+        row = index.match("www.", 1, now)[0];
+        assertEquals(10, index.getId(row));
+    }
+
+    public void testIncrementalUpdates() {
+        long now = 1000 * DAY;
+        SuggestionEngine.Index index = new SuggestionEngine.Index();
+        index.putHistory(1, "http://a.com/", "First", 1, now);
+        index.finishLoad();
+        // Enough to merge the pending keys into the index a few times
+        for (int i = 0; i < SuggestionEngine.MAX_PENDING_KEYS * 3; i++) {
+            index.putHistory(i + 2, "http://site" + i + ".com/", "Page " + i, 1, now);
+        }
+        assertEquals(1, matchUrls(index, "site123.", 10, now).length);
+        assertEquals(11, matchUrls(index, "site12", 20, now).length);
+        assertEquals(1, matchUrls(index, "first", 10, now).length);
+
+        // A new title replaces the old one
+        index.putHistory(1, "http://a.com/", "Renamed", 5, now);
+        assertEquals(0, matchUrls(index, "first", 10, now).length);
+        assertEquals(1, matchUrls(index, "renamed", 10, now).length);
+        // Visits move the url up the ranking
+        assertEquals("http://a.com/", matchUrls(index, "a.com", 10, now)[0]);
+        for (int i = 0; i < SuggestionEngine.MAX_PENDING_KEYS * 3; i++) {
+            index.putHistory(i + 2, "http://site" + i + ".com/", "Title " + i, 1, now);
+        }
+        assertEquals(0, matchUrls(index, "page 1", 10, now).length);
+        assertEquals(1, matchUrls(index, "title 123", 10, now).length);
+    }
+
+    public void testRemoveHistory() {
+        long now = 1000 * DAY;
+        SuggestionEngine.Index index = new SuggestionEngine.Index();
+        index.putHistory(1, "http://a.com/", "First", 1, now);
+        index.putHistory(2, "http://b.com/", "Second", 1, now);
+        index.putBookmark(10, "http://b.com/", "Bookmark");
+        index.finishLoad();
+
+        // Ids of rows that were replaced are ignored
+        index.removeHistory(5, "http://a.com/");
+        assertEquals(1, matchUrls(index, "first", 10, now).length);
+        index.removeHistory(1, "http://a.com/");
+        assertEquals(0, matchUrls(index, "a.com", 10, now).length);
+        assertEquals(0, matchUrls(index, "first", 10, now).length);
+        // A bookmarked url only loses its history title
+        index.removeHistory(2, "http://b.com/");
+        assertEquals(0, matchUrls(index, "second", 10, now).length);
+        assertEquals(1, matchUrls(index, "bookmark", 10, now).length);
+        assertEquals(10, index.getId(index.match("b.com", 1, now)[0]));
+        // A removed url can come back
+        index.putHistory(3, "http://a.com/", "Again", 1, now);
+        assertEquals(1, matchUrls(index, "again", 10, now).length);
+    }
+
+    public void testCompaction() {
+        long now = 1000 * DAY;
+        SuggestionEngine.Index index = new SuggestionEngine.Index();
+        index.putHistory(1, "http://kept.com/", "Kept", 1, now);
+        index.finishLoad();
+        // Enough dead texts to compact the index a few times
+        int count = SuggestionEngine.MAX_PENDING_KEYS * 4;
+        for (int i = 0; i < count; i++) {
+            index.putHistory(i + 2, "http://site" + i + ".com/", "Page " + i, 1, now);
+        }
+        for (int i = 0; i < count; i++) {
+            if (i != 123) {
+                index.removeHistory(i + 2, "http://site" + i + ".com/");
+            }
+        }
+        // The ids of dead texts and rows are reused
+        assertTrue(index.textCount < count);
+        assertTrue(index.rowCount < count);
+        String[] urls = matchUrls(index, "site", 10, now);
+        assertEquals(1, urls.length);
+        assertEquals("http://site123.com/", urls[0]);
+        assertEquals(1, matchUrls(index, "page 123", 10, now).length);
+        assertEquals(1, matchUrls(index, "kept", 10, now).length);
+        // Rows added after a compaction start out empty
+        index.putHistory(count + 2, "http://new.com/", null, 1, now);
+        int row = index.match("new.com", 1, now)[0];
+        assertEquals(count + 2, index.getId(row));
+        assertNull(index.titles[row]);
+        assertNull(index.bookmarkTitles[row]);
+        assertEquals(1, index.visits[row]);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Replays traces of tab events against a TabEvictor policy, without any
+ * WebViews, and reports what the evictions cost. A trace has one event
+ * per line, blank lines and lines starting with '#' are ignored:
+ *
+ * open NAME KB        opens a tab of the given footprint and shows it
+ * background NAME KB  opens a tab without showing it
+ * switch NAME         shows the tab, reloading it if it was evicted
+ * close NAME          closes the tab
+ * load NAME           the tab starts loading a page
+ * loaded NAME         the tab finishes loading
+ * type NAME           the user types into a form in the tab
+ * wait SECONDS        time passes
+ * trim LEVEL          a ComponentCallbacks2 trim level is reported
+ */
+class TabEvictionSimulator {
+
+    static class SimTab implements TabEvictor.Candidate {
+        final String name;
+        final long footprint;
+        long lastUsed;
+        boolean loading;
+        boolean formInput;
+        boolean resident = true;
+
+        SimTab(String name, long footprint, long now) {
+            this.name = name;
+            this.footprint = footprint;
+            lastUsed = now;
+        }
+
+        @Override
+        public long getFootprint() {
+            return footprint;
+        }
+
+        @Override
+        public long getLastUsedTime() {
+            return lastUsed;
+        }
+
+        @Override
+        public boolean isLoading() {
+            return loading;
+        }
+
+        @Override
+        public boolean hasFormInput() {
+            return formInput;
+        }
+    }
+
+    static class Result {
+        int trims;
+        // Trims that freed their share of the background tabs' memory
+        int targetsMet;
+        int evictions;
+        // Switches to an evicted tab, which has to be reloaded
+        int reloads;
+        int lostLoads;
+        int lostForms;
+        long peakResident;
+
+        @Override
+        public String toString() {
+            return "trims=" + trims + " targetsMet=" + targetsMet
+                    + " evictions=" + evictions + " reloads=" + reloads
+                    + " lostLoads=" + lostLoads + " lostForms=" + lostForms
+                    + " peakResidentKb=" + peakResident / 1024;
+        }
+    }
+
+    private final TabEvictor mEvictor;
+    private final LinkedHashMap<String, SimTab> mTabs = new LinkedHashMap<String, SimTab>();
+    private SimTab mCurrent;
+    private long mNow;
+    private Result mResult;
+
+    TabEvictionSimulator(TabEvictor.Policy policy) {
+        mEvictor = new TabEvictor(policy);
+    }
+
+    Result replay(String trace) {
+        mTabs.clear();
+        mCurrent = null;
+        mNow = 0;
+        mResult = new Result();
+        for (String line : trace.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] args = line.split("\\s+");
+            run(args);
+            mResult.peakResident = Math.max(mResult.peakResident, getResidentFootprint());
+        }
+        return mResult;
+    }
+
+    SimTab getTab(String name) {
+        SimTab tab = mTabs.get(name);
+        if (tab == null) {
+            throw new IllegalArgumentException("No tab " + name);
+        }
+        return tab;
+    }
+
+    long getResidentFootprint() {
+        long total = 0;
+        for (SimTab t : mTabs.values()) {
+            if (t.resident) {
+                total += t.footprint;
+            }
+        }
+        return total;
+    }
+
+    private void run(String[] args) {
+        String op = args[0];
+        if ("open".equals(op) || "background".equals(op)) {
+            SimTab tab = new SimTab(args[1], Long.parseLong(args[2]) * 1024, mNow);
+            mTabs.put(tab.name, tab);
+            if ("open".equals(op)) {
+                setCurrent(tab);
+            }
+        } else if ("switch".equals(op)) {
+            setCurrent(getTab(args[1]));
+        } else if ("close".equals(op)) {
+            SimTab tab = mTabs.remove(args[1]);
+            if (tab == mCurrent) {
+                mCurrent = null;
+            }
+        } else if ("load".equals(op)) {
+            SimTab tab = getTab(args[1]);
+            tab.loading = true;
+            tab.formInput = false;
+        } else if ("loaded".equals(op)) {
+            getTab(args[1]).loading = false;
+        } else if ("type".equals(op)) {
+            getTab(args[1]).formInput = true;
+        } else if ("wait".equals(op)) {
+            mNow += Long.parseLong(args[1]) * 1000;
+        } else if ("trim".equals(op)) {
+            trim(Integer.parseInt(args[1]));
+        } else {
+            throw new IllegalArgumentException("Unknown event " + op);
+        }
+    }
+
+    private void setCurrent(SimTab tab) {
+        if (mCurrent != null) {
+            mCurrent.lastUsed = mNow;
+        }
+        if (!tab.resident) {
+            mResult.reloads++;
+            tab.resident = true;
+        }
+        tab.lastUsed = mNow;
+        mCurrent = tab;
+    }
+
+    private void trim(int level) {
+        mResult.trims++;
+        List<SimTab> candidates = new ArrayList<SimTab>();
+        for (SimTab t : mTabs.values()) {
+            if (t.resident && t != mCurrent) {
+                candidates.add(t);
+            }
+        }
+        long target = (long) (TabEvictor.getTrimFraction(level)
+                * TabEvictor.getTotalFootprint(candidates));
+        long freed = 0;
+        for (SimTab t : mEvictor.selectVictimsForTrim(candidates, level, mNow)) {
+            t.resident = false;
+            freed += t.footprint;
+            mResult.evictions++;
+            if (t.loading) {
+                mResult.lostLoads++;
+                t.loading = false;
+            }
+            if (t.formInput) {
+                mResult.lostForms++;
+                t.formInput = false;
+            }
+        }
+        if (freed >= target) {
+            mResult.targetsMet++;
+        }
+    }
+}
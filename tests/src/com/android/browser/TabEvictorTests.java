@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests the TabEvictor policies by replaying tab traces through
+ * TabEvictionSimulator.
+ */
+@SmallTest
+public class TabEvictorTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "TabEvictorTests";
+
+    // Five background tabs of 8MB each, b is the oldest
+    private static final String FIVE_TABS =
+            "open b 8192\nwait 10\nopen c 8192\nwait 10\nopen d 8192\nwait 10\n"
+            + "open e 8192\nwait 10\nopen f 8192\nwait 10\nopen current 8192\n";
+
+    // A typical session: reading in a few tabs, filling a form in an old
+    // one, a big page loading in the background and memory getting tight
+    private static final String SESSION =
+            "open news 12288\n"
+            + "background article1 6144\n"
+            + "background article2 6144\n"
+            + "wait 30\n"
+            + "open mail 4096\n"
+            + "type mail\n"
+            + "wait 60\n"
+            + "switch news\n"
+            + "wait 120\n"
+            + "open video 24576\n"
+            + "wait 30\n"
+            + "switch article1\n"
+            + "load video\n"
+            + "wait 10\n"
+            + "trim " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL + "\n"
+            + "wait 60\n"
+            + "switch article2\n"
+            + "wait 60\n"
+            + "trim " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL + "\n"
+            + "switch mail\n"
+            + "switch video\n"
+            + "loaded video\n"
+            + "switch news\n";
+
+    private TabEvictionSimulator.Result replay(TabEvictor.Policy policy, String trace) {
+        return new TabEvictionSimulator(policy).replay(trace);
+    }
+
+    public void testTrimFractions() {
+        assertEquals(0f, TabEvictor.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(0f, TabEvictor.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        float previous = 0;
+        for (int level : new int[] {
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL }) {
+            float fraction = TabEvictor.getTrimFraction(level);
+            assertTrue(fraction > previous);
+            previous = fraction;
+        }
+        assertEquals(0.5f, previous);
+        float moderate = TabEvictor.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertTrue(moderate > 0);
+        assertTrue(moderate < TabEvictor.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        // As much as onLowMemory
+        assertEquals(0.5f, TabEvictor.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    public void testEstimateFootprint() {
+        long empty = TabEvictor.estimateFootprint(480, 800, 0, 0);
+        assertEquals(TabEvictor.WEBVIEW_BASE_FOOTPRINT, empty);
+        long page = TabEvictor.estimateFootprint(480, 800, 1600, 1);
+        long longPage = TabEvictor.estimateFootprint(480, 800, 16000, 1);
+        long veryLongPage = TabEvictor.estimateFootprint(480, 800, 160000, 1);
+        assertTrue(page > empty);
+        assertTrue(longPage > page);
+        // Only a few screens worth of content is kept rendered
+        assertEquals(longPage, veryLongPage);
+        assertEquals(TabEvictor.HISTORY_ENTRY_FOOTPRINT * 9,
+                TabEvictor.estimateFootprint(480, 800, 1600, 10) - page);
+    }
+
+    public void testGradedTrimLevels() {
+        int[] levels = new int[] {
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE,
+        };
+        int[] evictions = new int[] { 0, 1, 2, 3 };
+        for (int i = 0; i < levels.length; i++) {
+            TabEvictionSimulator.Result result = replay(TabEvictor.DEFAULT_POLICY,
+                    FIVE_TABS + "trim " + levels[i]);
+            assertEquals("level " + levels[i], evictions[i], result.evictions);
+            assertEquals(1, result.targetsMet);
+        }
+    }
+
+    public void testCurrentTabKept() {
+        TabEvictionSimulator sim = new TabEvictionSimulator(TabEvictor.DEFAULT_POLICY);
+        sim.replay(FIVE_TABS + "trim " + ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertTrue(sim.getTab("current").resident);
+        // No more than half of the six tabs are freed
+        assertEquals(3 * 8192 * 1024, sim.getResidentFootprint());
+    }
+
+    public void testOldestFirst() {
+        TabEvictionSimulator sim = new TabEvictionSimulator(TabEvictor.DEFAULT_POLICY);
+        sim.replay(FIVE_TABS + "trim " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertFalse(sim.getTab("b").resident);
+        assertFalse(sim.getTab("c").resident);
+        assertTrue(sim.getTab("d").resident);
+    }
+
+    public void testBiggerFirst() {
+        TabEvictionSimulator sim = new TabEvictionSimulator(TabEvictor.DEFAULT_POLICY);
+        sim.replay("open small 1024\nwait 10\nopen big 16384\nwait 5\nopen current 1024\n"
+                + "trim " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertTrue(sim.getTab("small").resident);
+        assertFalse(sim.getTab("big").resident);
+    }
+
+    public void testFormInputKept() {
+        TabEvictionSimulator sim = new TabEvictionSimulator(TabEvictor.DEFAULT_POLICY);
+        TabEvictionSimulator.Result result = sim.replay(
+                "open form 8192\ntype form\nwait 60\nopen b 8192\nwait 10\n"
+                + "open current 1024\ntrim " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(sim.getTab("form").resident);
+        assertFalse(sim.getTab("b").resident);
+        assertEquals(0, result.lostForms);
+        // Unless there is nothing else to free
+        result = sim.replay("open form 8192\ntype form\nwait 60\n"
+                + "open current 1024\ntrim " + ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(1, result.lostForms);
+    }
+
+    public void testSessionAgainstLru() {
+        TabEvictionSimulator.Result lru = replay(TabEvictor.LRU_POLICY, SESSION);
+        TabEvictionSimulator.Result policy = replay(TabEvictor.DEFAULT_POLICY, SESSION);
+        Log.i(LOGTAG, "LRU: " + lru);
+        Log.i(LOGTAG, "Default: " + policy);
+        assertTrue(policy.targetsMet >= lru.targetsMet);
+        assertEquals(0, policy.lostForms);
+        assertTrue(policy.lostForms + policy.lostLoads < lru.lostForms + lru.lostLoads);
+        assertTrue(policy.evictions <= lru.evictions);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Round trip and eviction tests for TabThumbnailStore, plus a benchmark
+ * comparing the codecs.
+ */
+@MediumTest
+public class TabThumbnailStoreTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "TabThumbnailStoreTests";
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 160;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "thumbnail_store_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    // Roughly what a page thumbnail looks like: a flat background, some
+    // blocks of "text" and an image with a gradient
+    private Bitmap createCapture(int seed) {
+        Bitmap b = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        b.eraseColor(Color.WHITE);
+        Canvas c = new Canvas(b);
+        Paint p = new Paint();
+        p.setColor(Color.DKGRAY);
+        for (int y = 10; y < HEIGHT; y += 12) {
+            c.drawRect(8, y, WIDTH - 8 - (y * seed) % 60, y + 6, p);
+        }
+        for (int x = 0; x < 80; x++) {
+            p.setColor(Color.rgb(x * 3, 100, 255 - x * 3));
+            c.drawRect(WIDTH - 90 + x, 20, WIDTH - 89 + x, 80, p);
+        }
+        c.setBitmap(null);
+        return b;
+    }
+
+    private TabThumbnailStore.Codec[] getCodecs() {
+        return new TabThumbnailStore.Codec[] {
+                new TabThumbnailStore.RawCodec(),
+                new TabThumbnailStore.PngCodec(),
+                new TabThumbnailStore.DeltaRleCodec(),
+        };
+    }
+
+    private void assertSamePixels(Bitmap expected, Bitmap actual) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("pixel " + x + "," + y,
+                        expected.getPixel(x, y), actual.getPixel(x, y));
+            }
+        }
+    }
+
+    public void testRoundTrip() {
+        Bitmap capture = createCapture(1);
+        for (TabThumbnailStore.Codec codec : getCodecs()) {
+            TabThumbnailStore store = new TabThumbnailStore(mDirectory, codec,
+                    TabThumbnailStore.DEFAULT_BUDGET);
+            assertTrue(store.save(1, capture));
+            Bitmap loaded = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+            assertTrue(store.load(1, loaded));
+            assertSamePixels(capture, loaded);
+            store.retainAll(null);
+        }
+    }
+
+    public void testReadsOtherCodecs() {
+        Bitmap capture = createCapture(2);
+        new TabThumbnailStore(mDirectory, new TabThumbnailStore.PngCodec(),
+                TabThumbnailStore.DEFAULT_BUDGET).save(7, capture);
+        TabThumbnailStore store = new TabThumbnailStore(mDirectory,
+                new TabThumbnailStore.DeltaRleCodec(), TabThumbnailStore.DEFAULT_BUDGET);
+        Bitmap loaded = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        assertTrue(store.load(7, loaded));
+        assertSamePixels(capture, loaded);
+    }
+
+    public void testStoresNoisyCapturesRaw() {
+        // Random pixels, like a photo, leave no runs to collapse
+        Bitmap capture = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        Random random = new Random(4);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                capture.setPixel(x, y, random.nextInt() | 0xFF000000);
+            }
+        }
+        TabThumbnailStore store = new TabThumbnailStore(mDirectory,
+                new TabThumbnailStore.DeltaRleCodec(), TabThumbnailStore.DEFAULT_BUDGET);
+        assertTrue(store.save(1, capture));
+        assertEquals(1, store.getRawFallbackCount());
+        assertTrue(store.getTotalBytes() <= capture.getByteCount() + 9);
+        Bitmap loaded = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        assertTrue(store.load(1, loaded));
+        assertSamePixels(capture, loaded);
+        // A page like capture still uses the codec
+        assertTrue(store.save(2, createCapture(4)));
+        assertEquals(1, store.getRawFallbackCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        Bitmap capture = createCapture(3);
+        long size = WIDTH * HEIGHT * 2 + 16;
+        TabThumbnailStore store = new TabThumbnailStore(mDirectory,
+                new TabThumbnailStore.RawCodec(), size * 3);
+        Bitmap loaded = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        store.save(1, capture);
+        store.save(2, capture);
+        store.save(3, capture);
+        // Touch 1 so that 2 becomes the eldest
+        assertTrue(store.load(1, loaded));
+        store.save(4, capture);
+        assertTrue(store.getTotalBytes() <= size * 3);
+        assertEquals(1, store.getEvictionCount());
+        assertFalse(store.load(2, loaded));
+        assertTrue(store.load(1, loaded));
+        assertTrue(store.load(3, loaded));
+        assertTrue(store.load(4, loaded));
+    }
+
+    @LargeTest
+    public void testCodecBenchmark() {
+        Bitmap[] captures = new Bitmap[BENCHMARK_ITERATIONS];
+        for (int i = 0; i < captures.length; i++) {
+            captures[i] = createCapture(i + 1);
+        }
+        Bitmap loaded = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        for (TabThumbnailStore.Codec codec : getCodecs()) {
+            TabThumbnailStore store = new TabThumbnailStore(mDirectory, codec,
+                    Long.MAX_VALUE);
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < captures.length; i++) {
+                store.save(i, captures[i]);
+            }
+            long writeTime = SystemClock.elapsedRealtime() - start;
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < captures.length; i++) {
+                assertTrue(store.load(i, loaded));
+            }
+            long loadTime = SystemClock.elapsedRealtime() - start;
+            Log.i(LOGTAG, codec.getClass().getSimpleName()
+                    + ": write " + (writeTime / (float) captures.length) + "ms"
+                    + ", load " + (loadTime / (float) captures.length) + "ms"
+                    + ", size " + (store.getTotalBytes() / captures.length) + " bytes");
+            store.retainAll(null);
+        }
+    }
+}
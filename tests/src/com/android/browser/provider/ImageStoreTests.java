@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BrowserContract.Images;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the content addressed image store, and benchmarks it against the
+ * images table with a copy of each image per url it replaced.
+ */
+@MediumTest
+public class ImageStoreTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "ImageStoreTests";
+
+    private static final String LEGACY_TABLE = "legacy_images";
+    private static final int BENCHMARK_URLS = 50000;
+    private static final int BENCHMARK_URLS_PER_SITE = 50;
+    private static final int FAVICON_SIZE = 1024;
+    private static final int BATCH = 100;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        ImageStore.create(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private static byte[] createImage(int seed, int size) {
+        byte[] image = new byte[size];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private static ContentValues imageValues(String url, String column, byte[] image) {
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(column, image);
+        return values;
+    }
+
+    private byte[] getImage(String url, String column) {
+        Cursor c = mDb.query(BrowserProvider2.TABLE_IMAGES, new String[] { column },
+                Images.URL + " = ?", new String[] { url }, null, null, null);
+        try {
+            assertTrue("No images for " + url, c.moveToFirst());
+            return c.getBlob(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private long getBlobCount() {
+        return DatabaseUtils.queryNumEntries(mDb, ImageStore.TABLE_BLOBS);
+    }
+
+    public void testStoresEachImageOnce() {
+        byte[] favicon = createImage(1, 100);
+        assertTrue(ImageStore.put(mDb, imageValues("http://a.com/1", Images.FAVICON, favicon)));
+        assertTrue(ImageStore.put(mDb, imageValues("http://a.com/2", Images.FAVICON, favicon)));
+        // The same image as a touch icon too
+        assertTrue(ImageStore.put(mDb,
+                imageValues("http://a.com/2", Images.TOUCH_ICON, favicon)));
+        assertEquals(1, getBlobCount());
+        assertTrue(Arrays.equals(favicon, getImage("http://a.com/1", Images.FAVICON)));
+        assertTrue(Arrays.equals(favicon, getImage("http://a.com/2", Images.FAVICON)));
+        assertTrue(Arrays.equals(favicon, getImage("http://a.com/2", Images.TOUCH_ICON)));
+        assertNull(getImage("http://a.com/2", Images.THUMBNAIL));
+    }
+
+    public void testDetectsUnchangedImages() {
+        byte[] favicon = createImage(1, 100);
+        assertTrue(ImageStore.put(mDb, imageValues("http://a.com/", Images.FAVICON, favicon)));
+        assertFalse(ImageStore.put(mDb,
+                imageValues("http://a.com/", Images.FAVICON, favicon.clone())));
+        assertTrue(ImageStore.put(mDb,
+                imageValues("http://a.com/", Images.FAVICON, createImage(2, 100))));
+        assertTrue(ImageStore.put(mDb, imageValues("http://a.com/", Images.FAVICON, null)));
+        assertFalse(ImageStore.put(mDb, imageValues("http://a.com/", Images.FAVICON, null)));
+    }
+
+    public void testDeletesUnusedBlobs() {
+        byte[] favicon = createImage(1, 100);
+        ImageStore.put(mDb, imageValues("http://a.com/1", Images.FAVICON, favicon));
+        ImageStore.put(mDb, imageValues("http://a.com/2", Images.FAVICON, favicon));
+        ImageStore.put(mDb, imageValues("http://a.com/2", Images.FAVICON, createImage(2, 100)));
+        assertEquals(2, getBlobCount());
+        mDb.delete(ImageStore.TABLE_REFS, Images.URL + " = ?", new String[] { "http://a.com/1" });
+        assertEquals(1, getBlobCount());
+        mDb.delete(ImageStore.TABLE_REFS, null, null);
+        assertEquals(0, getBlobCount());
+    }
+
+    private static void createLegacyTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " (" +
+                Images.URL + " TEXT UNIQUE NOT NULL," +
+                Images.FAVICON + " BLOB," +
+                Images.THUMBNAIL + " BLOB," +
+                Images.TOUCH_ICON + " BLOB" +
+                ");");
+    }
+
+    public void testMigratesImagesTable() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            createLegacyTable(db, BrowserProvider2.TABLE_IMAGES);
+            byte[] favicon = createImage(1, 100);
+            byte[] thumbnail = createImage(2, 1000);
+            for (int i = 0; i < 10; i++) {
+                ContentValues values = imageValues("http://a.com/" + i, Images.FAVICON, favicon);
+                values.put(Images.THUMBNAIL, thumbnail);
+                db.insert(BrowserProvider2.TABLE_IMAGES, null, values);
+            }
+            ImageStore.migrate(db);
+            assertEquals(2, DatabaseUtils.queryNumEntries(db, ImageStore.TABLE_BLOBS));
+            assertEquals(10, DatabaseUtils.queryNumEntries(db, BrowserProvider2.TABLE_IMAGES));
+            Cursor c = db.query(BrowserProvider2.TABLE_IMAGES,
+                    new String[] { Images.FAVICON, Images.THUMBNAIL },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    assertTrue(Arrays.equals(favicon, c.getBlob(0)));
+                    assertTrue(Arrays.equals(thumbnail, c.getBlob(1)));
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    // What BrowserProvider2 did before the store: read the stored image back
+    // to compare it, then update or insert the row of the url
+    private static boolean legacyPut(SQLiteDatabase db, ContentValues values) {
+        String[] args = new String[] { values.getAsString(Images.URL) };
+        Cursor c = db.query(LEGACY_TABLE, new String[] { Images.FAVICON },
+                Images.URL + " = ?", args, null, null, null);
+        try {
+            if (c.moveToFirst()
+                    && Arrays.equals(c.getBlob(0), values.getAsByteArray(Images.FAVICON))) {
+                return false;
+            }
+        } finally {
+            c.close();
+        }
+        if (db.update(LEGACY_TABLE, values, Images.URL + " = ?", args) == 0) {
+            db.insertOrThrow(LEGACY_TABLE, null, values);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the favicon of every url twice, like two visits to each page,
+     * and returns the ms taken by each pass.
+     */
+    private long[] writeFavicons(SQLiteDatabase db, boolean legacy) {
+        long[] times = new long[2];
+        for (int pass = 0; pass < times.length; pass++) {
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < BENCHMARK_URLS; i += BATCH) {
+                db.beginTransaction();
+                try {
+                    for (int j = i; j < i + BATCH; j++) {
+                        int site = j / BENCHMARK_URLS_PER_SITE;
+                        ContentValues values = imageValues("http://site" + site + ".com/" + j,
+                                Images.FAVICON, createImage(site, FAVICON_SIZE));
+                        boolean changed = legacy ? legacyPut(db, values)
+                                : ImageStore.put(db, values);
+                        assertEquals(pass == 0, changed);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            times[pass] = SystemClock.elapsedRealtime() - start;
+        }
+        return times;
+    }
+
+    @LargeTest
+    public void testImageStoreBenchmark() {
+        File storeFile = getContext().getDatabasePath("image_store_benchmark.db");
+        File legacyFile = getContext().getDatabasePath("legacy_images_benchmark.db");
+        storeFile.getParentFile().mkdirs();
+        SQLiteDatabase store = SQLiteDatabase.openOrCreateDatabase(storeFile, null);
+        SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(legacyFile, null);
+        try {
+            ImageStore.create(store);
+            createLegacyTable(legacy, LEGACY_TABLE);
+            long[] storeTimes = writeFavicons(store, false);
+            long[] legacyTimes = writeFavicons(legacy, true);
+            assertEquals(BENCHMARK_URLS / BENCHMARK_URLS_PER_SITE,
+                    DatabaseUtils.queryNumEntries(store, ImageStore.TABLE_BLOBS));
+            Log.i(LOGTAG, BENCHMARK_URLS + " urls, " + BENCHMARK_URLS_PER_SITE
+                    + " per favicon, size: store " + storeFile.length() / 1024
+                    + "KB, per url copies " + legacyFile.length() / 1024 + "KB");
+            Log.i(LOGTAG, "Per favicon write, first visit: store "
+                    + storeTimes[0] * 1000 / BENCHMARK_URLS + "us, per url copies "
+                    + legacyTimes[0] * 1000 / BENCHMARK_URLS + "us; unchanged: store "
+                    + storeTimes[1] * 1000 / BENCHMARK_URLS + "us, per url copies "
+                    + legacyTimes[1] * 1000 / BENCHMARK_URLS + "us");
+            assertTrue(storeFile.length() < legacyFile.length());
+        } finally {
+            store.close();
+            legacy.close();
+            SQLiteDatabase.deleteDatabase(storeFile);
+            SQLiteDatabase.deleteDatabase(legacyFile);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.json.JSONArray;
+
+import java.io.StringReader;
+
+/**
+ * Tests the streaming parser for OpenSearch suggestion responses, and
+ * benchmarks it against the JSONArray parsing it replaced.
+ */
+@SmallTest
+public class OpenSearchParserTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "OpenSearchParserTests";
+
+    private static final int BENCHMARK_SUGGESTIONS = 5000;
+    private static final int BENCHMARK_RUNS = 20;
+    private static final int MAX_RESULTS = 8;
+
+    private Cursor parse(String json, int maxResults) throws Exception {
+        return OpenSearchSearchEngine.parseSuggestions(new StringReader(json), maxResults);
+    }
+
+    private String getText(Cursor c, String column) {
+        return c.getString(c.getColumnIndexOrThrow(column));
+    }
+
+    public void testSuggestions() throws Exception {
+        Cursor c = parse("[\"and\",[\"android\",\"andromeda\"]]", MAX_RESULTS);
+        assertEquals(2, c.getCount());
+        assertEquals(-1, c.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2));
+        assertTrue(c.moveToNext());
+        assertEquals("android", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_1));
+        assertEquals("android", getText(c, SearchManager.SUGGEST_COLUMN_QUERY));
+        assertTrue(c.moveToNext());
+        assertEquals("andromeda", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_1));
+        assertFalse(c.moveToNext());
+    }
+
+    public void testDescriptions() throws Exception {
+        Cursor c = parse("[\"and\",[\"android\",\"andromeda\"],"
+                + "[\"1 result\",\"2 results\"],[\"http://a/\",\"http://b/\"]]",
+                MAX_RESULTS);
+        assertEquals(2, c.getCount());
+        assertTrue(c.moveToNext());
+        assertEquals("1 result", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_2));
+        assertTrue(c.moveToNext());
+        assertEquals("2 results", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_2));
+
+        // An empty array means no descriptions
+        c = parse("[\"and\",[\"android\"],[]]", MAX_RESULTS);
+        assertEquals(1, c.getCount());
+        assertEquals(-1, c.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2));
+
+        // Fewer descriptions than suggestions
+        c = parse("[\"and\",[\"android\",\"andromeda\"],[\"1 result\"]]", MAX_RESULTS);
+        assertTrue(c.moveToPosition(1));
+        assertNull(getText(c, SearchManager.SUGGEST_COLUMN_TEXT_2));
+    }
+
+    public void testMaxResults() throws Exception {
+        Cursor c = parse("[\"a\",[\"a1\",\"a2\",\"a3\",\"a4\"],[\"d1\",\"d2\",\"d3\",\"d4\"]]",
+                2);
+        assertEquals(2, c.getCount());
+        assertTrue(c.moveToPosition(1));
+        assertEquals("a2", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_1));
+        assertEquals("d2", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_2));
+    }
+
+    public void testStopsReading() throws Exception {
+        // Everything past the last description that is needed is never read
+        Cursor c = parse("[\"a\",[\"a1\",\"a2\",\"a3\"],[\"d1\",\"d2\",\"d3\"] garbage",
+                2);
+        assertEquals(2, c.getCount());
+    }
+
+    public void testSkipsNonStrings() throws Exception {
+        Cursor c = parse("[\"a\",[\"a1\",{\"x\":1},null,[2],42,\"a2\"]]", MAX_RESULTS);
+        assertEquals(3, c.getCount());
+        assertTrue(c.moveToPosition(1));
+        assertEquals("42", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_1));
+        assertTrue(c.moveToNext());
+        assertEquals("a2", getText(c, SearchManager.SUGGEST_COLUMN_TEXT_1));
+    }
+
+    private static String buildResponse(int suggestions) {
+        JSONArray names = new JSONArray();
+        JSONArray descriptions = new JSONArray();
+        JSONArray urls = new JSONArray();
+        for (int i = 0; i < suggestions; i++) {
+            names.put("suggestion number " + i);
+            descriptions.put(i + " results");
+            urls.put("http://www.example.com/search?q=suggestion+number+" + i);
+        }
+        return new JSONArray().put("suggestion").put(names).put(descriptions).put(urls)
+                .toString();
+    }
+
+    // The parsing getSuggestions used to do, for comparison
+    private static int parseLegacy(String content) throws Exception {
+        JSONArray results = new JSONArray(content);
+        JSONArray suggestions = results.getJSONArray(1);
+        JSONArray descriptions = results.length() > 2 ? results.getJSONArray(2) : null;
+        int count = suggestions.length();
+        for (int i = 0; i < count; i++) {
+            suggestions.getString(i);
+            if (descriptions != null) {
+                descriptions.getString(i);
+            }
+        }
+        return count;
+    }
+
+    @LargeTest
+    public void testParseBenchmark() throws Exception {
+        String response = buildResponse(BENCHMARK_SUGGESTIONS);
+        long streaming = 0;
+        long legacy = 0;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = parse(response, MAX_RESULTS);
+            streaming += SystemClock.elapsedRealtime() - start;
+            assertEquals(MAX_RESULTS, c.getCount());
+            start = SystemClock.elapsedRealtime();
+            assertEquals(BENCHMARK_SUGGESTIONS, parseLegacy(response));
+            legacy += SystemClock.elapsedRealtime() - start;
+        }
+        Log.i(LOGTAG, BENCHMARK_SUGGESTIONS + " suggestions, " + response.length()
+                + " chars, per response: streaming " + (streaming / (float) BENCHMARK_RUNS)
+                + "ms, JSONArray " + (legacy / (float) BENCHMARK_RUNS) + "ms");
+    }
+}
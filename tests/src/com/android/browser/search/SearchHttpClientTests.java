@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import com.android.browser.tests.utils.LocalHttpServer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+
+/**
+ * Tests connection pooling and warm-up in SearchHttpClient against a
+ * local HTTP server.
+ */
+@MediumTest
+public class SearchHttpClientTests extends AndroidTestCase {
+
+    private static final String SLOW_PATH = "/slow";
+    private static final long SLOW_DELAY = 300;
+
+    private LocalHttpServer mServer;
+    private SearchHttpClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer(new LocalHttpServer.Responder() {
+            @Override
+            public String respond(String path) {
+                if (path.startsWith(SLOW_PATH)) {
+                    try {
+                        Thread.sleep(SLOW_DELAY);
+                    } catch (InterruptedException e) { }
+                }
+                return "[\"" + path + "\",[]]";
+            }
+        });
+        mClient = new SearchHttpClient(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.shutdown();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private String get(String path) throws Exception {
+        HttpResponse response = mClient.execute(new HttpGet(mServer.getUrl(path)));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    public void testKeepAlive() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("[\"/q" + i + "\",[]]", get("/q" + i));
+        }
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(5, mClient.getRequestCount());
+        assertEquals(4, mClient.getReusedCount());
+        assertEquals(1, mClient.getConnectCount());
+        assertEquals(0.8f, mClient.getReuseRate(), 0.001f);
+    }
+
+    public void testWarmUp() throws Exception {
+        mClient.warmUp(mServer.getUrl("/suggest?q="));
+        assertEquals(1, mClient.getWarmUpCount());
+        // There is an idle connection now, so this one doesn't connect
+        mClient.warmUp(mServer.getUrl("/suggest?q="));
+        assertEquals(1, mClient.getWarmUpCount());
+        get("/suggest?q=a");
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(1, mClient.getConnectCount());
+        assertEquals(1, mClient.getReusedCount());
+        assertEquals(1f, mClient.getReuseRate());
+        // Nothing was requested by the warm-up
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    public void testBadWarmUpUrl() {
+        mClient.warmUp("not a url");
+        assertEquals(0, mClient.getWarmUpCount());
+    }
+
+    public void testConnectionsPerHost() throws Exception {
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        for (int i = 0; i < 4; i++) {
+            final String path = SLOW_PATH + i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        get(path);
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(4, mServer.getRequests().size());
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(2, mClient.getReusedCount());
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import com.android.browser.tests.utils.LocalHttpServer;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests SuggestionFetcher against a local HTTP server standing in for the
+ * search engine's suggest service.
+ */
+@MediumTest
+public class SuggestionFetcherTests extends AndroidTestCase {
+
+    private static final long DEBOUNCE = 100;
+    private static final long TIMEOUT = 5000;
+    private static final String SLOW_QUERY = "slow";
+    private static final long SLOW_DELAY = 3000;
+
+    private LocalHttpServer mServer;
+    private SuggestionFetcher mFetcher;
+    private final LinkedBlockingQueue<Result> mResults = new LinkedBlockingQueue<Result>();
+
+    private static class Result {
+        final String query;
+        final List<SuggestionFetcher.Suggestion> suggestions;
+
+        Result(String query, List<SuggestionFetcher.Suggestion> suggestions) {
+            this.query = query;
+            this.suggestions = suggestions;
+        }
+    }
+
+    private final SuggestionFetcher.Listener mListener = new SuggestionFetcher.Listener() {
+        @Override
+        public void onSuggestions(String query, List<SuggestionFetcher.Suggestion> suggestions) {
+            mResults.add(new Result(query, suggestions));
+        }
+    };
+
+    /**
+     * Fetches OpenSearch style JSON from the local server. Aborting a
+     * request disconnects it.
+     */
+    private class TestSearchEngine implements SearchEngine {
+        private final ConcurrentHashMap<Thread, HttpURLConnection> mConnections =
+                new ConcurrentHashMap<Thread, HttpURLConnection>();
+        // While set, requests wait before they are registered
+        volatile boolean mHold;
+        final CountDownLatch mEntered = new CountDownLatch(1);
+
+        public String getName() {
+            return "test";
+        }
+
+        public CharSequence getLabel() {
+            return "Test";
+        }
+
+        public void startSearch(Context context, String query, Bundle appData,
+                String extraData) {
+        }
+
+        public Cursor getSuggestions(Context context, String query) {
+            HttpURLConnection connection = null;
+            try {
+                mEntered.countDown();
+                while (mHold) {
+                    Thread.yield();
+                }
+                URL url = new URL(mServer.getUrl("/suggest?q=" + Uri.encode(query)));
+                connection = (HttpURLConnection) url.openConnection();
+                mConnections.put(Thread.currentThread(), connection);
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                InputStream in = connection.getInputStream();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                JSONArray suggestions = new JSONArray(body.toString("UTF-8")).getJSONArray(1);
+                MatrixCursor c = new MatrixCursor(
+                        new String[] { "_id", SearchManager.SUGGEST_COLUMN_TEXT_1 });
+                for (int i = 0; i < suggestions.length(); i++) {
+                    c.addRow(new Object[] { i, suggestions.getString(i) });
+                }
+                return c;
+            } catch (IOException e) {
+                return null;
+            } catch (JSONException e) {
+                return null;
+            } finally {
+                mConnections.remove(Thread.currentThread());
+            }
+        }
+
+        public void cancelSuggestions(Thread thread) {
+            HttpURLConnection connection = mConnections.get(thread);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        public void warmUp(Context context) {
+        }
+
+        public boolean supportsSuggestions() {
+            return true;
+        }
+
+        public void close() {
+        }
+
+        public boolean wantsEmptyQuery() {
+            return false;
+        }
+    }
+
+    private TestSearchEngine mEngine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer(new LocalHttpServer.Responder() {
+            @Override
+            public String respond(String path) {
+                String query = Uri.parse(path).getQueryParameter("q");
+                if (SLOW_QUERY.equals(query)) {
+                    try {
+                        Thread.sleep(SLOW_DELAY);
+                    } catch (InterruptedException e) { }
+                }
+                JSONArray suggestions = new JSONArray();
+                suggestions.put(query + "1");
+                suggestions.put(query + "x2");
+                suggestions.put("other " + query);
+                return new JSONArray().put(query).put(suggestions).toString();
+            }
+        });
+        mFetcher = new SuggestionFetcher(getContext(), DEBOUNCE);
+        mEngine = new TestSearchEngine();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFetcher.cancel();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private Result waitForResult() throws InterruptedException {
+        Result result = mResults.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out waiting for suggestions", result);
+        return result;
+    }
+
+    public void testDebounce() throws Exception {
+        mFetcher.fetch(mEngine, "a", mListener);
+        mFetcher.fetch(mEngine, "ab", mListener);
+        mFetcher.fetch(mEngine, "abc", mListener);
+        Result result = waitForResult();
+        assertEquals("abc", result.query);
+        assertEquals(3, result.suggestions.size());
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals(1, mFetcher.getRequestCount());
+    }
+
+    public void testCache() throws Exception {
+        mFetcher.fetch(mEngine, "cache", mListener);
+        waitForResult();
+        mFetcher.fetch(mEngine, "cache", mListener);
+        Result result = waitForResult();
+        assertEquals("cache", result.query);
+        assertEquals(3, result.suggestions.size());
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals(1, mFetcher.getCacheHitCount());
+    }
+
+    public void testPrefixReuse() throws Exception {
+        mFetcher.fetch(mEngine, "pre", mListener);
+        waitForResult();
+        // "pre1" and "prex2" were cached for "pre", only "prex2" matches
+        mFetcher.fetch(mEngine, "prex", mListener);
+        Result early = waitForResult();
+        assertEquals("prex", early.query);
+        assertEquals(1, early.suggestions.size());
+        assertEquals("prex2", early.suggestions.get(0).title);
+        assertEquals(1, mFetcher.getPrefixHitCount());
+        // Followed by the search engine's results
+        Result result = waitForResult();
+        assertEquals("prex", result.query);
+        assertEquals(3, result.suggestions.size());
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    public void testCancelsSupersededRequest() throws Exception {
+        mFetcher.fetch(mEngine, SLOW_QUERY, mListener);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mServer.getRequests().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mServer.getRequests().size());
+        long start = System.currentTimeMillis();
+        mFetcher.fetch(mEngine, "fast", mListener);
+        Result result = waitForResult();
+        assertEquals("fast", result.query);
+        assertTrue("Slow request wasn't aborted",
+                System.currentTimeMillis() - start < SLOW_DELAY);
+        assertEquals(1, mFetcher.getCancelCount());
+        // The slow results never show up
+        assertNull(mResults.poll(DEBOUNCE * 2, TimeUnit.MILLISECONDS));
+    }
+
+    public void testCancelBeforeSend() throws Exception {
+        mEngine.mHold = true;
+        mFetcher.fetch(mEngine, "early", mListener);
+        assertTrue(mEngine.mEntered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // The engine hasn't registered the request yet
+        mFetcher.cancel();
+        mEngine.mHold = false;
+        assertNull(mResults.poll(DEBOUNCE * 2, TimeUnit.MILLISECONDS));
+        assertEquals(0, mServer.getRequests().size());
+        assertEquals(1, mFetcher.getCancelCount());
+        // The cancellation doesn't carry over to the next request
+        mFetcher.fetch(mEngine, "next", mListener);
+        assertEquals("next", waitForResult().query);
+    }
+
+    public void testDetach() throws Exception {
+        mFetcher.fetch(mEngine, SLOW_QUERY, mListener);
+        // Another listener's detach leaves the request alone
+        mFetcher.detach(new SuggestionFetcher.Listener() {
+            @Override
+            public void onSuggestions(String query,
+                    List<SuggestionFetcher.Suggestion> suggestions) {
+            }
+        });
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mServer.getRequests().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        mFetcher.detach(mListener);
+        assertEquals(1, mFetcher.getCancelCount());
+        assertNull(mResults.poll(SLOW_DELAY, TimeUnit.MILLISECONDS));
+    }
+}
@@ -56,6 +56,62 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    private static byte[] createFavicon() {
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Config.ARGB_8888);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        return os.toByteArray();
+    }
+
+    private void setFavicon(String url) {
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, createFavicon());
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+    }
+
+    private int getImageCount(String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.URL }, Images.URL + "=?", new String[] { url }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testCollectsImagesOfDeletedRows() {
+        String url = "http://stub1.com";
+        Uri history = insertHistory(url, "stub 1");
+        setFavicon(url);
+        assertEquals(1, getImageCount(url));
+        getMockContentResolver().delete(history, null, null);
+        // Left for the GC rather than deleted along with the row
+        assertEquals(1, getImageCount(url));
+        assertFalse(getProvider().collectImages());
+        assertEquals(0, getImageCount(url));
+        assertEquals(1, getProvider().getImageGcReclaimedCount());
+    }
+
+    public void testKeepsImagesInUse() {
+        String url = "http://stub1.com";
+        insertBookmark(url, "stub 1");
+        Uri history = insertHistory(url, "stub 1");
+        setFavicon(url);
+        getMockContentResolver().delete(history, null, null);
+        getProvider().collectImages();
+        assertEquals(1, getImageCount(url));
+        assertEquals(0, getProvider().getImageGcReclaimedCount());
+    }
+
+    public void testCollectsUnusedImages() {
+        String url = "http://stub1.com";
+        setFavicon(url);
+        getProvider().collectImages();
+        assertEquals(0, getImageCount(url));
+        assertEquals(1, getProvider().getImageGcPassCount());
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
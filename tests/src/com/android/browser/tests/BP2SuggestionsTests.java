@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.app.SearchManager;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+/**
+ * Tests the suggestion index behind the search_suggest_query uri, and
+ * benchmarks it against the LIKE scan it replaced.
+ */
+@MediumTest
+public class BP2SuggestionsTests extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2SuggestionsTests";
+
+    private static final Uri SUGGEST_URI = Uri.withAppendedPath(
+            BrowserContract.AUTHORITY_URI, SearchManager.SUGGEST_URI_PATH_QUERY);
+
+    // The query doSuggestQuery used to run, for comparison
+    private static final String LEGACY_SUGGEST_QUERY =
+            "SELECT history._id FROM history LEFT OUTER JOIN bookmarks"
+            + " ON history.url = bookmarks.url WHERE (history.url LIKE ?"
+            + " OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
+            + " OR history.title LIKE ? OR bookmarks.title LIKE ?)"
+            + " AND deleted=0 AND folder=0";
+
+    private static final String[] WORDS = new String[] {
+            "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf",
+            "hotel", "india", "juliet", "kilo", "lima", "mike", "november",
+    };
+    private static final String BENCHMARK_INPUT = "charlie1234";
+    private static final int[] BENCHMARK_ROWS = new int[] { 1000, 10000, 100000 };
+
+    private int getSuggestionCount(String input) {
+        Cursor c = getMockContentResolver().query(SUGGEST_URI, null, null,
+                new String[] { input }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private int getLegacySuggestionCount(SQLiteDatabase db, String input) {
+        String like = input + "%";
+        Cursor c = db.rawQuery(LEGACY_SUGGEST_QUERY, new String[] {
+                "http://" + like, "http://www." + like, "https://" + like,
+                "https://www." + like, like, like });
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMatchesUrlPrefixes() {
+        insertHistory("http://www.example.com/", "Site");
+        insertBookmark("http://www.example.com/", "Site");
+        assertEquals(1, getSuggestionCount("exa"));
+        assertEquals(1, getSuggestionCount("www.exa"));
+        assertEquals(1, getSuggestionCount("EXAMPLE.COM/"));
+        assertEquals(0, getSuggestionCount("xample"));
+    }
+
+    public void testMatchesTitles() {
+        insertHistory("http://foo.com/", "History Title");
+        insertBookmark("http://foo.com/", "Bookmark Title");
+        assertEquals(1, getSuggestionCount("history"));
+        assertEquals(1, getSuggestionCount("bookmark t"));
+        assertEquals(0, getSuggestionCount("title"));
+    }
+
+    public void testFollowsUpdates() {
+        Uri history = insertHistory("http://before.com/", "Page");
+        Uri bookmark = insertBookmark("http://before.com/", "Marked");
+        assertEquals(1, getSuggestionCount("before"));
+        assertTrue(updateHistory(history, "http://after.com/", "Page"));
+        assertTrue(updateBookmark(bookmark, "http://after.com/", "Renamed"));
+        assertEquals(0, getSuggestionCount("before"));
+        assertEquals(0, getSuggestionCount("marked"));
+        assertEquals(1, getSuggestionCount("after"));
+        assertEquals(1, getSuggestionCount("renamed"));
+    }
+
+    public void testWildcardsMatchLikeBefore() {
+        insertHistory("http://example.com/a_b", "Fifty % off");
+        insertHistory("http://exbmple.com/", "Other");
+        // % and _ still match any characters, as with the LIKE scan
+        assertEquals(2, getSuggestionCount("ex_mple"));
+        assertEquals(2, getSuggestionCount("ex%com"));
+        assertEquals(1, getSuggestionCount("fifty %"));
+    }
+
+    private void fillHistory(SQLiteDatabase db, int from, int to) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = from; i < to; i++) {
+                String url = "http://www." + WORDS[i % WORDS.length] + i + ".com/";
+                values.clear();
+                values.put(History.URL, url);
+                values.put(History.TITLE, "Page " + i);
+                values.put(History.DATE_LAST_VISITED, i);
+                db.insert("history", null, values);
+                if (i % 10 == 0) {
+                    values.clear();
+                    values.put(Bookmarks.URL, url);
+                    values.put(Bookmarks.TITLE, "Bookmark " + i);
+                    values.put(Bookmarks.POSITION, i);
+                    values.put(Bookmarks.PARENT, 1);
+                    db.insert("bookmarks", null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @LargeTest
+    public void testSuggestBenchmark() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        int filled = 0;
+        for (int rows : BENCHMARK_ROWS) {
+            fillHistory(db, filled, rows);
+            filled = rows;
+            long indexed = 0;
+            long legacy = 0;
+            for (int i = 1; i <= BENCHMARK_INPUT.length(); i++) {
+                String input = BENCHMARK_INPUT.substring(0, i);
+                long start = SystemClock.elapsedRealtime();
+                int count = getSuggestionCount(input);
+                indexed += SystemClock.elapsedRealtime() - start;
+                start = SystemClock.elapsedRealtime();
+                int legacyCount = getLegacySuggestionCount(db, input);
+                legacy += SystemClock.elapsedRealtime() - start;
+                assertEquals("input " + input, legacyCount, count);
+            }
+            Log.i(LOGTAG, rows + " rows, per keystroke: index "
+                    + (indexed / (float) BENCHMARK_INPUT.length()) + "ms, LIKE scan "
+                    + (legacy / (float) BENCHMARK_INPUT.length()) + "ms");
+        }
+    }
+}
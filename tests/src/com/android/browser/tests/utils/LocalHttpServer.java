@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface, standing in for a
+ * remote server in tests. Connections are kept alive, and every request
+ * is answered with the body returned by the {@link Responder}.
+ */
+public class LocalHttpServer {
+
+    private static final String LOGTAG = "LocalHttpServer";
+
+    public interface Responder {
+        /**
+         * Returns the body for the request path, may block to simulate a
+         * slow server.
+         */
+        String respond(String path);
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Responder mResponder;
+    private final List<String> mRequests =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    public LocalHttpServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread("LocalHttpServer") {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnections.incrementAndGet();
+                        mSockets.add(socket);
+                        new Thread("LocalHttpServer connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            }
+        };
+        acceptThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /** The paths requested so far, in order */
+    public List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<String>(mRequests);
+        }
+    }
+
+    /** Number of TCP connections accepted so far */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) { }
+        synchronized (mSockets) {
+            for (Socket s : mSockets) {
+                try {
+                    s.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = in.readLine()) != null) {
+                // Skip the headers
+                String header;
+                while ((header = in.readLine()) != null && header.length() > 0) { }
+                String[] parts = requestLine.split(" ");
+                String path = parts.length > 1 ? parts[1] : "/";
+                mRequests.add(path);
+                byte[] body = mResponder.respond(path).getBytes("UTF-8");
+                String headers = "HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: application/json; charset=UTF-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: keep-alive\r\n\r\n";
+                out.write(headers.getBytes("UTF-8"));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Connection closed: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) { }
+        }
+    }
+}
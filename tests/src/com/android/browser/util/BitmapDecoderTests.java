@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests BitmapDecoder and BitmapPool.
+ */
+@SmallTest
+public class BitmapDecoderTests extends AndroidTestCase {
+
+    private static final String URL = "http://www.example.com/";
+
+    private BitmapPool mPool;
+    private BitmapDecoder mDecoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new BitmapPool(BitmapPool.DEFAULT_MAX_BYTES);
+        // Room for one 100x100 ARGB_8888 bitmap
+        mDecoder = new BitmapDecoder(mPool, 100 * 100 * 4);
+    }
+
+    private static byte[] createImage(int width, int height, int color) {
+        Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        b.eraseColor(color);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        b.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+    public void testSampleSize() {
+        assertEquals(1, BitmapDecoder.computeSampleSize(100, 100, 0, 0));
+        assertEquals(1, BitmapDecoder.computeSampleSize(100, 100, 100, 100));
+        assertEquals(1, BitmapDecoder.computeSampleSize(100, 100, 51, 10));
+        assertEquals(2, BitmapDecoder.computeSampleSize(100, 100, 50, 50));
+        assertEquals(4, BitmapDecoder.computeSampleSize(400, 200, 100, 0));
+        assertEquals(2, BitmapDecoder.computeSampleSize(400, 200, 100, 100));
+        assertEquals(1, BitmapDecoder.computeSampleSize(10, 10, 32, 32));
+    }
+
+    public void testDownsamples() {
+        Bitmap b = mDecoder.decode(URL, BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(400, 400, Color.RED), 100, 100);
+        assertEquals(100, b.getWidth());
+        assertEquals(100, b.getHeight());
+        assertEquals(Color.RED, b.getPixel(50, 50));
+        assertTrue(mDecoder.getSavedBytes() > 0);
+    }
+
+    public void testCache() {
+        byte[] data = createImage(100, 100, Color.BLUE);
+        Bitmap first = mDecoder.decode(URL, BitmapDecoder.TYPE_THUMBNAIL, data, 100, 100);
+        // Smaller requests are served by the bigger bitmap
+        Bitmap second = mDecoder.decode(URL, BitmapDecoder.TYPE_THUMBNAIL, data, 50, 50);
+        assertSame(first, second);
+        assertEquals(1, mDecoder.getHitCount());
+        // The type is part of the key
+        Bitmap favicon = mDecoder.decode(URL, BitmapDecoder.TYPE_FAVICON, data, 50, 50);
+        assertNotSame(first, favicon);
+        // New data for the url is decoded again
+        Bitmap changed = mDecoder.decode(URL, BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.GREEN), 100, 100);
+        assertNotSame(first, changed);
+        assertEquals(Color.GREEN, changed.getPixel(0, 0));
+        assertEquals(Color.BLUE, first.getPixel(0, 0));
+    }
+
+    public void testPinnedBitmapsAreNotReused() {
+        Bitmap shown = mDecoder.decode("a", BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.RED), 0, 0);
+        // Evicts "a", which is still shown
+        Bitmap other = mDecoder.decode("b", BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.BLUE), 0, 0);
+        assertEquals(0, mPool.getSize());
+        assertNotSame(shown, other);
+        assertEquals(Color.RED, shown.getPixel(0, 0));
+        mDecoder.release(shown);
+        assertEquals(100 * 100 * 4, mPool.getSize());
+        // Decoded into the released bitmap
+        mDecoder.release(other);
+        Bitmap reused = mDecoder.decode("c", BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.GREEN), 0, 0);
+        assertSame(shown, reused);
+        assertEquals(Color.GREEN, reused.getPixel(0, 0));
+        assertEquals(1, mPool.getHitCount());
+    }
+
+    public void testAcquire() {
+        Bitmap b = mDecoder.decode("a", BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.RED), 0, 0);
+        mDecoder.acquire(b);
+        mDecoder.release(b);
+        mDecoder.decode("b", BitmapDecoder.TYPE_THUMBNAIL,
+                createImage(100, 100, Color.BLUE), 0, 0);
+        // Still held by the second holder
+        assertEquals(0, mPool.getSize());
+        mDecoder.release(b);
+        assertEquals(100 * 100 * 4, mPool.getSize());
+        // Not decoded here, ignored
+        mDecoder.release(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testPool() {
+        Bitmap b = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mPool.put(b);
+        mPool.put(b);
+        assertEquals(100 * 100 * 4, mPool.getSize());
+        assertNull(mPool.get(200, 200, Bitmap.Config.ARGB_8888));
+        Bitmap same = mPool.get(100, 100, Bitmap.Config.ARGB_8888);
+        assertSame(b, same);
+        assertEquals(0, mPool.getSize());
+        // Immutable bitmaps can't be reused
+        mPool.put(Bitmap.createBitmap(new int[100], 10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(0, mPool.getSize());
+        // The biggest bitmaps go first
+        BitmapPool small = new BitmapPool(100000);
+        small.put(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        small.put(Bitmap.createBitmap(100, 120, Bitmap.Config.ARGB_8888));
+        small.put(Bitmap.createBitmap(50, 100, Bitmap.Config.ARGB_8888));
+        assertEquals((100 * 100 + 50 * 100) * 4, small.getSize());
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests ThreadedCursorAdapter, driving it from a looper thread standing in
+ * for the UI thread.
+ */
+@MediumTest
+public class ThreadedCursorAdapterTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "ThreadedCursorAdapterTests";
+    private static final long TIMEOUT = 5000;
+    private static final int ROWS = 200;
+
+    private HandlerThread mUiThread;
+    private Handler mUiHandler;
+    private TestAdapter mAdapter;
+
+    private static class TestAdapter extends ThreadedCursorAdapter<String> {
+        volatile long mLoadDelay;
+        volatile CountDownLatch mGate;
+        int mReleased;
+
+        TestAdapter(Context context, Cursor c) {
+            super(context, c);
+        }
+
+        @Override
+        public View newView(Context context, ViewGroup parent) {
+            return new View(context);
+        }
+
+        @Override
+        public void bindView(View view, String object) {
+        }
+
+        @Override
+        public String getRowObject(Cursor c, String recycleObject) {
+            try {
+                CountDownLatch gate = mGate;
+                if (gate != null) {
+                    gate.await();
+                }
+                if (mLoadDelay > 0) {
+                    Thread.sleep(mLoadDelay);
+                }
+            } catch (InterruptedException e) {
+            }
+            return c.getString(1);
+        }
+
+        @Override
+        public String getLoadingObject() {
+            return "loading";
+        }
+
+        @Override
+        protected void releaseRowObject(String object) {
+            mReleased++;
+        }
+
+        @Override
+        protected long getItemId(Cursor c) {
+            return c.getLong(0);
+        }
+    }
+
+    private static Cursor createCursor(String prefix) {
+        MatrixCursor c = new MatrixCursor(new String[] { "_id", "title" });
+        for (int i = 0; i < ROWS; i++) {
+            c.addRow(new Object[] { i, prefix + i });
+        }
+        return c;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUiThread = new HandlerThread("ui");
+        mUiThread.start();
+        mUiHandler = new Handler(mUiThread.getLooper());
+        mAdapter = runOnUi(new Callable<TestAdapter>() {
+            @Override
+            public TestAdapter call() {
+                return new TestAdapter(getContext(), createCursor("row"));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mUiThread.quit();
+        super.tearDown();
+    }
+
+    private <V> V runOnUi(Callable<V> callable) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(callable);
+        mUiHandler.post(task);
+        return task.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private View[] bind(final View[] views, final int first) throws Exception {
+        return runOnUi(new Callable<View[]>() {
+            @Override
+            public View[] call() {
+                for (int i = 0; i < views.length; i++) {
+                    views[i] = mAdapter.getView(first + i, views[i], null);
+                }
+                return views;
+            }
+        });
+    }
+
+    private boolean hasRows(final int first, final int last) throws Exception {
+        return runOnUi(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (int p = first; p <= last; p++) {
+                    if (!mAdapter.hasRow(p)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private int countRows(final int first, final int last) throws Exception {
+        return runOnUi(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int count = 0;
+                for (int p = first; p <= last; p++) {
+                    if (mAdapter.hasRow(p)) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+        });
+    }
+
+    private void waitForRows(int first, int last) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!hasRows(first, last)) {
+            assertTrue("Timed out loading rows " + first + "-" + last,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testLoadsAndKeepsRows() throws Exception {
+        View[] views = bind(new View[10], 0);
+        assertEquals(10, mAdapter.getPlaceholderCount());
+        waitForRows(0, 9);
+        // Shown right away the second time
+        bind(views, 0);
+        assertEquals(10, mAdapter.getPlaceholderCount());
+    }
+
+    public void testPrefetchesAhead() throws Exception {
+        bind(new View[10], 0);
+        waitForRows(0, 9 + ThreadedCursorAdapter.DEFAULT_PREFETCH_ROWS);
+        assertEquals(0, countRows(20, ROWS - 1));
+        assertTrue(mAdapter.getPrefetchCount() > 0);
+    }
+
+    public void testCancelsRowsScrolledAway() throws Exception {
+        mAdapter.mGate = new CountDownLatch(1);
+        View[] views = bind(new View[10], 0);
+        // Jump far ahead before anything loaded
+        bind(views, 100);
+        assertTrue(mAdapter.getCancelCount() > 0);
+        mAdapter.mGate.countDown();
+        waitForRows(100, 109);
+        // Only the loads that had started when the gate closed went through
+        assertTrue(countRows(0, 99) <= 2);
+    }
+
+    public void testDataChangeDropsRows() throws Exception {
+        bind(new View[10], 0);
+        waitForRows(0, 9);
+        runOnUi(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mAdapter.changeCursor(createCursor("new"));
+                return null;
+            }
+        });
+        assertEquals(0, countRows(0, ROWS - 1));
+    }
+
+    public void testReleasesDroppedRows() throws Exception {
+        bind(new View[10], 0);
+        waitForRows(0, 9 + ThreadedCursorAdapter.DEFAULT_PREFETCH_ROWS);
+        final int loaded = countRows(0, ROWS - 1);
+        int released = runOnUi(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                mAdapter.changeCursor(createCursor("new"));
+                return mAdapter.mReleased;
+            }
+        });
+        // Some are kept for reuse, the others are released
+        assertTrue(released > 0);
+        assertTrue(released < loaded);
+    }
+
+    /**
+     * Scrolls one row per frame through rows that take a few ms each to
+     * load, and counts the frames where a shown row still has the loading
+     * placeholder.
+     */
+    private int countPlaceholderFrames(final int prefetchRows) throws Exception {
+        final int visible = 8;
+        final View[] views = new View[visible];
+        final int[] positions = new int[visible];
+        mAdapter = runOnUi(new Callable<TestAdapter>() {
+            @Override
+            public TestAdapter call() {
+                TestAdapter adapter = new TestAdapter(getContext(), createCursor("row"));
+                adapter.setPrefetchRows(prefetchRows);
+                adapter.mLoadDelay = 4;
+                for (int i = 0; i < visible; i++) {
+                    views[i] = adapter.getView(i, null, null);
+                    positions[i] = i;
+                }
+                return adapter;
+            }
+        });
+        waitForRows(0, visible - 1);
+        int placeholderFrames = 0;
+        for (int frame = 1; frame + visible <= ROWS; frame++) {
+            final int first = frame;
+            boolean placeholder = runOnUi(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    boolean placeholder = false;
+                    for (int p = first; p < first + visible; p++) {
+                        // Like a list, only rows that came into view are bound
+                        int slot = p % visible;
+                        if (positions[slot] != p) {
+                            views[slot] = mAdapter.getView(p, views[slot], null);
+                            positions[slot] = p;
+                        }
+                        placeholder |= !mAdapter.hasRow(p);
+                    }
+                    return placeholder;
+                }
+            });
+            if (placeholder) {
+                placeholderFrames++;
+            }
+            Thread.sleep(16);
+        }
+        return placeholderFrames;
+    }
+
+    @LargeTest
+    public void testScrollBenchmark() throws Exception {
+        int withoutPrefetch = countPlaceholderFrames(0);
+        int withPrefetch = countPlaceholderFrames(ThreadedCursorAdapter.DEFAULT_PREFETCH_ROWS);
+        Log.i(LOGTAG, "Frames showing placeholders over " + (ROWS - 8) + " frames: "
+                + withoutPrefetch + " without prefetch, " + withPrefetch + " with");
+        assertTrue(withPrefetch < withoutPrefetch);
+    }
+}